@@ -0,0 +1,55 @@
+/**
+ * Licensed to Jasig under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Jasig licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a
+ * copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.jasig.services.persondir;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Asynchronous companion to {@link IPersonAttributeDao}. The methods follow the same rules as their blocking
+ * counterparts but return immediately with an {@link IListenableFuture} for the result. Exceptions that the blocking
+ * methods would throw while running the query are reported by the future instead.
+ * 
+ * @author Eric Dalquist
+ * @version $Revision$
+ */
+public interface IAsyncPersonAttributeDao {
+    /**
+     * Asynchronously searches for a single {@link IPersonAttributes} using the specified uid (userName), following the
+     * same rules as {@link IPersonAttributeDao#getPerson(String)}.
+     * 
+     * @param uid The userName of the person to find.
+     * @return A future for the populated {@link IPersonAttributes}, the future returns null if no person could be found for the uid.
+     * @throws IllegalArgumentException If <code>uid</code> is <code>null.</code>
+     */
+    public IListenableFuture<IPersonAttributes> getPersonAsync(String uid);
+    
+    /**
+     * Asynchronously searches for {@link IPersonAttributes}s that match the set of attributes provided in the query
+     * {@link Map}, following the same rules as {@link IPersonAttributeDao#getPeopleWithMultivaluedAttributes(Map)}.
+     * 
+     * @param query A {@link Map} of name/value pair attributes to use in searching for {@link IPersonAttributes}s
+     * @return A future for the {@link Set} of {@link IPersonAttributes}s that match the query {@link Map}.
+     * @throws IllegalArgumentException If <code>query</code> is <code>null.</code>
+     */
+    public IListenableFuture<Set<IPersonAttributes>> getPeopleWithMultivaluedAttributesAsync(Map<String, List<Object>> query);
+}
@@ -0,0 +1,44 @@
+/**
+ * Licensed to Jasig under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Jasig licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a
+ * copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.jasig.services.persondir;
+
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * An {@link IPersonAttributeDao} that can look up many people by uid in a single call. Implementations that wrap or
+ * aggregate other DAOs use this to pass the whole batch along instead of making one call per uid.
+ * 
+ * @author Eric Dalquist
+ * @version $Revision$
+ */
+public interface IBatchPersonAttributeDao extends IPersonAttributeDao {
+    /**
+     * Searches for the {@link IPersonAttributes} of each of the specified uids (userNames), following the same rules as
+     * {@link IPersonAttributeDao#getPerson(String)} for each uid.
+     * 
+     * @param uids The userNames of the people to find.
+     * @return A {@link Map} of uid to the populated {@link IPersonAttributes} for that uid, in the iteration order of
+     *         <code>uids</code>. Uids for which no person could be found are not in the Map.
+     * @throws IllegalArgumentException If <code>uids</code> is <code>null</code> or contains <code>null.</code>
+     */
+    public Map<String, IPersonAttributes> getPeopleByUid(Set<String> uids);
+}
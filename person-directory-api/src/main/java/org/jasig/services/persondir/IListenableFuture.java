@@ -0,0 +1,44 @@
+/**
+ * Licensed to Jasig under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Jasig licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a
+ * copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.jasig.services.persondir;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+
+/**
+ * A {@link Future} that runs listeners once it completes. Listeners are used to compose asynchronous lookups without
+ * blocking a thread on {@link Future#get()} while the result is pending.
+ * 
+ * @author Eric Dalquist
+ * @version $Revision$
+ */
+public interface IListenableFuture<V> extends Future<V> {
+    /**
+     * Registers a listener to run on the specified {@link Executor} once this future completes, successfully, with an
+     * exception or by being cancelled. If the future has already completed the listener is run immediately. Listeners
+     * call {@link Future#get()} to retrieve the result, which does not block once the future has completed.
+     * 
+     * @param listener The listener to run when the future completes.
+     * @param executor The executor to run the listener with.
+     * @throws IllegalArgumentException If <code>listener</code> or <code>executor</code> is <code>null.</code>
+     */
+    public void addListener(Runnable listener, Executor executor);
+}
@@ -0,0 +1,59 @@
+/**
+ * Licensed to Jasig under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Jasig licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a
+ * copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.jasig.services.persondir;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * An {@link IPersonAttributeDao} that can limit a lookup to the attributes the caller needs. Implementations use the
+ * requested attribute names to avoid fetching data that would be discarded, for example by narrowing the attributes
+ * returned by a directory search or by not querying sources that can't provide any of the requested attributes.
+ * <br>
+ * The returned {@link IPersonAttributes} only contain requested attributes. A <code>null</code> set of requested
+ * attributes behaves exactly like the corresponding {@link IPersonAttributeDao} method.
+ * 
+ * @author Eric Dalquist
+ * @version $Revision$
+ */
+public interface IProjectingPersonAttributeDao extends IPersonAttributeDao {
+    /**
+     * Searches for a single {@link IPersonAttributes} using the specified uid (userName), following the same rules as
+     * {@link IPersonAttributeDao#getPerson(String)}.
+     * 
+     * @param uid The userName of the person to find.
+     * @param requestedAttributes The names of the attributes to return, null for all attributes.
+     * @return The populated {@link IPersonAttributes} for the specified uid, null if no person could be found for the uid. 
+     * @throws IllegalArgumentException If <code>uid</code> is <code>null.</code>
+     */
+    public IPersonAttributes getPerson(String uid, Set<String> requestedAttributes);
+    
+    /**
+     * Searches for {@link IPersonAttributes}s that match the set of attributes provided in the query {@link Map},
+     * following the same rules as {@link IPersonAttributeDao#getPeopleWithMultivaluedAttributes(Map)}.
+     * 
+     * @param query A {@link Map} of name/value pair attributes to use in searching for {@link IPersonAttributes}s
+     * @param requestedAttributes The names of the attributes to return, null for all attributes.
+     * @return A {@link Set} of {@link IPersonAttributes}s that match the query {@link Map}. If no matches are found an empty {@link Set} is returned. If the query could not be run null is returned.
+     * @throws IllegalArgumentException If <code>query</code> is <code>null.</code>
+     */
+    public Set<IPersonAttributes> getPeopleWithMultivaluedAttributes(Map<String, List<Object>> query, Set<String> requestedAttributes);
+}
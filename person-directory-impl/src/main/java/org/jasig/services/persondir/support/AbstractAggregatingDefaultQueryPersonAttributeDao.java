@@ -20,22 +20,47 @@
 package org.jasig.services.persondir.support;
 
 import java.util.Collections;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 
 import org.apache.commons.lang3.Validate;
+import org.jasig.services.persondir.IAsyncPersonAttributeDao;
+import org.jasig.services.persondir.IListenableFuture;
 import org.jasig.services.persondir.IPersonAttributes;
 import org.jasig.services.persondir.IPersonAttributeDao;
+import org.jasig.services.persondir.IProjectingPersonAttributeDao;
 import org.jasig.services.persondir.support.merger.IAttributeMerger;
 import org.jasig.services.persondir.support.merger.MultivaluedAttributeMerger;
+import org.springframework.beans.factory.InitializingBean;
 import org.springframework.beans.factory.annotation.Required;
 
 
 /**
  * Provides a base set of implementations and properties for IPersonAttributeDao
  * implementations that aggregate results from a sub List of IPersonAttributeDaos.
+ * <br>
+ * The {@link IAsyncPersonAttributeDao} methods query the child DAOs in the same order, starting each query from the
+ * completion of the previous one instead of blocking a thread on it. Child DAOs that implement
+ * {@link IAsyncPersonAttributeDao} are queried natively where the subclass queries them with the seed, other child
+ * DAOs are run on the <b>executorService</b>, or the calling thread if none is set. Without an executorService a
+ * blocking child DAO is not made asynchronous, the asynchronous methods block until it returns.
+ * <b>childQueryTimeout</b> and <b>queryTimeout</b> are not applied to asynchronous queries, callers can bound the
+ * wait with {@link java.util.concurrent.Future#get(long, TimeUnit)}.
  * 
  * <br>
  * <br>
@@ -85,12 +110,63 @@ import org.springframework.beans.factory.annotation.Required;
  *         <td valign="top">No</td>
  *         <td valign="top">false</td>
  *     </tr>
+ *     <tr>
+ *         <td align="right" valign="top">executorService</td>
+ *         <td>
+ *             The {@link ExecutorService} child DAO queries are run on when <b>childQueryTimeout</b> or
+ *             <b>queryTimeout</b> is set, the timeouts can only be enforced on child DAOs running on another thread.
+ *             Subclasses may also use it to query child DAOs concurrently, see the subclass documentation.
+ *         </td>
+ *         <td valign="top">If a timeout is set</td>
+ *         <td valign="top">null</td>
+ *     </tr>
+ *     <tr>
+ *         <td align="right" valign="top">childQueryTimeout</td>
+ *         <td>
+ *             The maximum number of milliseconds to wait for a single child DAO to return. A child DAO that does
+ *             not return in time is dropped from the query and its results are ignored. 0 disables the timeout.
+ *         </td>
+ *         <td valign="top">No</td>
+ *         <td valign="top">0</td>
+ *     </tr>
+ *     <tr>
+ *         <td align="right" valign="top">queryTimeout</td>
+ *         <td>
+ *             The maximum number of milliseconds to wait for all child DAOs to return. Once the deadline has passed
+ *             all remaining child DAOs are dropped and the results collected so far are merged and returned. 0
+ *             disables the deadline.
+ *         </td>
+ *         <td valign="top">No</td>
+ *         <td valign="top">0</td>
+ *     </tr>
+ *     <tr>
+ *         <td align="right" valign="top">circuitBreaker</td>
+ *         <td>
+ *             A {@link CircuitBreaker} that tracks failures and slow calls per child DAO. Child DAOs whose circuit
+ *             is open are skipped, as if they had failed, until the circuit breaker allows a probe query.
+ *         </td>
+ *         <td valign="top">No</td>
+ *         <td valign="top">null</td>
+ *     </tr>
+ *     <tr>
+ *         <td align="right" valign="top">pruneUnqueryableDaos</td>
+ *         <td>
+ *             If true child DAOs are not called for queries they cannot answer. An {@link AbstractQueryPersonAttributeDao}
+ *             is skipped if it could not build a query from the query attributes, other child DAOs are skipped if they
+ *             declare {@link IPersonAttributeDao#getAvailableQueryAttributes()} and none of them are in the query.
+ *             Decisions are cached by the set of query attribute names.
+ *         </td>
+ *         <td valign="top">No</td>
+ *         <td valign="top">false</td>
+ *     </tr>
  * </table>
  * 
  * @author Eric Dalquist
  * @version $Revision$
  */
-public abstract class AbstractAggregatingDefaultQueryPersonAttributeDao extends AbstractDefaultAttributePersonAttributeDao {
+public abstract class AbstractAggregatingDefaultQueryPersonAttributeDao extends AbstractDefaultAttributePersonAttributeDao implements IAsyncPersonAttributeDao, InitializingBean {
+    private static final int MAX_QUERYABLE_DAOS_CACHE_SIZE = 64;
+    
     /**
      * A List of child IPersonAttributeDao instances which we will poll in order.
      */
@@ -109,6 +185,66 @@ public abstract class AbstractAggregatingDefaultQueryPersonAttributeDao extends
     
     protected boolean stopOnSuccess = false;
     
+    /**
+     * Executor to run child DAO queries on, required if a timeout is configured.
+     */
+    protected ExecutorService executorService = null;
+    
+    /**
+     * Maximum time in milliseconds to wait for a single child DAO, 0 for no limit.
+     */
+    protected long childQueryTimeout = 0;
+    
+    /**
+     * Maximum time in milliseconds to wait for all child DAOs, 0 for no limit.
+     */
+    protected long queryTimeout = 0;
+    
+    /**
+     * Verifies an executorService is configured if childQueryTimeout or queryTimeout is set.
+     * 
+     * @see org.springframework.beans.factory.InitializingBean#afterPropertiesSet()
+     */
+    public void afterPropertiesSet() throws Exception {
+        if (this.isTimeoutsEnabled() && this.executorService == null) {
+            throw new IllegalStateException("executorService must be set when childQueryTimeout or queryTimeout is set");
+        }
+    }
+    
+    /**
+     * Number of child DAO queries dropped due to a timeout.
+     */
+    private final AtomicLong droppedQueries = new AtomicLong();
+    
+    /**
+     * Tracks the health of each child DAO, null if child DAOs are always queried.
+     */
+    protected CircuitBreaker circuitBreaker = null;
+    
+    /**
+     * If child DAOs that cannot answer a query should be skipped.
+     */
+    protected boolean pruneUnqueryableDaos = false;
+    
+    /**
+     * Cached results of {@link #isQueryable(IPersonAttributeDao, Set)} keyed by the set of query attribute names.
+     */
+    private final ConcurrentMap<Set<String>, Map<IPersonAttributeDao, Boolean>> queryableDaosCache = new ConcurrentHashMap<Set<String>, Map<IPersonAttributeDao, Boolean>>();
+    
+    /**
+     * Number of child DAO queries skipped because the child DAO could not answer them.
+     */
+    private final AtomicLong prunedQueries = new AtomicLong();
+    
+    /**
+     * Flags set by {@link #getPeopleFromDao(IPersonAttributeDao, Map, Set)} during
+     * {@link #queryDao(Map, boolean, IPersonAttributeDao, Set, Set)} when the child DAO is called or skipped, so a
+     * child that was only skipped is not reported to the {@link CircuitBreaker}.
+     */
+    private static final ThreadLocal<int[]> CHILD_QUERY_FLAGS = new ThreadLocal<int[]>();
+    private static final int CHILD_QUERIED = 1;
+    private static final int CHILD_SKIPPED = 2;
+    
 
     /**
      * Iterates through the configured {@link java.util.List} of {@link IPersonAttributeDao}
@@ -118,6 +254,19 @@ public abstract class AbstractAggregatingDefaultQueryPersonAttributeDao extends
      * @see org.jasig.services.persondir.IPersonAttributeDao#getPeopleWithMultivaluedAttributes(java.util.Map)
      */
     public Set<IPersonAttributes> getPeopleWithMultivaluedAttributes(Map<String, List<Object>> query) {
+        return this.getPeopleWithMultivaluedAttributes(query, null);
+    }
+
+    /**
+     * Iterates through the configured {@link java.util.List} of {@link IPersonAttributeDao}
+     * instances. The results from each DAO are merged into the result {@link Map}
+     * by the configured {@link IAttributeMerger}. Child DAOs that can't return any of the
+     * requested attributes are not queried, see {@link #getChildRequestedAttributes(Set)}.
+     * 
+     * @see org.jasig.services.persondir.support.AbstractDefaultAttributePersonAttributeDao#getPeopleWithMultivaluedAttributes(java.util.Map, java.util.Set)
+     */
+    @Override
+    public Set<IPersonAttributes> getPeopleWithMultivaluedAttributes(Map<String, List<Object>> query, Set<String> requestedAttributes) {
         Validate.notNull(query, "query may not be null.");
         
         //Initialize null, so that if none of the sub-DAOs find any people null is returned appropriately
@@ -130,18 +279,49 @@ public abstract class AbstractAggregatingDefaultQueryPersonAttributeDao extends
             throw new IllegalStateException("personAttributeDaos must be set");
         }
         
+        final boolean timeoutsEnabled = this.isTimeoutsEnabled();
+        if (timeoutsEnabled && this.executorService == null) {
+            throw new IllegalStateException("executorService must be set when childQueryTimeout or queryTimeout is set");
+        }
+        final long queryStart = System.nanoTime();
+        final Set<String> childRequestedAttributes = this.getChildRequestedAttributes(requestedAttributes);
+        
         //Iterate through the configured IPersonAttributeDaos, querying each.
         for (final IPersonAttributeDao currentlyConsidering : this.personAttributeDaos) {
+            if (!this.isDaoAvailable(currentlyConsidering, childRequestedAttributes)) {
+                continue;
+            }
+            
             boolean handledException = false;
             Set<IPersonAttributes> currentPeople = null;
             try {
-                currentPeople = this.getAttributesFromDao(query, isFirstQuery, currentlyConsidering, resultPeople);
+                if (timeoutsEnabled) {
+                    final long childStart = System.nanoTime();
+                    final long timeout = this.getRemainingTimeout(queryStart, childStart, childStart);
+                    if (timeout <= 0) {
+                        throw new TimeoutException();
+                    }
+                    
+                    final Future<Set<IPersonAttributes>> future = this.submitAttributesFromDao(query, isFirstQuery, currentlyConsidering, resultPeople, childRequestedAttributes);
+                    currentPeople = this.getFutureResult(future, timeout);
+                }
+                else {
+                    currentPeople = this.queryDao(query, isFirstQuery, currentlyConsidering, resultPeople, childRequestedAttributes);
+                }
                 isFirstQuery = false;
 
                 if (this.logger.isDebugEnabled()) {
                     this.logger.debug("Retrieved attributes='" + currentPeople + "' for query='" + query + "', isFirstQuery=" + isFirstQuery + ", currentlyConsidering='" + currentlyConsidering + "', resultAttributes='" + resultPeople + "'");
                 }
             }
+            catch (final TimeoutException te) {
+                handledException = true;
+                this.recordDroppedQuery(currentlyConsidering, query);
+            }
+            catch (final InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while waiting for '" + currentlyConsidering + "' results for query='" + query + "'", ie);
+            }
             catch (final RuntimeException rte) {
                 if (this.recoverExceptions) {
                     handledException = true;
@@ -153,16 +333,7 @@ public abstract class AbstractAggregatingDefaultQueryPersonAttributeDao extends
                 }
             }
 
-            if (currentPeople != null) {
-                if (resultPeople == null) {
-                    //If this is the first valid result set just use it.
-                    resultPeople = new LinkedHashSet<IPersonAttributes>(currentPeople);
-                }
-                else {
-                    //Merge the Sets of IPersons
-                    resultPeople = this.attrMerger.mergeResults(resultPeople, currentPeople);
-                }
-            }
+            resultPeople = this.mergePeople(resultPeople, currentPeople);
             
             if (this.stopOnSuccess && !handledException) {
                 if (this.logger.isDebugEnabled()) {
@@ -181,10 +352,237 @@ public abstract class AbstractAggregatingDefaultQueryPersonAttributeDao extends
             this.logger.debug("Aggregated search results '" + resultPeople + "' for query='" + query + "'");
         }
         
+        if (requestedAttributes != null) {
+            return projectPeople(resultPeople, requestedAttributes);
+        }
+        
         return Collections.unmodifiableSet(resultPeople);
     }
     
     
+    /* (non-Javadoc)
+     * @see org.jasig.services.persondir.IAsyncPersonAttributeDao#getPersonAsync(java.lang.String)
+     */
+    public IListenableFuture<IPersonAttributes> getPersonAsync(String uid) {
+        Validate.notNull(uid, "uid may not be null.");
+        
+        return toPersonFuture(uid, this.getPeopleWithMultivaluedAttributesAsync(this.toSeedMap(uid)));
+    }
+    
+    /**
+     * Queries the configured {@link java.util.List} of {@link IPersonAttributeDao}s in order, starting the query of
+     * each child DAO when the query of the previous one completes. The results are merged the same way as
+     * {@link #getPeopleWithMultivaluedAttributes(Map)}.
+     * 
+     * @see org.jasig.services.persondir.IAsyncPersonAttributeDao#getPeopleWithMultivaluedAttributesAsync(java.util.Map)
+     */
+    public IListenableFuture<Set<IPersonAttributes>> getPeopleWithMultivaluedAttributesAsync(Map<String, List<Object>> query) {
+        Validate.notNull(query, "query may not be null.");
+        
+        if (this.personAttributeDaos == null) {
+            throw new IllegalStateException("personAttributeDaos must be set");
+        }
+        
+        final SettableFutureTask<Set<IPersonAttributes>> result = new SettableFutureTask<Set<IPersonAttributes>>();
+        final AtomicReference<Future<?>> pending = new AtomicReference<Future<?>>();
+        result.addListener(new Runnable() {
+            public void run() {
+                //Stop the running child query if the caller cancelled the query
+                final Future<?> pendingFuture = pending.get();
+                if (result.isCancelled() && pendingFuture != null) {
+                    pendingFuture.cancel(true);
+                }
+            }
+        }, SettableFutureTask.DIRECT_EXECUTOR);
+        
+        this.queryNextDaoAsync(query, 0, true, null, result, pending);
+        return result;
+    }
+    
+    /**
+     * Starts the query of the first available child DAO at or after daoIndex, completing the result once all child
+     * DAOs have been queried.
+     */
+    private void queryNextDaoAsync(final Map<String, List<Object>> query, final int daoIndex, final boolean isFirstQuery, final Set<IPersonAttributes> resultPeople, final SettableFutureTask<Set<IPersonAttributes>> result, final AtomicReference<Future<?>> pending) {
+        int nextIndex = daoIndex;
+        while (nextIndex < this.personAttributeDaos.size() && !this.isDaoAvailable(this.personAttributeDaos.get(nextIndex))) {
+            nextIndex++;
+        }
+        
+        if (nextIndex >= this.personAttributeDaos.size() || result.isDone()) {
+            if (this.logger.isDebugEnabled()) {
+                this.logger.debug("Aggregated search results '" + resultPeople + "' for query='" + query + "'");
+            }
+            
+            result.set(resultPeople == null ? null : Collections.unmodifiableSet(resultPeople));
+            return;
+        }
+        
+        final IPersonAttributeDao currentlyConsidering = this.personAttributeDaos.get(nextIndex);
+        IListenableFuture<Set<IPersonAttributes>> startedFuture;
+        try {
+            startedFuture = this.getAttributesFromDaoAsync(query, isFirstQuery, currentlyConsidering, resultPeople);
+        }
+        catch (final RuntimeException rte) {
+            startedFuture = SettableFutureTask.immediateFailure(rte);
+        }
+        final IListenableFuture<Set<IPersonAttributes>> future = startedFuture;
+        pending.set(future);
+        if (result.isCancelled()) {
+            future.cancel(true);
+            return;
+        }
+        
+        final int followingIndex = nextIndex + 1;
+        future.addListener(new Runnable() {
+            public void run() {
+                boolean handledException = false;
+                Set<IPersonAttributes> currentPeople = null;
+                try {
+                    currentPeople = SettableFutureTask.getDoneResult(future);
+                    
+                    if (logger.isDebugEnabled()) {
+                        logger.debug("Retrieved attributes='" + currentPeople + "' for query='" + query + "', isFirstQuery=" + isFirstQuery + ", currentlyConsidering='" + currentlyConsidering + "', resultAttributes='" + resultPeople + "'");
+                    }
+                }
+                catch (final RuntimeException rte) {
+                    if (recoverExceptions) {
+                        handledException = true;
+                        logger.warn("Recovering From Exception thrown by '" + currentlyConsidering + "'", rte);
+                    }
+                    else {
+                        logger.error("Failing From Exception thrown by '" + currentlyConsidering + "'", rte);
+                        result.setException(rte);
+                        return;
+                    }
+                }
+                
+                try {
+                    final Set<IPersonAttributes> mergedPeople = mergePeople(resultPeople, currentPeople);
+                    
+                    if (stopOnSuccess && !handledException) {
+                        if (logger.isDebugEnabled()) {
+                            logger.debug("Successfully retrieved attributes from a child DAO and stopOnSuccess is true, stopping iteration of child DAOs");
+                        }
+                        
+                        queryNextDaoAsync(query, personAttributeDaos.size(), false, mergedPeople, result, pending);
+                    }
+                    else {
+                        queryNextDaoAsync(query, followingIndex, isFirstQuery && handledException, mergedPeople, result, pending);
+                    }
+                }
+                catch (final Throwable t) {
+                    result.setException(t);
+                }
+            }
+        }, SettableFutureTask.DIRECT_EXECUTOR);
+    }
+    
+    /**
+     * Asynchronous version of {@link #getAttributesFromDao(Map, boolean, IPersonAttributeDao, Set)}. The default
+     * implementation runs {@link #getAttributesFromDao(Map, boolean, IPersonAttributeDao, Set)} on the configured
+     * <b>executorService</b>, or on the calling thread if none is set. Subclasses that query the child DAO with the
+     * seed should use {@link #getPeopleFromDaoAsync(IPersonAttributeDao, Map)} instead.
+     * 
+     * @return A future for the results from the call to the DAO
+     */
+    protected IListenableFuture<Set<IPersonAttributes>> getAttributesFromDaoAsync(final Map<String, List<Object>> seed, final boolean isFirstQuery, final IPersonAttributeDao currentlyConsidering, final Set<IPersonAttributes> resultPeople) {
+        return this.execute(new Callable<Set<IPersonAttributes>>() {
+            public Set<IPersonAttributes> call() throws Exception {
+                return queryDao(seed, isFirstQuery, currentlyConsidering, resultPeople, null);
+            }
+        });
+    }
+    
+    /**
+     * Asynchronous version of {@link #getPeopleFromDao(IPersonAttributeDao, Map)}. Child DAOs that implement
+     * {@link IAsyncPersonAttributeDao} are called natively, other child DAOs are run on the configured
+     * <b>executorService</b>, or on the calling thread if none is set. The outcome is reported to the configured
+     * {@link CircuitBreaker}.
+     */
+    protected final IListenableFuture<Set<IPersonAttributes>> getPeopleFromDaoAsync(final IPersonAttributeDao currentlyConsidering, final Map<String, List<Object>> query) {
+        if (!(currentlyConsidering instanceof IAsyncPersonAttributeDao)) {
+            return this.execute(new Callable<Set<IPersonAttributes>>() {
+                public Set<IPersonAttributes> call() throws Exception {
+                    return queryDao(query, true, currentlyConsidering, null, null);
+                }
+            });
+        }
+        
+        if (this.pruneUnqueryableDaos && !this.isQueryable(currentlyConsidering, query)) {
+            this.prunedQueries.incrementAndGet();
+            if (this.logger.isDebugEnabled()) {
+                this.logger.debug("Skipping '" + currentlyConsidering + "', it cannot answer query='" + query + "'");
+            }
+            return SettableFutureTask.immediate(null);
+        }
+        
+        final long start = System.nanoTime();
+        final IListenableFuture<Set<IPersonAttributes>> future = ((IAsyncPersonAttributeDao)currentlyConsidering).getPeopleWithMultivaluedAttributesAsync(query);
+        if (this.circuitBreaker != null) {
+            future.addListener(new Runnable() {
+                public void run() {
+                    final long duration = System.nanoTime() - start;
+                    if (future.isCancelled()) {
+                        //A query cancelled by the caller is not the child's fault
+                        return;
+                    }
+                    
+                    try {
+                        SettableFutureTask.getDoneResult(future);
+                    }
+                    catch (final RuntimeException rte) {
+                        circuitBreaker.recordFailure(currentlyConsidering, duration);
+                        return;
+                    }
+                    circuitBreaker.recordSuccess(currentlyConsidering, duration);
+                }
+            }, SettableFutureTask.DIRECT_EXECUTOR);
+        }
+        
+        return future;
+    }
+    
+    /**
+     * Runs the callable on the configured executorService, or on the calling thread if none is set.
+     */
+    private <V> IListenableFuture<V> execute(Callable<V> callable) {
+        final SettableFutureTask<V> future = new SettableFutureTask<V>(callable);
+        if (this.executorService == null) {
+            future.run();
+            return future;
+        }
+        
+        try {
+            this.executorService.execute(future);
+        }
+        catch (final RejectedExecutionException ree) {
+            future.setException(ree);
+        }
+        return future;
+    }
+    
+    /**
+     * Merges the results of a child DAO into the results so far using the configured {@link IAttributeMerger}.
+     * 
+     * @param resultPeople The merged results so far, may be null.
+     * @param currentPeople The results of the child DAO, may be null.
+     * @return The merged results, null if both are null.
+     */
+    protected final Set<IPersonAttributes> mergePeople(Set<IPersonAttributes> resultPeople, Set<IPersonAttributes> currentPeople) {
+        if (currentPeople == null) {
+            return resultPeople;
+        }
+        
+        if (resultPeople == null) {
+            //If this is the first valid result set just use it.
+            return new LinkedHashSet<IPersonAttributes>(currentPeople);
+        }
+        
+        //Merge the Sets of IPersons
+        return this.attrMerger.mergeResults(resultPeople, currentPeople);
+    }
+    
     /**
      * Call to execute the appropriate query on the current {@link IPersonAttributeDao}. Provides extra information
      * beyond the seed for the state of the query chain and previous results.
@@ -197,6 +595,420 @@ public abstract class AbstractAggregatingDefaultQueryPersonAttributeDao extends
      */
     protected abstract Set<IPersonAttributes> getAttributesFromDao(Map<String, List<Object>> seed, boolean isFirstQuery, IPersonAttributeDao currentlyConsidering, Set<IPersonAttributes> resultPeople);
     
+    /**
+     * Call to execute the appropriate query on the current {@link IPersonAttributeDao} only asking for the specified
+     * attributes. Subclasses should override this and pass the requested attributes to
+     * {@link #getPeopleFromDao(IPersonAttributeDao, Map, Set)}, the default implementation ignores them and calls
+     * {@link #getAttributesFromDao(Map, boolean, IPersonAttributeDao, Set)}.
+     * 
+     * @param requestedAttributes The attributes to request from the child DAO, null for all attributes.
+     * @see #getAttributesFromDao(Map, boolean, IPersonAttributeDao, Set)
+     */
+    protected Set<IPersonAttributes> getAttributesFromDao(Map<String, List<Object>> seed, boolean isFirstQuery, IPersonAttributeDao currentlyConsidering, Set<IPersonAttributes> resultPeople, Set<String> requestedAttributes) {
+        return this.getAttributesFromDao(seed, isFirstQuery, currentlyConsidering, resultPeople);
+    }
+    
+    /**
+     * Determines the attributes to request from the child DAOs when the caller requested the specified attributes.
+     * The default implementation returns the requested attributes which is correct when the child DAO results are
+     * not used to query other child DAOs.
+     * 
+     * @param requestedAttributes The attributes requested by the caller, null for all attributes.
+     * @return The attributes to request from child DAOs, null for all attributes.
+     */
+    protected Set<String> getChildRequestedAttributes(Set<String> requestedAttributes) {
+        return requestedAttributes;
+    }
+    
+    /**
+     * Adds the query attributes of all child DAOs to the requested attributes, for use by subclasses that query child
+     * DAOs with the results of other child DAOs.
+     * 
+     * @return The requested attributes and all child DAO query attributes, null if the requested attributes are null
+     * or the query attributes of a child DAO are not known.
+     */
+    protected final Set<String> addChildQueryAttributes(Set<String> requestedAttributes) {
+        if (requestedAttributes == null) {
+            return null;
+        }
+        
+        final Set<String> childRequestedAttributes = new HashSet<String>(requestedAttributes);
+        for (final IPersonAttributeDao dao : this.personAttributeDaos) {
+            final Set<String> availableQueryAttributes;
+            try {
+                availableQueryAttributes = dao.getAvailableQueryAttributes();
+            }
+            catch (final RuntimeException rte) {
+                return null;
+            }
+            
+            //An empty set usually means any attribute can be used in a query
+            if (availableQueryAttributes == null || availableQueryAttributes.isEmpty()) {
+                return null;
+            }
+            childRequestedAttributes.addAll(availableQueryAttributes);
+        }
+        
+        if (this.getUsernameAttributeProvider() != null) {
+            childRequestedAttributes.add(this.getUsernameAttributeProvider().getUsernameAttribute());
+        }
+        
+        return childRequestedAttributes;
+    }
+    
+    /**
+     * Submits a call to {@link #getAttributesFromDao(Map, boolean, IPersonAttributeDao, Set, Set)} to the configured
+     * {@link ExecutorService}.
+     * 
+     * @throws IllegalStateException If no executorService is configured
+     */
+    protected final Future<Set<IPersonAttributes>> submitAttributesFromDao(final Map<String, List<Object>> seed, final boolean isFirstQuery, final IPersonAttributeDao currentlyConsidering, final Set<IPersonAttributes> resultPeople, final Set<String> requestedAttributes) {
+        if (this.executorService == null) {
+            throw new IllegalStateException("executorService must be set to run child IPersonAttributeDao queries asynchronously");
+        }
+        
+        return this.executorService.submit(new Callable<Set<IPersonAttributes>>() {
+            public Set<IPersonAttributes> call() throws Exception {
+                return queryDao(seed, isFirstQuery, currentlyConsidering, resultPeople, requestedAttributes);
+            }
+        });
+    }
+    
+    /**
+     * Calls {@link #getAttributesFromDao(Map, boolean, IPersonAttributeDao, Set, Set)}, reporting the outcome and
+     * duration of the call to the configured {@link CircuitBreaker}. If the child DAO was never called because every
+     * query to it was skipped by <b>pruneUnqueryableDaos</b> or the requested attributes nothing is recorded and the
+     * request is released.
+     */
+    protected final Set<IPersonAttributes> queryDao(Map<String, List<Object>> seed, boolean isFirstQuery, IPersonAttributeDao currentlyConsidering, Set<IPersonAttributes> resultPeople, Set<String> requestedAttributes) {
+        if (this.circuitBreaker == null) {
+            return this.getAttributesFromDao(seed, isFirstQuery, currentlyConsidering, resultPeople, requestedAttributes);
+        }
+        
+        //Nested aggregators track their own children, restore the outer tracking afterwards
+        final int[] outerFlags = CHILD_QUERY_FLAGS.get();
+        final int[] flags = new int[1];
+        CHILD_QUERY_FLAGS.set(flags);
+        
+        final long start = System.nanoTime();
+        final Set<IPersonAttributes> currentPeople;
+        try {
+            currentPeople = this.getAttributesFromDao(seed, isFirstQuery, currentlyConsidering, resultPeople, requestedAttributes);
+        }
+        catch (final RuntimeException rte) {
+            //A query cancelled by the caller is not the child's fault
+            if (flags[0] == CHILD_SKIPPED) {
+                this.circuitBreaker.releaseRequest(currentlyConsidering);
+            }
+            else if (!Thread.currentThread().isInterrupted()) {
+                this.circuitBreaker.recordFailure(currentlyConsidering, System.nanoTime() - start);
+            }
+            throw rte;
+        }
+        finally {
+            if (outerFlags != null) {
+                CHILD_QUERY_FLAGS.set(outerFlags);
+            }
+            else {
+                CHILD_QUERY_FLAGS.remove();
+            }
+        }
+        
+        if (flags[0] == CHILD_SKIPPED) {
+            this.circuitBreaker.releaseRequest(currentlyConsidering);
+        }
+        else {
+            this.circuitBreaker.recordSuccess(currentlyConsidering, System.nanoTime() - start);
+        }
+        return currentPeople;
+    }
+    
+    /**
+     * Looks up the uids on the child DAO with {@link #getPeopleByUid(IPersonAttributeDao, Set)}, reporting the outcome
+     * and duration of the call to the configured {@link CircuitBreaker}.
+     */
+    protected final Map<String, IPersonAttributes> queryDaoByUid(IPersonAttributeDao currentlyConsidering, Set<String> uids) {
+        if (this.circuitBreaker == null) {
+            return getPeopleByUid(currentlyConsidering, uids);
+        }
+        
+        final long start = System.nanoTime();
+        final Map<String, IPersonAttributes> currentPeople;
+        try {
+            currentPeople = getPeopleByUid(currentlyConsidering, uids);
+        }
+        catch (final RuntimeException rte) {
+            //A query cancelled by the caller is not the child's fault
+            if (!Thread.currentThread().isInterrupted()) {
+                this.circuitBreaker.recordFailure(currentlyConsidering, System.nanoTime() - start);
+            }
+            throw rte;
+        }
+        this.circuitBreaker.recordSuccess(currentlyConsidering, System.nanoTime() - start);
+        return currentPeople;
+    }
+    
+    /**
+     * @return true if the child DAO should be queried, false if it provides none of the requested attributes or the
+     * configured {@link CircuitBreaker} rejected it. Skipped children are not passed to the {@link CircuitBreaker}.
+     */
+    protected final boolean isDaoAvailable(IPersonAttributeDao currentlyConsidering, Set<String> requestedAttributes) {
+        if (requestedAttributes != null && !this.canProvideAttributes(currentlyConsidering, requestedAttributes)) {
+            this.prunedQueries.incrementAndGet();
+            if (this.logger.isDebugEnabled()) {
+                this.logger.debug("Skipping '" + currentlyConsidering + "', it provides none of the requested attributes " + requestedAttributes);
+            }
+            return false;
+        }
+        
+        return this.isDaoAvailable(currentlyConsidering);
+    }
+    
+    /**
+     * @return true if the child DAO should be queried, false if the configured {@link CircuitBreaker} rejected it
+     */
+    protected final boolean isDaoAvailable(IPersonAttributeDao currentlyConsidering) {
+        if (this.circuitBreaker == null || this.circuitBreaker.allowRequest(currentlyConsidering)) {
+            return true;
+        }
+        
+        if (this.logger.isDebugEnabled()) {
+            this.logger.debug("Skipping '" + currentlyConsidering + "', its circuit is " + this.circuitBreaker.getState(currentlyConsidering));
+        }
+        return false;
+    }
+    
+    /**
+     * Calls {@link IPersonAttributeDao#getPeopleWithMultivaluedAttributes(Map)} on the child DAO unless
+     * <b>pruneUnqueryableDaos</b> is true and the child DAO cannot answer the query, in which case null is returned
+     * just as the child DAO would have.
+     */
+    protected final Set<IPersonAttributes> getPeopleFromDao(IPersonAttributeDao currentlyConsidering, Map<String, List<Object>> query) {
+        return this.getPeopleFromDao(currentlyConsidering, query, null);
+    }
+    
+    /**
+     * Calls {@link IPersonAttributeDao#getPeopleWithMultivaluedAttributes(Map)} on the child DAO, or
+     * {@link IProjectingPersonAttributeDao#getPeopleWithMultivaluedAttributes(Map, Set)} if requested attributes are
+     * specified and the child DAO supports them. Returns null without calling the child DAO if
+     * <b>pruneUnqueryableDaos</b> is true and the child DAO cannot answer the query or if none of the requested
+     * attributes are in the {@link IPersonAttributeDao#getPossibleUserAttributeNames()} of the child DAO.
+     * 
+     * @param requestedAttributes The attributes to request, null for all attributes.
+     */
+    protected final Set<IPersonAttributes> getPeopleFromDao(IPersonAttributeDao currentlyConsidering, Map<String, List<Object>> query, Set<String> requestedAttributes) {
+        if (this.pruneUnqueryableDaos && !this.isQueryable(currentlyConsidering, query)) {
+            this.prunedQueries.incrementAndGet();
+            if (this.logger.isDebugEnabled()) {
+                this.logger.debug("Skipping '" + currentlyConsidering + "', it cannot answer query='" + query + "'");
+            }
+            markChildQuery(CHILD_SKIPPED);
+            return null;
+        }
+        
+        if (requestedAttributes == null) {
+            markChildQuery(CHILD_QUERIED);
+            return currentlyConsidering.getPeopleWithMultivaluedAttributes(query);
+        }
+        
+        if (!this.canProvideAttributes(currentlyConsidering, requestedAttributes)) {
+            this.prunedQueries.incrementAndGet();
+            if (this.logger.isDebugEnabled()) {
+                this.logger.debug("Skipping '" + currentlyConsidering + "', it provides none of the requested attributes " + requestedAttributes);
+            }
+            markChildQuery(CHILD_SKIPPED);
+            return null;
+        }
+        
+        markChildQuery(CHILD_QUERIED);
+        if (currentlyConsidering instanceof IProjectingPersonAttributeDao) {
+            return ((IProjectingPersonAttributeDao)currentlyConsidering).getPeopleWithMultivaluedAttributes(query, requestedAttributes);
+        }
+        
+        return currentlyConsidering.getPeopleWithMultivaluedAttributes(query);
+    }
+    
+    /**
+     * Notes that the child DAO of the current {@link #queryDao(Map, boolean, IPersonAttributeDao, Set, Set)} call was
+     * called or skipped.
+     */
+    private static void markChildQuery(int flag) {
+        final int[] flags = CHILD_QUERY_FLAGS.get();
+        if (flags != null) {
+            flags[0] |= flag;
+        }
+    }
+    
+    /**
+     * @return false if the child DAO declares its possible attributes and none of them were requested
+     */
+    private boolean canProvideAttributes(IPersonAttributeDao currentlyConsidering, Set<String> requestedAttributes) {
+        final Set<String> possibleUserAttributeNames;
+        try {
+            possibleUserAttributeNames = currentlyConsidering.getPossibleUserAttributeNames();
+        }
+        catch (final RuntimeException rte) {
+            return true;
+        }
+        
+        if (possibleUserAttributeNames == null) {
+            return true;
+        }
+        
+        for (final String requestedAttribute : requestedAttributes) {
+            if (possibleUserAttributeNames.contains(requestedAttribute)) {
+                return true;
+            }
+        }
+        
+        return false;
+    }
+    
+    /**
+     * @return true if the child DAO may be able to answer the query, uses the cached decision for the shape of the query
+     */
+    private boolean isQueryable(IPersonAttributeDao currentlyConsidering, Map<String, List<Object>> query) {
+        //Only attributes with values are used to build queries, the key set can be used directly if all have values
+        Set<String> queryAttributes = query.keySet();
+        for (final List<Object> queryValues : query.values()) {
+            if (queryValues == null) {
+                queryAttributes = new HashSet<String>();
+                for (final Map.Entry<String, List<Object>> queryEntry : query.entrySet()) {
+                    if (queryEntry.getValue() != null) {
+                        queryAttributes.add(queryEntry.getKey());
+                    }
+                }
+                break;
+            }
+        }
+        
+        Map<IPersonAttributeDao, Boolean> queryableDaos = this.queryableDaosCache.get(queryAttributes);
+        if (queryableDaos == null) {
+            final Set<String> queryAttributesKey = Collections.unmodifiableSet(new HashSet<String>(queryAttributes));
+            
+            queryableDaos = new IdentityHashMap<IPersonAttributeDao, Boolean>();
+            for (final IPersonAttributeDao dao : this.personAttributeDaos) {
+                queryableDaos.put(dao, this.isQueryable(dao, queryAttributesKey));
+            }
+            
+            //Keep the cache small, query shapes are expected to repeat
+            if (this.queryableDaosCache.size() >= MAX_QUERYABLE_DAOS_CACHE_SIZE) {
+                this.queryableDaosCache.clear();
+            }
+            this.queryableDaosCache.put(queryAttributesKey, queryableDaos);
+        }
+        
+        final Boolean queryable = queryableDaos.get(currentlyConsidering);
+        if (queryable == null) {
+            return this.isQueryable(currentlyConsidering, queryAttributes);
+        }
+        return queryable;
+    }
+    
+    /**
+     * @return true if the child DAO may be able to answer a query with the specified attributes
+     */
+    private boolean isQueryable(IPersonAttributeDao currentlyConsidering, Set<String> queryAttributes) {
+        if (currentlyConsidering instanceof AbstractQueryPersonAttributeDao) {
+            return ((AbstractQueryPersonAttributeDao<?>)currentlyConsidering).canQuery(queryAttributes);
+        }
+        
+        final Set<String> availableQueryAttributes;
+        try {
+            availableQueryAttributes = currentlyConsidering.getAvailableQueryAttributes();
+        }
+        catch (final RuntimeException rte) {
+            //Can't tell what the child accepts, let it handle the query
+            return true;
+        }
+        
+        if (availableQueryAttributes == null || availableQueryAttributes.isEmpty()) {
+            return true;
+        }
+        
+        for (final String availableQueryAttribute : availableQueryAttributes) {
+            if (queryAttributes.contains(availableQueryAttribute)) {
+                return true;
+            }
+        }
+        
+        return false;
+    }
+    
+    /**
+     * Waits for the result of a child DAO query submitted via
+     * {@link #submitAttributesFromDao(Map, boolean, IPersonAttributeDao, Set, Set)}, unwrapping exceptions thrown by the
+     * child DAO. If the result is not available within the timeout the query is cancelled.
+     * 
+     * @param future The pending child DAO query
+     * @param timeout Nanoseconds to wait for the result, {@link Long#MAX_VALUE} to wait indefinitely
+     * @throws TimeoutException If the result was not available within the timeout
+     */
+    protected final <V> V getFutureResult(Future<V> future, long timeout) throws InterruptedException, TimeoutException {
+        try {
+            if (timeout == Long.MAX_VALUE) {
+                return future.get();
+            }
+            
+            return future.get(timeout, TimeUnit.NANOSECONDS);
+        }
+        catch (TimeoutException e) {
+            future.cancel(true);
+            throw e;
+        }
+        catch (ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException)cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error)cause;
+            }
+            throw new IllegalStateException("Child IPersonAttributeDao query failed", cause);
+        }
+    }
+    
+    /**
+     * @return true if either childQueryTimeout or queryTimeout is configured
+     */
+    protected final boolean isTimeoutsEnabled() {
+        return this.childQueryTimeout > 0 || this.queryTimeout > 0;
+    }
+    
+    /**
+     * Computes how long to wait for a child DAO query given the childQueryTimeout and queryTimeout.
+     * 
+     * @param queryStart {@link System#nanoTime()} when the aggregated query started
+     * @param childStart {@link System#nanoTime()} when the child DAO query started
+     * @param now The current {@link System#nanoTime()}
+     * @return Nanoseconds to wait, {@link Long#MAX_VALUE} if no timeout is configured, 0 or less if time has run out
+     */
+    protected final long getRemainingTimeout(long queryStart, long childStart, long now) {
+        long timeout = Long.MAX_VALUE;
+        
+        if (this.childQueryTimeout > 0) {
+            timeout = TimeUnit.MILLISECONDS.toNanos(this.childQueryTimeout) - (now - childStart);
+        }
+        
+        if (this.queryTimeout > 0) {
+            timeout = Math.min(timeout, TimeUnit.MILLISECONDS.toNanos(this.queryTimeout) - (now - queryStart));
+        }
+        
+        return timeout;
+    }
+    
+    /**
+     * Records a child DAO query that was dropped because it did not return in time.
+     */
+    protected final void recordDroppedQuery(IPersonAttributeDao currentlyConsidering, Map<String, List<Object>> query) {
+        final long dropped = this.droppedQueries.incrementAndGet();
+        if (this.circuitBreaker != null) {
+            //A query that never returned counts against the child, the exact duration is unknown
+            this.circuitBreaker.recordFailure(currentlyConsidering, 0);
+        }
+        this.logger.warn("Dropping results from '" + currentlyConsidering + "' for query='" + query + "', it did not return within the configured timeout. " + dropped + " child queries have been dropped.");
+    }
+    
     
     /**
      * Merges the results of calling {@link IPersonAttributeDao#getPossibleUserAttributeNames()} on each child dao using
@@ -355,6 +1167,7 @@ public abstract class AbstractAggregatingDefaultQueryPersonAttributeDao extends
     public final void setPersonAttributeDaos(final List<IPersonAttributeDao> daos) {
         Validate.notNull(daos, "The IPersonAttributeDao List cannot be null");
         this.personAttributeDaos = Collections.unmodifiableList(daos);
+        this.queryableDaosCache.clear();
     }
     
     /**
@@ -393,4 +1206,107 @@ public abstract class AbstractAggregatingDefaultQueryPersonAttributeDao extends
     public void setStopOnSuccess(boolean stopOnSuccess) {
         this.stopOnSuccess = stopOnSuccess;
     }
+
+    /**
+     * @return the executorService
+     */
+    public ExecutorService getExecutorService() {
+        return this.executorService;
+    }
+    /**
+     * The {@link ExecutorService} to run child DAO queries on. Required if <b>childQueryTimeout</b> or
+     * <b>queryTimeout</b> is set since the calling thread can only stop waiting on a child DAO that runs on another
+     * thread, {@link #afterPropertiesSet()} fails if a timeout is set without one.
+     * 
+     * @param executorService the executorService to set
+     */
+    public void setExecutorService(ExecutorService executorService) {
+        this.executorService = executorService;
+    }
+
+    /**
+     * @return the childQueryTimeout
+     */
+    public long getChildQueryTimeout() {
+        return this.childQueryTimeout;
+    }
+    /**
+     * The maximum number of milliseconds to wait for a single child DAO. If a child DAO does not return in time its
+     * query is cancelled and its results are ignored. Defaults to 0, no timeout.
+     * 
+     * @param childQueryTimeout the childQueryTimeout to set
+     */
+    public void setChildQueryTimeout(long childQueryTimeout) {
+        Validate.isTrue(childQueryTimeout >= 0, "childQueryTimeout must be >= 0");
+        this.childQueryTimeout = childQueryTimeout;
+    }
+
+    /**
+     * @return the queryTimeout
+     */
+    public long getQueryTimeout() {
+        return this.queryTimeout;
+    }
+    /**
+     * The maximum number of milliseconds to wait for all child DAOs. Once it passes all child DAOs that have not
+     * returned are dropped and the results that have already arrived are merged and returned. Defaults to 0, no
+     * deadline.
+     * 
+     * @param queryTimeout the queryTimeout to set
+     */
+    public void setQueryTimeout(long queryTimeout) {
+        Validate.isTrue(queryTimeout >= 0, "queryTimeout must be >= 0");
+        this.queryTimeout = queryTimeout;
+    }
+    
+    /**
+     * @return the circuitBreaker
+     */
+    public CircuitBreaker getCircuitBreaker() {
+        return this.circuitBreaker;
+    }
+    /**
+     * The {@link CircuitBreaker} used to stop querying child DAOs that are failing or slow. A rejected child DAO is
+     * treated as a failed child DAO, its results are missing and it does not end iteration when
+     * <b>stopOnSuccess</b> is true. Defaults to null, child DAOs are always queried.
+     * 
+     * @param circuitBreaker the circuitBreaker to set
+     */
+    public void setCircuitBreaker(CircuitBreaker circuitBreaker) {
+        this.circuitBreaker = circuitBreaker;
+    }
+
+    /**
+     * @return the pruneUnqueryableDaos
+     */
+    public boolean isPruneUnqueryableDaos() {
+        return this.pruneUnqueryableDaos;
+    }
+    /**
+     * If true child DAOs are not called for queries they cannot answer. An {@link AbstractQueryPersonAttributeDao} is
+     * skipped if {@link AbstractQueryPersonAttributeDao#canQuery(Set)} is false for the query attributes. Other child
+     * DAOs are skipped if {@link IPersonAttributeDao#getAvailableQueryAttributes()} is not empty and none of the
+     * attributes are in the query. The decisions are cached by the set of query attribute names, the cache is cleared
+     * when <b>personAttributeDaos</b> is set. Defaults to false.
+     * 
+     * @param pruneUnqueryableDaos the pruneUnqueryableDaos to set
+     */
+    public void setPruneUnqueryableDaos(boolean pruneUnqueryableDaos) {
+        this.pruneUnqueryableDaos = pruneUnqueryableDaos;
+        this.queryableDaosCache.clear();
+    }
+    
+    /**
+     * @return The number of child DAO queries that were skipped because the child DAO could not answer them.
+     */
+    public long getPrunedQueries() {
+        return this.prunedQueries.get();
+    }
+
+    /**
+     * @return The number of child DAO queries that have been dropped because they did not return in time.
+     */
+    public long getDroppedQueries() {
+        return this.droppedQueries.get();
+    }
 }
@@ -20,12 +20,16 @@
 package org.jasig.services.persondir.support;
 
 import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
 import org.apache.commons.lang3.Validate;
+import org.jasig.services.persondir.IListenableFuture;
 import org.jasig.services.persondir.IPersonAttributes;
+import org.jasig.services.persondir.IProjectingPersonAttributeDao;
 import org.springframework.dao.support.DataAccessUtils;
 
 
@@ -34,6 +38,10 @@ import org.springframework.dao.support.DataAccessUtils;
  * by delegation to {@link org.jasig.services.persondir.IPersonAttributeDao#getPeopleWithMultivaluedAttributes(Map)} using a configurable
  * default attribute name. If {@link org.jasig.services.persondir.IPersonAttributeDao#getPeopleWithMultivaluedAttributes(Map)} returnes
  * more than one {@link IPersonAttributes} is returned {@link org.springframework.dao.IncorrectResultSizeDataAccessException} is thrown.
+ * <br>
+ * The {@link IProjectingPersonAttributeDao} methods run the full query and remove the attributes that were not
+ * requested, subclasses that can avoid fetching unrequested attributes should override
+ * {@link #getPeopleWithMultivaluedAttributes(Map, Set)}.
  * 
  * <br>
  * <br>
@@ -60,7 +68,7 @@ import org.springframework.dao.support.DataAccessUtils;
  * @version $Revision$ $Date$
  * @since uPortal 2.5
  */
-public abstract class AbstractDefaultAttributePersonAttributeDao extends AbstractFlatteningPersonAttributeDao {
+public abstract class AbstractDefaultAttributePersonAttributeDao extends AbstractFlatteningPersonAttributeDao implements IProjectingPersonAttributeDao {
     private IUsernameAttributeProvider usernameAttributeProvider = new SimpleUsernameAttributeProvider();
 
     /**
@@ -76,6 +84,43 @@ public abstract class AbstractDefaultAttributePersonAttributeDao extends Abstrac
         //Run the query using the seed
         final Set<IPersonAttributes> people = this.getPeopleWithMultivaluedAttributes(seed);
         
+        return toPerson(uid, people);
+    }
+
+
+    /* (non-Javadoc)
+     * @see org.jasig.services.persondir.IProjectingPersonAttributeDao#getPerson(java.lang.String, java.util.Set)
+     */
+    public IPersonAttributes getPerson(String uid, Set<String> requestedAttributes) {
+        if (requestedAttributes == null) {
+            return this.getPerson(uid);
+        }
+        
+        Validate.notNull(uid, "uid may not be null.");
+        
+        //Generate the seed map for the uid
+        final Map<String, List<Object>> seed = this.toSeedMap(uid);
+        
+        //Run the query using the seed
+        final Set<IPersonAttributes> people = this.getPeopleWithMultivaluedAttributes(seed, requestedAttributes);
+        
+        return toPerson(uid, people);
+    }
+    
+    /* (non-Javadoc)
+     * @see org.jasig.services.persondir.IProjectingPersonAttributeDao#getPeopleWithMultivaluedAttributes(java.util.Map, java.util.Set)
+     */
+    public Set<IPersonAttributes> getPeopleWithMultivaluedAttributes(Map<String, List<Object>> query, Set<String> requestedAttributes) {
+        final Set<IPersonAttributes> people = this.getPeopleWithMultivaluedAttributes(query);
+        return projectPeople(people, requestedAttributes);
+    }
+    
+    /**
+     * Converts the result of a lookup for a uid into the single person returned by {@link #getPerson(String)}.
+     * 
+     * @throws org.springframework.dao.IncorrectResultSizeDataAccessException if more than one {@link IPersonAttributes} is in the set.
+     */
+    protected static IPersonAttributes toPerson(String uid, Set<IPersonAttributes> people) {
         //Ensure a single result is returned
         IPersonAttributes person = (IPersonAttributes)DataAccessUtils.singleResult(people);
         if (person == null) {
@@ -89,6 +134,68 @@ public abstract class AbstractDefaultAttributePersonAttributeDao extends Abstrac
         
         return person;
     }
+    
+    /**
+     * Creates a future for the result of {@link #getPerson(String)} that completes when the future for the uid lookup
+     * completes, for subclasses that implement {@link org.jasig.services.persondir.IAsyncPersonAttributeDao}.
+     * 
+     * @param uid The uid the people were looked up with
+     * @param peopleFuture The future for the result of the lookup
+     */
+    protected static IListenableFuture<IPersonAttributes> toPersonFuture(final String uid, final IListenableFuture<Set<IPersonAttributes>> peopleFuture) {
+        final SettableFutureTask<IPersonAttributes> personFuture = new SettableFutureTask<IPersonAttributes>();
+        peopleFuture.addListener(new Runnable() {
+            public void run() {
+                if (peopleFuture.isCancelled()) {
+                    personFuture.cancel(false);
+                    return;
+                }
+                
+                try {
+                    personFuture.set(toPerson(uid, SettableFutureTask.getDoneResult(peopleFuture)));
+                }
+                catch (Throwable t) {
+                    personFuture.setException(t);
+                }
+            }
+        }, SettableFutureTask.DIRECT_EXECUTOR);
+        
+        return personFuture;
+    }
+    
+    /**
+     * Removes all attributes that were not requested from the people.
+     * 
+     * @param people The people to project, may be null
+     * @param requestedAttributes The names of the attributes to keep, null to keep all attributes
+     * @return An unmodifiable {@link Set} of people with only the requested attributes, null if people was null
+     */
+    protected static Set<IPersonAttributes> projectPeople(Set<IPersonAttributes> people, Set<String> requestedAttributes) {
+        if (people == null || requestedAttributes == null) {
+            return people;
+        }
+        
+        final Set<IPersonAttributes> projectedPeople = new LinkedHashSet<IPersonAttributes>(people.size());
+        for (final IPersonAttributes person : people) {
+            final Map<String, List<Object>> attributes = person.getAttributes();
+            
+            final Map<String, List<Object>> projectedAttributes = new LinkedHashMap<String, List<Object>>();
+            for (final Map.Entry<String, List<Object>> attributeEntry : attributes.entrySet()) {
+                if (requestedAttributes.contains(attributeEntry.getKey())) {
+                    projectedAttributes.put(attributeEntry.getKey(), attributeEntry.getValue());
+                }
+            }
+            
+            if (projectedAttributes.size() == attributes.size()) {
+                projectedPeople.add(person);
+            }
+            else {
+                projectedPeople.add(new NamedPersonImpl(person.getName(), projectedAttributes));
+            }
+        }
+        
+        return Collections.unmodifiableSet(projectedPeople);
+    }
 
 
     /**
@@ -19,21 +19,28 @@
 
 package org.jasig.services.persondir.support;
 
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
+import org.apache.commons.lang3.Validate;
+import org.jasig.services.persondir.IBatchPersonAttributeDao;
+import org.jasig.services.persondir.IPersonAttributeDao;
 import org.jasig.services.persondir.IPersonAttributes;
 
 
 /**
  * Maps calls to {@link org.jasig.services.persondir.IPersonAttributeDao#getPeople(Map)} to
- * {@link org.jasig.services.persondir.IPersonAttributeDao#getPeopleWithMultivaluedAttributes(Map)}
+ * {@link org.jasig.services.persondir.IPersonAttributeDao#getPeopleWithMultivaluedAttributes(Map)} and calls to
+ * {@link IBatchPersonAttributeDao#getPeopleByUid(Set)} to
+ * {@link org.jasig.services.persondir.IPersonAttributeDao#getPerson(String)} for each uid. Subclasses that can look up
+ * many people at once should override {@link #getPeopleByUid(Set)}.
  * 
  * @author Eric Dalquist
  * @version $Revision$
  */
-public abstract class AbstractFlatteningPersonAttributeDao extends BasePersonAttributeDao {
+public abstract class AbstractFlatteningPersonAttributeDao extends BasePersonAttributeDao implements IBatchPersonAttributeDao {
 
     /* (non-Javadoc)
      * @see org.jasig.services.persondir.IPersonAttributeDao#getPeople(java.util.Map)
@@ -43,6 +50,45 @@ public abstract class AbstractFlatteningPersonAttributeDao extends BasePersonAtt
         return this.getPeopleWithMultivaluedAttributes(multivaluedSeed);
     }
     
+    /**
+     * Calls {@link #getPerson(String)} for each uid.
+     * 
+     * @see org.jasig.services.persondir.IBatchPersonAttributeDao#getPeopleByUid(java.util.Set)
+     */
+    public Map<String, IPersonAttributes> getPeopleByUid(Set<String> uids) {
+        Validate.notNull(uids, "uids may not be null.");
+        
+        final Map<String, IPersonAttributes> people = new LinkedHashMap<String, IPersonAttributes>(uids.size());
+        for (final String uid : uids) {
+            final IPersonAttributes person = this.getPerson(uid);
+            if (person != null) {
+                people.put(uid, person);
+            }
+        }
+        
+        return people;
+    }
+    
+    /**
+     * Looks up the uids with a single call to {@link IBatchPersonAttributeDao#getPeopleByUid(Set)} if the DAO
+     * implements it and with a call to {@link IPersonAttributeDao#getPerson(String)} per uid if not.
+     */
+    protected static Map<String, IPersonAttributes> getPeopleByUid(IPersonAttributeDao personAttributeDao, Set<String> uids) {
+        if (personAttributeDao instanceof IBatchPersonAttributeDao) {
+            return ((IBatchPersonAttributeDao)personAttributeDao).getPeopleByUid(uids);
+        }
+        
+        final Map<String, IPersonAttributes> people = new LinkedHashMap<String, IPersonAttributes>(uids.size());
+        for (final String uid : uids) {
+            final IPersonAttributes person = personAttributeDao.getPerson(uid);
+            if (person != null) {
+                people.put(uid, person);
+            }
+        }
+        
+        return people;
+    }
+    
     /**
      * @deprecated Use {@link MultivaluedPersonAttributeUtils#toMultivaluedMap(Map)} instead. This will be removed in 1.6
      */
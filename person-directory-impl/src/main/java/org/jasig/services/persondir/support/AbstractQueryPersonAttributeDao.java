@@ -23,12 +23,13 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
-import java.util.LinkedHashMap;
+import java.util.HashSet;
 import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.commons.lang3.Validate;
 import org.jasig.services.persondir.IPersonAttributes;
@@ -88,6 +89,15 @@ import org.jasig.services.persondir.util.CaseCanonicalizationMode;
  *         <td valign="top">No</td>
  *         <td valign="top">null</td>
  *     </tr>
+ *     <tr>
+ *         <td align="right" valign="top">compactPersonAttributes</td>
+ *         <td>
+ *             If the returned people should be {@link CompactPersonImpl}s, which share attribute names between
+ *             people and take less memory when the results are held for a long time, for example by a cache.
+ *         </td>
+ *         <td valign="top">No</td>
+ *         <td valign="top">false</td>
+ *     </tr>
  * </table>
  * 
  * @author Eric Dalquist 
@@ -107,6 +117,12 @@ public abstract class AbstractQueryPersonAttributeDao<QB> extends AbstractDefaul
     private boolean requireAllQueryAttributes = false;
     private boolean useAllQueryAttributes = true;
     private String unmappedUsernameAttribute = null;
+    private boolean compactPersonAttributes = false;
+    private volatile ResultMappingPlan resultMappingPlan;
+    /*
+     * Incremented after the configuration the resultMappingPlan is compiled from changes
+     */
+    private final AtomicInteger resultMappingVersion = new AtomicInteger();
     
 
     public boolean isUseAllQueryAttributes() {
@@ -174,6 +190,7 @@ public abstract class AbstractQueryPersonAttributeDao<QB> extends AbstractDefaul
         
         this.resultAttributeMapping = parsedResultAttributeMapping;
         this.possibleUserAttributes = Collections.unmodifiableSet(new LinkedHashSet<String>(userAttributes));
+        this.resultMappingVersion.incrementAndGet();
     }
     
     /**
@@ -208,10 +225,36 @@ public abstract class AbstractQueryPersonAttributeDao<QB> extends AbstractDefaul
         this.unmappedUsernameAttribute = userNameAttribute;
     }
     
+    /**
+     * @return the compactPersonAttributes
+     */
+    public boolean isCompactPersonAttributes() {
+        return compactPersonAttributes;
+    }
+    /**
+     * If the returned people should be {@link CompactPersonImpl}s instead of {@link NamedPersonImpl}s
+     * 
+     * @param compactPersonAttributes the compactPersonAttributes to set
+     */
+    public void setCompactPersonAttributes(boolean compactPersonAttributes) {
+        this.compactPersonAttributes = compactPersonAttributes;
+    }
+    
     /* (non-Javadoc)
      * @see org.jasig.services.persondir.IPersonAttributeDao#getPeopleWithMultivaluedAttributes(java.util.Map)
      */
     public final Set<IPersonAttributes> getPeopleWithMultivaluedAttributes(Map<String, List<Object>> query) {
+        return this.getPeopleWithMultivaluedAttributes(query, null);
+    }
+    
+    /**
+     * Only the data attributes needed for the requested attributes, as determined by the resultAttributeMapping, are
+     * requested from the subclass via {@link #getPeopleForQuery(Object, String, Set)}.
+     * 
+     * @see org.jasig.services.persondir.support.AbstractDefaultAttributePersonAttributeDao#getPeopleWithMultivaluedAttributes(java.util.Map, java.util.Set)
+     */
+    @Override
+    public final Set<IPersonAttributes> getPeopleWithMultivaluedAttributes(Map<String, List<Object>> query, Set<String> requestedAttributes) {
         Validate.notNull(query, "query may not be null.");
         
         //Generate the query to pass to the subclass
@@ -227,7 +270,14 @@ public abstract class AbstractQueryPersonAttributeDao<QB> extends AbstractDefaul
         final String username = usernameAttributeProvider.getUsernameFromQuery(query);
         
         //Execute the query in the subclass
-        final List<IPersonAttributes> unmappedPeople = this.getPeopleForQuery(queryBuilder, username);
+        final List<IPersonAttributes> unmappedPeople;
+        if (requestedAttributes == null) {
+            unmappedPeople = this.getPeopleForQuery(queryBuilder, username);
+        }
+        else {
+            final Set<String> dataAttributes = this.getDataAttributes(requestedAttributes);
+            unmappedPeople = this.getPeopleForQuery(queryBuilder, username, dataAttributes);
+        }
         if (unmappedPeople == null) {
             return null;
         }
@@ -239,6 +289,10 @@ public abstract class AbstractQueryPersonAttributeDao<QB> extends AbstractDefaul
             mappedPeople.add(mappedPerson);
         }
         
+        if (requestedAttributes != null) {
+            return projectPeople(mappedPeople, requestedAttributes);
+        }
+        
         return Collections.unmodifiableSet(mappedPeople);
     }
     
@@ -253,6 +307,33 @@ public abstract class AbstractQueryPersonAttributeDao<QB> extends AbstractDefaul
         return Collections.unmodifiableSet(this.queryAttributeMapping.keySet());
     }
     
+    /**
+     * Checks if a query {@link Map} with the specified attributes could produce a query. Returns false only if
+     * {@link #getPeopleWithMultivaluedAttributes(Map)} would certainly return null without running a query, either
+     * because <b>requireAllQueryAttributes</b> is set and a mapped attribute is missing or because none of the
+     * mapped attributes are present.
+     * 
+     * @param queryAttributes The names of the query attributes that have non-null values
+     * @return false if no query would be run for the attributes
+     */
+    public final boolean canQuery(Set<String> queryAttributes) {
+        if (this.queryAttributeMapping == null) {
+            return !this.useAllQueryAttributes || !queryAttributes.isEmpty();
+        }
+        
+        if (this.requireAllQueryAttributes) {
+            return queryAttributes.containsAll(this.queryAttributeMapping.keySet());
+        }
+        
+        for (final String queryAttr : this.queryAttributeMapping.keySet()) {
+            if (queryAttributes.contains(queryAttr)) {
+                return true;
+            }
+        }
+        
+        return false;
+    }
+    
     /* (non-Javadoc)
      * @see org.jasig.services.persondir.IPersonAttributeDao#getPossibleUserAttributeNames()
      */
@@ -270,6 +351,60 @@ public abstract class AbstractQueryPersonAttributeDao<QB> extends AbstractDefaul
      * @return The list of IPersons found by the query. The user attributes should be using the raw names from the data layer.
      */
     protected abstract List<IPersonAttributes> getPeopleForQuery(QB queryBuilder, String queryUserName);
+    
+    /**
+     * Executes the query for the generated queryBuilder object only fetching the specified data attributes. Subclasses
+     * that can limit the data fetched by a query should override this method, the default implementation calls
+     * {@link #getPeopleForQuery(Object, String)}. Returning additional attributes is allowed, they are removed after
+     * the attributes are mapped.
+     * 
+     * @param queryBuilder The query generated by calls to {@link #appendAttributeToQuery(Object, String, List)}
+     * @param queryUserName The username passed in the query map, if no username attribute existed in the query Map null is provided.
+     * @param dataAttributes The raw names of the data attributes that are needed, always includes the username attribute.
+     * @return The list of IPersons found by the query. The user attributes should be using the raw names from the data layer.
+     */
+    protected List<IPersonAttributes> getPeopleForQuery(QB queryBuilder, String queryUserName, Set<String> dataAttributes) {
+        return this.getPeopleForQuery(queryBuilder, queryUserName);
+    }
+    
+    /**
+     * Determines the raw data attribute names needed to return the requested attributes using the
+     * resultAttributeMapping. The username attribute is always included so the returned people can be named.
+     * 
+     * @param requestedAttributes The names of the requested attributes after mapping
+     * @return The names of the data attributes to fetch
+     */
+    protected final Set<String> getDataAttributes(Set<String> requestedAttributes) {
+        final Set<String> dataAttributes = new LinkedHashSet<String>();
+        
+        if (this.resultAttributeMapping == null) {
+            dataAttributes.addAll(requestedAttributes);
+        }
+        else {
+            for (final Map.Entry<String, Set<String>> resultAttrEntry : this.resultAttributeMapping.entrySet()) {
+                final String dataKey = resultAttrEntry.getKey();
+                final Set<String> resultKeys = resultAttrEntry.getValue();
+                
+                if (resultKeys == null || resultKeys.contains(null)) {
+                    if (requestedAttributes.contains(dataKey)) {
+                        dataAttributes.add(dataKey);
+                    }
+                }
+                else {
+                    for (final String resultKey : resultKeys) {
+                        if (requestedAttributes.contains(resultKey)) {
+                            dataAttributes.add(dataKey);
+                            break;
+                        }
+                    }
+                }
+            }
+        }
+        
+        dataAttributes.add(this.getConfiguredUserNameAttribute());
+        
+        return dataAttributes;
+    }
 
     /**
      * Append the attribute and its canonicalized value/s to the
@@ -384,89 +519,192 @@ public abstract class AbstractQueryPersonAttributeDao<QB> extends AbstractDefaul
     protected final IPersonAttributes mapPersonAttributes(final IPersonAttributes person) {
         final Map<String, List<Object>> personAttributes = person.getAttributes();
         
-        final Map<String, List<Object>> mappedAttributes;
+        //Values of the built in implementations are already read-only and can be shared with the mapped person
+        final boolean readOnlyValues = person instanceof BasePersonImpl || person instanceof CompactPersonImpl;
+        
+        final ResultMappingPlan plan = this.getResultMappingPlan();
+        final Locale locale = this.caseCanonicalizationLocale;
+        
+        final PersonBuilder mappedAttributes;
         //If no mapping just use the attributes as-is
-        if (this.resultAttributeMapping == null) {
-            if (caseInsensitiveResultAttributes != null && !(caseInsensitiveResultAttributes.isEmpty())) {
-                mappedAttributes = new LinkedHashMap<String, List<Object>>();
-                for ( Map.Entry<String,List<Object>> attribute : personAttributes.entrySet() ) {
-                    String attributeName = attribute.getKey();
-                    mappedAttributes.put(attributeName, canonicalizeAttribute(attributeName, attribute.getValue(), caseInsensitiveResultAttributes));
-                }
-            } else {
-                mappedAttributes = personAttributes;
+        if (plan.dataKeys == null) {
+            mappedAttributes = new PersonBuilder(personAttributes.size());
+            final Map<String, CaseCanonicalizationMode> modes = plan.attributeModes;
+            for ( Map.Entry<String,List<Object>> attribute : personAttributes.entrySet() ) {
+                String attributeName = attribute.getKey();
+                final List<Object> value = attribute.getValue();
+                final CaseCanonicalizationMode mode = modes != null ? modes.get(attributeName) : null;
+                final List<Object> mappedValue = mode != null ? canonicalize(value, mode, locale) : value;
+                putMappedAttribute(mappedAttributes, attributeName, mappedValue, value, readOnlyValues);
             }
         }
-        //Map the attribute names via the resultAttributeMapping
+        //Map the attribute names via the compiled resultAttributeMapping
         else {
-            mappedAttributes = new LinkedHashMap<String, List<Object>>(); 
+            mappedAttributes = new PersonBuilder(plan.attributeCount);
             
-            for (final Map.Entry<String, Set<String>> resultAttrEntry : this.resultAttributeMapping.entrySet()) {
-                final String dataKey = resultAttrEntry.getKey();
+            final String[] dataKeys = plan.dataKeys;
+            final String[] resultKeys = plan.resultKeys;
+            final CaseCanonicalizationMode[] modes = plan.modes;
+            final boolean[] sameDataKey = plan.sameDataKey;
+            
+            boolean found = false;
+            List<Object> originalValue = null;
+            List<Object> value = null;
+            for (int index = 0; index < dataKeys.length; index++) {
+                if (!sameDataKey[index]) {
+                    //Only map found data attributes
+                    originalValue = personAttributes.get(dataKeys[index]);
+                    found = originalValue != null || personAttributes.containsKey(dataKeys[index]);
+                    value = originalValue;
+                }
+                if (!found) {
+                    continue;
+                }
                 
-                //Only map found data attributes
-                if (personAttributes.containsKey(dataKey)) {
-                    Set<String> resultKeys = resultAttrEntry.getValue();
-                    
-                    //If dataKey has no mapped resultKeys just use the dataKey
-                    if (resultKeys == null) {
-                        resultKeys = Collections.singleton(dataKey);
-                    }
-                    
-                    //Add the value to the mapped attributes for each mapped key,
-                    //possibly canonicalizing casing for each value
-                    List<Object> value = personAttributes.get(dataKey);
-                    for (final String resultKey : resultKeys) {
-                        value = canonicalizeAttribute(resultKey, value, caseInsensitiveResultAttributes);
-                        if (resultKey == null) {
-                            //TODO is this possible?
-                            mappedAttributes.put(dataKey, value);
-                        }
-                        else {
-                            mappedAttributes.put(resultKey, value);
-                        }
-                    }
+                //Canonicalization chains across the result keys of a data key
+                if (modes[index] != null) {
+                    value = canonicalize(value, modes[index], locale);
                 }
+                putMappedAttribute(mappedAttributes, resultKeys[index], value, originalValue, readOnlyValues);
             }
         }
         
-        final IPersonAttributes newPerson;
+        String name = person.getName();
+        if (name == null) {
+            //Same as AttributeNamedPersonImpl.getName()
+            final List<Object> userNameValues = mappedAttributes.get(this.getConfiguredUserNameAttribute());
+            if (userNameValues != null && !userNameValues.isEmpty() && userNameValues.get(0) != null) {
+                name = userNameValues.get(0).toString();
+            }
+        }
+        name = usernameCaseCanonicalizationMode.canonicalize(name);
         
-        final String name = person.getName();
-        if (name != null) {
-            newPerson = new NamedPersonImpl(usernameCaseCanonicalizationMode.canonicalize(name), mappedAttributes);
+        if (this.compactPersonAttributes) {
+            return mappedAttributes.buildCompact(name);
+        }
+        return mappedAttributes.build(name);
+    }
+    
+    /**
+     * Adds the value without copying it if it is a new List created by canonicalization or a read-only List of
+     * the person being mapped.
+     */
+    private static void putMappedAttribute(PersonBuilder mappedAttributes, String name, List<Object> value, List<Object> originalValue, boolean readOnlyValues) {
+        if (value != originalValue) {
+            mappedAttributes.put(name, value);
+        }
+        else if (readOnlyValues) {
+            mappedAttributes.putReadOnly(name, value);
         }
         else {
-            final String userNameAttribute = this.getConfiguredUserNameAttribute();
-            final IPersonAttributes tmpNewPerson = new AttributeNamedPersonImpl(userNameAttribute, mappedAttributes);
-            newPerson = new NamedPersonImpl(usernameCaseCanonicalizationMode.canonicalize(tmpNewPerson.getName()), mappedAttributes);
+            //Values from other IPersonAttributes implementations may be modifiable and shared, copy them
+            mappedAttributes.put(name, value != null ? new ArrayList<Object>(value) : null);
         }
-        
-        return newPerson;
     }
 
     protected List<Object> canonicalizeAttribute(String key, List<Object> value, Map<String, CaseCanonicalizationMode> config) {
         if (value == null || value.isEmpty() || config == null || !(config.containsKey(key))) {
             return value;
         }
-        CaseCanonicalizationMode canonicalizationMode = config.get(key);
+        return canonicalize(value, this.resolveCaseCanonicalizationMode(config.get(key)), caseCanonicalizationLocale);
+    }
+    
+    private CaseCanonicalizationMode resolveCaseCanonicalizationMode(CaseCanonicalizationMode canonicalizationMode) {
         if ( canonicalizationMode == null ) {
             // Intentionally late binding of the default to
             // avoid unexpected behavior if you wait to assign
             // the default until after you've injected the list
             // of case-insensitive fields
-            canonicalizationMode = defaultCaseCanonicalizationMode;
+            return defaultCaseCanonicalizationMode;
+        }
+        return canonicalizationMode;
+    }
+    
+    private static List<Object> canonicalize(List<Object> value, CaseCanonicalizationMode canonicalizationMode, Locale locale) {
+        if (value == null || value.isEmpty()) {
+            return value;
         }
         List<Object> canonicalizedValues = new ArrayList<Object>(value.size());
         for ( Object origValue : value ) {
             if ( origValue instanceof String ) {
-                canonicalizedValues.add(canonicalizationMode.canonicalize((String) origValue, caseCanonicalizationLocale));
+                canonicalizedValues.add(canonicalizationMode.canonicalize((String) origValue, locale));
             } else {
                 canonicalizedValues.add(origValue);
             }
         }
         return canonicalizedValues;
     }
+    
+    /**
+     * @return The compiled form of resultAttributeMapping and caseInsensitiveResultAttributes, built on first use
+     * after either is set. The version is read before the configuration so a plan compiled while a setter runs is
+     * tagged with the older version and compiled again on the next call.
+     */
+    private ResultMappingPlan getResultMappingPlan() {
+        final int version = this.resultMappingVersion.get();
+        ResultMappingPlan plan = this.resultMappingPlan;
+        if (plan == null || plan.version != version) {
+            plan = this.compileResultMappingPlan(version);
+            this.resultMappingPlan = plan;
+        }
+        return plan;
+    }
+    
+    private ResultMappingPlan compileResultMappingPlan(int version) {
+        final Map<String, Set<String>> resultAttributeMapping = this.resultAttributeMapping;
+        final Map<String, CaseCanonicalizationMode> caseInsensitiveResultAttributes = this.caseInsensitiveResultAttributes;
+        
+        Map<String, CaseCanonicalizationMode> attributeModes = null;
+        if (caseInsensitiveResultAttributes != null && !caseInsensitiveResultAttributes.isEmpty()) {
+            attributeModes = new HashMap<String, CaseCanonicalizationMode>(caseInsensitiveResultAttributes.size() * 2);
+            for (final Map.Entry<String, CaseCanonicalizationMode> modeEntry : caseInsensitiveResultAttributes.entrySet()) {
+                attributeModes.put(modeEntry.getKey(), this.resolveCaseCanonicalizationMode(modeEntry.getValue()));
+            }
+        }
+        
+        if (resultAttributeMapping == null) {
+            return new ResultMappingPlan(version, attributeModes);
+        }
+        
+        final List<String> dataKeys = new ArrayList<String>();
+        final List<String> resultKeys = new ArrayList<String>();
+        final List<CaseCanonicalizationMode> modes = new ArrayList<CaseCanonicalizationMode>();
+        final List<Boolean> sameDataKey = new ArrayList<Boolean>();
+        final Set<String> distinctResultKeys = new HashSet<String>();
+        for (final Map.Entry<String, Set<String>> resultAttrEntry : resultAttributeMapping.entrySet()) {
+            final String dataKey = resultAttrEntry.getKey();
+            
+            //If dataKey has no mapped resultKeys just use the dataKey
+            Set<String> mappedKeys = resultAttrEntry.getValue();
+            if (mappedKeys == null) {
+                mappedKeys = Collections.singleton(dataKey);
+            }
+            
+            boolean first = true;
+            for (final String resultKey : mappedKeys) {
+                dataKeys.add(dataKey);
+                resultKeys.add(resultKey != null ? resultKey : dataKey);
+                modes.add(attributeModes != null ? attributeModes.get(resultKey) : null);
+                sameDataKey.add(!first);
+                distinctResultKeys.add(resultKey != null ? resultKey : dataKey);
+                first = false;
+            }
+        }
+        
+        final boolean[] sameDataKeyArray = new boolean[sameDataKey.size()];
+        for (int index = 0; index < sameDataKeyArray.length; index++) {
+            sameDataKeyArray[index] = sameDataKey.get(index);
+        }
+        
+        return new ResultMappingPlan(
+                version,
+                dataKeys.toArray(new String[dataKeys.size()]),
+                resultKeys.toArray(new String[resultKeys.size()]),
+                modes.toArray(new CaseCanonicalizationMode[modes.size()]),
+                sameDataKeyArray,
+                distinctResultKeys.size(),
+                attributeModes);
+    }
 
     /**
      * Indicates which attribute found by the subclass should be taken as the 
@@ -534,6 +772,7 @@ public abstract class AbstractQueryPersonAttributeDao<QB> extends AbstractDefaul
      */
     public void setCaseInsensitiveResultAttributes(Map<String, CaseCanonicalizationMode> caseInsensitiveResultAttributes) {
         this.caseInsensitiveResultAttributes = caseInsensitiveResultAttributes;
+        this.resultMappingVersion.incrementAndGet();
     }
 
     /**
@@ -647,6 +886,7 @@ public abstract class AbstractQueryPersonAttributeDao<QB> extends AbstractDefaul
         } else {
             this.defaultCaseCanonicalizationMode = defaultCaseCanonicalizationMode;
         }
+        this.resultMappingVersion.incrementAndGet();
     }
 
     public CaseCanonicalizationMode getDefaultCaseCanonicalizationMode() {
@@ -692,4 +932,37 @@ public abstract class AbstractQueryPersonAttributeDao<QB> extends AbstractDefaul
         return this.usernameCaseCanonicalizationMode;
     }
 
+    
+    /**
+     * resultAttributeMapping and caseInsensitiveResultAttributes flattened into parallel arrays with one row per
+     * data key to result key pair, so mapping a person needs no configuration lookups. Rows for the same data key are
+     * adjacent, sameDataKey marks all but the first of them. The modes have the default mode already resolved and
+     * are null for result attributes that are not canonicalized.
+     */
+    private static final class ResultMappingPlan {
+        final int version;
+        final String[] dataKeys;
+        final String[] resultKeys;
+        final CaseCanonicalizationMode[] modes;
+        final boolean[] sameDataKey;
+        final int attributeCount;
+        final Map<String, CaseCanonicalizationMode> attributeModes;
+        
+        /**
+         * Plan for when there is no resultAttributeMapping and attributes are used as-is
+         */
+        ResultMappingPlan(int version, Map<String, CaseCanonicalizationMode> attributeModes) {
+            this(version, null, null, null, null, 0, attributeModes);
+        }
+        
+        ResultMappingPlan(int version, String[] dataKeys, String[] resultKeys, CaseCanonicalizationMode[] modes, boolean[] sameDataKey, int attributeCount, Map<String, CaseCanonicalizationMode> attributeModes) {
+            this.version = version;
+            this.dataKeys = dataKeys;
+            this.resultKeys = resultKeys;
+            this.modes = modes;
+            this.sameDataKey = sameDataKey;
+            this.attributeCount = attributeCount;
+            this.attributeModes = attributeModes;
+        }
+    }
 }
@@ -0,0 +1,155 @@
+/**
+ * Licensed to Jasig under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Jasig licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a
+ * copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.jasig.services.persondir.support;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.lang3.Validate;
+import org.jasig.services.persondir.IAsyncPersonAttributeDao;
+import org.jasig.services.persondir.IListenableFuture;
+import org.jasig.services.persondir.IPersonAttributeDao;
+import org.jasig.services.persondir.IPersonAttributes;
+import org.springframework.beans.factory.DisposableBean;
+
+/**
+ * Exposes a blocking {@link IPersonAttributeDao} as an {@link IAsyncPersonAttributeDao} by running each call on an
+ * {@link Executor}. The executor should be bounded, if it rejects a call the returned future fails with the
+ * {@link RejectedExecutionException} instead of the caller being blocked.
+ * <br>
+ * When created with a thread and queue size the adapter creates and owns a bounded {@link ThreadPoolExecutor} which is
+ * shut down by {@link #destroy()}.
+ * 
+ * @author Eric Dalquist
+ * @version $Revision$
+ */
+public class AsyncPersonAttributeDaoAdapter implements IAsyncPersonAttributeDao, DisposableBean {
+    private final IPersonAttributeDao personAttributeDao;
+    private final Executor executor;
+    private final ExecutorService ownedExecutor;
+    
+    /**
+     * @param personAttributeDao The DAO to run asynchronously
+     * @param executor The executor to run calls on
+     */
+    public AsyncPersonAttributeDaoAdapter(IPersonAttributeDao personAttributeDao, Executor executor) {
+        Validate.notNull(personAttributeDao, "personAttributeDao may not be null.");
+        Validate.notNull(executor, "executor may not be null.");
+        
+        this.personAttributeDao = personAttributeDao;
+        this.executor = executor;
+        this.ownedExecutor = null;
+    }
+    
+    /**
+     * @param personAttributeDao The DAO to run asynchronously
+     * @param maxThreads The maximum number of calls to run concurrently
+     * @param queueSize The maximum number of calls waiting for a thread, further calls are rejected
+     */
+    public AsyncPersonAttributeDaoAdapter(IPersonAttributeDao personAttributeDao, int maxThreads, int queueSize) {
+        Validate.notNull(personAttributeDao, "personAttributeDao may not be null.");
+        Validate.isTrue(maxThreads > 0, "maxThreads must be greater than 0.");
+        Validate.isTrue(queueSize > 0, "queueSize must be greater than 0.");
+        
+        final ThreadPoolExecutor threadPool = new ThreadPoolExecutor(maxThreads, maxThreads, 60, TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(queueSize));
+        threadPool.allowCoreThreadTimeOut(true);
+        
+        this.personAttributeDao = personAttributeDao;
+        this.executor = threadPool;
+        this.ownedExecutor = threadPool;
+    }
+    
+    /**
+     * Returns the DAO itself if it implements {@link IAsyncPersonAttributeDao}, otherwise wraps it in an adapter that
+     * runs calls on the executor. If the executor is null calls are run in the calling thread.
+     */
+    public static IAsyncPersonAttributeDao toAsync(IPersonAttributeDao personAttributeDao, Executor executor) {
+        if (personAttributeDao instanceof IAsyncPersonAttributeDao) {
+            return (IAsyncPersonAttributeDao)personAttributeDao;
+        }
+        
+        return new AsyncPersonAttributeDaoAdapter(personAttributeDao, executor != null ? executor : SettableFutureTask.DIRECT_EXECUTOR);
+    }
+    
+    
+    /**
+     * @return The wrapped DAO
+     */
+    public IPersonAttributeDao getPersonAttributeDao() {
+        return this.personAttributeDao;
+    }
+
+    /* (non-Javadoc)
+     * @see org.jasig.services.persondir.IAsyncPersonAttributeDao#getPersonAsync(java.lang.String)
+     */
+    public IListenableFuture<IPersonAttributes> getPersonAsync(final String uid) {
+        Validate.notNull(uid, "uid may not be null.");
+        
+        return this.execute(new Callable<IPersonAttributes>() {
+            public IPersonAttributes call() throws Exception {
+                return personAttributeDao.getPerson(uid);
+            }
+        });
+    }
+
+    /* (non-Javadoc)
+     * @see org.jasig.services.persondir.IAsyncPersonAttributeDao#getPeopleWithMultivaluedAttributesAsync(java.util.Map)
+     */
+    public IListenableFuture<Set<IPersonAttributes>> getPeopleWithMultivaluedAttributesAsync(final Map<String, List<Object>> query) {
+        Validate.notNull(query, "query may not be null.");
+        
+        return this.execute(new Callable<Set<IPersonAttributes>>() {
+            public Set<IPersonAttributes> call() throws Exception {
+                return personAttributeDao.getPeopleWithMultivaluedAttributes(query);
+            }
+        });
+    }
+
+    /**
+     * Shuts down the executor if it was created by this adapter.
+     * 
+     * @see org.springframework.beans.factory.DisposableBean#destroy()
+     */
+    public void destroy() {
+        if (this.ownedExecutor != null) {
+            this.ownedExecutor.shutdown();
+        }
+    }
+    
+    private <V> IListenableFuture<V> execute(Callable<V> callable) {
+        final SettableFutureTask<V> future = new SettableFutureTask<V>(callable);
+        try {
+            this.executor.execute(future);
+        }
+        catch (RejectedExecutionException e) {
+            future.setException(e);
+        }
+        return future;
+    }
+}
@@ -27,6 +27,8 @@ import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import org.aopalliance.intercept.MethodInvocation;
 import org.apache.commons.collections.CollectionUtils;
@@ -55,6 +57,11 @@ public class AttributeBasedCacheKeyGenerator implements CacheKeyGenerator {
     
     protected final Log logger = LogFactory.getLog(this.getClass());
     
+    /*
+     * CachableMethods already resolved for invoked Methods
+     */
+    private final ConcurrentMap<Method, CachableMethod> resolvedMethods = new ConcurrentHashMap<Method, CachableMethod>();
+    
     /**
      * Methods on {@link org.jasig.services.persondir.IPersonAttributeDao} that are cachable
      */
@@ -260,16 +267,7 @@ public class AttributeBasedCacheKeyGenerator implements CacheKeyGenerator {
      */
     protected Integer getKeyHash(Map<String, Object> seed) {
         //Determine the attributes to build the cache key with
-        final Set<String> cacheAttributes;
-        if (this.useAllAttributes) {
-            cacheAttributes = seed.keySet();
-        }
-        else if (this.cacheKeyAttributes != null) {
-            cacheAttributes = this.cacheKeyAttributes;
-        }
-        else {
-            cacheAttributes = this.defaultAttributeNameSet;
-        }
+        final Set<String> cacheAttributes = this.getCacheAttributes(seed);
         
         //Build the cache key based on the attribute Set
         final HashMap<String, Object> cacheKey = new HashMap<String, Object>(cacheAttributes.size());
@@ -277,20 +275,7 @@ public class AttributeBasedCacheKeyGenerator implements CacheKeyGenerator {
             if (seed.containsKey(attr)) {
                 final Object value = seed.get(attr);
                 
-                if (!this.ignoreEmptyAttributes) {
-                    cacheKey.put(attr, value);
-                }
-                else if (value instanceof Collection) {
-                    if (CollectionUtils.isNotEmpty((Collection<?>)value)) {
-                        cacheKey.put(attr, value);
-                    }
-                }
-                else if (value instanceof String) {
-                    if (StringUtils.isNotEmpty((String)value)) {
-                        cacheKey.put(attr, value);
-                    }
-                }
-                else if (value != null) {
+                if (this.isKeyValue(value)) {
                     cacheKey.put(attr, value);
                 }
             }
@@ -310,37 +295,56 @@ public class AttributeBasedCacheKeyGenerator implements CacheKeyGenerator {
     }
     
     /**
-     * Iterates over the {@link CachableMethod} instances to determine which instance the
-     * passed {@link MethodInvocation} applies to.
+     * The attribute names to build the cache key from, all seed attributes if useAllAttributes is set, otherwise the
+     * cacheKeyAttributes or if they are null the defaultAttributeName.
+     */
+    protected Set<String> getCacheAttributes(Map<String, Object> seed) {
+        if (this.useAllAttributes) {
+            return seed.keySet();
+        }
+        if (this.cacheKeyAttributes != null) {
+            return this.cacheKeyAttributes;
+        }
+        return this.defaultAttributeNameSet;
+    }
+    
+    /**
+     * @return If the seed value should be part of the cache key, false for empty values when ignoreEmptyAttributes is set
+     */
+    protected boolean isKeyValue(Object value) {
+        if (!this.ignoreEmptyAttributes) {
+            return true;
+        }
+        if (value instanceof Collection) {
+            return CollectionUtils.isNotEmpty((Collection<?>)value);
+        }
+        if (value instanceof String) {
+            return StringUtils.isNotEmpty((String)value);
+        }
+        return value != null;
+    }
+    
+    /**
+     * Determines which {@link CachableMethod} the passed {@link MethodInvocation} applies to by name and parameter
+     * types. The result is remembered for each {@link Method} so the matching is only done once per method.
      */
     protected CachableMethod resolveCacheableMethod(MethodInvocation methodInvocation) {
         final Method targetMethod = methodInvocation.getMethod();
-        final Class<?> targetClass = targetMethod.getDeclaringClass();
         
+        final CachableMethod resolvedMethod = this.resolvedMethods.get(targetMethod);
+        if (resolvedMethod != null) {
+            return resolvedMethod;
+        }
+        
+        final Class<?>[] parameterTypes = targetMethod.getParameterTypes();
         for (final CachableMethod cachableMethod : CachableMethod.values()) {
-            Method cacheableMethod = null;
-            try {
-                cacheableMethod = targetClass.getMethod(cachableMethod.getName(), cachableMethod.getArgs());
-            }
-            catch (SecurityException e) {
-                this.logger.warn("Security exception while attempting to if the target class '" + targetClass + "' implements the cachable method '" + cachableMethod + "'", e);
-            }
-            catch (NoSuchMethodException e) {
-                final String message = "Taret class '" + targetClass + "' does not implement possible cachable method '" + cachableMethod + "'. Is the advice applied to the correct bean and methods?";
-                
-                if (this.logger.isDebugEnabled()) {
-                    this.logger.debug(message, e);
-                }
-                else {
-                    this.logger.warn(message);
-                }
-            }
-
-            if (targetMethod.equals(cacheableMethod)) {
+            if (cachableMethod.getName().equals(targetMethod.getName()) && Arrays.equals(cachableMethod.getArgs(), parameterTypes)) {
+                this.resolvedMethods.put(targetMethod, cachableMethod);
                 return cachableMethod;
             }
         }
         
+        final Class<?> targetClass = targetMethod.getDeclaringClass();
         throw new IllegalArgumentException("Do not know how to generate a cache for for '" + targetMethod + "' on class '" + targetClass + "'. Is the advice applied to the correct bean and methods?");
     }
 }
@@ -0,0 +1,80 @@
+/**
+ * Licensed to Jasig under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Jasig licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a
+ * copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.jasig.services.persondir.support;
+
+import java.io.Serializable;
+import java.util.Arrays;
+
+/**
+ * An exact cache key built from seed attribute names and values. The names and values are held in a single array
+ * ordered by attribute name, the hash is computed once and equality compares every name and value so different
+ * seeds never produce equal keys.
+ * 
+ * @author Eric Dalquist
+ * @version $Revision$
+ * @see ExactAttributeCacheKeyGenerator
+ */
+public final class AttributeCacheKey implements Serializable {
+    private static final long serialVersionUID = 1L;
+    
+    private final Object[] namesAndValues;
+    private final int hashCode;
+    
+    /**
+     * @param namesAndValues Alternating attribute names and values, ordered by attribute name. The array is used
+     * directly and must not be modified after the key is created.
+     */
+    AttributeCacheKey(Object[] namesAndValues) {
+        this.namesAndValues = namesAndValues;
+        this.hashCode = Arrays.deepHashCode(namesAndValues);
+    }
+
+    /* (non-Javadoc)
+     * @see java.lang.Object#hashCode()
+     */
+    @Override
+    public int hashCode() {
+        return this.hashCode;
+    }
+
+    /* (non-Javadoc)
+     * @see java.lang.Object#equals(java.lang.Object)
+     */
+    @Override
+    public boolean equals(Object obj) {
+        if (obj == this) {
+            return true;
+        }
+        if (!(obj instanceof AttributeCacheKey)) {
+            return false;
+        }
+        
+        final AttributeCacheKey other = (AttributeCacheKey) obj;
+        return this.hashCode == other.hashCode && Arrays.deepEquals(this.namesAndValues, other.namesAndValues);
+    }
+
+    /* (non-Javadoc)
+     * @see java.lang.Object#toString()
+     */
+    @Override
+    public String toString() {
+        return "AttributeCacheKey" + Arrays.deepToString(this.namesAndValues);
+    }
+}
@@ -47,6 +47,12 @@ public class AttributeNamedPersonImpl extends BasePersonImpl {
         this.userNameAttribute = userNameAttribute;
     }
 
+    AttributeNamedPersonImpl(String userNameAttribute, PersonBuilder builder) {
+        super(builder);
+        
+        this.userNameAttribute = userNameAttribute;
+    }
+    
     public AttributeNamedPersonImpl(IPersonAttributes personAttributes) {
         this(personAttributes.getName(), personAttributes.getAttributes());
     }
@@ -0,0 +1,197 @@
+/**
+ * Licensed to Jasig under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Jasig licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a
+ * copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.jasig.services.persondir.support;
+
+import java.io.ObjectStreamException;
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.apache.commons.lang3.Validate;
+
+/**
+ * An ordered set of attribute names shared by every {@link CompactPersonImpl} with the same attributes. Each name has
+ * a slot, the index of its values in the person.
+ * <br>
+ * <br>
+ * Schemas are interned by {@link #getSchema(Collection, boolean)} so people loaded from the same source share a
+ * single instance, including after deserialization. A bounded number of schemas is interned, further schemas are
+ * still created but not shared.
+ * <br>
+ * <br>
+ * A case insensitive schema matches names the same way as
+ * {@link org.apache.commons.collections.map.CaseInsensitiveMap}, used by {@link CaseInsensitiveNamedPersonImpl}.
+ * 
+ * @author Eric Dalquist
+ * @version $Revision$
+ */
+public final class AttributeSchema implements Serializable {
+    private static final long serialVersionUID = 1L;
+    
+    /**
+     * The maximum number of interned schemas
+     */
+    static final int MAX_INTERNED_SCHEMAS = 4096;
+    
+    private static final ConcurrentMap<AttributeSchema, AttributeSchema> INTERNED_SCHEMAS = new ConcurrentHashMap<AttributeSchema, AttributeSchema>();
+    
+    private final String[] names;
+    private final boolean caseInsensitive;
+    private final transient Map<String, Integer> slots;
+    private final transient int hash;
+    
+    
+    /**
+     * Returns the shared schema for the attribute names, in iteration order.
+     * 
+     * @param names The attribute names, may not contain null or duplicate names
+     * @param caseInsensitive If names are looked up ignoring case, names that only differ by case are duplicates
+     */
+    public static AttributeSchema getSchema(Collection<String> names, boolean caseInsensitive) {
+        Validate.notNull(names, "names may not be null");
+        return intern(new AttributeSchema(names.toArray(new String[names.size()]), caseInsensitive));
+    }
+    
+    private static AttributeSchema intern(AttributeSchema schema) {
+        final AttributeSchema interned = INTERNED_SCHEMAS.get(schema);
+        if (interned != null) {
+            return interned;
+        }
+        if (INTERNED_SCHEMAS.size() >= MAX_INTERNED_SCHEMAS) {
+            return schema;
+        }
+        
+        final AttributeSchema existing = INTERNED_SCHEMAS.putIfAbsent(schema, schema);
+        return existing != null ? existing : schema;
+    }
+    
+    private AttributeSchema(String[] names, boolean caseInsensitive) {
+        this.names = names;
+        this.caseInsensitive = caseInsensitive;
+        
+        final Map<String, Integer> slots = new HashMap<String, Integer>(names.length * 4 / 3 + 1);
+        for (int slot = 0; slot < names.length; slot++) {
+            final String name = names[slot];
+            Validate.notNull(name, "names may not contain null");
+            if (slots.put(this.toKey(name), slot) != null) {
+                throw new IllegalArgumentException("Duplicate attribute name '" + name + "'");
+            }
+        }
+        this.slots = slots;
+        this.hash = 31 * Arrays.hashCode(names) + (caseInsensitive ? 1 : 0);
+    }
+    
+    /**
+     * @return The number of attributes in the schema
+     */
+    public int size() {
+        return this.names.length;
+    }
+    
+    /**
+     * @return The attribute name in the slot
+     */
+    public String getName(int slot) {
+        return this.names[slot];
+    }
+    
+    /**
+     * @return The attribute names in slot order
+     */
+    public List<String> getNames() {
+        return Collections.unmodifiableList(Arrays.asList(this.names));
+    }
+    
+    /**
+     * @return true if names are looked up ignoring case
+     */
+    public boolean isCaseInsensitive() {
+        return this.caseInsensitive;
+    }
+    
+    /**
+     * @return The slot of the attribute name, -1 if the name is not in the schema
+     */
+    public int getSlot(Object name) {
+        if (!(name instanceof String)) {
+            return -1;
+        }
+        
+        final Integer slot = this.slots.get(this.toKey((String) name));
+        return slot != null ? slot : -1;
+    }
+    
+    private String toKey(String name) {
+        if (!this.caseInsensitive) {
+            return name;
+        }
+        
+        //Same conversion as CaseInsensitiveMap
+        final char[] chars = name.toCharArray();
+        for (int i = chars.length - 1; i >= 0; i--) {
+            chars[i] = Character.toLowerCase(Character.toUpperCase(chars[i]));
+        }
+        return new String(chars);
+    }
+    
+    /**
+     * Replaces a deserialized schema with the shared instance.
+     */
+    private Object readResolve() throws ObjectStreamException {
+        return intern(new AttributeSchema(this.names, this.caseInsensitive));
+    }
+    
+    /* (non-Javadoc)
+     * @see java.lang.Object#equals(java.lang.Object)
+     */
+    @Override
+    public boolean equals(Object obj) {
+        if (obj == this) {
+            return true;
+        }
+        if (!(obj instanceof AttributeSchema)) {
+            return false;
+        }
+        final AttributeSchema other = (AttributeSchema) obj;
+        return this.hash == other.hash && this.caseInsensitive == other.caseInsensitive && Arrays.equals(this.names, other.names);
+    }
+    
+    /* (non-Javadoc)
+     * @see java.lang.Object#hashCode()
+     */
+    @Override
+    public int hashCode() {
+        return this.hash;
+    }
+    
+    /* (non-Javadoc)
+     * @see java.lang.Object#toString()
+     */
+    @Override
+    public String toString() {
+        return "AttributeSchema" + Arrays.toString(this.names) + (this.caseInsensitive ? "[caseInsensitive]" : "");
+    }
+}
@@ -47,6 +47,13 @@ public abstract class BasePersonImpl implements IPersonAttributes {
         
         this.attributes = Collections.unmodifiableMap(immutableValuesBuilder);
     }
+    
+    /**
+     * Uses the attributes of the builder without copying them.
+     */
+    BasePersonImpl(PersonBuilder builder) {
+        this.attributes = builder.release();
+    }
 
     /**
      * Take the constructor argument and convert the Map and List values into read-only form
@@ -0,0 +1,521 @@
+/**
+ * Licensed to Jasig under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Jasig licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a
+ * copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.jasig.services.persondir.support;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.Validate;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.jasig.services.persondir.IPersonAttributeDao;
+import org.jasig.services.persondir.IPersonAttributes;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.core.io.Resource;
+
+/**
+ * Fills the cache of a {@link CachingPersonAttributeDaoImpl} ahead of demand by looking up a list of users through
+ * it, for example after a deploy or before a known peak in logins.
+ * <br>
+ * <br>
+ * Usernames are read from <b>usernameFile</b>, one per line with blank lines and lines starting with # ignored, and
+ * from the names of the people returned by running <b>usernameQuery</b> against <b>usernameSourceDao</b>, typically
+ * a wildcard query such as <code>uid=*</code>. Duplicate usernames are looked up once. The lookups are run by
+ * <b>threads</b> threads and limited to <b>maxRate</b> lookups per second so the backing sources are not overloaded.
+ * Progress and throughput are logged every <b>progressInterval</b> lookups and available from {@link #getProgress()}.
+ * <br>
+ * <br>
+ * Configuration:
+ * <table border="1">
+ *     <tr>
+ *         <th align="left">Property</th>
+ *         <th align="left">Description</th>
+ *         <th align="left">Required</th>
+ *         <th align="left">Default</th>
+ *     </tr>
+ *     <tr>
+ *         <td align="right" valign="top">personAttributeDao</td>
+ *         <td>
+ *             The {@link IPersonAttributeDao} to look users up with, usually a {@link CachingPersonAttributeDaoImpl}.
+ *         </td>
+ *         <td valign="top">Yes</td>
+ *         <td valign="top">null</td>
+ *     </tr>
+ *     <tr>
+ *         <td align="right" valign="top">usernameFile</td>
+ *         <td>
+ *             A {@link Resource} listing the usernames to look up, one per line.
+ *         </td>
+ *         <td valign="top">No</td>
+ *         <td valign="top">null</td>
+ *     </tr>
+ *     <tr>
+ *         <td align="right" valign="top">usernameSourceDao</td>
+ *         <td>
+ *             An {@link IPersonAttributeDao} whose results for usernameQuery are the users to look up.
+ *         </td>
+ *         <td valign="top">No</td>
+ *         <td valign="top">null</td>
+ *     </tr>
+ *     <tr>
+ *         <td align="right" valign="top">usernameQuery</td>
+ *         <td>
+ *             The query run against usernameSourceDao, required if usernameSourceDao is set.
+ *         </td>
+ *         <td valign="top">No</td>
+ *         <td valign="top">null</td>
+ *     </tr>
+ *     <tr>
+ *         <td align="right" valign="top">threads</td>
+ *         <td>
+ *             The number of lookups run in parallel.
+ *         </td>
+ *         <td valign="top">No</td>
+ *         <td valign="top">4</td>
+ *     </tr>
+ *     <tr>
+ *         <td align="right" valign="top">maxRate</td>
+ *         <td>
+ *             The maximum number of lookups started per second, 0 for no limit.
+ *         </td>
+ *         <td valign="top">No</td>
+ *         <td valign="top">0</td>
+ *     </tr>
+ *     <tr>
+ *         <td align="right" valign="top">progressInterval</td>
+ *         <td>
+ *             The number of lookups between progress log messages.
+ *         </td>
+ *         <td valign="top">No</td>
+ *         <td valign="top">1000</td>
+ *     </tr>
+ *     <tr>
+ *         <td align="right" valign="top">warmOnStartup</td>
+ *         <td>
+ *             If true {@link #warm()} is run in a background thread when the bean is initialized.
+ *         </td>
+ *         <td valign="top">No</td>
+ *         <td valign="top">false</td>
+ *     </tr>
+ * </table>
+ * 
+ * @author Eric Dalquist
+ * @version $Revision$
+ */
+public class CachePreWarmer implements InitializingBean, DisposableBean {
+    protected final Log logger = LogFactory.getLog(getClass());
+    
+    private IPersonAttributeDao personAttributeDao = null;
+    private Resource usernameFile = null;
+    private IPersonAttributeDao usernameSourceDao = null;
+    private Map<String, Object> usernameQuery = null;
+    private int threads = 4;
+    private double maxRate = 0;
+    private int progressInterval = 1000;
+    private boolean warmOnStartup = false;
+    
+    private volatile Progress progress = null;
+    private volatile boolean cancelled = false;
+    private Thread startupThread = null;
+    
+    
+    /**
+     * @return the personAttributeDao
+     */
+    public IPersonAttributeDao getPersonAttributeDao() {
+        return this.personAttributeDao;
+    }
+    /**
+     * @param personAttributeDao The DAO to look users up with, usually a CachingPersonAttributeDaoImpl
+     */
+    public void setPersonAttributeDao(IPersonAttributeDao personAttributeDao) {
+        this.personAttributeDao = personAttributeDao;
+    }
+    
+    /**
+     * @return the usernameFile
+     */
+    public Resource getUsernameFile() {
+        return this.usernameFile;
+    }
+    /**
+     * @param usernameFile Lists the usernames to look up, one per line
+     */
+    public void setUsernameFile(Resource usernameFile) {
+        this.usernameFile = usernameFile;
+    }
+    
+    /**
+     * @return the usernameSourceDao
+     */
+    public IPersonAttributeDao getUsernameSourceDao() {
+        return this.usernameSourceDao;
+    }
+    /**
+     * @param usernameSourceDao The DAO whose results for usernameQuery are the users to look up
+     */
+    public void setUsernameSourceDao(IPersonAttributeDao usernameSourceDao) {
+        this.usernameSourceDao = usernameSourceDao;
+    }
+    
+    /**
+     * @return the usernameQuery
+     */
+    public Map<String, Object> getUsernameQuery() {
+        return this.usernameQuery;
+    }
+    /**
+     * @param usernameQuery The query run against usernameSourceDao, for example uid=*
+     */
+    public void setUsernameQuery(Map<String, Object> usernameQuery) {
+        this.usernameQuery = usernameQuery;
+    }
+    
+    /**
+     * @return the threads
+     */
+    public int getThreads() {
+        return this.threads;
+    }
+    /**
+     * @param threads The number of lookups run in parallel, defaults to 4
+     */
+    public void setThreads(int threads) {
+        Validate.isTrue(threads > 0, "threads must be greater than 0");
+        this.threads = threads;
+    }
+    
+    /**
+     * @return the maxRate
+     */
+    public double getMaxRate() {
+        return this.maxRate;
+    }
+    /**
+     * @param maxRate The maximum number of lookups started per second, 0 for no limit
+     */
+    public void setMaxRate(double maxRate) {
+        Validate.isTrue(maxRate >= 0, "maxRate must be >= 0");
+        this.maxRate = maxRate;
+    }
+    
+    /**
+     * @return the progressInterval
+     */
+    public int getProgressInterval() {
+        return this.progressInterval;
+    }
+    /**
+     * @param progressInterval The number of lookups between progress log messages, defaults to 1000
+     */
+    public void setProgressInterval(int progressInterval) {
+        Validate.isTrue(progressInterval > 0, "progressInterval must be greater than 0");
+        this.progressInterval = progressInterval;
+    }
+    
+    /**
+     * @return the warmOnStartup
+     */
+    public boolean isWarmOnStartup() {
+        return this.warmOnStartup;
+    }
+    /**
+     * @param warmOnStartup If true the cache is warmed in a background thread when the bean is initialized
+     */
+    public void setWarmOnStartup(boolean warmOnStartup) {
+        this.warmOnStartup = warmOnStartup;
+    }
+    
+    /**
+     * @return The progress of the running or last run of {@link #warm()}, null if it has not been run.
+     */
+    public Progress getProgress() {
+        return this.progress;
+    }
+    
+    /* (non-Javadoc)
+     * @see org.springframework.beans.factory.InitializingBean#afterPropertiesSet()
+     */
+    public void afterPropertiesSet() throws Exception {
+        Validate.notNull(this.personAttributeDao, "personAttributeDao must be set");
+        Validate.isTrue(this.usernameFile != null || this.usernameSourceDao != null, "usernameFile or usernameSourceDao must be set");
+        Validate.isTrue(this.usernameSourceDao == null || this.usernameQuery != null, "usernameQuery must be set if usernameSourceDao is set");
+        
+        if (this.warmOnStartup) {
+            final Thread startupThread = new Thread("CachePreWarmer-" + System.identityHashCode(this)) {
+                @Override
+                public void run() {
+                    try {
+                        warm();
+                    }
+                    catch (Exception e) {
+                        logger.warn("Failed to pre-warm cache", e);
+                    }
+                }
+            };
+            startupThread.setDaemon(true);
+            startupThread.start();
+            this.startupThread = startupThread;
+        }
+    }
+    
+    /**
+     * Stops a running {@link #warm()}, lookups already started are allowed to complete.
+     * 
+     * @see org.springframework.beans.factory.DisposableBean#destroy()
+     */
+    public void destroy() throws Exception {
+        this.cancelled = true;
+        if (this.startupThread != null) {
+            this.startupThread.interrupt();
+            this.startupThread = null;
+        }
+    }
+    
+    /**
+     * Looks up every username from usernameFile and usernameSourceDao through the personAttributeDao, returning once
+     * all lookups have completed.
+     * 
+     * @return The final progress of the run
+     * @throws IOException If usernameFile can't be read
+     * @throws InterruptedException If interrupted while waiting for the lookups, running lookups are stopped
+     */
+    public Progress warm() throws IOException, InterruptedException {
+        final Set<String> usernames = this.getUsernames();
+        
+        final Progress progress = new Progress(usernames.size());
+        this.progress = progress;
+        if (logger.isInfoEnabled()) {
+            logger.info("Pre-warming cache with " + usernames.size() + " users using " + this.threads + " threads" + (this.maxRate > 0 ? " at up to " + this.maxRate + " lookups/second" : ""));
+        }
+        
+        final Iterator<String> usernameIterator = usernames.iterator();
+        final RateLimiter rateLimiter = this.maxRate > 0 ? new RateLimiter(this.maxRate) : null;
+        
+        final AtomicInteger threadNumber = new AtomicInteger();
+        final ExecutorService executor = Executors.newFixedThreadPool(this.threads, new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                final Thread thread = new Thread(r, "CachePreWarmer-worker-" + threadNumber.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        try {
+            for (int i = 0; i < this.threads; i++) {
+                executor.execute(new Runnable() {
+                    public void run() {
+                        String username;
+                        while (!cancelled && !Thread.currentThread().isInterrupted() && (username = next(usernameIterator)) != null) {
+                            if (rateLimiter != null && !rateLimiter.acquire()) {
+                                return;
+                            }
+                            lookup(username, progress);
+                        }
+                    }
+                });
+            }
+            
+            executor.shutdown();
+            while (!executor.awaitTermination(1, TimeUnit.SECONDS)) {
+                //Keep waiting, the workers stop on their own once all usernames are looked up
+            }
+        }
+        finally {
+            executor.shutdownNow();
+        }
+        
+        if (logger.isInfoEnabled()) {
+            logger.info("Pre-warmed cache: " + progress);
+        }
+        return progress;
+    }
+    
+    /**
+     * @return The usernames from usernameFile and usernameSourceDao in the order they were read, without duplicates
+     */
+    protected Set<String> getUsernames() throws IOException {
+        final Set<String> usernames = new LinkedHashSet<String>();
+        
+        if (this.usernameFile != null) {
+            final BufferedReader reader = new BufferedReader(new InputStreamReader(this.usernameFile.getInputStream(), "UTF-8"));
+            try {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    line = line.trim();
+                    if (line.length() > 0 && !line.startsWith("#")) {
+                        usernames.add(line);
+                    }
+                }
+            }
+            finally {
+                reader.close();
+            }
+        }
+        
+        if (this.usernameSourceDao != null) {
+            final Set<IPersonAttributes> people = this.usernameSourceDao.getPeople(this.usernameQuery);
+            if (people != null) {
+                for (final IPersonAttributes person : people) {
+                    final String name = person.getName();
+                    if (StringUtils.isNotBlank(name)) {
+                        usernames.add(name);
+                    }
+                }
+            }
+        }
+        
+        return usernames;
+    }
+    
+    private void lookup(String username, Progress progress) {
+        try {
+            this.personAttributeDao.getPerson(username);
+            progress.completed.incrementAndGet();
+        }
+        catch (RuntimeException e) {
+            progress.failed.incrementAndGet();
+            if (logger.isDebugEnabled()) {
+                logger.debug("Failed to pre-warm cache for '" + username + "'", e);
+            }
+        }
+        
+        final long done = progress.getCompleted() + progress.getFailed();
+        if (done % this.progressInterval == 0 && logger.isInfoEnabled()) {
+            logger.info("Pre-warming cache: " + progress);
+        }
+    }
+    
+    private static String next(Iterator<String> usernameIterator) {
+        synchronized (usernameIterator) {
+            return usernameIterator.hasNext() ? usernameIterator.next() : null;
+        }
+    }
+    
+    /**
+     * The progress of a run of {@link CachePreWarmer#warm()}
+     */
+    public static final class Progress {
+        private final int total;
+        private final long started = System.nanoTime();
+        private final AtomicLong completed = new AtomicLong();
+        private final AtomicLong failed = new AtomicLong();
+        
+        Progress(int total) {
+            this.total = total;
+        }
+        
+        /**
+         * @return The number of users to look up
+         */
+        public int getTotal() {
+            return this.total;
+        }
+        
+        /**
+         * @return The number of lookups that completed
+         */
+        public long getCompleted() {
+            return this.completed.get();
+        }
+        
+        /**
+         * @return The number of lookups that threw an exception
+         */
+        public long getFailed() {
+            return this.failed.get();
+        }
+        
+        /**
+         * @return Milliseconds since the run started
+         */
+        public long getElapsedMillis() {
+            return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - this.started);
+        }
+        
+        /**
+         * @return The average number of lookups per second since the run started
+         */
+        public double getThroughput() {
+            final long elapsedNanos = System.nanoTime() - this.started;
+            if (elapsedNanos <= 0) {
+                return 0;
+            }
+            return (this.getCompleted() + this.getFailed()) * (double) TimeUnit.SECONDS.toNanos(1) / elapsedNanos;
+        }
+        
+        /* (non-Javadoc)
+         * @see java.lang.Object#toString()
+         */
+        @Override
+        public String toString() {
+            return (this.getCompleted() + this.getFailed()) + " of " + this.total + " users looked up, " + 
+                this.getFailed() + " failed, " + this.getElapsedMillis() + "ms, " + 
+                String.format("%.1f", this.getThroughput()) + " lookups/second";
+        }
+    }
+    
+    /**
+     * Spaces calls to {@link #acquire()} evenly at the configured rate.
+     */
+    private static final class RateLimiter {
+        private final long intervalNanos;
+        private long nextPermit = System.nanoTime();
+        
+        RateLimiter(double permitsPerSecond) {
+            this.intervalNanos = (long) (TimeUnit.SECONDS.toNanos(1) / permitsPerSecond);
+        }
+        
+        /**
+         * @return false if interrupted while waiting
+         */
+        boolean acquire() {
+            final long wait;
+            synchronized (this) {
+                final long now = System.nanoTime();
+                wait = this.nextPermit - now;
+                this.nextPermit = Math.max(this.nextPermit, now) + this.intervalNanos;
+            }
+            
+            if (wait > 0) {
+                try {
+                    TimeUnit.NANOSECONDS.sleep(wait);
+                }
+                catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+}
@@ -0,0 +1,265 @@
+/**
+ * Licensed to Jasig under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Jasig licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a
+ * copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.jasig.services.persondir.support;
+
+/**
+ * Thread safe statistics for a {@link CachingPersonAttributeDaoImpl}. Counters are striped so recording from many
+ * threads does not contend, the values read are exact once concurrent updates have completed.
+ * 
+ * @author Eric Dalquist
+ * @version $Revision$
+ */
+public class CacheStatistics implements CacheStatisticsMBean, ICacheMetricsRecorder {
+    private final StripedCounter queries = new StripedCounter();
+    private final StripedCounter hits = new StripedCounter();
+    private final StripedCounter nullHits = new StripedCounter();
+    private final StripedCounter misses = new StripedCounter();
+    private final StripedCounter evictions = new StripedCounter();
+    private final StripedCounter expirations = new StripedCounter();
+    private final StripedCounter rejections = new StripedCounter();
+    private final StripedCounter invalidations = new StripedCounter();
+    private final StripedCounter loadFailures = new StripedCounter();
+    private final LatencyHistogram loadTimes = new LatencyHistogram();
+    
+    private volatile String cacheName;
+    
+    /**
+     * @param cacheName The name reported by {@link #getCacheName()}
+     */
+    public CacheStatistics(String cacheName) {
+        this.cacheName = cacheName;
+    }
+    
+    /* (non-Javadoc)
+     * @see org.jasig.services.persondir.support.CacheStatisticsMBean#getCacheName()
+     */
+    public String getCacheName() {
+        return this.cacheName;
+    }
+    
+    void setCacheName(String cacheName) {
+        this.cacheName = cacheName;
+    }
+    
+    /* (non-Javadoc)
+     * @see org.jasig.services.persondir.support.ICacheMetricsRecorder#recordQuery(java.lang.String)
+     */
+    public void recordQuery(String cacheName) {
+        this.queries.increment();
+    }
+    
+    /* (non-Javadoc)
+     * @see org.jasig.services.persondir.support.ICacheMetricsRecorder#recordHit(java.lang.String, boolean)
+     */
+    public void recordHit(String cacheName, boolean nullResult) {
+        this.hits.increment();
+        if (nullResult) {
+            this.nullHits.increment();
+        }
+    }
+    
+    /* (non-Javadoc)
+     * @see org.jasig.services.persondir.support.ICacheMetricsRecorder#recordMiss(java.lang.String)
+     */
+    public void recordMiss(String cacheName) {
+        this.misses.increment();
+    }
+    
+    /* (non-Javadoc)
+     * @see org.jasig.services.persondir.support.ICacheMetricsRecorder#recordLoad(java.lang.String, long, boolean)
+     */
+    public void recordLoad(String cacheName, long loadNanos, boolean failed) {
+        this.loadTimes.record(loadNanos);
+        if (failed) {
+            this.loadFailures.increment();
+        }
+    }
+    
+    /* (non-Javadoc)
+     * @see org.jasig.services.persondir.support.ICacheMetricsRecorder#recordEviction(java.lang.String)
+     */
+    public void recordEviction(String cacheName) {
+        this.evictions.increment();
+    }
+    
+    /* (non-Javadoc)
+     * @see org.jasig.services.persondir.support.ICacheMetricsRecorder#recordExpiration(java.lang.String)
+     */
+    public void recordExpiration(String cacheName) {
+        this.expirations.increment();
+    }
+    
+    /* (non-Javadoc)
+     * @see org.jasig.services.persondir.support.ICacheMetricsRecorder#recordRejection(java.lang.String)
+     */
+    public void recordRejection(String cacheName) {
+        this.rejections.increment();
+    }
+    
+    /* (non-Javadoc)
+     * @see org.jasig.services.persondir.support.ICacheMetricsRecorder#recordInvalidation(java.lang.String)
+     */
+    public void recordInvalidation(String cacheName) {
+        this.invalidations.increment();
+    }
+    
+    /* (non-Javadoc)
+     * @see org.jasig.services.persondir.support.CacheStatisticsMBean#getQueries()
+     */
+    public long getQueries() {
+        return this.queries.sum();
+    }
+    
+    /* (non-Javadoc)
+     * @see org.jasig.services.persondir.support.CacheStatisticsMBean#getHits()
+     */
+    public long getHits() {
+        return this.hits.sum();
+    }
+    
+    /* (non-Javadoc)
+     * @see org.jasig.services.persondir.support.CacheStatisticsMBean#getNullHits()
+     */
+    public long getNullHits() {
+        return this.nullHits.sum();
+    }
+    
+    /* (non-Javadoc)
+     * @see org.jasig.services.persondir.support.CacheStatisticsMBean#getMisses()
+     */
+    public long getMisses() {
+        return this.misses.sum();
+    }
+    
+    /* (non-Javadoc)
+     * @see org.jasig.services.persondir.support.CacheStatisticsMBean#getHitRatio()
+     */
+    public double getHitRatio() {
+        final long hits = this.getHits();
+        final long queries = hits + this.getMisses();
+        if (queries == 0) {
+            return 0;
+        }
+        return hits / (double) queries;
+    }
+    
+    /* (non-Javadoc)
+     * @see org.jasig.services.persondir.support.CacheStatisticsMBean#getEvictions()
+     */
+    public long getEvictions() {
+        return this.evictions.sum();
+    }
+    
+    /* (non-Javadoc)
+     * @see org.jasig.services.persondir.support.CacheStatisticsMBean#getExpirations()
+     */
+    public long getExpirations() {
+        return this.expirations.sum();
+    }
+    
+    /* (non-Javadoc)
+     * @see org.jasig.services.persondir.support.CacheStatisticsMBean#getRejections()
+     */
+    public long getRejections() {
+        return this.rejections.sum();
+    }
+    
+    /* (non-Javadoc)
+     * @see org.jasig.services.persondir.support.CacheStatisticsMBean#getInvalidations()
+     */
+    public long getInvalidations() {
+        return this.invalidations.sum();
+    }
+    
+    /* (non-Javadoc)
+     * @see org.jasig.services.persondir.support.CacheStatisticsMBean#getLoads()
+     */
+    public long getLoads() {
+        return this.loadTimes.getCount();
+    }
+    
+    /* (non-Javadoc)
+     * @see org.jasig.services.persondir.support.CacheStatisticsMBean#getLoadFailures()
+     */
+    public long getLoadFailures() {
+        return this.loadFailures.sum();
+    }
+    
+    /* (non-Javadoc)
+     * @see org.jasig.services.persondir.support.CacheStatisticsMBean#getMeanLoadTime()
+     */
+    public double getMeanLoadTime() {
+        return this.loadTimes.getMeanMillis();
+    }
+    
+    /* (non-Javadoc)
+     * @see org.jasig.services.persondir.support.CacheStatisticsMBean#getLoadTime50thPercentile()
+     */
+    public double getLoadTime50thPercentile() {
+        return this.loadTimes.getPercentileMillis(.5);
+    }
+    
+    /* (non-Javadoc)
+     * @see org.jasig.services.persondir.support.CacheStatisticsMBean#getLoadTime95thPercentile()
+     */
+    public double getLoadTime95thPercentile() {
+        return this.loadTimes.getPercentileMillis(.95);
+    }
+    
+    /* (non-Javadoc)
+     * @see org.jasig.services.persondir.support.CacheStatisticsMBean#getLoadTime99thPercentile()
+     */
+    public double getLoadTime99thPercentile() {
+        return this.loadTimes.getPercentileMillis(.99);
+    }
+    
+    /* (non-Javadoc)
+     * @see org.jasig.services.persondir.support.CacheStatisticsMBean#getLoadTimeHistogram()
+     */
+    public long[] getLoadTimeHistogram() {
+        return this.loadTimes.getBucketCounts();
+    }
+    
+    /* (non-Javadoc)
+     * @see org.jasig.services.persondir.support.CacheStatisticsMBean#reset()
+     */
+    public void reset() {
+        this.queries.reset();
+        this.hits.reset();
+        this.nullHits.reset();
+        this.misses.reset();
+        this.evictions.reset();
+        this.expirations.reset();
+        this.rejections.reset();
+        this.invalidations.reset();
+        this.loadFailures.reset();
+        this.loadTimes.reset();
+    }
+    
+    /* (non-Javadoc)
+     * @see java.lang.Object#toString()
+     */
+    @Override
+    public String toString() {
+        return "queries=" + this.getQueries() + ", hits=" + this.getHits() + ", nullHits=" + this.getNullHits() + 
+            ", misses=" + this.getMisses() + ", evictions=" + this.getEvictions() + ", expirations=" + this.getExpirations() + ", rejections=" + this.getRejections() + 
+            ", invalidations=" + this.getInvalidations() + ", loads=" + this.getLoads() + ", loadFailures=" + this.getLoadFailures() + ", meanLoadTime=" + this.getMeanLoadTime() + "ms";
+    }
+}
@@ -0,0 +1,122 @@
+/**
+ * Licensed to Jasig under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Jasig licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a
+ * copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.jasig.services.persondir.support;
+
+/**
+ * JMX management interface for the statistics of a {@link CachingPersonAttributeDaoImpl}.
+ * 
+ * @author Eric Dalquist
+ * @version $Revision$
+ */
+public interface CacheStatisticsMBean {
+    /**
+     * @return The name of the bean the statistics are for.
+     */
+    String getCacheName();
+    
+    /**
+     * @return The number of queries made, including queries that could not be cached because no cache key could be
+     * generated for them. A getPeopleByUid call counts one query per uid.
+     */
+    long getQueries();
+    
+    /**
+     * @return The number of queries answered from the cache, including null result hits.
+     */
+    long getHits();
+    
+    /**
+     * @return The number of hits that found a cached null result.
+     */
+    long getNullHits();
+    
+    /**
+     * @return The number of queries that were not found in the cache, including coalesced misses that shared the
+     * query of another miss.
+     */
+    long getMisses();
+    
+    /**
+     * @return The fraction of cached queries, hits plus misses, answered from the cache, 0 if there have been none.
+     */
+    double getHitRatio();
+    
+    /**
+     * @return The number of entries removed from the cache to make room for new entries.
+     */
+    long getEvictions();
+    
+    /**
+     * @return The number of entries found to be past their time to live.
+     */
+    long getExpirations();
+    
+    /**
+     * @return The number of loaded results that were not stored because the userInfoCache rejected them.
+     */
+    long getRejections();
+    
+    /**
+     * @return The number of entries removed from the cache by removeUserAttributes.
+     */
+    long getInvalidations();
+    
+    /**
+     * @return The number of calls made to the cached DAO, including background refreshes. Less than the misses when
+     * misses are coalesced.
+     */
+    long getLoads();
+    
+    /**
+     * @return The number of calls to the cached DAO that threw an exception.
+     */
+    long getLoadFailures();
+    
+    /**
+     * @return The mean time in milliseconds of calls to the cached DAO.
+     */
+    double getMeanLoadTime();
+    
+    /**
+     * @return The median time in milliseconds of calls to the cached DAO, accurate to within a factor of two.
+     */
+    double getLoadTime50thPercentile();
+    
+    /**
+     * @return The 95th percentile time in milliseconds of calls to the cached DAO, accurate to within a factor of two.
+     */
+    double getLoadTime95thPercentile();
+    
+    /**
+     * @return The 99th percentile time in milliseconds of calls to the cached DAO, accurate to within a factor of two.
+     */
+    double getLoadTime99thPercentile();
+    
+    /**
+     * @return The number of calls to the cached DAO in each histogram bucket, bucket i counts calls that took up to
+     * 2^i microseconds and the last bucket counts all longer calls.
+     */
+    long[] getLoadTimeHistogram();
+    
+    /**
+     * Sets all statistics back to zero.
+     */
+    void reset();
+}
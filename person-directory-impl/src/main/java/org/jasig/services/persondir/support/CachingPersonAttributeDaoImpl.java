@@ -19,21 +19,54 @@
 
 package org.jasig.services.persondir.support;
 
+import java.io.File;
+import java.io.IOException;
 import java.io.Serializable;
 import java.lang.reflect.AccessibleObject;
 import java.lang.reflect.Method;
+import java.util.AbstractSet;
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
 
 import org.aopalliance.intercept.MethodInvocation;
 import org.apache.commons.lang3.Validate;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.jasig.services.persondir.IAsyncPersonAttributeDao;
+import org.jasig.services.persondir.IListenableFuture;
 import org.jasig.services.persondir.IPersonAttributeDao;
 import org.jasig.services.persondir.IPersonAttributes;
+import org.jasig.services.persondir.support.cache.BoundedConcurrentCache;
+import org.jasig.services.persondir.support.cache.CacheSnapshotFile;
+import org.jasig.services.persondir.support.cache.IRemovalListener;
+import org.jasig.services.persondir.support.cache.OffHeapCache;
+import org.jasig.services.persondir.support.cache.TieredCache;
 import org.springframework.beans.factory.BeanNameAware;
+import org.springframework.beans.factory.DisposableBean;
 import org.springframework.beans.factory.InitializingBean;
 import org.springmodules.cache.key.CacheKeyGenerator;
 
@@ -65,6 +98,10 @@ import org.springmodules.cache.key.CacheKeyGenerator;
  *             The {@link java.util.Map} to use for result caching. This class does no cache
  *             maintenence. It is assumed the underlying Map implementation will ensure the cache
  *             is in a good state at all times.
+ *             {@link org.jasig.services.persondir.support.cache.BoundedConcurrentCache} is a bounded,
+ *             expiring Map suitable for this use. For large caches a
+ *             {@link org.jasig.services.persondir.support.cache.TieredCache} can keep it as a small first
+ *             tier in front of an off-heap {@link OffHeapCache}.
  *         </td>
  *         <td valign="top">Yes</td>
  *         <td valign="top">null</td>
@@ -98,6 +135,171 @@ import org.springmodules.cache.key.CacheKeyGenerator;
  *         <td valign="top">No</td>
  *         <td valign="top">{@link CachingPersonAttributeDaoImpl#NULL_RESULTS_OBJECT}</td>
  *     </tr>
+ *     <tr>
+ *         <td align="right" valign="top">negativeResultCache</td>
+ *         <td>
+ *             A separate {@link java.util.Map} to record queries that returned null in. When set null results
+ *             are stored here instead of in the userInfoCache, whatever the value of cacheNullResults, so
+ *             lookups of unknown ids can expire sooner than real results and do not push them out of the
+ *             userInfoCache. Only get, put and remove are used, expiration is left to the Map.
+ *         </td>
+ *         <td valign="top">No</td>
+ *         <td valign="top">null</td>
+ *     </tr>
+ *     <tr>
+ *         <td align="right" valign="top">negativeResultCacheSize</td>
+ *         <td>
+ *             If greater than 0 and no negativeResultCache is set a {@link BoundedConcurrentCache} holding
+ *             this many null results for <b>negativeResultTimeToLive</b> is created as the
+ *             negativeResultCache.
+ *         </td>
+ *         <td valign="top">No</td>
+ *         <td valign="top">0</td>
+ *     </tr>
+ *     <tr>
+ *         <td align="right" valign="top">negativeResultTimeToLive</td>
+ *         <td>
+ *             Milliseconds null results are kept in the negativeResultCache created from
+ *             negativeResultCacheSize. 0 keeps them until they are pushed out.
+ *         </td>
+ *         <td valign="top">No</td>
+ *         <td valign="top">60000</td>
+ *     </tr>
+ *     <tr>
+ *         <td align="right" valign="top">coalesceMisses</td>
+ *         <td>
+ *             If concurrent cache misses for the same cache key should share a single query of the
+ *             cachedPersonAttributesDao. The first miss runs the query and the others wait for and return its
+ *             results, or rethrow its exception.
+ *         </td>
+ *         <td valign="top">No</td>
+ *         <td valign="top">false</td>
+ *     </tr>
+ *     <tr>
+ *         <td align="right" valign="top">coalescingTimeout</td>
+ *         <td>
+ *             Milliseconds a coalesced miss waits for the in-flight query before giving up and querying the
+ *             cachedPersonAttributesDao itself. 0 waits without a limit. Not applied to asynchronous queries.
+ *         </td>
+ *         <td valign="top">No</td>
+ *         <td valign="top">0</td>
+ *     </tr>
+ *     <tr>
+ *         <td align="right" valign="top">refreshAfter</td>
+ *         <td>
+ *             Milliseconds after which a cached result is stale. A stale result is still returned but the first
+ *             lookup that finds it starts a single background query of the cachedPersonAttributesDao that
+ *             replaces it. 0 disables refreshing.
+ *         </td>
+ *         <td valign="top">No</td>
+ *         <td valign="top">0</td>
+ *     </tr>
+ *     <tr>
+ *         <td align="right" valign="top">expireAfter</td>
+ *         <td>
+ *             Milliseconds after which a cached result is ignored and the lookup queries the
+ *             cachedPersonAttributesDao as for a cache miss. Must be greater than refreshAfter if both are
+ *             set. 0 leaves expiration to the userInfoCache.
+ *         </td>
+ *         <td valign="top">No</td>
+ *         <td valign="top">0</td>
+ *     </tr>
+ *     <tr>
+ *         <td align="right" valign="top">refreshExecutor</td>
+ *         <td>
+ *             The {@link Executor} background refreshes are run on. Refreshes it rejects are skipped, the
+ *             stale result is refreshed by a later lookup. If not set a pool of <b>maxRefreshThreads</b>
+ *             threads with a queue of <b>refreshQueueSize</b> is created when refreshAfter is set and shut
+ *             down when the bean is destroyed.
+ *         </td>
+ *         <td valign="top">No</td>
+ *         <td valign="top">null</td>
+ *     </tr>
+ *     <tr>
+ *         <td align="right" valign="top">maxRefreshThreads</td>
+ *         <td>
+ *             The number of threads of the refresh pool created when no refreshExecutor is set.
+ *         </td>
+ *         <td valign="top">No</td>
+ *         <td valign="top">1</td>
+ *     </tr>
+ *     <tr>
+ *         <td align="right" valign="top">refreshQueueSize</td>
+ *         <td>
+ *             The number of refreshes that may wait for a thread of the refresh pool created when no
+ *             refreshExecutor is set.
+ *         </td>
+ *         <td valign="top">No</td>
+ *         <td valign="top">100</td>
+ *     </tr>
+ *     <tr>
+ *         <td align="right" valign="top">executor</td>
+ *         <td>
+ *             The {@link Executor} the cachedPersonAttributesDao is called on when an asynchronous lookup
+ *             misses the cache, unless it implements {@link IAsyncPersonAttributeDao} itself. If not set a
+ *             blocking cachedPersonAttributesDao, such as a JDBC or LDAP DAO, is called on the calling thread
+ *             and the asynchronous methods block until it returns. Lookups it rejects fail with a
+ *             {@link java.util.concurrent.RejectedExecutionException}.
+ *         </td>
+ *         <td valign="top">No</td>
+ *         <td valign="top">null</td>
+ *     </tr>
+ *     <tr>
+ *         <td align="right" valign="top">metricsRecorder</td>
+ *         <td>
+ *             An {@link ICacheMetricsRecorder} that is passed every query, hit, miss, load, eviction, expiration,
+ *             rejection and invalidation in addition to the statistics kept by this class, for forwarding to an
+ *             external metrics system. Evictions, rejections and the expirations of the userInfoCache itself are
+ *             only reported when it is a {@link BoundedConcurrentCache}, {@link TieredCache} or
+ *             {@link OffHeapCache}.
+ *         </td>
+ *         <td valign="top">No</td>
+ *         <td valign="top">null</td>
+ *     </tr>
+ *     <tr>
+ *         <td align="right" valign="top">mbeanServer</td>
+ *         <td>
+ *             If set the {@link CacheStatisticsMBean} returned by {@link #getStatistics()} is registered with
+ *             this MBeanServer under the name
+ *             <code>org.jasig.services.persondir:type=CachingPersonAttributeDao,name=&lt;beanName&gt;</code>
+ *             and unregistered when the bean is destroyed.
+ *         </td>
+ *         <td valign="top">No</td>
+ *         <td valign="top">null</td>
+ *     </tr>
+ *     <tr>
+ *         <td align="right" valign="top">compactCachedResults</td>
+ *         <td>
+ *             If people are converted to {@link CompactPersonImpl}s before being cached, which share attribute
+ *             names between cached people and take less memory. The caller of the query that loaded the results
+ *             still gets the people returned by the cachedPersonAttributesDao.
+ *         </td>
+ *         <td valign="top">No</td>
+ *         <td valign="top">false</td>
+ *     </tr>
+ *     <tr>
+ *         <td align="right" valign="top">snapshotFile</td>
+ *         <td>
+ *             If set the userInfoCache is written to this file when the bean is destroyed and every
+ *             <b>snapshotInterval</b>, and reloaded from it in the background when the bean is initialized.
+ *             Entries keep the expiration times they had when written, expired entries are not reloaded and
+ *             entries already loaded by a query are not replaced. If the userInfoCache is not a
+ *             {@link BoundedConcurrentCache} or {@link TieredCache} it can't expire single entries, entries that would
+ *             expire before <b>expireAfter</b> expires them are then not reloaded. The negativeResultCache is not
+ *             written.
+ *             See {@link CacheSnapshotFile} for the file format.
+ *         </td>
+ *         <td valign="top">No</td>
+ *         <td valign="top">null</td>
+ *     </tr>
+ *     <tr>
+ *         <td align="right" valign="top">snapshotInterval</td>
+ *         <td>
+ *             Milliseconds between writes of the snapshotFile, 0 to only write it when the bean is destroyed.
+ *         </td>
+ *         <td valign="top">No</td>
+ *         <td valign="top">0</td>
+ *     </tr>
  * </table>
  * 
  * 
@@ -105,13 +307,17 @@ import org.springmodules.cache.key.CacheKeyGenerator;
  * @author Eric Dalquist
  * @version $Id
  */
-public class CachingPersonAttributeDaoImpl extends AbstractDefaultAttributePersonAttributeDao implements InitializingBean, BeanNameAware {
+public class CachingPersonAttributeDaoImpl extends AbstractDefaultAttributePersonAttributeDao implements IAsyncPersonAttributeDao, InitializingBean, DisposableBean, BeanNameAware {
     protected static final Set<IPersonAttributes> NULL_RESULTS_OBJECT = Collections.singleton((IPersonAttributes)new SingletonPersonImpl());
+    
+    /*
+     * Number of usernameIndex entries checked for keys that are no longer cached on each put
+     */
+    private static final int USERNAME_INDEX_PRUNE_STEP = 4;
             
     protected Log statsLogger = LogFactory.getLog(this.getClass().getName() + ".statistics");
 
-    private long queries = 0;
-    private long misses = 0;
+    private final CacheStatistics statistics = new CacheStatistics(null);
     
     /*
      * The IPersonAttributeDao to delegate cache misses to.
@@ -143,8 +349,92 @@ public class CachingPersonAttributeDaoImpl extends AbstractDefaultAttributePerso
      */
     private Set<IPersonAttributes> nullResultsObject = NULL_RESULTS_OBJECT;
     
+    /*
+     * Separate cache for null results, used instead of storing nullResultsObject in the userInfoCache
+     */
+    private Map<Serializable, Boolean> negativeResultCache = null;
+    
+    private int negativeResultCacheSize = 0;
+    
+    private long negativeResultTimeToLive = 60000;
+    
     private String beanName;
     
+    /*
+     * If concurrent misses for the same key share a single query
+     */
+    private boolean coalesceMisses = false;
+    
+    /*
+     * Milliseconds a coalesced miss waits for the in-flight query, 0 for no limit
+     */
+    private long coalescingTimeout = 0;
+    
+    /*
+     * Queries of the cachedPersonAttributesDao in progress when coalesceMisses is true
+     */
+    private final ConcurrentMap<Serializable, SettableFutureTask<Set<IPersonAttributes>>> inFlightLoads = 
+        new ConcurrentHashMap<Serializable, SettableFutureTask<Set<IPersonAttributes>>>();
+    
+    /*
+     * Milliseconds after which cached results are refreshed in the background, 0 to disable
+     */
+    private long refreshAfter = 0;
+    
+    /*
+     * Milliseconds after which cached results are ignored, 0 to disable
+     */
+    private long expireAfter = 0;
+    
+    private Executor refreshExecutor = null;
+    
+    private int maxRefreshThreads = 1;
+    
+    private int refreshQueueSize = 100;
+    
+    private Executor executor = null;
+    
+    /*
+     * The refresh pool created by afterPropertiesSet, shut down by destroy
+     */
+    private ExecutorService ownedRefreshExecutor = null;
+    
+    /*
+     * Keys with a background refresh queued or running
+     */
+    private final ConcurrentMap<Serializable, Boolean> refreshingKeys = new ConcurrentHashMap<Serializable, Boolean>();
+    
+    /*
+     * The cache keys results are stored under for each username, from the username in the query seed and the names
+     * of the people in the results. Only used if cache keys can be generated from attributes other than the username.
+     * Keys that are no longer cached are pruned a few index entries at a time by pruneUsernameIndex.
+     */
+    private final ConcurrentMap<String, Set<Serializable>> usernameIndex = new ConcurrentHashMap<String, Set<Serializable>>();
+    
+    private final AtomicBoolean pruningUsernameIndex = new AtomicBoolean();
+    
+    /*
+     * Position of the incremental prune in the usernameIndex, only accessed while pruningUsernameIndex is held
+     */
+    private Iterator<Map.Entry<String, Set<Serializable>>> usernameIndexPruneIterator = null;
+    
+    private ICacheMetricsRecorder metricsRecorder = null;
+    
+    private MBeanServer mbeanServer = null;
+    
+    private ObjectName registeredObjectName = null;
+    
+    private boolean compactCachedResults = false;
+    
+    private CacheSnapshotFile snapshotFile = null;
+    
+    private long snapshotInterval = 0;
+    
+    /*
+     * Runs the snapshot load and the scheduled snapshot writes, created when snapshotFile is set
+     */
+    private ScheduledExecutorService snapshotScheduler = null;
+    
     /**
      * @return Returns the cachedPersonAttributesDao.
      */
@@ -236,6 +526,56 @@ public class CachingPersonAttributeDaoImpl extends AbstractDefaultAttributePerso
         this.nullResultsObject = nullResultsObject;
     }
     
+    /**
+     * @return the negativeResultCache
+     */
+    public Map<Serializable, Boolean> getNegativeResultCache() {
+        return this.negativeResultCache;
+    }
+    /**
+     * A separate Map to cache null results in, typically with a shorter lifetime than the userInfoCache. When set
+     * null results are never stored in the userInfoCache.
+     * 
+     * @param negativeResultCache the negativeResultCache to set
+     */
+    public void setNegativeResultCache(Map<Serializable, Boolean> negativeResultCache) {
+        this.negativeResultCache = negativeResultCache;
+    }
+    
+    /**
+     * @return the negativeResultCacheSize
+     */
+    public int getNegativeResultCacheSize() {
+        return this.negativeResultCacheSize;
+    }
+    /**
+     * If greater than 0 and no negativeResultCache is set a bounded negativeResultCache of this size is created.
+     * Defaults to 0.
+     * 
+     * @param negativeResultCacheSize the negativeResultCacheSize to set
+     */
+    public void setNegativeResultCacheSize(int negativeResultCacheSize) {
+        Validate.isTrue(negativeResultCacheSize >= 0, "negativeResultCacheSize must be >= 0");
+        this.negativeResultCacheSize = negativeResultCacheSize;
+    }
+    
+    /**
+     * @return the negativeResultTimeToLive
+     */
+    public long getNegativeResultTimeToLive() {
+        return this.negativeResultTimeToLive;
+    }
+    /**
+     * Milliseconds null results are kept in the negativeResultCache created from negativeResultCacheSize, 0 for no
+     * expiration. Defaults to 60000.
+     * 
+     * @param negativeResultTimeToLive the negativeResultTimeToLive to set
+     */
+    public void setNegativeResultTimeToLive(long negativeResultTimeToLive) {
+        Validate.isTrue(negativeResultTimeToLive >= 0, "negativeResultTimeToLive must be >= 0");
+        this.negativeResultTimeToLive = negativeResultTimeToLive;
+    }
+    
     /**
      * @return the cacheKeyGenerator
      */
@@ -251,126 +591,1295 @@ public class CachingPersonAttributeDaoImpl extends AbstractDefaultAttributePerso
         this.cacheKeyGenerator = cacheKeyGenerator;
     }
     
-    @Override
-    public void setBeanName(String name) {
-        this.beanName = name;
+    /**
+     * @return the coalesceMisses
+     */
+    public boolean isCoalesceMisses() {
+        return this.coalesceMisses;
     }
-    
-    /* (non-Javadoc)
-     * @see org.springframework.beans.factory.InitializingBean#afterPropertiesSet()
+    /**
+     * If concurrent cache misses for the same key should wait for and share a single query of the
+     * cachedPersonAttributesDao. Defaults to false.
+     * 
+     * @param coalesceMisses the coalesceMisses to set
      */
-    public void afterPropertiesSet() throws Exception {
-        if (this.cacheKeyGenerator == null) {
-            final AttributeBasedCacheKeyGenerator cacheKeyGenerator = new AttributeBasedCacheKeyGenerator();
-            cacheKeyGenerator.setCacheKeyAttributes(this.cacheKeyAttributes);
-            
-            final IUsernameAttributeProvider usernameAttributeProvider = this.getUsernameAttributeProvider();
-            final String usernameAttribute = usernameAttributeProvider.getUsernameAttribute();
-            cacheKeyGenerator.setDefaultAttributeName(usernameAttribute);
-            this.cacheKeyGenerator = cacheKeyGenerator;
-        }
+    public void setCoalesceMisses(boolean coalesceMisses) {
+        this.coalesceMisses = coalesceMisses;
     }
     
     /**
-     * @return Returns the number of cache misses.
+     * @return the coalescingTimeout
      */
-    public long getMisses() {
-        return this.misses;
+    public long getCoalescingTimeout() {
+        return this.coalescingTimeout;
     }
-    
     /**
-     * @return Returns the number of queries.
+     * Milliseconds a coalesced miss waits for the in-flight query before querying the cachedPersonAttributesDao
+     * itself. 0, the default, waits without a limit.
+     * 
+     * @param coalescingTimeout the coalescingTimeout to set
      */
-    public long getQueries() {
-        return this.queries;
+    public void setCoalescingTimeout(long coalescingTimeout) {
+        Validate.isTrue(coalescingTimeout >= 0, "coalescingTimeout must be >= 0");
+        this.coalescingTimeout = coalescingTimeout;
     }
     
     /**
-     * Wraps the call to the specified cachedPersonAttributesDao IPersonAttributeDao delegate with
-     * a caching layer. Results are cached using keys generated by {@link #getCacheKey(Map)}.
+     * @return the refreshAfter
+     */
+    public long getRefreshAfter() {
+        return this.refreshAfter;
+    }
+    /**
+     * Milliseconds after which a cached result is returned but also refreshed in the background. 0, the default,
+     * disables refreshing.
      * 
-     * @see org.jasig.services.persondir.IPersonAttributeDao#getPeopleWithMultivaluedAttributes(java.util.Map)
+     * @param refreshAfter the refreshAfter to set
      */
-    public Set<IPersonAttributes> getPeopleWithMultivaluedAttributes(Map<String, List<Object>> seed) {
-        //Ensure the arguments and state are valid
-        if (seed == null) {
-            throw new IllegalArgumentException("The query seed Map cannot be null.");
-        }
-        
-        if (this.cachedPersonAttributesDao == null) {
-            throw new IllegalStateException("No 'cachedPersonAttributesDao' has been specified.");
-        }
-        if (this.userInfoCache == null) {
-            throw new IllegalStateException("No 'userInfoCache' has been specified.");
-        }
-        
-        //Get the cache key
-        final MethodInvocation methodInvocation = new PersonAttributeDaoMethodInvocation(seed);
-        final Serializable cacheKey = this.cacheKeyGenerator.generateKey(methodInvocation);
-
-        if (cacheKey != null) {
-            Set<IPersonAttributes> cacheResults = this.userInfoCache.get(cacheKey);
-            if (cacheResults != null) {
-                //If the returned object is the null results object, set the cache results to null
-                if (this.nullResultsObject.equals(cacheResults)) {
-                    cacheResults = null;
-                }
-                
-                if (logger.isDebugEnabled()) {
-                    logger.debug("Retrieved query from cache for " + beanName + ". key='" + cacheKey + "', results='" + cacheResults + "'");
-                }
-                    
-                this.queries++;
-                if (statsLogger.isDebugEnabled()) {
-                    statsLogger.debug("Cache Stats " + beanName + ": queries=" + this.queries + ", hits=" + (this.queries - this.misses) + ", misses=" + this.misses);
-                }
-                
-                return cacheResults;
-            }
-        }
-    
-        final Set<IPersonAttributes> queryResults = this.cachedPersonAttributesDao.getPeopleWithMultivaluedAttributes(seed);
-    
-        if (cacheKey != null) {
-            if (queryResults != null) {
-                this.userInfoCache.put(cacheKey, queryResults);
-            }
-            else if (this.cacheNullResults) {
-                this.userInfoCache.put(cacheKey, this.nullResultsObject);
-            }
-            
-            if (logger.isDebugEnabled()) {
-                logger.debug("Retrieved query from wrapped IPersonAttributeDao and stored in cache for " + beanName + ". key='" + cacheKey + "', results='" + queryResults + "'");
-            }
-            
-            this.queries++;
-            this.misses++;
-            if (statsLogger.isDebugEnabled()) {
-                statsLogger.debug("Cache Stats " + beanName + ": queries=" + this.queries + ", hits=" + (this.queries - this.misses) + ", misses=" + this.misses);
-            }
-        }
-
-        return queryResults;
+    public void setRefreshAfter(long refreshAfter) {
+        Validate.isTrue(refreshAfter >= 0, "refreshAfter must be >= 0");
+        this.refreshAfter = refreshAfter;
     }
     
-    public void removeUserAttributes(String uid) {
-        Validate.notNull(uid, "uid may not be null.");
-        final Map<String, List<Object>> seed = this.toSeedMap(uid);
-        this.removeUserAttributesMultivaluedSeed(seed);
+    /**
+     * @return the expireAfter
+     */
+    public long getExpireAfter() {
+        return this.expireAfter;
     }
-    
-    public void removeUserAttributes(Map<String, Object> seed) {
-        final Map<String, List<Object>> multiSeed = MultivaluedPersonAttributeUtils.toMultivaluedMap(seed);
-        this.removeUserAttributesMultivaluedSeed(multiSeed);
+    /**
+     * Milliseconds after which a cached result is ignored and reloaded while the caller waits. 0, the default, leaves
+     * expiration to the userInfoCache.
+     * 
+     * @param expireAfter the expireAfter to set
+     */
+    public void setExpireAfter(long expireAfter) {
+        Validate.isTrue(expireAfter >= 0, "expireAfter must be >= 0");
+        this.expireAfter = expireAfter;
     }
     
-    public void removeUserAttributesMultivaluedSeed(Map<String, List<Object>> seed) {
-        final MethodInvocation methodInvocation = new PersonAttributeDaoMethodInvocation(seed);
-        final Serializable cacheKey = this.cacheKeyGenerator.generateKey(methodInvocation);
-        this.userInfoCache.remove(cacheKey);
+    /**
+     * @return the refreshExecutor
+     */
+    public Executor getRefreshExecutor() {
+        return this.refreshExecutor;
     }
-
-    /* (non-Javadoc)
+    /**
+     * The Executor to run background refreshes on, should be bounded to cap the load refreshes place on the
+     * cachedPersonAttributesDao.
+     * 
+     * @param refreshExecutor the refreshExecutor to set
+     */
+    public void setRefreshExecutor(Executor refreshExecutor) {
+        this.refreshExecutor = refreshExecutor;
+    }
+    
+    /**
+     * @return the maxRefreshThreads
+     */
+    public int getMaxRefreshThreads() {
+        return this.maxRefreshThreads;
+    }
+    /**
+     * Number of threads in the refresh pool created when no refreshExecutor is set. Defaults to 1.
+     * 
+     * @param maxRefreshThreads the maxRefreshThreads to set
+     */
+    public void setMaxRefreshThreads(int maxRefreshThreads) {
+        Validate.isTrue(maxRefreshThreads > 0, "maxRefreshThreads must be greater than 0");
+        this.maxRefreshThreads = maxRefreshThreads;
+    }
+    
+    /**
+     * @return the refreshQueueSize
+     */
+    public int getRefreshQueueSize() {
+        return this.refreshQueueSize;
+    }
+    /**
+     * Number of refreshes that may wait for a thread in the refresh pool created when no refreshExecutor is set,
+     * further refreshes are skipped. Defaults to 100.
+     * 
+     * @param refreshQueueSize the refreshQueueSize to set
+     */
+    public void setRefreshQueueSize(int refreshQueueSize) {
+        Validate.isTrue(refreshQueueSize > 0, "refreshQueueSize must be greater than 0");
+        this.refreshQueueSize = refreshQueueSize;
+    }
+    
+    /**
+     * @return the executor
+     */
+    public Executor getExecutor() {
+        return this.executor;
+    }
+    /**
+     * The Executor to call a cachedPersonAttributesDao that does not implement {@link IAsyncPersonAttributeDao} on
+     * for asynchronous lookups, should be bounded. If null the cachedPersonAttributesDao is called on the calling
+     * thread and asynchronous lookups that miss the cache block.
+     * 
+     * @param executor the executor to set
+     */
+    public void setExecutor(Executor executor) {
+        this.executor = executor;
+    }
+    
+    /**
+     * @return the metricsRecorder
+     */
+    public ICacheMetricsRecorder getMetricsRecorder() {
+        return this.metricsRecorder;
+    }
+    /**
+     * An optional recorder that is passed every cache event, for forwarding to an external metrics system.
+     * 
+     * @param metricsRecorder the metricsRecorder to set
+     */
+    public void setMetricsRecorder(ICacheMetricsRecorder metricsRecorder) {
+        this.metricsRecorder = metricsRecorder;
+    }
+    
+    /**
+     * @return the mbeanServer
+     */
+    public MBeanServer getMbeanServer() {
+        return this.mbeanServer;
+    }
+    /**
+     * If set the cache statistics are registered with this MBeanServer when the bean is initialized.
+     * 
+     * @param mbeanServer the mbeanServer to set
+     */
+    public void setMbeanServer(MBeanServer mbeanServer) {
+        this.mbeanServer = mbeanServer;
+    }
+    
+    /**
+     * @return the compactCachedResults
+     */
+    public boolean isCompactCachedResults() {
+        return this.compactCachedResults;
+    }
+    /**
+     * If people are converted to {@link CompactPersonImpl}s before being cached. Defaults to false.
+     * 
+     * @param compactCachedResults the compactCachedResults to set
+     */
+    public void setCompactCachedResults(boolean compactCachedResults) {
+        this.compactCachedResults = compactCachedResults;
+    }
+    
+    /**
+     * @return the snapshotFile
+     */
+    public File getSnapshotFile() {
+        return this.snapshotFile != null ? this.snapshotFile.getFile() : null;
+    }
+    /**
+     * If set the userInfoCache is written to this file when the bean is destroyed and every snapshotInterval and
+     * reloaded from it in the background when the bean is initialized.
+     * 
+     * @param snapshotFile the snapshotFile to set
+     */
+    public void setSnapshotFile(File snapshotFile) {
+        this.snapshotFile = snapshotFile != null ? new CacheSnapshotFile(snapshotFile) : null;
+    }
+    
+    /**
+     * @return the snapshotInterval
+     */
+    public long getSnapshotInterval() {
+        return this.snapshotInterval;
+    }
+    /**
+     * Milliseconds between writes of the snapshotFile, 0 to only write it when the bean is destroyed. Defaults to 0.
+     * 
+     * @param snapshotInterval the snapshotInterval to set
+     */
+    public void setSnapshotInterval(long snapshotInterval) {
+        Validate.isTrue(snapshotInterval >= 0, "snapshotInterval must be >= 0");
+        this.snapshotInterval = snapshotInterval;
+    }
+    
+    @Override
+    public void setBeanName(String name) {
+        this.beanName = name;
+        this.statistics.setCacheName(name);
+    }
+    
+    /* (non-Javadoc)
+     * @see org.springframework.beans.factory.InitializingBean#afterPropertiesSet()
+     */
+    public void afterPropertiesSet() throws Exception {
+        if (this.cacheKeyGenerator == null) {
+            final AttributeBasedCacheKeyGenerator cacheKeyGenerator = new ExactAttributeCacheKeyGenerator();
+            cacheKeyGenerator.setCacheKeyAttributes(this.cacheKeyAttributes);
+            
+            final IUsernameAttributeProvider usernameAttributeProvider = this.getUsernameAttributeProvider();
+            final String usernameAttribute = usernameAttributeProvider.getUsernameAttribute();
+            cacheKeyGenerator.setDefaultAttributeName(usernameAttribute);
+            this.cacheKeyGenerator = cacheKeyGenerator;
+        }
+        
+        if (this.negativeResultCache == null && this.negativeResultCacheSize > 0) {
+            this.negativeResultCache = new BoundedConcurrentCache<Serializable, Boolean>(this.negativeResultCacheSize, this.negativeResultTimeToLive);
+        }
+        
+        if (this.refreshAfter > 0 && this.expireAfter > 0 && this.refreshAfter >= this.expireAfter) {
+            throw new IllegalStateException("refreshAfter must be less than expireAfter");
+        }
+        if (this.refreshAfter > 0 && this.refreshExecutor == null) {
+            final ThreadPoolExecutor threadPool = new ThreadPoolExecutor(this.maxRefreshThreads, this.maxRefreshThreads, 60, TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(this.refreshQueueSize));
+            threadPool.allowCoreThreadTimeOut(true);
+            this.refreshExecutor = threadPool;
+            this.ownedRefreshExecutor = threadPool;
+        }
+        
+        this.registerRemovalListener();
+        
+        if (this.mbeanServer != null) {
+            final String name = this.beanName != null ? this.beanName : this.getClass().getSimpleName() + "@" + System.identityHashCode(this);
+            final ObjectName objectName = new ObjectName("org.jasig.services.persondir:type=CachingPersonAttributeDao,name=" + ObjectName.quote(name));
+            this.mbeanServer.registerMBean(this.statistics, objectName);
+            this.registeredObjectName = objectName;
+        }
+        
+        if (this.snapshotFile != null) {
+            this.startSnapshots();
+        }
+    }
+    
+    /* (non-Javadoc)
+     * @see org.springframework.beans.factory.DisposableBean#destroy()
+     */
+    public void destroy() throws Exception {
+        if (this.snapshotScheduler != null) {
+            this.snapshotScheduler.shutdownNow();
+            this.snapshotScheduler = null;
+            try {
+                this.writeSnapshot();
+            }
+            catch (IOException e) {
+                logger.warn("Failed to write cache snapshot for " + beanName + " to " + this.snapshotFile.getFile(), e);
+            }
+        }
+        if (this.ownedRefreshExecutor != null) {
+            this.ownedRefreshExecutor.shutdown();
+            this.refreshExecutor = null;
+            this.ownedRefreshExecutor = null;
+        }
+        if (this.registeredObjectName != null) {
+            this.mbeanServer.unregisterMBean(this.registeredObjectName);
+            this.registeredObjectName = null;
+        }
+    }
+    
+    /**
+     * Writes the unexpired entries of the userInfoCache to the snapshotFile with their expiration times.
+     * 
+     * @return The number of entries written
+     * @throws IllegalStateException If no snapshotFile is set
+     */
+    public int writeSnapshot() throws IOException {
+        if (this.snapshotFile == null) {
+            throw new IllegalStateException("snapshotFile must be set");
+        }
+        
+        final long now = this.currentTimeMillis();
+        
+        final List<CacheSnapshotFile.Entry> entries = new ArrayList<CacheSnapshotFile.Entry>(this.userInfoCache.size());
+        for (final Map.Entry<Serializable, Set<IPersonAttributes>> cacheEntry : this.userInfoCache.entrySet()) {
+            final Serializable cacheKey = cacheEntry.getKey();
+            final Set<IPersonAttributes> cacheResults = cacheEntry.getValue();
+            if (!(cacheResults instanceof Serializable)) {
+                if (logger.isDebugEnabled()) {
+                    logger.debug("Not writing results that are not Serializable to the snapshot for " + beanName + ". key='" + cacheKey + "'");
+                }
+                continue;
+            }
+            
+            long expiresAt = 0;
+            if (cacheResults instanceof TimestampedResults && this.expireAfter > 0) {
+                expiresAt = ((TimestampedResults) cacheResults).getLoaded() + this.expireAfter;
+            }
+            final long timeToLive = this.getRemainingTimeToLive(cacheKey);
+            if (timeToLive < 0) {
+                //Expired since entrySet was called
+                continue;
+            }
+            if (timeToLive > 0 && (expiresAt == 0 || now + timeToLive < expiresAt)) {
+                expiresAt = now + timeToLive;
+            }
+            
+            entries.add(new CacheSnapshotFile.Entry(cacheKey, (Serializable) cacheResults, expiresAt));
+        }
+        
+        this.snapshotFile.write(entries);
+        
+        if (logger.isInfoEnabled()) {
+            logger.info("Wrote " + entries.size() + " entries to cache snapshot for " + beanName + " in " + this.snapshotFile.getFile());
+        }
+        return entries.size();
+    }
+    
+    /**
+     * Loads the unexpired entries of the snapshotFile into the userInfoCache, keeping their expiration times. Keys
+     * that are already cached are not replaced. Entries are skipped if the userInfoCache can't expire them and
+     * expireAfter would not expire them in time either.
+     * 
+     * @return The number of entries loaded
+     * @throws IllegalStateException If no snapshotFile is set
+     */
+    public int loadSnapshot() throws IOException, ClassNotFoundException {
+        if (this.snapshotFile == null) {
+            throw new IllegalStateException("snapshotFile must be set");
+        }
+        
+        final List<CacheSnapshotFile.Entry> entries = this.snapshotFile.read();
+        
+        final long now = this.currentTimeMillis();
+        
+        int loaded = 0;
+        for (final CacheSnapshotFile.Entry entry : entries) {
+            final Serializable cacheKey = entry.getKey();
+            if (entry.isExpired(now) || this.userInfoCache.containsKey(cacheKey)) {
+                continue;
+            }
+            
+            @SuppressWarnings("unchecked")
+            Set<IPersonAttributes> cacheResults = (Set<IPersonAttributes>) entry.getValue();
+            
+            //Re-wrap for the current refreshAfter and expireAfter, they may have changed since the snapshot was written
+            long loadedAt = now;
+            if (cacheResults instanceof TimestampedResults) {
+                loadedAt = ((TimestampedResults) cacheResults).getLoaded();
+                cacheResults = ((TimestampedResults) cacheResults).getResults();
+            }
+            if (this.expireAfter > 0 && now - loadedAt >= this.expireAfter) {
+                continue;
+            }
+            if (this.nullResultsObject.equals(cacheResults)) {
+                cacheResults = this.nullResultsObject;
+            }
+            if (this.refreshAfter > 0 || this.expireAfter > 0) {
+                cacheResults = new TimestampedResults(cacheResults, loadedAt);
+            }
+            
+            if (entry.getExpiresAt() <= 0) {
+                this.userInfoCache.put(cacheKey, cacheResults);
+            }
+            else if (!this.putWithTimeToLive(cacheKey, cacheResults, entry.getExpiresAt() - now)) {
+                //The userInfoCache would keep the entry forever, only load it if expireAfter expires it in time
+                if (this.expireAfter <= 0 || loadedAt + this.expireAfter > entry.getExpiresAt()) {
+                    if (logger.isDebugEnabled()) {
+                        logger.debug("Not loading snapshot entry for " + beanName + " that the userInfoCache can't expire. key='" + cacheKey + "'");
+                    }
+                    continue;
+                }
+                this.userInfoCache.put(cacheKey, cacheResults);
+            }
+            this.indexResults(cacheKey, null, cacheResults);
+            loaded++;
+        }
+        
+        if (logger.isInfoEnabled()) {
+            logger.info("Loaded " + loaded + " of " + entries.size() + " entries from cache snapshot for " + beanName + " in " + this.snapshotFile.getFile());
+        }
+        return loaded;
+    }
+    
+    /**
+     * @return The statistics for this cache, exact once concurrent queries have completed.
+     */
+    public CacheStatisticsMBean getStatistics() {
+        return this.statistics;
+    }
+    
+    /**
+     * @return Returns the number of cache misses.
+     */
+    public long getMisses() {
+        return this.statistics.getMisses();
+    }
+    
+    /**
+     * @return Returns the number of queries.
+     */
+    public long getQueries() {
+        return this.statistics.getQueries();
+    }
+    
+    /**
+     * Wraps the call to the specified cachedPersonAttributesDao IPersonAttributeDao delegate with
+     * a caching layer. Results are cached using keys generated by {@link #getCacheKey(Map)}.
+     * 
+     * @see org.jasig.services.persondir.IPersonAttributeDao#getPeopleWithMultivaluedAttributes(java.util.Map)
+     */
+    public Set<IPersonAttributes> getPeopleWithMultivaluedAttributes(Map<String, List<Object>> seed) {
+        this.recordQuery();
+        
+        //Get the cache key
+        final Serializable cacheKey = this.getCacheKey(seed);
+
+        if (cacheKey != null) {
+            final Set<IPersonAttributes> cacheResults = this.getCachedResults(cacheKey, seed);
+            if (cacheResults != null) {
+                //If the returned object is the null results object, set the cache results to null
+                return this.nullResultsObject.equals(cacheResults) ? null : cacheResults;
+            }
+            
+            if (this.coalesceMisses) {
+                return this.loadResultsCoalesced(seed, cacheKey);
+            }
+        }
+    
+        return this.loadResults(seed, cacheKey);
+    }
+    
+    /**
+     * Queries the cachedPersonAttributesDao and stores the results in the cache.
+     */
+    private Set<IPersonAttributes> loadResults(Map<String, List<Object>> seed, Serializable cacheKey) {
+        final Set<IPersonAttributes> queryResults;
+        final long start = System.nanoTime();
+        boolean failed = true;
+        try {
+            queryResults = this.cachedPersonAttributesDao.getPeopleWithMultivaluedAttributes(seed);
+            failed = false;
+        }
+        finally {
+            this.recordLoad(System.nanoTime() - start, failed);
+        }
+        this.storeResults(cacheKey, this.getUsernameAttributeProvider().getUsernameFromQuery(seed), queryResults);
+
+        return queryResults;
+    }
+    
+    /**
+     * Runs {@link #loadResults(Map, Serializable)} unless another thread is already loading the same key, in which
+     * case the results or exception of that load are returned.
+     */
+    private Set<IPersonAttributes> loadResultsCoalesced(Map<String, List<Object>> seed, Serializable cacheKey) {
+        final SettableFutureTask<Set<IPersonAttributes>> load = new SettableFutureTask<Set<IPersonAttributes>>();
+        final SettableFutureTask<Set<IPersonAttributes>> inFlightLoad = this.inFlightLoads.putIfAbsent(cacheKey, load);
+        
+        //Another thread is loading the key, wait for its results
+        if (inFlightLoad != null) {
+            return this.awaitInFlightLoad(inFlightLoad, seed, cacheKey);
+        }
+        
+        try {
+            final Set<IPersonAttributes> queryResults = this.loadResults(seed, cacheKey);
+            load.set(queryResults);
+            return queryResults;
+        }
+        catch (RuntimeException e) {
+            load.setException(e);
+            throw e;
+        }
+        catch (Error e) {
+            load.setException(e);
+            throw e;
+        }
+        finally {
+            this.inFlightLoads.remove(cacheKey, load);
+        }
+    }
+    
+    /**
+     * Waits for a load of the key started by another thread and returns its results or rethrows its exception. If
+     * the load does not complete within the coalescingTimeout the cachedPersonAttributesDao is queried directly.
+     */
+    private Set<IPersonAttributes> awaitInFlightLoad(SettableFutureTask<Set<IPersonAttributes>> inFlightLoad, Map<String, List<Object>> seed, Serializable cacheKey) {
+        try {
+            if (this.coalescingTimeout > 0) {
+                inFlightLoad.get(this.coalescingTimeout, TimeUnit.MILLISECONDS);
+            }
+            else {
+                inFlightLoad.get();
+            }
+        }
+        catch (ExecutionException e) {
+            //Rethrown by getDoneResult
+        }
+        catch (TimeoutException e) {
+            if (logger.isDebugEnabled()) {
+                logger.debug("Timed out after " + this.coalescingTimeout + "ms waiting for in-flight query for " + beanName + ". key='" + cacheKey + "', querying wrapped IPersonAttributeDao");
+            }
+            return this.loadResults(seed, cacheKey);
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for in-flight query for " + beanName + ". key='" + cacheKey + "'", e);
+        }
+        
+        this.recordMiss();
+        return SettableFutureTask.getDoneResult(inFlightLoad);
+    }
+    
+    /**
+     * Answers the uids that are in the cache in one pass and looks up the remaining uids with a single batch call to
+     * the cachedPersonAttributesDao, storing each result in the cache. If coalesceMisses is set uids that are
+     * already being loaded by another thread are not part of the batch, their in-flight loads are joined instead.
+     * 
+     * @see org.jasig.services.persondir.support.AbstractFlatteningPersonAttributeDao#getPeopleByUid(java.util.Set)
+     */
+    @Override
+    public Map<String, IPersonAttributes> getPeopleByUid(Set<String> uids) {
+        Validate.notNull(uids, "uids may not be null.");
+        Validate.noNullElements(uids, "uids may not contain null.");
+        
+        final Map<String, IPersonAttributes> cachedPeople = new HashMap<String, IPersonAttributes>();
+        final Map<String, Serializable> missedCacheKeys = new LinkedHashMap<String, Serializable>();
+        for (final String uid : uids) {
+            this.recordQuery();
+            
+            final Map<String, List<Object>> seed = this.toSeedMap(uid);
+            final Serializable cacheKey = this.getCacheKey(seed);
+            
+            if (cacheKey != null) {
+                final Set<IPersonAttributes> cacheResults = this.getCachedResults(cacheKey, seed);
+                if (cacheResults != null) {
+                    //The null results object means the uid is cached as not found
+                    if (!this.nullResultsObject.equals(cacheResults)) {
+                        cachedPeople.put(uid, toPerson(uid, cacheResults));
+                    }
+                    continue;
+                }
+            }
+            
+            missedCacheKeys.put(uid, cacheKey);
+        }
+        
+        //Register a load for every missed key so other threads join the batch, or join the load already in flight
+        final Map<String, SettableFutureTask<Set<IPersonAttributes>>> joinedLoads = new LinkedHashMap<String, SettableFutureTask<Set<IPersonAttributes>>>();
+        final Map<Serializable, SettableFutureTask<Set<IPersonAttributes>>> batchLoads = new HashMap<Serializable, SettableFutureTask<Set<IPersonAttributes>>>();
+        if (this.coalesceMisses) {
+            for (final Iterator<Map.Entry<String, Serializable>> missedItr = missedCacheKeys.entrySet().iterator(); missedItr.hasNext(); ) {
+                final Map.Entry<String, Serializable> missedEntry = missedItr.next();
+                final Serializable cacheKey = missedEntry.getValue();
+                if (cacheKey == null) {
+                    continue;
+                }
+                
+                final SettableFutureTask<Set<IPersonAttributes>> load = new SettableFutureTask<Set<IPersonAttributes>>();
+                final SettableFutureTask<Set<IPersonAttributes>> inFlightLoad = this.inFlightLoads.putIfAbsent(cacheKey, load);
+                if (inFlightLoad != null) {
+                    joinedLoads.put(missedEntry.getKey(), inFlightLoad);
+                    missedItr.remove();
+                }
+                else {
+                    batchLoads.put(cacheKey, load);
+                }
+            }
+        }
+        
+        Map<String, IPersonAttributes> queriedPeople = Collections.emptyMap();
+        try {
+            if (!missedCacheKeys.isEmpty()) {
+                final long start = System.nanoTime();
+                boolean failed = true;
+                try {
+                    queriedPeople = getPeopleByUid(this.cachedPersonAttributesDao, missedCacheKeys.keySet());
+                    failed = false;
+                }
+                finally {
+                    this.recordLoad(System.nanoTime() - start, failed);
+                }
+                
+                for (final Map.Entry<String, Serializable> missedEntry : missedCacheKeys.entrySet()) {
+                    final IPersonAttributes person = queriedPeople.get(missedEntry.getKey());
+                    final Set<IPersonAttributes> queryResults = person == null ? null : Collections.singleton(person);
+                    this.storeResults(missedEntry.getValue(), missedEntry.getKey(), queryResults);
+                    
+                    final SettableFutureTask<Set<IPersonAttributes>> load = batchLoads.get(missedEntry.getValue());
+                    if (load != null) {
+                        load.set(queryResults);
+                    }
+                }
+            }
+        }
+        catch (RuntimeException e) {
+            for (final SettableFutureTask<Set<IPersonAttributes>> load : batchLoads.values()) {
+                load.setException(e);
+            }
+            throw e;
+        }
+        catch (Error e) {
+            for (final SettableFutureTask<Set<IPersonAttributes>> load : batchLoads.values()) {
+                load.setException(e);
+            }
+            throw e;
+        }
+        finally {
+            for (final Map.Entry<Serializable, SettableFutureTask<Set<IPersonAttributes>>> loadEntry : batchLoads.entrySet()) {
+                this.inFlightLoads.remove(loadEntry.getKey(), loadEntry.getValue());
+            }
+        }
+        
+        //The joined loads are waited on after the batch loads completed so two batches can't wait on each other
+        for (final Map.Entry<String, SettableFutureTask<Set<IPersonAttributes>>> joinedEntry : joinedLoads.entrySet()) {
+            final String uid = joinedEntry.getKey();
+            final Map<String, List<Object>> seed = this.toSeedMap(uid);
+            final Set<IPersonAttributes> joinedResults = this.awaitInFlightLoad(joinedEntry.getValue(), seed, this.getCacheKey(seed));
+            final IPersonAttributes person = toPerson(uid, joinedResults);
+            if (person != null) {
+                cachedPeople.put(uid, person);
+            }
+        }
+        
+        //Return the people in the order of the uids
+        final Map<String, IPersonAttributes> people = new LinkedHashMap<String, IPersonAttributes>(uids.size());
+        for (final String uid : uids) {
+            IPersonAttributes person = cachedPeople.get(uid);
+            if (person == null) {
+                person = queriedPeople.get(uid);
+            }
+            if (person != null) {
+                people.put(uid, person);
+            }
+        }
+        
+        return people;
+    }
+    
+    /* (non-Javadoc)
+     * @see org.jasig.services.persondir.IAsyncPersonAttributeDao#getPersonAsync(java.lang.String)
+     */
+    public IListenableFuture<IPersonAttributes> getPersonAsync(String uid) {
+        Validate.notNull(uid, "uid may not be null.");
+        
+        return toPersonFuture(uid, this.getPeopleWithMultivaluedAttributesAsync(this.toSeedMap(uid)));
+    }
+    
+    /**
+     * Returns a completed future on a cache hit. On a cache miss the cachedPersonAttributesDao is queried
+     * asynchronously, natively if it implements {@link IAsyncPersonAttributeDao} and on the calling thread if not,
+     * and the results are stored in the cache before the returned future completes.
+     * 
+     * @see org.jasig.services.persondir.IAsyncPersonAttributeDao#getPeopleWithMultivaluedAttributesAsync(java.util.Map)
+     */
+    public IListenableFuture<Set<IPersonAttributes>> getPeopleWithMultivaluedAttributesAsync(Map<String, List<Object>> seed) {
+        this.recordQuery();
+        
+        //Get the cache key
+        final Serializable cacheKey = this.getCacheKey(seed);
+
+        if (cacheKey != null) {
+            final Set<IPersonAttributes> cacheResults = this.getCachedResults(cacheKey, seed);
+            if (cacheResults != null) {
+                //If the returned object is the null results object, set the cache results to null
+                return SettableFutureTask.immediate(this.nullResultsObject.equals(cacheResults) ? null : cacheResults);
+            }
+            
+            if (this.coalesceMisses) {
+                return this.loadResultsCoalescedAsync(seed, cacheKey);
+            }
+        }
+        
+        return this.loadResultsAsync(seed, cacheKey);
+    }
+    
+    /**
+     * Runs {@link #loadResultsAsync(Map, Serializable)} unless a load of the same key is already in progress. Each
+     * caller gets its own future so cancelling it does not affect the other callers or the shared load.
+     */
+    private IListenableFuture<Set<IPersonAttributes>> loadResultsCoalescedAsync(Map<String, List<Object>> seed, final Serializable cacheKey) {
+        final SettableFutureTask<Set<IPersonAttributes>> load = new SettableFutureTask<Set<IPersonAttributes>>();
+        SettableFutureTask<Set<IPersonAttributes>> inFlightLoad = this.inFlightLoads.putIfAbsent(cacheKey, load);
+        if (inFlightLoad == null) {
+            final IListenableFuture<Set<IPersonAttributes>> loadFuture = this.loadResultsAsync(seed, cacheKey);
+            loadFuture.addListener(new Runnable() {
+                public void run() {
+                    inFlightLoads.remove(cacheKey, load);
+                    load.setFrom(loadFuture);
+                }
+            }, SettableFutureTask.DIRECT_EXECUTOR);
+            inFlightLoad = load;
+        }
+        else {
+            this.recordMiss();
+        }
+        
+        final SettableFutureTask<Set<IPersonAttributes>> result = new SettableFutureTask<Set<IPersonAttributes>>();
+        final SettableFutureTask<Set<IPersonAttributes>> sharedLoad = inFlightLoad;
+        sharedLoad.addListener(new Runnable() {
+            public void run() {
+                result.setFrom(sharedLoad);
+            }
+        }, SettableFutureTask.DIRECT_EXECUTOR);
+        
+        return result;
+    }
+    
+    /**
+     * Queries the cachedPersonAttributesDao asynchronously and stores the results in the cache before the returned
+     * future completes.
+     */
+    private IListenableFuture<Set<IPersonAttributes>> loadResultsAsync(Map<String, List<Object>> seed, final Serializable cacheKey) {
+        final IAsyncPersonAttributeDao asyncPersonAttributeDao = AsyncPersonAttributeDaoAdapter.toAsync(this.cachedPersonAttributesDao, this.executor);
+        final String username = this.getUsernameAttributeProvider().getUsernameFromQuery(seed);
+        final long start = System.nanoTime();
+        final IListenableFuture<Set<IPersonAttributes>> queryFuture = asyncPersonAttributeDao.getPeopleWithMultivaluedAttributesAsync(seed);
+        final SettableFutureTask<Set<IPersonAttributes>> result = new SettableFutureTask<Set<IPersonAttributes>>();
+        queryFuture.addListener(new Runnable() {
+            public void run() {
+                if (queryFuture.isCancelled()) {
+                    result.cancel(false);
+                    return;
+                }
+                
+                final Set<IPersonAttributes> queryResults;
+                try {
+                    queryResults = SettableFutureTask.getDoneResult(queryFuture);
+                }
+                catch (Throwable t) {
+                    recordLoad(System.nanoTime() - start, true);
+                    result.setException(t);
+                    return;
+                }
+                recordLoad(System.nanoTime() - start, false);
+                
+                try {
+                    storeResults(cacheKey, username, queryResults);
+                    result.set(queryResults);
+                }
+                catch (Throwable t) {
+                    result.setException(t);
+                }
+            }
+        }, SettableFutureTask.DIRECT_EXECUTOR);
+        result.addListener(new Runnable() {
+            public void run() {
+                if (result.isCancelled()) {
+                    queryFuture.cancel(true);
+                }
+            }
+        }, SettableFutureTask.DIRECT_EXECUTOR);
+        
+        return result;
+    }
+    
+    /**
+     * Ensures the arguments and state are valid and generates the cache key for the seed.
+     */
+    private Serializable getCacheKey(Map<String, List<Object>> seed) {
+        //Ensure the arguments and state are valid
+        if (seed == null) {
+            throw new IllegalArgumentException("The query seed Map cannot be null.");
+        }
+        
+        if (this.cachedPersonAttributesDao == null) {
+            throw new IllegalStateException("No 'cachedPersonAttributesDao' has been specified.");
+        }
+        if (this.userInfoCache == null) {
+            throw new IllegalStateException("No 'userInfoCache' has been specified.");
+        }
+        
+        final MethodInvocation methodInvocation = new PersonAttributeDaoMethodInvocation(seed);
+        return this.cacheKeyGenerator.generateKey(methodInvocation);
+    }
+    
+    /**
+     * Starts a background refresh of stale results and treats expired results as a miss.
+     * 
+     * @return The cached results, the nullResultsObject for a cached null result or null on a cache miss
+     */
+    private Set<IPersonAttributes> getCachedResults(Serializable cacheKey, Map<String, List<Object>> seed) {
+        Set<IPersonAttributes> cacheResults = this.userInfoCache.get(cacheKey);
+        if (cacheResults == null && this.negativeResultCache != null && this.negativeResultCache.get(cacheKey) != null) {
+            cacheResults = this.nullResultsObject;
+        }
+        if (cacheResults instanceof TimestampedResults) {
+            final TimestampedResults timestampedResults = (TimestampedResults) cacheResults;
+            cacheResults = timestampedResults.getResults();
+            
+            final long age = this.currentTimeMillis() - timestampedResults.getLoaded();
+            if (this.expireAfter > 0 && age >= this.expireAfter) {
+                if (logger.isDebugEnabled()) {
+                    logger.debug("Ignoring expired query in cache for " + beanName + ". key='" + cacheKey + "', age=" + age + "ms");
+                }
+                this.recordExpiration();
+                return null;
+            }
+            if (this.refreshAfter > 0 && age >= this.refreshAfter) {
+                this.refreshResults(cacheKey, seed);
+            }
+        }
+        
+        if (cacheResults != null) {
+            if (logger.isDebugEnabled()) {
+                logger.debug("Retrieved query from cache for " + beanName + ". key='" + cacheKey + "', results='" + cacheResults + "'");
+            }
+            
+            final boolean nullResult = this.nullResultsObject.equals(cacheResults);
+            this.statistics.recordHit(this.beanName, nullResult);
+            if (this.metricsRecorder != null) {
+                this.metricsRecorder.recordHit(this.beanName, nullResult);
+            }
+            this.logStatistics();
+        }
+        
+        return cacheResults;
+    }
+    
+    /**
+     * Stores the results of querying the cachedPersonAttributesDao in the cache.
+     */
+    private void storeResults(Serializable cacheKey, String username, Set<IPersonAttributes> queryResults) {
+        if (cacheKey != null) {
+            this.putResults(cacheKey, username, queryResults);
+            
+            if (logger.isDebugEnabled()) {
+                logger.debug("Retrieved query from wrapped IPersonAttributeDao and stored in cache for " + beanName + ". key='" + cacheKey + "', results='" + queryResults + "'");
+            }
+            
+            this.recordMiss();
+        }
+    }
+    
+    /**
+     * Puts the results in the cache, with the time they were loaded if refreshAfter or expireAfter is set. A null
+     * result is stored in the negativeResultCache if there is one, otherwise it is stored as the nullResultsObject if
+     * cacheNullResults is set and removes the key if not. The key is added to the usernameIndex for the username
+     * and the names of the people in the results.
+     */
+    private void putResults(Serializable cacheKey, String username, Set<IPersonAttributes> queryResults) {
+        if (this.negativeResultCache != null) {
+            if (queryResults == null) {
+                this.userInfoCache.remove(cacheKey);
+                this.negativeResultCache.put(cacheKey, Boolean.TRUE);
+                this.indexResults(cacheKey, username, null);
+                return;
+            }
+            this.negativeResultCache.remove(cacheKey);
+        }
+        
+        Set<IPersonAttributes> cacheResults = queryResults;
+        if (cacheResults == null) {
+            if (!this.cacheNullResults) {
+                this.userInfoCache.remove(cacheKey);
+                return;
+            }
+            cacheResults = this.nullResultsObject;
+        }
+        else if (this.compactCachedResults) {
+            cacheResults = compact(cacheResults);
+        }
+        
+        if (this.refreshAfter > 0 || this.expireAfter > 0) {
+            cacheResults = new TimestampedResults(cacheResults, this.currentTimeMillis());
+        }
+        this.userInfoCache.put(cacheKey, cacheResults);
+        this.indexResults(cacheKey, username, queryResults);
+    }
+    
+    /**
+     * The current time in milliseconds used for refreshAfter, expireAfter and snapshot expiration times, exists so
+     * tests can control time.
+     */
+    protected long currentTimeMillis() {
+        return System.currentTimeMillis();
+    }
+    
+    /**
+     * @return A set of {@link CompactPersonImpl} copies of the people
+     */
+    private static Set<IPersonAttributes> compact(Set<IPersonAttributes> people) {
+        if (people.size() == 1) {
+            return Collections.singleton((IPersonAttributes) CompactPersonImpl.compact(people.iterator().next()));
+        }
+        
+        final Set<IPersonAttributes> compactPeople = new LinkedHashSet<IPersonAttributes>(people.size() * 4 / 3 + 1);
+        for (final IPersonAttributes person : people) {
+            compactPeople.add(CompactPersonImpl.compact(person));
+        }
+        return compactPeople;
+    }
+    
+    /**
+     * Adds the key to the usernameIndex for the username and the names of the people in the results, both may be
+     * null. Nothing is indexed if the cache key is generated from the username alone since removeUserAttributes
+     * generates the same key. Every put prunes a few entries of the index so the cost of pruning is spread over the
+     * puts.
+     */
+    private void indexResults(Serializable cacheKey, String username, Set<IPersonAttributes> results) {
+        if (!this.isUsernameIndexed()) {
+            return;
+        }
+        
+        if (username != null) {
+            this.indexKey(username, cacheKey);
+        }
+        if (results != null && !this.nullResultsObject.equals(results)) {
+            for (final IPersonAttributes person : results) {
+                final String name = person.getName();
+                if (name != null && !name.equals(username)) {
+                    this.indexKey(name, cacheKey);
+                }
+            }
+        }
+        
+        if (this.pruningUsernameIndex.compareAndSet(false, true)) {
+            try {
+                this.pruneUsernameIndex(USERNAME_INDEX_PRUNE_STEP);
+            }
+            finally {
+                this.pruningUsernameIndex.set(false);
+            }
+        }
+    }
+    
+    /**
+     * @return false if the cache keys are generated from the username attribute alone
+     */
+    private boolean isUsernameIndexed() {
+        if (!(this.cacheKeyGenerator instanceof AttributeBasedCacheKeyGenerator)) {
+            return true;
+        }
+        
+        final AttributeBasedCacheKeyGenerator attributeKeyGenerator = (AttributeBasedCacheKeyGenerator) this.cacheKeyGenerator;
+        if (attributeKeyGenerator.isUseAllAttributes()) {
+            return true;
+        }
+        
+        final String usernameAttribute = this.getUsernameAttributeProvider().getUsernameAttribute();
+        final Set<String> cacheKeyAttributes = attributeKeyGenerator.getCacheKeyAttributes();
+        if (cacheKeyAttributes == null) {
+            return !usernameAttribute.equals(attributeKeyGenerator.getDefaultAttributeName());
+        }
+        return cacheKeyAttributes.size() != 1 || !cacheKeyAttributes.contains(usernameAttribute);
+    }
+    
+    private void indexKey(String username, Serializable cacheKey) {
+        while (true) {
+            Set<Serializable> cacheKeys = this.usernameIndex.get(username);
+            if (cacheKeys == null) {
+                cacheKeys = Collections.newSetFromMap(new ConcurrentHashMap<Serializable, Boolean>(4));
+                final Set<Serializable> existingKeys = this.usernameIndex.putIfAbsent(username, cacheKeys);
+                if (existingKeys != null) {
+                    cacheKeys = existingKeys;
+                }
+            }
+            cacheKeys.add(cacheKey);
+            
+            //Retry if the set was pruned from the index while the key was being added
+            if (this.usernameIndex.get(username) == cacheKeys) {
+                return;
+            }
+        }
+    }
+    
+    /**
+     * Removes keys that were evicted from or expired in the caches from the next entries of the usernameIndex,
+     * continuing from where the previous call stopped. Must only be called while pruningUsernameIndex is held.
+     */
+    private void pruneUsernameIndex(int entries) {
+        Iterator<Map.Entry<String, Set<Serializable>>> indexItr = this.usernameIndexPruneIterator;
+        for (int pruned = 0; pruned < entries; pruned++) {
+            if (indexItr == null || !indexItr.hasNext()) {
+                //Start over at most once per call so a small index isn't scanned repeatedly
+                if (pruned > 0) {
+                    indexItr = null;
+                    break;
+                }
+                indexItr = this.usernameIndex.entrySet().iterator();
+                if (!indexItr.hasNext()) {
+                    break;
+                }
+            }
+            
+            final Map.Entry<String, Set<Serializable>> indexEntry = indexItr.next();
+            final Set<Serializable> cacheKeys = indexEntry.getValue();
+            for (final Iterator<Serializable> cacheKeyItr = cacheKeys.iterator(); cacheKeyItr.hasNext(); ) {
+                final Serializable cacheKey = cacheKeyItr.next();
+                if (!this.userInfoCache.containsKey(cacheKey) && (this.negativeResultCache == null || !this.negativeResultCache.containsKey(cacheKey))) {
+                    cacheKeyItr.remove();
+                }
+            }
+            if (cacheKeys.isEmpty()) {
+                this.usernameIndex.remove(indexEntry.getKey(), cacheKeys);
+            }
+        }
+        this.usernameIndexPruneIterator = indexItr;
+    }
+    
+    /**
+     * Queues a reload of the key on the refreshExecutor unless one is already queued or running.
+     */
+    private void refreshResults(final Serializable cacheKey, Map<String, List<Object>> seed) {
+        final Executor refreshExecutor = this.refreshExecutor;
+        if (refreshExecutor == null || this.refreshingKeys.putIfAbsent(cacheKey, Boolean.TRUE) != null) {
+            return;
+        }
+        
+        final Map<String, List<Object>> refreshSeed = new LinkedHashMap<String, List<Object>>(seed);
+        try {
+            refreshExecutor.execute(new Runnable() {
+                public void run() {
+                    try {
+                        reloadResults(cacheKey, refreshSeed);
+                    }
+                    finally {
+                        refreshingKeys.remove(cacheKey);
+                    }
+                }
+            });
+        }
+        catch (RejectedExecutionException e) {
+            this.refreshingKeys.remove(cacheKey);
+            if (logger.isDebugEnabled()) {
+                logger.debug("Refresh of stale query rejected for " + beanName + ". key='" + cacheKey + "'");
+            }
+        }
+    }
+    
+    /**
+     * Queries the cachedPersonAttributesDao and replaces the cached results, on failure the stale results are kept.
+     * If coalesceMisses is set the reload is registered as the in-flight load of the key so misses of the key wait
+     * for it, and no reload is done if a load of the key is already in progress.
+     */
+    private void reloadResults(Serializable cacheKey, Map<String, List<Object>> seed) {
+        final SettableFutureTask<Set<IPersonAttributes>> load = new SettableFutureTask<Set<IPersonAttributes>>();
+        if (this.coalesceMisses && this.inFlightLoads.putIfAbsent(cacheKey, load) != null) {
+            if (logger.isDebugEnabled()) {
+                logger.debug("Not refreshing stale query for " + beanName + ", it is already being loaded. key='" + cacheKey + "'");
+            }
+            return;
+        }
+        
+        try {
+            final Set<IPersonAttributes> queryResults;
+            final long start = System.nanoTime();
+            try {
+                queryResults = this.cachedPersonAttributesDao.getPeopleWithMultivaluedAttributes(seed);
+            }
+            catch (RuntimeException e) {
+                this.recordLoad(System.nanoTime() - start, true);
+                logger.warn("Failed to refresh stale query for " + beanName + ". key='" + cacheKey + "', the stale results will be kept", e);
+                load.setException(e);
+                return;
+            }
+            this.recordLoad(System.nanoTime() - start, false);
+            
+            this.putResults(cacheKey, this.getUsernameAttributeProvider().getUsernameFromQuery(seed), queryResults);
+            load.set(queryResults);
+            
+            if (logger.isDebugEnabled()) {
+                logger.debug("Refreshed stale query from wrapped IPersonAttributeDao for " + beanName + ". key='" + cacheKey + "', results='" + queryResults + "'");
+            }
+        }
+        catch (RuntimeException e) {
+            load.setException(e);
+            throw e;
+        }
+        catch (Error e) {
+            load.setException(e);
+            throw e;
+        }
+        finally {
+            this.inFlightLoads.remove(cacheKey, load);
+        }
+    }
+    
+    private void recordQuery() {
+        this.statistics.recordQuery(this.beanName);
+        if (this.metricsRecorder != null) {
+            this.metricsRecorder.recordQuery(this.beanName);
+        }
+    }
+    
+    private void recordMiss() {
+        this.statistics.recordMiss(this.beanName);
+        if (this.metricsRecorder != null) {
+            this.metricsRecorder.recordMiss(this.beanName);
+        }
+        this.logStatistics();
+    }
+    
+    private void recordLoad(long loadNanos, boolean failed) {
+        this.statistics.recordLoad(this.beanName, loadNanos, failed);
+        if (this.metricsRecorder != null) {
+            this.metricsRecorder.recordLoad(this.beanName, loadNanos, failed);
+        }
+    }
+    
+    private void recordEviction() {
+        this.statistics.recordEviction(this.beanName);
+        if (this.metricsRecorder != null) {
+            this.metricsRecorder.recordEviction(this.beanName);
+        }
+    }
+    
+    private void recordExpiration() {
+        this.statistics.recordExpiration(this.beanName);
+        if (this.metricsRecorder != null) {
+            this.metricsRecorder.recordExpiration(this.beanName);
+        }
+    }
+    
+    private void recordRejection() {
+        this.statistics.recordRejection(this.beanName);
+        if (this.metricsRecorder != null) {
+            this.metricsRecorder.recordRejection(this.beanName);
+        }
+    }
+    
+    /**
+     * Records the evictions, expirations and rejections of the userInfoCache if it reports them. For a TieredCache
+     * the second tier is used since it holds every entry.
+     */
+    @SuppressWarnings("unchecked")
+    private void registerRemovalListener() {
+        final IRemovalListener<Serializable, Set<IPersonAttributes>> removalListener = new IRemovalListener<Serializable, Set<IPersonAttributes>>() {
+            public void onEviction(Serializable key, Set<IPersonAttributes> value) {
+                recordEviction();
+            }
+            public void onExpiration(Serializable key, Set<IPersonAttributes> value) {
+                recordExpiration();
+            }
+            public void onRejection(Serializable key, Set<IPersonAttributes> value) {
+                recordRejection();
+            }
+        };
+        
+        Map<Serializable, Set<IPersonAttributes>> removingCache = this.userInfoCache;
+        if (removingCache instanceof TieredCache) {
+            removingCache = ((TieredCache<Serializable, Set<IPersonAttributes>>) removingCache).getSecondTier();
+        }
+        
+        if (removingCache instanceof BoundedConcurrentCache) {
+            ((BoundedConcurrentCache<Serializable, Set<IPersonAttributes>>) removingCache).setRemovalListener(removalListener);
+        }
+        else if (removingCache instanceof OffHeapCache) {
+            ((OffHeapCache<Serializable, Set<IPersonAttributes>>) removingCache).setRemovalListener(removalListener);
+        }
+    }
+    
+    /**
+     * @return The remaining time to live in milliseconds of the cached entry, 0 if it does not expire or the
+     * userInfoCache does not expire single entries and -1 if the key is not cached.
+     */
+    private long getRemainingTimeToLive(Serializable cacheKey) {
+        if (this.userInfoCache instanceof BoundedConcurrentCache) {
+            return ((BoundedConcurrentCache<?, ?>) this.userInfoCache).getRemainingTimeToLive(cacheKey, TimeUnit.MILLISECONDS);
+        }
+        if (this.userInfoCache instanceof TieredCache) {
+            return ((TieredCache<?, ?>) this.userInfoCache).getRemainingTimeToLive(cacheKey, TimeUnit.MILLISECONDS);
+        }
+        return 0;
+    }
+    
+    /**
+     * Stores the results in the userInfoCache with their own time to live.
+     * 
+     * @return false if the userInfoCache does not expire single entries, nothing is stored then
+     */
+    @SuppressWarnings("unchecked")
+    private boolean putWithTimeToLive(Serializable cacheKey, Set<IPersonAttributes> cacheResults, long timeToLive) {
+        if (this.userInfoCache instanceof BoundedConcurrentCache) {
+            ((BoundedConcurrentCache<Serializable, Set<IPersonAttributes>>) this.userInfoCache).put(cacheKey, cacheResults, timeToLive, TimeUnit.MILLISECONDS);
+            return true;
+        }
+        if (this.userInfoCache instanceof TieredCache) {
+            ((TieredCache<Serializable, Set<IPersonAttributes>>) this.userInfoCache).put(cacheKey, cacheResults, timeToLive, TimeUnit.MILLISECONDS);
+            return true;
+        }
+        return false;
+    }
+    
+    /**
+     * Starts the background load of the snapshotFile and the scheduled snapshot writes.
+     */
+    private void startSnapshots() {
+        final String threadName = "CachingPersonAttributeDao-snapshot-" + (this.beanName != null ? this.beanName : System.identityHashCode(this));
+        final ScheduledThreadPoolExecutor snapshotScheduler = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                final Thread thread = new Thread(r, threadName);
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        this.snapshotScheduler = snapshotScheduler;
+        
+        snapshotScheduler.execute(new Runnable() {
+            public void run() {
+                try {
+                    loadSnapshot();
+                }
+                catch (Exception e) {
+                    logger.warn("Failed to load cache snapshot for " + beanName + " from " + snapshotFile.getFile() + ", starting with an empty cache", e);
+                }
+            }
+        });
+        
+        if (this.snapshotInterval > 0) {
+            snapshotScheduler.scheduleWithFixedDelay(new Runnable() {
+                public void run() {
+                    try {
+                        writeSnapshot();
+                    }
+                    catch (Exception e) {
+                        logger.warn("Failed to write cache snapshot for " + beanName + " to " + snapshotFile.getFile(), e);
+                    }
+                }
+            }, this.snapshotInterval, this.snapshotInterval, TimeUnit.MILLISECONDS);
+        }
+    }
+    
+    private void logStatistics() {
+        if (statsLogger.isDebugEnabled()) {
+            statsLogger.debug("Cache Stats " + beanName + ": " + this.statistics);
+        }
+    }
+    
+    public void removeUserAttributes(String uid) {
+        Validate.notNull(uid, "uid may not be null.");
+        final Map<String, List<Object>> seed = this.toSeedMap(uid);
+        this.removeUserAttributesMultivaluedSeed(seed);
+    }
+    
+    public void removeUserAttributes(Map<String, Object> seed) {
+        final Map<String, List<Object>> multiSeed = MultivaluedPersonAttributeUtils.toMultivaluedMap(seed);
+        this.removeUserAttributesMultivaluedSeed(multiSeed);
+    }
+    
+    /**
+     * Removes the results cached for the seed and every result cached for the username in the seed, including results
+     * cached under keys generated from other attributes.
+     */
+    public void removeUserAttributesMultivaluedSeed(Map<String, List<Object>> seed) {
+        final MethodInvocation methodInvocation = new PersonAttributeDaoMethodInvocation(seed);
+        final Serializable cacheKey = this.cacheKeyGenerator.generateKey(methodInvocation);
+        this.removeCacheKey(cacheKey);
+        
+        final String username = this.getUsernameAttributeProvider().getUsernameFromQuery(seed);
+        if (username != null) {
+            final Set<Serializable> cacheKeys = this.usernameIndex.remove(username);
+            if (cacheKeys != null) {
+                for (final Serializable indexedKey : cacheKeys) {
+                    this.removeCacheKey(indexedKey);
+                }
+            }
+        }
+    }
+    
+    private void removeCacheKey(Serializable cacheKey) {
+        if (cacheKey == null) {
+            return;
+        }
+        if (this.negativeResultCache != null) {
+            this.negativeResultCache.remove(cacheKey);
+        }
+        if (this.userInfoCache.remove(cacheKey) != null) {
+            this.statistics.recordInvalidation(this.beanName);
+            if (this.metricsRecorder != null) {
+                this.metricsRecorder.recordInvalidation(this.beanName);
+            }
+        }
+    }
+
+    /* (non-Javadoc)
      * @see org.jasig.services.persondir.IPersonAttributeDao#getPossibleUserAttributeNames()
      */
     public Set<String> getPossibleUserAttributeNames() {
@@ -444,6 +1953,46 @@ public class CachingPersonAttributeDaoImpl extends AbstractDefaultAttributePerso
         }
     }
     
+    /**
+     * Cached results along with the time they were loaded, used when refreshAfter or expireAfter is set. Extends
+     * Set so it can be stored in the userInfoCache.
+     */
+    private static final class TimestampedResults extends AbstractSet<IPersonAttributes> implements Serializable {
+        private static final long serialVersionUID = 1L;
+        
+        private final Set<IPersonAttributes> results;
+        private final long loaded;
+        
+        public TimestampedResults(Set<IPersonAttributes> results, long loaded) {
+            this.results = results;
+            this.loaded = loaded;
+        }
+        
+        public Set<IPersonAttributes> getResults() {
+            return this.results;
+        }
+        
+        public long getLoaded() {
+            return this.loaded;
+        }
+
+        /* (non-Javadoc)
+         * @see java.util.AbstractCollection#iterator()
+         */
+        @Override
+        public Iterator<IPersonAttributes> iterator() {
+            return Collections.unmodifiableSet(this.results).iterator();
+        }
+
+        /* (non-Javadoc)
+         * @see java.util.AbstractCollection#size()
+         */
+        @Override
+        public int size() {
+            return this.results.size();
+        }
+    }
+    
     private static final class SingletonPersonImpl extends BasePersonImpl {
         private static final long serialVersionUID = 1L;
 
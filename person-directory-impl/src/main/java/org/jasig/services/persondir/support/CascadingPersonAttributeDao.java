@@ -19,12 +19,17 @@
 
 package org.jasig.services.persondir.support;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
+import org.jasig.services.persondir.IListenableFuture;
 import org.jasig.services.persondir.IPersonAttributes;
 import org.jasig.services.persondir.IPersonAttributeDao;
 import org.jasig.services.persondir.support.merger.ReplacingAttributeAdder;
@@ -62,6 +67,17 @@ import org.jasig.services.persondir.support.merger.ReplacingAttributeAdder;
  * It is <u>highly</u> recommended that the first DAO on the list for this class is
  * the {@link org.jasig.services.persondir.support.EchoPersonAttributeDaoImpl}
  * to ensure the seed gets placed into the general result map.
+ * <br/>
+ * If <code>batchQueries</code>=true, <code>batchKeyAttribute</code> is set and the general result set contains more
+ * than one person, each subsequent DAO is queried once with a seed holding only the <code>batchKeyAttribute</code>
+ * values of all the people in the result set instead of once per person. The returned people are matched back to the
+ * people in the general result set by their <code>batchKeyAttribute</code> values, so the subsequent DAOs have to
+ * return that attribute. Returned people that can not be matched to exactly one person in the general result set are
+ * ignored. People in the general result set that have no value, or share a value with another person, for the
+ * <code>batchKeyAttribute</code> are still queried one at a time. If a subsequent DAO returns people without a name,
+ * which are all equal to each other, the people that could not be matched are queried one at a time as well. This
+ * requires the subsequent DAOs to support multi-valued (OR) queries on the <code>batchKeyAttribute</code> and works
+ * best for DAOs that name the returned people after the <code>batchKeyAttribute</code>.
  * 
  * @author Eric Dalquist
  * @version $Revision$ $Date$
@@ -80,10 +96,62 @@ public class CascadingPersonAttributeDao extends AbstractAggregatingDefaultQuery
         this.stopIfFirstDaoReturnsNull = stopIfFirstDaoReturnsNull;
     }
 
+    /**
+     * Set to true to query each child DAO once for all people in the result set instead of once per person.
+     * Default: false
+     */
+    private boolean batchQueries = false;
+
+    /**
+     * Attribute, returned by the subsequent DAOs, used to query for and match back the people of a batched query.
+     */
+    private String batchKeyAttribute = null;
+
+    /**
+     * If true, {@link #setBatchKeyAttribute(String)} is set and the result set after the first query contains more
+     * than one person each subsequent DAO is queried once with a single multi-valued seed containing the
+     * batchKeyAttribute values of all the people. The returned people are matched back to the result set by their
+     * batchKeyAttribute values. If false, the default, each subsequent DAO is queried once per person.
+     */
+    public void setBatchQueries(boolean batchQueries) {
+        this.batchQueries = batchQueries;
+    }
+    
+    public boolean isBatchQueries() {
+        return this.batchQueries;
+    }
+
+    /**
+     * The attribute used to batch queries, it must uniquely identify a person and be returned by each subsequent DAO.
+     * The people returned by a batched query are matched back to the result set using it, the names of the returned
+     * people are not used since a DAO may name all the people returned for a multi-valued query after the first
+     * username in the seed. Queries are not batched if this is not set.
+     * 
+     * @param batchKeyAttribute the batchKeyAttribute to set
+     */
+    public void setBatchKeyAttribute(String batchKeyAttribute) {
+        this.batchKeyAttribute = batchKeyAttribute;
+    }
+    
+    public String getBatchKeyAttribute() {
+        return this.batchKeyAttribute;
+    }
+
     public CascadingPersonAttributeDao() {
         this.attrMerger = new ReplacingAttributeAdder();
     }
     
+    /**
+     * The results of each child DAO are used to query the next, so the query attributes of all child DAOs are
+     * requested as well.
+     * 
+     * @see org.jasig.services.persondir.support.AbstractAggregatingDefaultQueryPersonAttributeDao#getChildRequestedAttributes(java.util.Set)
+     */
+    @Override
+    protected Set<String> getChildRequestedAttributes(Set<String> requestedAttributes) {
+        return this.addChildQueryAttributes(requestedAttributes);
+    }
+    
     
 
     /**
@@ -96,13 +164,34 @@ public class CascadingPersonAttributeDao extends AbstractAggregatingDefaultQuery
      */
     @Override
     protected Set<IPersonAttributes> getAttributesFromDao(Map<String, List<Object>> seed, boolean isFirstQuery, IPersonAttributeDao currentlyConsidering, Set<IPersonAttributes> resultPeople) {
+        return this.getAttributesFromDao(seed, isFirstQuery, currentlyConsidering, resultPeople, null);
+    }
+    
+    /**
+     * Same as {@link #getAttributesFromDao(Map, boolean, IPersonAttributeDao, Set)}, only asking the child DAO for the
+     * requested attributes.
+     * 
+     * @see org.jasig.services.persondir.support.AbstractAggregatingDefaultQueryPersonAttributeDao#getAttributesFromDao(java.util.Map, boolean, org.jasig.services.persondir.IPersonAttributeDao, java.util.Set, java.util.Set)
+     */
+    @Override
+    protected Set<IPersonAttributes> getAttributesFromDao(Map<String, List<Object>> seed, boolean isFirstQuery, IPersonAttributeDao currentlyConsidering, Set<IPersonAttributes> resultPeople, Set<String> requestedAttributes) {
         if (isFirstQuery || (!stopIfFirstDaoReturnsNull && (resultPeople == null || resultPeople.size() == 0))) {
-            return currentlyConsidering.getPeopleWithMultivaluedAttributes(seed);
+            return this.getPeopleFromDao(currentlyConsidering, seed, requestedAttributes);
         } else if (stopIfFirstDaoReturnsNull && !isFirstQuery && (resultPeople == null || resultPeople.size() == 0)) {
             return null;
         }
         
-        Set<IPersonAttributes> mergedPeopleResults = null;
+        if (this.batchQueries && this.batchKeyAttribute != null && resultPeople.size() > 1) {
+            return this.getBatchedAttributesFromDao(currentlyConsidering, resultPeople, requestedAttributes);
+        }
+        
+        return this.getPerPersonAttributesFromDao(currentlyConsidering, resultPeople, requestedAttributes, null);
+    }
+    
+    /**
+     * Queries the current DAO once for each person, merging the results into mergedPeopleResults.
+     */
+    private Set<IPersonAttributes> getPerPersonAttributesFromDao(IPersonAttributeDao currentlyConsidering, Collection<IPersonAttributes> resultPeople, Set<String> requestedAttributes, Set<IPersonAttributes> mergedPeopleResults) {
         for (final IPersonAttributes person : resultPeople) {
             final Map<String, List<Object>> queryAttributes = new LinkedHashMap<String, List<Object>>();
             
@@ -117,7 +206,7 @@ public class CascadingPersonAttributeDao extends AbstractAggregatingDefaultQuery
             final Map<String, List<Object>> personAttributes = person.getAttributes();
             queryAttributes.putAll(personAttributes);
             
-            final Set<IPersonAttributes> newResults = currentlyConsidering.getPeopleWithMultivaluedAttributes(queryAttributes);
+            final Set<IPersonAttributes> newResults = this.getPeopleFromDao(currentlyConsidering, queryAttributes, requestedAttributes);
             if (newResults != null) {
                 if (mergedPeopleResults == null) {
                     //If this is the first valid result set just use it.
@@ -132,4 +221,141 @@ public class CascadingPersonAttributeDao extends AbstractAggregatingDefaultQuery
         
         return mergedPeopleResults;
     }
-}
\ No newline at end of file
+    
+    /**
+     * Queries the current DAO natively, if it is asynchronous, when the seed is used for the query. Queries built
+     * from the resultPeople Set are run by {@link #getAttributesFromDao(Map, boolean, IPersonAttributeDao, Set)}.
+     * 
+     * @see org.jasig.services.persondir.support.AbstractAggregatingDefaultQueryPersonAttributeDao#getAttributesFromDaoAsync(java.util.Map, boolean, org.jasig.services.persondir.IPersonAttributeDao, java.util.Set)
+     */
+    @Override
+    protected IListenableFuture<Set<IPersonAttributes>> getAttributesFromDaoAsync(Map<String, List<Object>> seed, boolean isFirstQuery, IPersonAttributeDao currentlyConsidering, Set<IPersonAttributes> resultPeople) {
+        if (isFirstQuery || (!stopIfFirstDaoReturnsNull && (resultPeople == null || resultPeople.size() == 0))) {
+            return this.getPeopleFromDaoAsync(currentlyConsidering, seed);
+        } else if (stopIfFirstDaoReturnsNull && !isFirstQuery && (resultPeople == null || resultPeople.size() == 0)) {
+            return SettableFutureTask.immediate(null);
+        }
+        
+        return super.getAttributesFromDaoAsync(seed, isFirstQuery, currentlyConsidering, resultPeople);
+    }
+    
+    /**
+     * Queries the current DAO once using a seed containing the batchKeyAttribute values of all people in the
+     * resultPeople Set. Each returned person is matched to the person in the resultPeople Set with the same
+     * batchKeyAttribute value and named after it, returned people that do not match exactly one person are ignored.
+     * People without a unique batchKeyAttribute value are queried one at a time, as are people that were not matched
+     * if the DAO returned unnamed people.
+     */
+    protected Set<IPersonAttributes> getBatchedAttributesFromDao(IPersonAttributeDao currentlyConsidering, Set<IPersonAttributes> resultPeople, Set<String> requestedAttributes) {
+        final String keyAttribute = this.batchKeyAttribute;
+        
+        //Index the people by key value, people with no key or a key shared with another person can't be batched
+        final Map<Object, IPersonAttributes> keyedPeople = new LinkedHashMap<Object, IPersonAttributes>();
+        final Set<IPersonAttributes> unbatchedPeople = new LinkedHashSet<IPersonAttributes>();
+        for (final IPersonAttributes person : resultPeople) {
+            final List<Object> keyValues = person.getAttributeValues(keyAttribute);
+            if (person.getName() == null || keyValues == null || keyValues.isEmpty()) {
+                unbatchedPeople.add(person);
+                continue;
+            }
+            
+            boolean keyed = false;
+            for (final Object keyValue : keyValues) {
+                if (keyValue == null) {
+                    continue;
+                }
+                keyed = true;
+                final IPersonAttributes sharingPerson = keyedPeople.put(keyValue, person);
+                if (sharingPerson != null && sharingPerson != person) {
+                    unbatchedPeople.add(sharingPerson);
+                    unbatchedPeople.add(person);
+                }
+            }
+            if (!keyed) {
+                unbatchedPeople.add(person);
+            }
+        }
+        for (final Iterator<IPersonAttributes> keyedPeopleItr = keyedPeople.values().iterator(); keyedPeopleItr.hasNext();) {
+            if (unbatchedPeople.contains(keyedPeopleItr.next())) {
+                keyedPeopleItr.remove();
+            }
+        }
+        
+        Set<IPersonAttributes> mergedPeopleResults = null;
+        if (!keyedPeople.isEmpty()) {
+            final Map<String, List<Object>> queryAttributes = Collections.<String, List<Object>>singletonMap(keyAttribute, new ArrayList<Object>(keyedPeople.keySet()));
+            
+            //The key attribute is needed to match the results
+            Set<String> batchRequestedAttributes = requestedAttributes;
+            if (requestedAttributes != null && !requestedAttributes.contains(keyAttribute)) {
+                batchRequestedAttributes = new LinkedHashSet<String>(requestedAttributes);
+                batchRequestedAttributes.add(keyAttribute);
+            }
+            
+            final Set<IPersonAttributes> newResults = this.getPeopleFromDao(currentlyConsidering, queryAttributes, batchRequestedAttributes);
+            if (newResults != null) {
+                //Group the returned attributes by matched person with one lookup each, merging only rows for the same person
+                final Map<IPersonAttributes, Map<String, List<Object>>> matchedAttributes = new LinkedHashMap<IPersonAttributes, Map<String, List<Object>>>();
+                boolean unnamedResults = false;
+                for (final IPersonAttributes newPerson : newResults) {
+                    unnamedResults |= newPerson.getName() == null;
+                    
+                    final IPersonAttributes matchedPerson = this.matchBatchedPerson(newPerson, keyedPeople);
+                    if (matchedPerson == null) {
+                        if (this.logger.isDebugEnabled()) {
+                            this.logger.debug("Ignoring person '" + newPerson + "' returned by '" + currentlyConsidering + "', its " + keyAttribute + " does not match exactly one person in the result set");
+                        }
+                        continue;
+                    }
+                    
+                    final Map<String, List<Object>> attributes = matchedAttributes.get(matchedPerson);
+                    if (attributes == null) {
+                        matchedAttributes.put(matchedPerson, new LinkedHashMap<String, List<Object>>(newPerson.getAttributes()));
+                    }
+                    else {
+                        matchedAttributes.put(matchedPerson, this.attrMerger.mergeAttributes(attributes, newPerson.getAttributes()));
+                    }
+                }
+                
+                //Name each result after the matched person, the name the DAO chose may belong to another person
+                mergedPeopleResults = new LinkedHashSet<IPersonAttributes>();
+                for (final Map.Entry<IPersonAttributes, Map<String, List<Object>>> matchedEntry : matchedAttributes.entrySet()) {
+                    mergedPeopleResults.add(new NamedPersonImpl(matchedEntry.getKey().getName(), matchedEntry.getValue()));
+                }
+                
+                //People are equal by name, so a DAO that can't name its results returns at most one of them
+                if (unnamedResults) {
+                    for (final IPersonAttributes keyedPerson : keyedPeople.values()) {
+                        if (!matchedAttributes.containsKey(keyedPerson)) {
+                            unbatchedPeople.add(keyedPerson);
+                        }
+                    }
+                }
+            }
+        }
+        
+        return this.getPerPersonAttributesFromDao(currentlyConsidering, unbatchedPeople, requestedAttributes, mergedPeopleResults);
+    }
+    
+    /**
+     * @return The one person in keyedPeople with a key value returned for newPerson, null if there is not exactly one.
+     */
+    private IPersonAttributes matchBatchedPerson(IPersonAttributes newPerson, Map<Object, IPersonAttributes> keyedPeople) {
+        final List<Object> keyValues = newPerson.getAttributeValues(this.batchKeyAttribute);
+        if (keyValues == null) {
+            return null;
+        }
+        
+        IPersonAttributes matchedPerson = null;
+        for (final Object keyValue : keyValues) {
+            final IPersonAttributes keyedPerson = keyValue != null ? keyedPeople.get(keyValue) : null;
+            if (keyedPerson != null) {
+                if (matchedPerson != null && matchedPerson != keyedPerson) {
+                    return null;
+                }
+                matchedPerson = keyedPerson;
+            }
+        }
+        return matchedPerson;
+    }
+}
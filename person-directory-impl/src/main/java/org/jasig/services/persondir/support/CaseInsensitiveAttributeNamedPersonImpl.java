@@ -40,6 +40,10 @@ public class CaseInsensitiveAttributeNamedPersonImpl extends AttributeNamedPerso
         super(userNameAttribute, attributes);
     }
 
+    CaseInsensitiveAttributeNamedPersonImpl(String userNameAttribute, PersonBuilder builder) {
+        super(userNameAttribute, builder);
+    }
+    
     public CaseInsensitiveAttributeNamedPersonImpl(IPersonAttributes personAttributes) {
         super(personAttributes);
     }
@@ -34,6 +34,10 @@ public class CaseInsensitiveNamedPersonImpl extends NamedPersonImpl {
     public CaseInsensitiveNamedPersonImpl(String userName, Map<String, List<Object>> attributes) {
         super(userName, attributes);
     }
+    
+    CaseInsensitiveNamedPersonImpl(String userName, PersonBuilder builder) {
+        super(userName, builder);
+    }
 
     /* (non-Javadoc)
      * @see org.jasig.services.persondir.support.BasePersonImpl#createImmutableAttributeMap(int)
@@ -0,0 +1,454 @@
+/**
+ * Licensed to Jasig under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Jasig licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a
+ * copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.jasig.services.persondir.support;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.lang3.Validate;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.jasig.services.persondir.IPersonAttributeDao;
+import org.springframework.beans.factory.InitializingBean;
+
+/**
+ * Tracks the outcome of recent calls to each child {@link IPersonAttributeDao} of an
+ * {@link AbstractAggregatingDefaultQueryPersonAttributeDao} and stops calling children that are failing.
+ * <br>
+ * Each child has its own circuit which starts <b>CLOSED</b>. The outcome of the last <b>windowSize</b> calls is kept
+ * and once at least <b>minimumCalls</b> calls have been recorded the circuit is <b>OPEN</b>ed if the rate of failed
+ * calls reaches <b>failureRateThreshold</b> or the rate of slow calls reaches <b>slowCallRateThreshold</b>. While open
+ * the child is skipped without being called. After <b>probeInterval</b> the circuit becomes <b>HALF_OPEN</b> and a
+ * single probe call is let through, if it succeeds the circuit is closed, if it fails the circuit is opened again.
+ * <br>
+ * <br>
+ * Configuration:
+ * <table border="1">
+ *     <tr>
+ *         <th align="left">Property</th>
+ *         <th align="left">Description</th>
+ *         <th align="left">Required</th>
+ *         <th align="left">Default</th>
+ *     </tr>
+ *     <tr>
+ *         <td align="right" valign="top">failureRateThreshold</td>
+ *         <td>
+ *             The fraction of failed calls, between 0 and 1, at which the circuit opens.
+ *         </td>
+ *         <td valign="top">No</td>
+ *         <td valign="top">0.5</td>
+ *     </tr>
+ *     <tr>
+ *         <td align="right" valign="top">slowCallDuration</td>
+ *         <td>
+ *             Calls taking at least this many milliseconds are counted as slow. 0 disables slow call tracking.
+ *         </td>
+ *         <td valign="top">No</td>
+ *         <td valign="top">0</td>
+ *     </tr>
+ *     <tr>
+ *         <td align="right" valign="top">slowCallRateThreshold</td>
+ *         <td>
+ *             The fraction of slow calls, between 0 and 1, at which the circuit opens.
+ *         </td>
+ *         <td valign="top">No</td>
+ *         <td valign="top">1.0</td>
+ *     </tr>
+ *     <tr>
+ *         <td align="right" valign="top">windowSize</td>
+ *         <td>
+ *             The number of most recent calls the rates are computed over.
+ *         </td>
+ *         <td valign="top">No</td>
+ *         <td valign="top">20</td>
+ *     </tr>
+ *     <tr>
+ *         <td align="right" valign="top">minimumCalls</td>
+ *         <td>
+ *             The number of calls that must be recorded before the circuit can open, may not be larger than
+ *             <b>windowSize</b>.
+ *         </td>
+ *         <td valign="top">No</td>
+ *         <td valign="top">10</td>
+ *     </tr>
+ *     <tr>
+ *         <td align="right" valign="top">probeInterval</td>
+ *         <td>
+ *             The number of milliseconds an open circuit waits before letting a probe call through.
+ *         </td>
+ *         <td valign="top">No</td>
+ *         <td valign="top">30000</td>
+ *     </tr>
+ * </table>
+ *
+ * @author Eric Dalquist
+ * @version $Revision$
+ */
+public class CircuitBreaker implements InitializingBean {
+    public enum State {
+        CLOSED,
+        OPEN,
+        HALF_OPEN;
+    }
+
+    protected final Log logger = LogFactory.getLog(getClass());
+
+    private final ConcurrentMap<IPersonAttributeDao, Circuit> circuits = new ConcurrentHashMap<IPersonAttributeDao, Circuit>();
+    private final AtomicLong openedCount = new AtomicLong();
+    private final AtomicLong closedCount = new AtomicLong();
+    private final AtomicLong rejectedCount = new AtomicLong();
+
+    private double failureRateThreshold = 0.5;
+    private long slowCallDuration = 0;
+    private double slowCallRateThreshold = 1.0;
+    private int windowSize = 20;
+    private int minimumCalls = 10;
+    private long probeInterval = 30000;
+
+
+    /**
+     * @return true if a call to the DAO should be made, false if its circuit is open and the call should be skipped
+     */
+    public boolean allowRequest(IPersonAttributeDao dao) {
+        final boolean allowed = this.getCircuit(dao).allowRequest();
+        if (!allowed) {
+            this.rejectedCount.incrementAndGet();
+        }
+        return allowed;
+    }
+
+    /**
+     * Records a call to the DAO that returned normally.
+     *
+     * @param duration The duration of the call in nanoseconds
+     */
+    public void recordSuccess(IPersonAttributeDao dao, long duration) {
+        this.getCircuit(dao).record(false, duration);
+    }
+
+    /**
+     * Records a call to the DAO that threw an exception or did not return in time.
+     *
+     * @param duration The duration of the call in nanoseconds
+     */
+    public void recordFailure(IPersonAttributeDao dao, long duration) {
+        this.getCircuit(dao).record(true, duration);
+    }
+
+    /**
+     * Releases a request allowed by {@link #allowRequest(IPersonAttributeDao)} that was never made because the DAO
+     * was skipped. Nothing is recorded, a half-open circuit lets the next request through as its probe.
+     */
+    public void releaseRequest(IPersonAttributeDao dao) {
+        final Circuit circuit = this.circuits.get(dao);
+        if (circuit != null) {
+            circuit.release();
+        }
+    }
+
+    /**
+     * @return The current state of the circuit for the DAO
+     */
+    public State getState(IPersonAttributeDao dao) {
+        final Circuit circuit = this.circuits.get(dao);
+        if (circuit == null) {
+            return State.CLOSED;
+        }
+
+        return circuit.getState();
+    }
+
+    /**
+     * @return The number of times a circuit has transitioned to {@link State#OPEN}
+     */
+    public long getOpenedCount() {
+        return this.openedCount.get();
+    }
+
+    /**
+     * @return The number of times a circuit has transitioned from {@link State#HALF_OPEN} to {@link State#CLOSED}
+     */
+    public long getClosedCount() {
+        return this.closedCount.get();
+    }
+
+    /**
+     * @return The number of calls that were skipped because the circuit was open
+     */
+    public long getRejectedCount() {
+        return this.rejectedCount.get();
+    }
+
+    /**
+     * @return The number of circuits currently in {@link State#OPEN} or {@link State#HALF_OPEN}
+     */
+    public int getOpenCircuits() {
+        int open = 0;
+        for (final Circuit circuit : this.circuits.values()) {
+            if (circuit.getState() != State.CLOSED) {
+                open++;
+            }
+        }
+        return open;
+    }
+
+    /**
+     * Resets every circuit to {@link State#CLOSED} and discards the recorded calls.
+     */
+    public void reset() {
+        this.circuits.clear();
+    }
+
+    /**
+     * Verifies minimumCalls is not larger than windowSize, the circuit could never open otherwise.
+     * 
+     * @see org.springframework.beans.factory.InitializingBean#afterPropertiesSet()
+     */
+    public void afterPropertiesSet() throws Exception {
+        if (this.minimumCalls > this.windowSize) {
+            throw new IllegalStateException("minimumCalls (" + this.minimumCalls + ") must be <= windowSize (" + this.windowSize + ")");
+        }
+    }
+
+
+    public double getFailureRateThreshold() {
+        return this.failureRateThreshold;
+    }
+    /**
+     * @param failureRateThreshold The fraction of failed calls, between 0 and 1, at which the circuit opens. Defaults to 0.5
+     */
+    public void setFailureRateThreshold(double failureRateThreshold) {
+        Validate.isTrue(failureRateThreshold > 0 && failureRateThreshold <= 1, "failureRateThreshold must be > 0 and <= 1");
+        this.failureRateThreshold = failureRateThreshold;
+    }
+
+    public long getSlowCallDuration() {
+        return this.slowCallDuration;
+    }
+    /**
+     * @param slowCallDuration Calls taking at least this many milliseconds are slow, 0 disables slow call tracking. Defaults to 0
+     */
+    public void setSlowCallDuration(long slowCallDuration) {
+        Validate.isTrue(slowCallDuration >= 0, "slowCallDuration must be >= 0");
+        this.slowCallDuration = slowCallDuration;
+    }
+
+    public double getSlowCallRateThreshold() {
+        return this.slowCallRateThreshold;
+    }
+    /**
+     * @param slowCallRateThreshold The fraction of slow calls, between 0 and 1, at which the circuit opens. Defaults to 1.0
+     */
+    public void setSlowCallRateThreshold(double slowCallRateThreshold) {
+        Validate.isTrue(slowCallRateThreshold > 0 && slowCallRateThreshold <= 1, "slowCallRateThreshold must be > 0 and <= 1");
+        this.slowCallRateThreshold = slowCallRateThreshold;
+    }
+
+    public int getWindowSize() {
+        return this.windowSize;
+    }
+    /**
+     * @param windowSize The number of most recent calls the rates are computed over. Defaults to 20
+     */
+    public void setWindowSize(int windowSize) {
+        Validate.isTrue(windowSize > 0, "windowSize must be > 0");
+        this.windowSize = windowSize;
+        this.circuits.clear();
+    }
+
+    public int getMinimumCalls() {
+        return this.minimumCalls;
+    }
+    /**
+     * @param minimumCalls The number of calls that must be recorded before the circuit can open, must be <= windowSize. Defaults to 10
+     */
+    public void setMinimumCalls(int minimumCalls) {
+        Validate.isTrue(minimumCalls > 0, "minimumCalls must be > 0");
+        this.minimumCalls = minimumCalls;
+    }
+
+    public long getProbeInterval() {
+        return this.probeInterval;
+    }
+    /**
+     * @param probeInterval Milliseconds an open circuit waits before letting a probe call through. Defaults to 30000
+     */
+    public void setProbeInterval(long probeInterval) {
+        Validate.isTrue(probeInterval >= 0, "probeInterval must be >= 0");
+        this.probeInterval = probeInterval;
+    }
+
+
+    /**
+     * The current time in nanoseconds used for the probe interval, exists so tests can control time.
+     */
+    protected long currentTimeNanos() {
+        return System.nanoTime();
+    }
+    
+    private Circuit getCircuit(IPersonAttributeDao dao) {
+        Circuit circuit = this.circuits.get(dao);
+        if (circuit == null) {
+            circuit = new Circuit(dao, this.windowSize);
+            final Circuit existing = this.circuits.putIfAbsent(dao, circuit);
+            if (existing != null) {
+                circuit = existing;
+            }
+        }
+        return circuit;
+    }
+
+    /**
+     * Call history and state for a single child DAO
+     */
+    private final class Circuit {
+        private final IPersonAttributeDao dao;
+        private final boolean[] failures;
+        private final boolean[] slowCalls;
+        private int position = 0;
+        private int calls = 0;
+        private int failureCount = 0;
+        private int slowCallCount = 0;
+        private State state = State.CLOSED;
+        private long openedAt;
+        private long probeStartedAt;
+        private boolean probing = false;
+
+        public Circuit(IPersonAttributeDao dao, int windowSize) {
+            this.dao = dao;
+            this.failures = new boolean[windowSize];
+            this.slowCalls = new boolean[windowSize];
+        }
+
+        public synchronized State getState() {
+            return this.state;
+        }
+
+        public synchronized boolean allowRequest() {
+            switch (this.state) {
+                case CLOSED: {
+                    return true;
+                }
+                case OPEN: {
+                    if (currentTimeNanos() - this.openedAt < TimeUnit.MILLISECONDS.toNanos(probeInterval)) {
+                        return false;
+                    }
+
+                    this.state = State.HALF_OPEN;
+                    this.probing = true;
+                    this.probeStartedAt = currentTimeNanos();
+                    if (logger.isInfoEnabled()) {
+                        logger.info("Circuit for '" + this.dao + "' is half-open, sending a probe request");
+                    }
+                    return true;
+                }
+                default: {
+                    //Only allow a single probe request at a time, unless the last probe never reported back
+                    final long now = currentTimeNanos();
+                    if (this.probing && now - this.probeStartedAt < TimeUnit.MILLISECONDS.toNanos(probeInterval)) {
+                        return false;
+                    }
+                    this.probing = true;
+                    this.probeStartedAt = now;
+                    return true;
+                }
+            }
+        }
+
+        public synchronized void release() {
+            if (this.state == State.HALF_OPEN) {
+                this.probing = false;
+            }
+        }
+
+        public synchronized void record(boolean failure, long duration) {
+            final boolean slowCall = slowCallDuration > 0 && duration >= TimeUnit.MILLISECONDS.toNanos(slowCallDuration);
+
+            if (this.state == State.HALF_OPEN) {
+                this.probing = false;
+                if (failure || slowCall) {
+                    this.open();
+                }
+                else {
+                    this.close();
+                }
+                return;
+            }
+
+            if (this.state == State.OPEN) {
+                //Late result of a call made before the circuit opened
+                return;
+            }
+
+            //Replace the oldest outcome in the window
+            if (this.calls == this.failures.length) {
+                if (this.failures[this.position]) {
+                    this.failureCount--;
+                }
+                if (this.slowCalls[this.position]) {
+                    this.slowCallCount--;
+                }
+            }
+            else {
+                this.calls++;
+            }
+
+            this.failures[this.position] = failure;
+            this.slowCalls[this.position] = slowCall;
+            if (failure) {
+                this.failureCount++;
+            }
+            if (slowCall) {
+                this.slowCallCount++;
+            }
+            this.position = (this.position + 1) % this.failures.length;
+
+            if (this.calls >= minimumCalls) {
+                final double failureRate = (double)this.failureCount / this.calls;
+                final double slowCallRate = (double)this.slowCallCount / this.calls;
+                if (failureRate >= failureRateThreshold || (slowCallDuration > 0 && slowCallRate >= slowCallRateThreshold)) {
+                    logger.warn("Opening circuit for '" + this.dao + "', failureRate=" + failureRate + ", slowCallRate=" + slowCallRate + " over the last " + this.calls + " calls");
+                    this.open();
+                }
+            }
+        }
+
+        private void open() {
+            this.state = State.OPEN;
+            this.openedAt = currentTimeNanos();
+            openedCount.incrementAndGet();
+        }
+
+        private void close() {
+            this.state = State.CLOSED;
+            this.position = 0;
+            this.calls = 0;
+            this.failureCount = 0;
+            this.slowCallCount = 0;
+            closedCount.incrementAndGet();
+
+            if (logger.isInfoEnabled()) {
+                logger.info("Closing circuit for '" + this.dao + "', probe request succeeded");
+            }
+        }
+    }
+}
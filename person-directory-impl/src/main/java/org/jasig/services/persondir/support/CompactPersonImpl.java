@@ -0,0 +1,302 @@
+/**
+ * Licensed to Jasig under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Jasig licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a
+ * copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.jasig.services.persondir.support;
+
+import java.util.AbstractList;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.RandomAccess;
+import java.util.Set;
+
+import org.apache.commons.collections.map.CaseInsensitiveMap;
+import org.apache.commons.collections.map.ListOrderedMap;
+import org.apache.commons.lang3.Validate;
+import org.apache.commons.lang3.builder.EqualsBuilder;
+import org.apache.commons.lang3.builder.HashCodeBuilder;
+import org.apache.commons.lang3.builder.ToStringBuilder;
+import org.apache.commons.lang3.builder.ToStringStyle;
+import org.jasig.services.persondir.IPersonAttributes;
+
+/**
+ * A memory compact {@link IPersonAttributes} for people that are held for a long time, such as cached results. The
+ * attribute names are kept in an {@link AttributeSchema} shared by every person with the same attributes and the
+ * values in a single array indexed by the schema slot. A single value is stored as-is, several values as an array.
+ * <br>
+ * <br>
+ * The attributes and values are read-only and behave the same as those of {@link NamedPersonImpl}, or of
+ * {@link CaseInsensitiveNamedPersonImpl} for a case insensitive person. The {@link Map} returned by
+ * {@link #getAttributes()} and the {@link List}s of values are views created on each call.
+ * 
+ * @author Eric Dalquist
+ * @version $Revision$
+ */
+public class CompactPersonImpl implements IPersonAttributes {
+    private static final long serialVersionUID = 1L;
+    
+    private final String name;
+    private final AttributeSchema schema;
+    
+    /*
+     * Indexed by schema slot, null for a null List, an Object[] for an empty List, several values or a single value
+     * that is itself an Object[], otherwise the single value.
+     */
+    private final Object[] values;
+    
+    
+    /**
+     * Creates a compact copy of the person, the person itself if it already is a CompactPersonImpl. The copy is
+     * case insensitive if the person is a {@link CaseInsensitiveNamedPersonImpl} or
+     * {@link CaseInsensitiveAttributeNamedPersonImpl}.
+     */
+    public static CompactPersonImpl compact(IPersonAttributes person) {
+        Validate.notNull(person, "person may not be null");
+        if (person instanceof CompactPersonImpl) {
+            return (CompactPersonImpl) person;
+        }
+        
+        final boolean caseInsensitive = person instanceof CaseInsensitiveNamedPersonImpl || person instanceof CaseInsensitiveAttributeNamedPersonImpl;
+        return new CompactPersonImpl(person.getName(), person.getAttributes(), caseInsensitive);
+    }
+    
+    public CompactPersonImpl(String name, Map<String, List<Object>> attributes) {
+        this(name, attributes, false);
+    }
+    
+    /**
+     * @param caseInsensitive If attribute names are looked up ignoring case, the same as {@link CaseInsensitiveNamedPersonImpl}
+     */
+    @SuppressWarnings("unchecked")
+    public CompactPersonImpl(String name, Map<String, List<Object>> attributes, boolean caseInsensitive) {
+        Validate.notNull(attributes, "attributes can not be null");
+        
+        if (caseInsensitive) {
+            //Merges names that only differ by case the same way CaseInsensitiveNamedPersonImpl does
+            final Map<String, List<Object>> caseInsensitiveAttributes = ListOrderedMap.decorate(new CaseInsensitiveMap(attributes.size() > 0 ? attributes.size() : 1));
+            caseInsensitiveAttributes.putAll(attributes);
+            attributes = caseInsensitiveAttributes;
+        }
+        
+        this.name = name;
+        this.schema = AttributeSchema.getSchema(attributes.keySet(), caseInsensitive);
+        
+        this.values = new Object[this.schema.size()];
+        int slot = 0;
+        for (final List<Object> attributeValues : attributes.values()) {
+            this.values[slot++] = toSlotValue(attributeValues);
+        }
+    }
+    
+    private static Object toSlotValue(List<Object> attributeValues) {
+        if (attributeValues == null) {
+            return null;
+        }
+        if (attributeValues.size() == 1) {
+            final Object value = attributeValues.get(0);
+            if (value != null && !(value instanceof Object[])) {
+                return value;
+            }
+        }
+        return attributeValues.toArray();
+    }
+    
+    /**
+     * @return The schema of the attribute names, shared with other people with the same attributes
+     */
+    public AttributeSchema getSchema() {
+        return this.schema;
+    }
+    
+    /* (non-Javadoc)
+     * @see java.security.Principal#getName()
+     */
+    public String getName() {
+        return this.name;
+    }
+    
+    /* (non-Javadoc)
+     * @see org.jasig.services.persondir.IPersonAttributes#getAttributeValue(java.lang.String)
+     */
+    public Object getAttributeValue(String name) {
+        final int slot = this.schema.getSlot(name);
+        if (slot < 0) {
+            return null;
+        }
+        
+        final Object slotValue = this.values[slot];
+        if (slotValue instanceof Object[]) {
+            final Object[] slotValues = (Object[]) slotValue;
+            return slotValues.length > 0 ? slotValues[0] : null;
+        }
+        return slotValue;
+    }
+    
+    /* (non-Javadoc)
+     * @see org.jasig.services.persondir.IPersonAttributes#getAttributeValues(java.lang.String)
+     */
+    public List<Object> getAttributeValues(String name) {
+        final int slot = this.schema.getSlot(name);
+        if (slot < 0) {
+            return null;
+        }
+        
+        return this.getSlotValues(slot);
+    }
+    
+    /* (non-Javadoc)
+     * @see org.jasig.services.persondir.IPersonAttributes#getAttributes()
+     */
+    public Map<String, List<Object>> getAttributes() {
+        return new AttributesMap();
+    }
+    
+    private List<Object> getSlotValues(int slot) {
+        final Object slotValue = this.values[slot];
+        if (slotValue == null) {
+            return null;
+        }
+        return new ValuesList(slotValue);
+    }
+    
+    /**
+     * @see java.lang.Object#equals(Object)
+     */
+    @Override
+    public boolean equals(Object object) {
+        if (object == this) {
+            return true;
+        }
+        if (!(object instanceof IPersonAttributes)) {
+            return false;
+        }
+        IPersonAttributes rhs = (IPersonAttributes) object;
+        return new EqualsBuilder()
+            .append(this.getName(), rhs.getName())
+            .isEquals();
+    }
+    
+    /**
+     * @see java.lang.Object#hashCode()
+     */
+    @Override
+    public int hashCode() {
+        return new HashCodeBuilder(1574945487, 827742191)
+            .append(this.getName())
+            .toHashCode();
+    }
+    
+    /**
+     * @see java.lang.Object#toString()
+     */
+    @Override
+    public String toString() {
+        return new ToStringBuilder(this, ToStringStyle.SHORT_PREFIX_STYLE)
+            .append("name", this.getName())
+            .append("attributes", this.getAttributes())
+            .toString();
+    }
+    
+    /**
+     * Read-only view of the values of one slot
+     */
+    private static final class ValuesList extends AbstractList<Object> implements RandomAccess {
+        private final Object slotValue;
+        
+        public ValuesList(Object slotValue) {
+            this.slotValue = slotValue;
+        }
+        
+        @Override
+        public Object get(int index) {
+            if (this.slotValue instanceof Object[]) {
+                return ((Object[]) this.slotValue)[index];
+            }
+            if (index != 0) {
+                throw new IndexOutOfBoundsException("Index: " + index + ", Size: 1");
+            }
+            return this.slotValue;
+        }
+        
+        @Override
+        public int size() {
+            if (this.slotValue instanceof Object[]) {
+                return ((Object[]) this.slotValue).length;
+            }
+            return 1;
+        }
+    }
+    
+    /**
+     * Read-only view of the attributes, in schema slot order
+     */
+    private final class AttributesMap extends AbstractMap<String, List<Object>> {
+        @Override
+        public List<Object> get(Object key) {
+            final int slot = schema.getSlot(key);
+            return slot < 0 ? null : getSlotValues(slot);
+        }
+        
+        @Override
+        public boolean containsKey(Object key) {
+            return schema.getSlot(key) >= 0;
+        }
+        
+        @Override
+        public int size() {
+            return values.length;
+        }
+        
+        @Override
+        public Set<Map.Entry<String, List<Object>>> entrySet() {
+            return new AbstractSet<Map.Entry<String, List<Object>>>() {
+                @Override
+                public Iterator<Map.Entry<String, List<Object>>> iterator() {
+                    return new Iterator<Map.Entry<String, List<Object>>>() {
+                        private int slot = 0;
+                        
+                        public boolean hasNext() {
+                            return this.slot < values.length;
+                        }
+                        
+                        public Map.Entry<String, List<Object>> next() {
+                            if (!this.hasNext()) {
+                                throw new NoSuchElementException();
+                            }
+                            final int entrySlot = this.slot++;
+                            return new AbstractMap.SimpleImmutableEntry<String, List<Object>>(schema.getName(entrySlot), getSlotValues(entrySlot));
+                        }
+                        
+                        public void remove() {
+                            throw new UnsupportedOperationException("attributes are read-only");
+                        }
+                    };
+                }
+                
+                @Override
+                public int size() {
+                    return values.length;
+                }
+            };
+        }
+    }
+}
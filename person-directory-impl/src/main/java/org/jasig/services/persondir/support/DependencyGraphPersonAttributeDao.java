@@ -0,0 +1,753 @@
+/**
+ * Licensed to Jasig under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Jasig licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a
+ * copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.jasig.services.persondir.support;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.apache.commons.lang3.Validate;
+import org.apache.commons.lang3.builder.ToStringBuilder;
+import org.apache.commons.lang3.builder.ToStringStyle;
+import org.jasig.services.persondir.IListenableFuture;
+import org.jasig.services.persondir.IPersonAttributeDao;
+import org.jasig.services.persondir.IPersonAttributes;
+import org.jasig.services.persondir.support.merger.MultivaluedAttributeMerger;
+
+/**
+ * A {@link IPersonAttributeDao} implementation which computes the execution order of its child DAOs from the
+ * attributes each child accepts ({@link IPersonAttributeDao#getAvailableQueryAttributes()}) and the attributes each
+ * child produces ({@link IPersonAttributeDao#getPossibleUserAttributeNames()}).
+ * <br/>
+ * A child DAO that accepts one of the <b>seedAttributes</b>, by default just the username attribute, or that does not
+ * declare the attributes it accepts has no dependencies. Any other child DAO depends on every child DAO listed before
+ * it that produces one of the attributes it accepts. Children listed later are never treated as producers which
+ * guarantees the dependency graph is acyclic. If the declarations of a child DAO can not be read it is treated as
+ * accepting and producing nothing. Children without dependencies are queried with the original seed. A child with dependencies is queried as soon as all of its
+ * dependencies have returned, using the same rules as {@link CascadingPersonAttributeDao}: the seed plus the name and
+ * attributes of each person returned by its dependencies. If its dependencies returned no people the original seed
+ * is used.
+ * <br/>
+ * If an <b>executorService</b> is configured independent children are queried concurrently, otherwise the children are
+ * queried sequentially in execution plan order. Results are always merged in the order the children are listed in
+ * <b>personAttributeDaos</b> so the merged result does not depend on timing. The <b>stopOnSuccess</b> property does not
+ * apply to queries made by this class.
+ * <br/>
+ * The plan is computed on {@link #afterPropertiesSet()}, or on first use if the child DAOs are changed afterwards, and
+ * is available via {@link #getExecutionPlan()}. The default merger is {@link MultivaluedAttributeMerger}.
+ *
+ * @author Eric Dalquist
+ * @version $Revision$
+ */
+public class DependencyGraphPersonAttributeDao extends AbstractAggregatingDefaultQueryPersonAttributeDao {
+    private volatile ExecutionPlan executionPlan;
+    private Set<String> seedAttributes = null;
+
+    public DependencyGraphPersonAttributeDao() {
+        this.attrMerger = new MultivaluedAttributeMerger();
+    }
+
+    /**
+     * The results of child DAOs are used to query their dependents, so the query attributes of all child DAOs are
+     * requested as well.
+     *
+     * @see org.jasig.services.persondir.support.AbstractAggregatingDefaultQueryPersonAttributeDao#getChildRequestedAttributes(java.util.Set)
+     */
+    @Override
+    protected Set<String> getChildRequestedAttributes(Set<String> requestedAttributes) {
+        return this.addChildQueryAttributes(requestedAttributes);
+    }
+
+    /**
+     * @return the seedAttributes, null if the username attribute is used
+     */
+    public Set<String> getSeedAttributes() {
+        return this.seedAttributes;
+    }
+    /**
+     * Attributes that are expected to be present in the seed of every query. A child DAO that accepts any of these
+     * attributes is queried with the seed and does not depend on other child DAOs. If not set the attribute from
+     * {@link #getUsernameAttributeProvider()} is used.
+     *
+     * @param seedAttributes the seedAttributes to set
+     */
+    public void setSeedAttributes(Set<String> seedAttributes) {
+        this.seedAttributes = seedAttributes != null ? Collections.unmodifiableSet(new LinkedHashSet<String>(seedAttributes)) : null;
+        this.executionPlan = null;
+    }
+
+    /* (non-Javadoc)
+     * @see org.jasig.services.persondir.support.AbstractAggregatingDefaultQueryPersonAttributeDao#afterPropertiesSet()
+     */
+    @Override
+    public void afterPropertiesSet() throws Exception {
+        super.afterPropertiesSet();
+        this.getExecutionPlan();
+    }
+
+    /**
+     * @return The execution plan computed for the current child DAOs
+     * @throws IllegalStateException If no child DAOs have been set
+     */
+    public ExecutionPlan getExecutionPlan() {
+        final List<IPersonAttributeDao> daos = this.personAttributeDaos;
+        if (daos == null) {
+            throw new IllegalStateException("personAttributeDaos must be set");
+        }
+
+        ExecutionPlan plan = this.executionPlan;
+        if (plan == null || plan.daos != daos) {
+            final Set<String> seedAttributes;
+            if (this.seedAttributes != null) {
+                seedAttributes = this.seedAttributes;
+            }
+            else {
+                seedAttributes = Collections.singleton(this.getUsernameAttributeProvider().getUsernameAttribute());
+            }
+
+            //Read the declarations of each child DAO once
+            final List<Set<String>> accepted = new ArrayList<Set<String>>(daos.size());
+            final List<Set<String>> produced = new ArrayList<Set<String>>(daos.size());
+            for (final IPersonAttributeDao dao : daos) {
+                Set<String> availableQueryAttributes = null;
+                Set<String> possibleUserAttributeNames = null;
+                try {
+                    availableQueryAttributes = dao.getAvailableQueryAttributes();
+                    possibleUserAttributeNames = dao.getPossibleUserAttributeNames();
+                }
+                catch (final RuntimeException rte) {
+                    this.logger.warn("Failed to read the query and result attributes of '" + dao + "', it will be treated as having no dependencies and producing no attributes", rte);
+                }
+                accepted.add(availableQueryAttributes);
+                produced.add(possibleUserAttributeNames);
+            }
+
+            plan = new ExecutionPlan(daos, seedAttributes, accepted, produced);
+            this.executionPlan = plan;
+
+            if (this.logger.isInfoEnabled()) {
+                this.logger.info("Computed " + plan);
+            }
+        }
+
+        return plan;
+    }
+
+    /**
+     * Queries the child DAOs in dependency order and merges their results in the configured child DAO order.
+     *
+     * @see org.jasig.services.persondir.support.AbstractAggregatingDefaultQueryPersonAttributeDao#getPeopleWithMultivaluedAttributes(java.util.Map, java.util.Set)
+     */
+    @Override
+    public Set<IPersonAttributes> getPeopleWithMultivaluedAttributes(Map<String, List<Object>> query, Set<String> requestedAttributes) {
+        Validate.notNull(query, "query may not be null.");
+
+        final ExecutionPlan plan = this.getExecutionPlan();
+        if (this.isTimeoutsEnabled() && this.executorService == null) {
+            throw new IllegalStateException("executorService must be set when childQueryTimeout or queryTimeout is set");
+        }
+
+        final Set<String> childRequestedAttributes = this.getChildRequestedAttributes(requestedAttributes);
+        final List<Set<IPersonAttributes>> daoResults;
+        if (this.executorService == null) {
+            daoResults = this.executeSequentially(plan, query, childRequestedAttributes);
+        }
+        else {
+            daoResults = this.executeConcurrently(plan, query, childRequestedAttributes);
+        }
+
+        //Merge all results in the configured child DAO order
+        Set<IPersonAttributes> resultPeople = this.mergeDaoResults(daoResults, null);
+        if (resultPeople == null) {
+            return null;
+        }
+
+        if (this.logger.isDebugEnabled()) {
+            this.logger.debug("Aggregated search results '" + resultPeople + "' for query='" + query + "'");
+        }
+
+        if (requestedAttributes != null) {
+            return projectPeople(resultPeople, requestedAttributes);
+        }
+
+        return Collections.unmodifiableSet(resultPeople);
+    }
+
+    /**
+     * Starts each child DAO query as soon as the queries of all of its dependencies have completed and merges the
+     * results in the configured child DAO order once every query has completed.
+     *
+     * @see org.jasig.services.persondir.support.AbstractAggregatingDefaultQueryPersonAttributeDao#getPeopleWithMultivaluedAttributesAsync(java.util.Map)
+     */
+    @Override
+    public IListenableFuture<Set<IPersonAttributes>> getPeopleWithMultivaluedAttributesAsync(Map<String, List<Object>> query) {
+        Validate.notNull(query, "query may not be null.");
+
+        final AsyncExecution execution = new AsyncExecution(this.getExecutionPlan(), query);
+        execution.start();
+        return execution.result;
+    }
+
+    /**
+     * Queries the current DAO natively, if it is asynchronous, when the seed is used for the query.
+     *
+     * @see org.jasig.services.persondir.support.AbstractAggregatingDefaultQueryPersonAttributeDao#getAttributesFromDaoAsync(java.util.Map, boolean, org.jasig.services.persondir.IPersonAttributeDao, java.util.Set)
+     */
+    @Override
+    protected IListenableFuture<Set<IPersonAttributes>> getAttributesFromDaoAsync(Map<String, List<Object>> seed, boolean isFirstQuery, IPersonAttributeDao currentlyConsidering, Set<IPersonAttributes> resultPeople) {
+        if (isFirstQuery || resultPeople == null || resultPeople.isEmpty()) {
+            return this.getPeopleFromDaoAsync(currentlyConsidering, seed);
+        }
+
+        return super.getAttributesFromDaoAsync(seed, isFirstQuery, currentlyConsidering, resultPeople);
+    }
+
+    /**
+     * If resultPeople, the merged results of the dependencies of currentlyConsidering, is empty the seed is used for
+     * the query. If not each person in resultPeople is used to build a query by adding the name and attributes of the
+     * person to the seed.
+     *
+     * @see org.jasig.services.persondir.support.AbstractAggregatingDefaultQueryPersonAttributeDao#getAttributesFromDao(java.util.Map, boolean, org.jasig.services.persondir.IPersonAttributeDao, java.util.Set)
+     */
+    @Override
+    protected Set<IPersonAttributes> getAttributesFromDao(Map<String, List<Object>> seed, boolean isFirstQuery, IPersonAttributeDao currentlyConsidering, Set<IPersonAttributes> resultPeople) {
+        return this.getAttributesFromDao(seed, isFirstQuery, currentlyConsidering, resultPeople, null);
+    }
+
+    /**
+     * Same as {@link #getAttributesFromDao(Map, boolean, IPersonAttributeDao, Set)}, only asking the child DAO for the
+     * requested attributes.
+     *
+     * @see org.jasig.services.persondir.support.AbstractAggregatingDefaultQueryPersonAttributeDao#getAttributesFromDao(java.util.Map, boolean, org.jasig.services.persondir.IPersonAttributeDao, java.util.Set, java.util.Set)
+     */
+    @Override
+    protected Set<IPersonAttributes> getAttributesFromDao(Map<String, List<Object>> seed, boolean isFirstQuery, IPersonAttributeDao currentlyConsidering, Set<IPersonAttributes> resultPeople, Set<String> requestedAttributes) {
+        if (isFirstQuery || resultPeople == null || resultPeople.isEmpty()) {
+            return this.getPeopleFromDao(currentlyConsidering, seed, requestedAttributes);
+        }
+
+        Set<IPersonAttributes> mergedPeopleResults = null;
+        for (final IPersonAttributes person : resultPeople) {
+            final Map<String, List<Object>> queryAttributes = new LinkedHashMap<String, List<Object>>(seed);
+
+            //Add the userName into the query map
+            final String userName = person.getName();
+            if (userName != null) {
+                queryAttributes.putAll(this.toSeedMap(userName));
+            }
+
+            //Add the rest of the attributes into the query map
+            queryAttributes.putAll(person.getAttributes());
+
+            final Set<IPersonAttributes> newResults = this.getPeopleFromDao(currentlyConsidering, queryAttributes, requestedAttributes);
+            if (newResults != null) {
+                if (mergedPeopleResults == null) {
+                    mergedPeopleResults = new LinkedHashSet<IPersonAttributes>(newResults);
+                }
+                else {
+                    mergedPeopleResults = this.attrMerger.mergeResults(mergedPeopleResults, newResults);
+                }
+            }
+        }
+
+        return mergedPeopleResults;
+    }
+
+    /**
+     * Runs every child DAO on the calling thread in execution plan order.
+     */
+    protected List<Set<IPersonAttributes>> executeSequentially(ExecutionPlan plan, Map<String, List<Object>> query, Set<String> requestedAttributes) {
+        final List<Set<IPersonAttributes>> daoResults = new ArrayList<Set<IPersonAttributes>>(Collections.<Set<IPersonAttributes>>nCopies(plan.size(), null));
+
+        for (final List<Integer> stage : plan.stages) {
+            for (final Integer daoIndex : stage) {
+                final IPersonAttributeDao currentlyConsidering = plan.daos.get(daoIndex);
+                if (!this.isDaoAvailable(currentlyConsidering, requestedAttributes)) {
+                    continue;
+                }
+                
+                final Set<Integer> dependencies = plan.dependencies.get(daoIndex);
+                final Set<IPersonAttributes> dependencyPeople = this.mergeDaoResults(daoResults, dependencies);
+
+                try {
+                    final Set<IPersonAttributes> currentPeople = this.queryDao(query, dependencies.isEmpty(), currentlyConsidering, dependencyPeople, requestedAttributes);
+                    daoResults.set(daoIndex, currentPeople);
+
+                    if (this.logger.isDebugEnabled()) {
+                        this.logger.debug("Retrieved attributes='" + currentPeople + "' for query='" + query + "', currentlyConsidering='" + currentlyConsidering + "', dependencyResults='" + dependencyPeople + "'");
+                    }
+                }
+                catch (final RuntimeException rte) {
+                    this.handleDaoException(currentlyConsidering, rte);
+                }
+            }
+        }
+
+        return daoResults;
+    }
+
+    /**
+     * Runs the child DAOs on the configured executorService, starting each child as soon as all of its dependencies
+     * have returned. The calling thread only waits for completions and schedules the next children.
+     */
+    protected List<Set<IPersonAttributes>> executeConcurrently(ExecutionPlan plan, Map<String, List<Object>> query, Set<String> requestedAttributes) {
+        final int daoCount = plan.size();
+        final List<Set<IPersonAttributes>> daoResults = new ArrayList<Set<IPersonAttributes>>(Collections.<Set<IPersonAttributes>>nCopies(daoCount, null));
+        if (daoCount == 0) {
+            return daoResults;
+        }
+
+        final CompletionService<Set<IPersonAttributes>> completionService = new ExecutorCompletionService<Set<IPersonAttributes>>(this.executorService);
+        final Map<Future<Set<IPersonAttributes>>, Integer> running = new HashMap<Future<Set<IPersonAttributes>>, Integer>();
+        final long[] startTimes = new long[daoCount];
+        final int[] pendingDependencies = new int[daoCount];
+        for (int daoIndex = 0; daoIndex < daoCount; daoIndex++) {
+            pendingDependencies[daoIndex] = plan.dependencies.get(daoIndex).size();
+        }
+
+        final long queryStart = System.nanoTime();
+        final List<Integer> finished = new ArrayList<Integer>();
+        try {
+            //Start all children that have no dependencies, children that can't be started are finished immediately
+            for (final Integer daoIndex : plan.stages.get(0)) {
+                if (!this.submit(plan, daoIndex, query, requestedAttributes, daoResults, completionService, running, startTimes)) {
+                    finished.add(daoIndex);
+                }
+            }
+
+            while (!running.isEmpty() || !finished.isEmpty()) {
+                //Start the children whose dependencies are now all complete, children that are dropped or can't be
+                //started are added to finished so their dependents are handled too
+                final long now = System.nanoTime();
+                for (int finishedPosition = 0; finishedPosition < finished.size(); finishedPosition++) {
+                    final Integer finishedIndex = finished.get(finishedPosition);
+                    for (final Integer dependentIndex : plan.dependents.get(finishedIndex)) {
+                        pendingDependencies[dependentIndex]--;
+                        if (pendingDependencies[dependentIndex] == 0) {
+                            if (this.getRemainingTimeout(queryStart, now, now) <= 0) {
+                                this.recordDroppedQuery(plan.daos.get(dependentIndex), query);
+                                finished.add(dependentIndex);
+                            }
+                            else if (!this.submit(plan, dependentIndex, query, requestedAttributes, daoResults, completionService, running, startTimes)) {
+                                finished.add(dependentIndex);
+                            }
+                        }
+                    }
+                }
+                finished.clear();
+
+                if (running.isEmpty()) {
+                    break;
+                }
+
+                //Wait no longer than the earliest timeout of the running children
+                long timeout = Long.MAX_VALUE;
+                for (final Integer daoIndex : running.values()) {
+                    timeout = Math.min(timeout, this.getRemainingTimeout(queryStart, startTimes[daoIndex], now));
+                }
+
+                final Future<Set<IPersonAttributes>> completed;
+                if (timeout == Long.MAX_VALUE) {
+                    completed = completionService.take();
+                }
+                else {
+                    completed = completionService.poll(Math.max(timeout, 0), TimeUnit.NANOSECONDS);
+                }
+
+                //Futures of dropped children are still queued by the completion service once cancelled, skip them
+                final Integer completedIndex = completed != null ? running.remove(completed) : null;
+                if (completedIndex != null) {
+                    final int daoIndex = completedIndex;
+                    final IPersonAttributeDao currentlyConsidering = plan.daos.get(daoIndex);
+                    try {
+                        final Set<IPersonAttributes> currentPeople = this.getFutureResult(completed, 0);
+                        daoResults.set(daoIndex, currentPeople);
+
+                        if (this.logger.isDebugEnabled()) {
+                            this.logger.debug("Retrieved attributes='" + currentPeople + "' for query='" + query + "', currentlyConsidering='" + currentlyConsidering + "'");
+                        }
+                    }
+                    catch (final TimeoutException te) {
+                        //Can't happen, the future is complete
+                        throw new IllegalStateException(te);
+                    }
+                    catch (final RuntimeException rte) {
+                        this.handleDaoException(currentlyConsidering, rte);
+                    }
+                    finished.add(daoIndex);
+                }
+
+                //Drop all children that have run out of time
+                final long afterWait = System.nanoTime();
+                for (final Iterator<Map.Entry<Future<Set<IPersonAttributes>>, Integer>> runningItr = running.entrySet().iterator(); runningItr.hasNext();) {
+                    final Map.Entry<Future<Set<IPersonAttributes>>, Integer> runningEntry = runningItr.next();
+                    final Integer daoIndex = runningEntry.getValue();
+                    if (this.getRemainingTimeout(queryStart, startTimes[daoIndex], afterWait) <= 0) {
+                        runningEntry.getKey().cancel(true);
+                        runningItr.remove();
+                        this.recordDroppedQuery(plan.daos.get(daoIndex), query);
+                        finished.add(daoIndex);
+                    }
+                }
+            }
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for child IPersonAttributeDao results for query='" + query + "'", e);
+        }
+        finally {
+            for (final Future<Set<IPersonAttributes>> future : running.keySet()) {
+                future.cancel(true);
+            }
+        }
+
+        return daoResults;
+    }
+
+    /**
+     * Submits the query for a child DAO, returns false if the child DAO is unavailable and was not queried.
+     */
+    private boolean submit(ExecutionPlan plan, Integer daoIndex, final Map<String, List<Object>> query, final Set<String> requestedAttributes, List<Set<IPersonAttributes>> daoResults, CompletionService<Set<IPersonAttributes>> completionService, Map<Future<Set<IPersonAttributes>>, Integer> running, long[] startTimes) {
+        final IPersonAttributeDao currentlyConsidering = plan.daos.get(daoIndex);
+        if (!this.isDaoAvailable(currentlyConsidering, requestedAttributes)) {
+            return false;
+        }
+        final Set<Integer> dependencies = plan.dependencies.get(daoIndex);
+        final Set<IPersonAttributes> dependencyPeople = this.mergeDaoResults(daoResults, dependencies);
+        final boolean isFirstQuery = dependencies.isEmpty();
+
+        startTimes[daoIndex] = System.nanoTime();
+        final Future<Set<IPersonAttributes>> future = completionService.submit(new Callable<Set<IPersonAttributes>>() {
+            public Set<IPersonAttributes> call() throws Exception {
+                return queryDao(query, isFirstQuery, currentlyConsidering, dependencyPeople, requestedAttributes);
+            }
+        });
+        running.put(future, daoIndex);
+        return true;
+    }
+
+    /**
+     * Merges the results of the specified child DAOs in child DAO order. If daoIndices is null all results are merged.
+     */
+    private Set<IPersonAttributes> mergeDaoResults(List<Set<IPersonAttributes>> daoResults, Set<Integer> daoIndices) {
+        Set<IPersonAttributes> resultPeople = null;
+
+        for (int daoIndex = 0; daoIndex < daoResults.size(); daoIndex++) {
+            if (daoIndices != null && !daoIndices.contains(daoIndex)) {
+                continue;
+            }
+
+            final Set<IPersonAttributes> currentPeople = daoResults.get(daoIndex);
+            if (currentPeople != null) {
+                if (resultPeople == null) {
+                    //If this is the first valid result set just use it.
+                    resultPeople = new LinkedHashSet<IPersonAttributes>(currentPeople);
+                }
+                else {
+                    //Merge the Sets of IPersons
+                    resultPeople = this.attrMerger.mergeResults(resultPeople, currentPeople);
+                }
+            }
+        }
+
+        return resultPeople;
+    }
+
+    private void handleDaoException(IPersonAttributeDao currentlyConsidering, RuntimeException rte) {
+        if (this.recoverExceptions) {
+            this.logger.warn("Recovering From Exception thrown by '" + currentlyConsidering + "'", rte);
+        }
+        else {
+            this.logger.error("Failing From Exception thrown by '" + currentlyConsidering + "'", rte);
+            throw rte;
+        }
+    }
+
+
+    /**
+     * The state of an asynchronous query. Each child DAO query is started from the completion of its last dependency,
+     * no thread waits for a child DAO to return.
+     */
+    private final class AsyncExecution {
+        private final ExecutionPlan plan;
+        private final Map<String, List<Object>> query;
+        private final SettableFutureTask<Set<IPersonAttributes>> result = new SettableFutureTask<Set<IPersonAttributes>>();
+
+        //Guarded by this
+        private final List<Set<IPersonAttributes>> daoResults;
+        private final Map<Integer, IListenableFuture<Set<IPersonAttributes>>> running = new HashMap<Integer, IListenableFuture<Set<IPersonAttributes>>>();
+        private final int[] pendingDependencies;
+        private int remaining;
+
+        public AsyncExecution(ExecutionPlan plan, Map<String, List<Object>> query) {
+            this.plan = plan;
+            this.query = query;
+            this.daoResults = new ArrayList<Set<IPersonAttributes>>(Collections.<Set<IPersonAttributes>>nCopies(plan.size(), null));
+            this.pendingDependencies = new int[plan.size()];
+            for (int daoIndex = 0; daoIndex < plan.size(); daoIndex++) {
+                this.pendingDependencies[daoIndex] = plan.dependencies.get(daoIndex).size();
+            }
+            this.remaining = plan.size();
+        }
+
+        public void start() {
+            if (this.plan.size() == 0) {
+                this.complete();
+                return;
+            }
+
+            this.result.addListener(new Runnable() {
+                public void run() {
+                    if (result.isCancelled()) {
+                        cancelRunning();
+                    }
+                }
+            }, SettableFutureTask.DIRECT_EXECUTOR);
+
+            for (final Integer daoIndex : this.plan.stages.get(0)) {
+                this.startDao(daoIndex);
+            }
+        }
+
+        private void startDao(final Integer daoIndex) {
+            final IPersonAttributeDao currentlyConsidering = this.plan.daos.get(daoIndex);
+            if (this.result.isDone() || !isDaoAvailable(currentlyConsidering)) {
+                this.finished(daoIndex, null);
+                return;
+            }
+
+            final Set<Integer> dependencies = this.plan.dependencies.get(daoIndex);
+            final Set<IPersonAttributes> dependencyPeople;
+            synchronized (this) {
+                dependencyPeople = mergeDaoResults(this.daoResults, dependencies);
+            }
+
+            IListenableFuture<Set<IPersonAttributes>> startedFuture;
+            try {
+                startedFuture = getAttributesFromDaoAsync(this.query, dependencies.isEmpty(), currentlyConsidering, dependencyPeople);
+            }
+            catch (final RuntimeException rte) {
+                startedFuture = SettableFutureTask.immediateFailure(rte);
+            }
+            final IListenableFuture<Set<IPersonAttributes>> future = startedFuture;
+            synchronized (this) {
+                this.running.put(daoIndex, future);
+            }
+
+            future.addListener(new Runnable() {
+                public void run() {
+                    Set<IPersonAttributes> currentPeople = null;
+                    try {
+                        currentPeople = SettableFutureTask.getDoneResult(future);
+
+                        if (logger.isDebugEnabled()) {
+                            logger.debug("Retrieved attributes='" + currentPeople + "' for query='" + query + "', currentlyConsidering='" + currentlyConsidering + "', dependencyResults='" + dependencyPeople + "'");
+                        }
+                    }
+                    catch (final RuntimeException rte) {
+                        try {
+                            handleDaoException(currentlyConsidering, rte);
+                        }
+                        catch (final RuntimeException failure) {
+                            result.setException(failure);
+                            cancelRunning();
+                        }
+                    }
+                    finished(daoIndex, currentPeople);
+                }
+            }, SettableFutureTask.DIRECT_EXECUTOR);
+        }
+
+        /**
+         * Records the results of a child DAO and starts the dependents that are now ready to run.
+         */
+        private void finished(Integer daoIndex, Set<IPersonAttributes> currentPeople) {
+            final List<Integer> ready = new ArrayList<Integer>();
+            final boolean complete;
+            synchronized (this) {
+                this.running.remove(daoIndex);
+                this.daoResults.set(daoIndex, currentPeople);
+                for (final Integer dependentIndex : this.plan.dependents.get(daoIndex)) {
+                    this.pendingDependencies[dependentIndex]--;
+                    if (this.pendingDependencies[dependentIndex] == 0) {
+                        ready.add(dependentIndex);
+                    }
+                }
+                this.remaining--;
+                complete = this.remaining == 0;
+            }
+
+            for (final Integer dependentIndex : ready) {
+                this.startDao(dependentIndex);
+            }
+
+            if (complete) {
+                this.complete();
+            }
+        }
+
+        private void complete() {
+            try {
+                final Set<IPersonAttributes> resultPeople;
+                synchronized (this) {
+                    resultPeople = mergeDaoResults(this.daoResults, null);
+                }
+
+                if (logger.isDebugEnabled()) {
+                    logger.debug("Aggregated search results '" + resultPeople + "' for query='" + this.query + "'");
+                }
+
+                this.result.set(resultPeople == null ? null : Collections.unmodifiableSet(resultPeople));
+            }
+            catch (final Throwable t) {
+                this.result.setException(t);
+            }
+        }
+
+        private void cancelRunning() {
+            final List<IListenableFuture<Set<IPersonAttributes>>> runningFutures;
+            synchronized (this) {
+                runningFutures = new ArrayList<IListenableFuture<Set<IPersonAttributes>>>(this.running.values());
+            }
+
+            for (final IListenableFuture<Set<IPersonAttributes>> future : runningFutures) {
+                future.cancel(true);
+            }
+        }
+    }
+
+
+    /**
+     * The dependency graph and execution stages computed for a List of child DAOs. Stage 0 contains the children
+     * without dependencies, every other child is in the stage after its latest dependency. The number of stages is
+     * the length of the critical path through the graph.
+     */
+    public static final class ExecutionPlan {
+        private final List<IPersonAttributeDao> daos;
+        private final List<Set<Integer>> dependencies;
+        private final List<Set<Integer>> dependents;
+        private final List<List<Integer>> stages;
+
+        ExecutionPlan(List<IPersonAttributeDao> daos, Set<String> seedAttributes, List<Set<String>> accepted, List<Set<String>> produced) {
+            this.daos = daos;
+
+            final int daoCount = daos.size();
+            final List<Set<Integer>> dependencies = new ArrayList<Set<Integer>>(daoCount);
+            final List<Set<Integer>> dependents = new ArrayList<Set<Integer>>(daoCount);
+            final int[] daoStages = new int[daoCount];
+            int stageCount = 0;
+
+            for (int daoIndex = 0; daoIndex < daoCount; daoIndex++) {
+                dependents.add(new LinkedHashSet<Integer>());
+
+                //Depend on every earlier child that produces an attribute this child can query with
+                final Set<Integer> daoDependencies = new LinkedHashSet<Integer>();
+                final Set<String> availableQueryAttributes = accepted.get(daoIndex);
+                if (availableQueryAttributes != null && !availableQueryAttributes.isEmpty() && Collections.disjoint(seedAttributes, availableQueryAttributes)) {
+                    for (int producerIndex = 0; producerIndex < daoIndex; producerIndex++) {
+                        final Set<String> producerAttributes = produced.get(producerIndex);
+                        if (producerAttributes != null && !Collections.disjoint(producerAttributes, availableQueryAttributes)) {
+                            daoDependencies.add(producerIndex);
+                            dependents.get(producerIndex).add(daoIndex);
+                            daoStages[daoIndex] = Math.max(daoStages[daoIndex], daoStages[producerIndex] + 1);
+                        }
+                    }
+                }
+                dependencies.add(Collections.unmodifiableSet(daoDependencies));
+                stageCount = Math.max(stageCount, daoStages[daoIndex] + 1);
+            }
+
+            final List<List<Integer>> stages = new ArrayList<List<Integer>>(stageCount);
+            for (int stage = 0; stage < stageCount; stage++) {
+                stages.add(new ArrayList<Integer>());
+            }
+            for (int daoIndex = 0; daoIndex < daoCount; daoIndex++) {
+                stages.get(daoStages[daoIndex]).add(daoIndex);
+            }
+
+            this.dependencies = Collections.unmodifiableList(dependencies);
+            this.dependents = Collections.unmodifiableList(dependents);
+            this.stages = Collections.unmodifiableList(stages);
+        }
+
+        int size() {
+            return this.daos.size();
+        }
+
+        /**
+         * @return The child DAOs grouped by execution stage, children in the same stage do not depend on each other
+         */
+        public List<List<IPersonAttributeDao>> getStages() {
+            final List<List<IPersonAttributeDao>> stageDaos = new ArrayList<List<IPersonAttributeDao>>(this.stages.size());
+            for (final List<Integer> stage : this.stages) {
+                stageDaos.add(Collections.unmodifiableList(this.toDaos(stage)));
+            }
+            return Collections.unmodifiableList(stageDaos);
+        }
+
+        /**
+         * @return The child DAOs the specified child DAO depends on, an empty List if it has no dependencies
+         * @throws IllegalArgumentException If the DAO is not a child DAO of this plan
+         */
+        public List<IPersonAttributeDao> getDependencies(IPersonAttributeDao dao) {
+            final int daoIndex = this.daos.indexOf(dao);
+            Validate.isTrue(daoIndex >= 0, "'" + dao + "' is not part of this execution plan");
+            return Collections.unmodifiableList(this.toDaos(this.dependencies.get(daoIndex)));
+        }
+
+        /**
+         * @return The number of stages, the length of the longest chain of dependent child DAOs
+         */
+        public int getCriticalPathLength() {
+            return this.stages.size();
+        }
+
+        private List<IPersonAttributeDao> toDaos(Iterable<Integer> daoIndices) {
+            final List<IPersonAttributeDao> stageDaos = new ArrayList<IPersonAttributeDao>();
+            for (final Integer daoIndex : daoIndices) {
+                stageDaos.add(this.daos.get(daoIndex));
+            }
+            return stageDaos;
+        }
+
+        /**
+         * @see java.lang.Object#toString()
+         */
+        @Override
+        public String toString() {
+            return new ToStringBuilder(this, ToStringStyle.SHORT_PREFIX_STYLE)
+                .append("stages", this.stages)
+                .append("dependencies", this.dependencies)
+                .toString();
+        }
+    }
+}
@@ -0,0 +1,111 @@
+/**
+ * Licensed to Jasig under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Jasig licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a
+ * copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.jasig.services.persondir.support;
+
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Map;
+import java.util.Set;
+
+import org.aopalliance.intercept.MethodInvocation;
+
+/**
+ * Selects seed attributes the same way as {@link AttributeBasedCacheKeyGenerator} but returns an exact
+ * {@link AttributeCacheKey} of the selected attribute names and values instead of a hash of them, so two different
+ * seeds can never share a cache entry. Collection values are copied into arrays so later changes to the seed do not
+ * change the key. As with {@link AttributeBasedCacheKeyGenerator} a String value and a List holding only that String
+ * produce different keys, so calls that return single and multi-valued attributes are cached separately.
+ * 
+ * @author Eric Dalquist
+ * @version $Revision$
+ */
+public class ExactAttributeCacheKeyGenerator extends AttributeBasedCacheKeyGenerator {
+    
+    /* (non-Javadoc)
+     * @see org.jasig.services.persondir.support.AttributeBasedCacheKeyGenerator#generateKey(org.aopalliance.intercept.MethodInvocation)
+     */
+    @Override
+    public Serializable generateKey(MethodInvocation methodInvocation) {
+        final CachableMethod cachableMethod = this.resolveCacheableMethod(methodInvocation);
+        final Map<String, Object> seed = this.getSeed(methodInvocation.getArguments(), cachableMethod);
+        final AttributeCacheKey cacheKey = this.getKey(seed);
+        
+        if (this.logger.isDebugEnabled()) {
+            if (cacheKey == null) {
+                this.logger.debug("No cache key generated for MethodInvocation='" + methodInvocation + "'");
+            }
+            else {
+                this.logger.debug("Generated cache key '" + cacheKey + "' for MethodInvocation='" + methodInvocation + "'");
+            }
+        }
+        return cacheKey;
+    }
+    
+    /**
+     * Builds the key from the selected attributes of the seed.
+     * 
+     * @return The key, null if none of the selected attributes have a value to use
+     */
+    protected AttributeCacheKey getKey(Map<String, Object> seed) {
+        final Set<String> cacheAttributes = this.getCacheAttributes(seed);
+        
+        //Common case of a single key attribute, no sorting needed
+        if (cacheAttributes.size() == 1) {
+            final String attribute = cacheAttributes.iterator().next();
+            final Object value = seed.get(attribute);
+            if ((value == null && !seed.containsKey(attribute)) || !this.isKeyValue(value)) {
+                return null;
+            }
+            return new AttributeCacheKey(new Object[] { attribute, toKeyValue(value) });
+        }
+        
+        final String[] attributes = cacheAttributes.toArray(new String[cacheAttributes.size()]);
+        Arrays.sort(attributes);
+        
+        final Object[] namesAndValues = new Object[attributes.length * 2];
+        int length = 0;
+        for (final String attribute : attributes) {
+            final Object value = seed.get(attribute);
+            if ((value != null || seed.containsKey(attribute)) && this.isKeyValue(value)) {
+                namesAndValues[length++] = attribute;
+                namesAndValues[length++] = toKeyValue(value);
+            }
+        }
+        
+        if (length == 0) {
+            return null;
+        }
+        if (length < namesAndValues.length) {
+            return new AttributeCacheKey(Arrays.copyOf(namesAndValues, length));
+        }
+        return new AttributeCacheKey(namesAndValues);
+    }
+    
+    /**
+     * Copies Collection values into arrays so the key is immutable.
+     */
+    private static Object toKeyValue(Object value) {
+        if (value instanceof Collection) {
+            return ((Collection<?>) value).toArray();
+        }
+        return value;
+    }
+}
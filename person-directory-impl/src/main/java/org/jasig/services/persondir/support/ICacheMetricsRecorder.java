@@ -0,0 +1,97 @@
+/**
+ * Licensed to Jasig under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Jasig licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a
+ * copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.jasig.services.persondir.support;
+
+/**
+ * Receives the cache events of a {@link CachingPersonAttributeDaoImpl} so they can be forwarded to an external
+ * metrics system. Implementations are called on the querying threads and must be thread safe and fast.
+ * 
+ * @author Eric Dalquist
+ * @version $Revision$
+ */
+public interface ICacheMetricsRecorder {
+    /**
+     * A query was made, whether or not it could be cached. A getPeopleByUid call records one query per uid.
+     * 
+     * @param cacheName The bean name of the caching DAO
+     */
+    void recordQuery(String cacheName);
+    
+    /**
+     * A query was answered from the cache.
+     * 
+     * @param cacheName The bean name of the caching DAO
+     * @param nullResult If the cached result was a cached null result
+     */
+    void recordHit(String cacheName, boolean nullResult);
+    
+    /**
+     * A query was not in the cache and was loaded from the cached DAO.
+     * 
+     * @param cacheName The bean name of the caching DAO
+     */
+    void recordMiss(String cacheName);
+    
+    /**
+     * A call to the cached DAO completed. A batch call answering several misses is recorded once.
+     * 
+     * @param cacheName The bean name of the caching DAO
+     * @param loadNanos The duration of the call in nanoseconds
+     * @param failed If the call threw an exception
+     */
+    void recordLoad(String cacheName, long loadNanos, boolean failed);
+    
+    /**
+     * An entry was removed from the cache to make room for a new entry. Only reported when the userInfoCache is a
+     * {@link org.jasig.services.persondir.support.cache.BoundedConcurrentCache},
+     * {@link org.jasig.services.persondir.support.cache.TieredCache} or
+     * {@link org.jasig.services.persondir.support.cache.OffHeapCache}.
+     * 
+     * @param cacheName The bean name of the caching DAO
+     */
+    void recordEviction(String cacheName);
+    
+    /**
+     * An entry was found to be past its time to live, either the expireAfter of the caching DAO or the time to live
+     * of a {@link org.jasig.services.persondir.support.cache.BoundedConcurrentCache},
+     * {@link org.jasig.services.persondir.support.cache.TieredCache} or
+     * {@link org.jasig.services.persondir.support.cache.OffHeapCache} userInfoCache.
+     * 
+     * @param cacheName The bean name of the caching DAO
+     */
+    void recordExpiration(String cacheName);
+    
+    /**
+     * A loaded result was not stored because the admission policy of a
+     * {@link org.jasig.services.persondir.support.cache.BoundedConcurrentCache} userInfoCache rejected it, or because
+     * it is larger than a segment of an {@link org.jasig.services.persondir.support.cache.OffHeapCache} or the second
+     * tier of a {@link org.jasig.services.persondir.support.cache.TieredCache}.
+     * 
+     * @param cacheName The bean name of the caching DAO
+     */
+    void recordRejection(String cacheName);
+    
+    /**
+     * An entry was removed from the cache by a call to removeUserAttributes.
+     * 
+     * @param cacheName The bean name of the caching DAO
+     */
+    void recordInvalidation(String cacheName);
+}
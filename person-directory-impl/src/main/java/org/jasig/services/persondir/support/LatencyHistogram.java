@@ -0,0 +1,154 @@
+/**
+ * Licensed to Jasig under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Jasig licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a
+ * copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.jasig.services.persondir.support;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A fixed size histogram of durations. Durations are counted in buckets whose upper bounds are powers of two
+ * microseconds, from 1 microsecond up to roughly 36 minutes, so percentiles are accurate to within a factor of two.
+ * Recording is lock-free and the bucket counts are only approximately consistent with each other while updates are
+ * in progress.
+ * 
+ * @author Eric Dalquist
+ * @version $Revision$
+ */
+final class LatencyHistogram {
+    /**
+     * Number of buckets, bucket i counts durations up to 2^i microseconds and the last bucket counts everything longer.
+     */
+    public static final int BUCKETS = 32;
+    
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+    private final StripedCounter count = new StripedCounter();
+    private final StripedCounter totalNanos = new StripedCounter();
+    
+    /**
+     * Records a duration.
+     * 
+     * @param nanos The duration in nanoseconds, negative values are treated as 0.
+     */
+    public void record(long nanos) {
+        if (nanos < 0) {
+            nanos = 0;
+        }
+        
+        this.buckets.incrementAndGet(bucketIndex(TimeUnit.NANOSECONDS.toMicros(nanos)));
+        this.count.increment();
+        this.totalNanos.add(nanos);
+    }
+    
+    /**
+     * @return The number of durations recorded.
+     */
+    public long getCount() {
+        return this.count.sum();
+    }
+    
+    /**
+     * @return The total of all recorded durations in nanoseconds.
+     */
+    public long getTotalNanos() {
+        return this.totalNanos.sum();
+    }
+    
+    /**
+     * @return The mean recorded duration in milliseconds, 0 if nothing has been recorded.
+     */
+    public double getMeanMillis() {
+        final long count = this.getCount();
+        if (count == 0) {
+            return 0;
+        }
+        return this.getTotalNanos() / (double) count / TimeUnit.MILLISECONDS.toNanos(1);
+    }
+    
+    /**
+     * @param percentile Between 0 and 1
+     * @return The upper bound in milliseconds of the bucket containing the percentile, 0 if nothing has been recorded.
+     */
+    public double getPercentileMillis(double percentile) {
+        if (percentile < 0 || percentile > 1) {
+            throw new IllegalArgumentException("percentile must be between 0 and 1");
+        }
+        
+        final long[] counts = this.getBucketCounts();
+        long total = 0;
+        for (final long bucketCount : counts) {
+            total += bucketCount;
+        }
+        if (total == 0) {
+            return 0;
+        }
+        
+        final long target = Math.max(1, (long) Math.ceil(total * percentile));
+        long seen = 0;
+        int bucket = 0;
+        for (; bucket < counts.length - 1; bucket++) {
+            seen += counts[bucket];
+            if (seen >= target) {
+                break;
+            }
+        }
+        
+        return getBucketUpperBoundMicros(bucket) / 1000d;
+    }
+    
+    /**
+     * @return A copy of the count in each bucket, see {@link #getBucketUpperBoundMicros(int)} for the bucket bounds.
+     */
+    public long[] getBucketCounts() {
+        final long[] counts = new long[BUCKETS];
+        for (int bucket = 0; bucket < BUCKETS; bucket++) {
+            counts[bucket] = this.buckets.get(bucket);
+        }
+        return counts;
+    }
+    
+    /**
+     * @return The largest duration in microseconds counted by the bucket, the last bucket is unbounded but reports the
+     * bound of the bucket before it doubled.
+     */
+    public static long getBucketUpperBoundMicros(int bucket) {
+        return 1L << bucket;
+    }
+    
+    /**
+     * Sets all counts back to zero.
+     */
+    public void reset() {
+        for (int bucket = 0; bucket < BUCKETS; bucket++) {
+            this.buckets.set(bucket, 0);
+        }
+        this.count.reset();
+        this.totalNanos.reset();
+    }
+    
+    private static int bucketIndex(long micros) {
+        if (micros <= 1) {
+            return 0;
+        }
+        
+        //Index of the smallest power of two that is >= micros
+        final int index = 64 - Long.numberOfLeadingZeros(micros - 1);
+        return Math.min(index, BUCKETS - 1);
+    }
+}
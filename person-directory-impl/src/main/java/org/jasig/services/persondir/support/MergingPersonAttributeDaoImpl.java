@@ -19,10 +19,20 @@
 
 package org.jasig.services.persondir.support;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import org.apache.commons.lang3.Validate;
+import org.jasig.services.persondir.IListenableFuture;
 import org.jasig.services.persondir.IPersonAttributes;
 import org.jasig.services.persondir.IPersonAttributeDao;
 import org.jasig.services.persondir.support.merger.MultivaluedAttributeMerger;
@@ -32,6 +42,44 @@ import org.jasig.services.persondir.support.merger.MultivaluedAttributeMerger;
  * IPersonAttributeDaos queries each with the same data and merges their
  * reported attributes in a configurable way. The default merger is
  * {@link MultivaluedAttributeMerger}.
+ * <br>
+ * <br>
+ * Configuration:
+ * <table border="1">
+ *     <tr>
+ *         <th align="left">Property</th>
+ *         <th align="left">Description</th>
+ *         <th align="left">Required</th>
+ *         <th align="left">Default</th>
+ *     </tr>
+ *     <tr>
+ *         <td align="right" valign="top">executorService</td>
+ *         <td>
+ *             If set and <b>queryConcurrently</b> is true all child DAOs are queried concurrently with the
+ *             same seed using this {@link ExecutorService}. The results are still merged in the order the child
+ *             DAOs are listed in <b>personAttributeDaos</b> so the merged result is identical to the
+ *             sequential case. If not set, or if <b>stopOnSuccess</b> is true, the child DAOs are queried one
+ *             after another so no child DAO is queried once one has returned successfully. When queried
+ *             concurrently the <b>childQueryTimeout</b> of every child DAO is measured from the start of the query.
+ *             Required if <b>childQueryTimeout</b> or <b>queryTimeout</b> is set.
+ *         </td>
+ *         <td valign="top">If a timeout is set</td>
+ *         <td valign="top">null</td>
+ *     </tr>
+ *     <tr>
+ *         <td align="right" valign="top">queryConcurrently</td>
+ *         <td>
+ *             If false the child DAOs are queried one after another even if an <b>executorService</b> is set, the
+ *             executorService is then only used to enforce <b>childQueryTimeout</b> and <b>queryTimeout</b>.
+ *         </td>
+ *         <td valign="top">No</td>
+ *         <td valign="top">true</td>
+ *     </tr>
+ * </table>
+ * <br>
+ * The {@link org.jasig.services.persondir.IAsyncPersonAttributeDao} methods start the queries of all child DAOs at
+ * once and merge the results in child DAO order when the last one completes, unless <b>queryConcurrently</b> is false
+ * or <b>stopOnSuccess</b> is true in which case the child DAOs are queried one after another.
  * 
  * @author andrew.petro@yale.edu
  * @author Eric Dalquist
@@ -39,10 +87,409 @@ import org.jasig.services.persondir.support.merger.MultivaluedAttributeMerger;
  * @since uPortal 2.5
  */
 public class MergingPersonAttributeDaoImpl extends AbstractAggregatingDefaultQueryPersonAttributeDao {
+    private boolean queryConcurrently = true;
+    
     public MergingPersonAttributeDaoImpl() {
         this.attrMerger = new MultivaluedAttributeMerger();
     }
     
+    /**
+     * If an {@link ExecutorService} is configured all child DAOs are queried concurrently and the results are merged
+     * in the order of {@link #getPersonAttributeDaos()}. If no {@link ExecutorService} is configured, queryConcurrently
+     * is false or stopOnSuccess is true the child DAOs are queried sequentially.
+     * 
+     * @see org.jasig.services.persondir.support.AbstractAggregatingDefaultQueryPersonAttributeDao#getPeopleWithMultivaluedAttributes(java.util.Map, java.util.Set)
+     */
+    @Override
+    public Set<IPersonAttributes> getPeopleWithMultivaluedAttributes(final Map<String, List<Object>> query, final Set<String> requestedAttributes) {
+        if (!this.isConcurrent()) {
+            return super.getPeopleWithMultivaluedAttributes(query, requestedAttributes);
+        }
+        
+        Validate.notNull(query, "query may not be null.");
+        
+        if (this.personAttributeDaos == null) {
+            throw new IllegalStateException("personAttributeDaos must be set");
+        }
+        
+        final long queryStart = System.nanoTime();
+        final List<Future<Set<IPersonAttributes>>> futures = new ArrayList<Future<Set<IPersonAttributes>>>(this.personAttributeDaos.size());
+        
+        //Initialize null, so that if none of the sub-DAOs find any people null is returned appropriately
+        Set<IPersonAttributes> resultPeople = null;
+        
+        try {
+            //Submit a query for every child DAO, all children get the same seed
+            for (final IPersonAttributeDao currentlyConsidering : this.personAttributeDaos) {
+                if (this.isDaoAvailable(currentlyConsidering, requestedAttributes)) {
+                    futures.add(this.submitAttributesFromDao(query, true, currentlyConsidering, null, requestedAttributes));
+                }
+                else {
+                    //Keep a placeholder so the futures line up with the child DAOs
+                    futures.add(null);
+                }
+            }
+            
+            //Collect the results in the configured child DAO order so merging is deterministic
+            for (int daoIndex = 0; daoIndex < futures.size(); daoIndex++) {
+                final Future<Set<IPersonAttributes>> future = futures.get(daoIndex);
+                if (future == null) {
+                    continue;
+                }
+                
+                final IPersonAttributeDao currentlyConsidering = this.personAttributeDaos.get(daoIndex);
+                
+                boolean handledException = false;
+                Set<IPersonAttributes> currentPeople = null;
+                try {
+                    //All child DAOs were started together so every child timeout is measured from the query start
+                    final long timeout = this.getRemainingTimeout(queryStart, queryStart, System.nanoTime());
+                    currentPeople = this.getFutureResult(future, Math.max(timeout, 0));
+    
+                    if (this.logger.isDebugEnabled()) {
+                        this.logger.debug("Retrieved attributes='" + currentPeople + "' for query='" + query + "', currentlyConsidering='" + currentlyConsidering + "', resultAttributes='" + resultPeople + "'");
+                    }
+                }
+                catch (final TimeoutException te) {
+                    handledException = true;
+                    this.recordDroppedQuery(currentlyConsidering, query);
+                }
+                catch (final RuntimeException rte) {
+                    if (this.recoverExceptions) {
+                        handledException = true;
+                        this.logger.warn("Recovering From Exception thrown by '" + currentlyConsidering + "'", rte);
+                    }
+                    else {
+                        this.logger.error("Failing From Exception thrown by '" + currentlyConsidering + "'", rte);
+                        throw rte;
+                    }
+                }
+    
+                resultPeople = this.mergePeople(resultPeople, currentPeople);
+                
+                if (this.stopOnSuccess && !handledException) {
+                    if (this.logger.isDebugEnabled()) {
+                        this.logger.debug("Successfully retrieved attributes from a child DAO and stopOnSuccess is true, ignoring results of remaining child DAOs");
+                    }
+    
+                    break;
+                }
+            }
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for child IPersonAttributeDao results for query='" + query + "'", e);
+        }
+        finally {
+            //Cancel any queries that are still running if the results are not going to be used
+            for (final Future<Set<IPersonAttributes>> future : futures) {
+                if (future != null) {
+                    future.cancel(true);
+                }
+            }
+        }
+        
+        if (resultPeople == null) {
+            return null;
+        }
+        
+        if (this.logger.isDebugEnabled()) {
+            this.logger.debug("Aggregated search results '" + resultPeople + "' for query='" + query + "'");
+        }
+        
+        if (requestedAttributes != null) {
+            return projectPeople(resultPeople, requestedAttributes);
+        }
+        
+        return Collections.unmodifiableSet(resultPeople);
+    }
+    
+    /**
+     * Looks up all of the uids with a single call to each child DAO, concurrently if an {@link ExecutorService} is
+     * configured, queryConcurrently is true and stopOnSuccess is false, and merges the people found for each uid in the order of {@link #getPersonAttributeDaos()}.
+     * 
+     * @see org.jasig.services.persondir.support.AbstractFlatteningPersonAttributeDao#getPeopleByUid(java.util.Set)
+     */
+    @Override
+    public Map<String, IPersonAttributes> getPeopleByUid(final Set<String> uids) {
+        Validate.notNull(uids, "uids may not be null.");
+        Validate.noNullElements(uids, "uids may not contain null.");
+        
+        if (this.personAttributeDaos == null) {
+            throw new IllegalStateException("personAttributeDaos must be set");
+        }
+        
+        final boolean timeoutsEnabled = this.isTimeoutsEnabled();
+        if (timeoutsEnabled && this.executorService == null) {
+            throw new IllegalStateException("executorService must be set when childQueryTimeout or queryTimeout is set");
+        }
+        
+        final boolean concurrent = this.isConcurrent();
+        final long queryStart = System.nanoTime();
+        final List<Future<Map<String, IPersonAttributes>>> futures = new ArrayList<Future<Map<String, IPersonAttributes>>>(this.personAttributeDaos.size());
+        
+        final Map<String, Set<IPersonAttributes>> resultPeople = new LinkedHashMap<String, Set<IPersonAttributes>>(uids.size());
+        try {
+            //Submit a batch for every child DAO if they are queried concurrently
+            for (final IPersonAttributeDao currentlyConsidering : this.personAttributeDaos) {
+                if (concurrent && this.isDaoAvailable(currentlyConsidering)) {
+                    futures.add(this.submitDaoByUid(currentlyConsidering, uids));
+                }
+                else {
+                    futures.add(null);
+                }
+            }
+            
+            for (int daoIndex = 0; daoIndex < futures.size(); daoIndex++) {
+                final IPersonAttributeDao currentlyConsidering = this.personAttributeDaos.get(daoIndex);
+                Future<Map<String, IPersonAttributes>> future = futures.get(daoIndex);
+                if (concurrent && future == null) {
+                    continue;
+                }
+                if (!concurrent && !this.isDaoAvailable(currentlyConsidering)) {
+                    continue;
+                }
+                
+                boolean handledException = false;
+                Map<String, IPersonAttributes> currentPeople = null;
+                try {
+                    if (future != null) {
+                        //All child DAOs were started together so every child timeout is measured from the query start
+                        final long timeout = this.getRemainingTimeout(queryStart, queryStart, System.nanoTime());
+                        currentPeople = this.getFutureResult(future, Math.max(timeout, 0));
+                    }
+                    else if (timeoutsEnabled) {
+                        final long childStart = System.nanoTime();
+                        final long timeout = this.getRemainingTimeout(queryStart, childStart, childStart);
+                        if (timeout <= 0) {
+                            throw new TimeoutException();
+                        }
+                        
+                        future = this.submitDaoByUid(currentlyConsidering, uids);
+                        futures.set(daoIndex, future);
+                        currentPeople = this.getFutureResult(future, timeout);
+                    }
+                    else {
+                        currentPeople = this.queryDaoByUid(currentlyConsidering, uids);
+                    }
+                    
+                    if (this.logger.isDebugEnabled()) {
+                        this.logger.debug("Retrieved people='" + currentPeople + "' for uids=" + uids + ", currentlyConsidering='" + currentlyConsidering + "'");
+                    }
+                }
+                catch (final TimeoutException te) {
+                    handledException = true;
+                    this.recordDroppedQuery(currentlyConsidering, Collections.<String, List<Object>>singletonMap(this.getUsernameAttributeProvider().getUsernameAttribute(), new ArrayList<Object>(uids)));
+                }
+                catch (final RuntimeException rte) {
+                    if (this.recoverExceptions) {
+                        handledException = true;
+                        this.logger.warn("Recovering From Exception thrown by '" + currentlyConsidering + "'", rte);
+                    }
+                    else {
+                        this.logger.error("Failing From Exception thrown by '" + currentlyConsidering + "'", rte);
+                        throw rte;
+                    }
+                }
+                
+                if (currentPeople != null) {
+                    for (final Map.Entry<String, IPersonAttributes> personEntry : currentPeople.entrySet()) {
+                        final String uid = personEntry.getKey();
+                        resultPeople.put(uid, this.mergePeople(resultPeople.get(uid), Collections.singleton(personEntry.getValue())));
+                    }
+                }
+                
+                if (this.stopOnSuccess && !handledException) {
+                    if (this.logger.isDebugEnabled()) {
+                        this.logger.debug("Successfully retrieved attributes from a child DAO and stopOnSuccess is true, ignoring results of remaining child DAOs");
+                    }
+                    
+                    break;
+                }
+            }
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for child IPersonAttributeDao results for uids=" + uids, e);
+        }
+        finally {
+            //Cancel any queries that are still running if the results are not going to be used
+            for (final Future<Map<String, IPersonAttributes>> future : futures) {
+                if (future != null) {
+                    future.cancel(true);
+                }
+            }
+        }
+        
+        //Return the people in the order of the uids
+        final Map<String, IPersonAttributes> people = new LinkedHashMap<String, IPersonAttributes>(resultPeople.size());
+        for (final String uid : uids) {
+            final IPersonAttributes person = toPerson(uid, resultPeople.get(uid));
+            if (person != null) {
+                people.put(uid, person);
+            }
+        }
+        
+        return people;
+    }
+    
+    /**
+     * With stopOnSuccess the remaining child DAOs must not be queried once one returns so they are queried in turn.
+     * 
+     * @return true if the child DAOs are queried concurrently on the executorService
+     */
+    private boolean isConcurrent() {
+        return this.executorService != null && this.queryConcurrently && !this.stopOnSuccess;
+    }
+    
+    /**
+     * Runs {@link #queryDaoByUid(IPersonAttributeDao, Set)} on the configured {@link ExecutorService}.
+     */
+    private Future<Map<String, IPersonAttributes>> submitDaoByUid(final IPersonAttributeDao currentlyConsidering, final Set<String> uids) {
+        return this.executorService.submit(new Callable<Map<String, IPersonAttributes>>() {
+            public Map<String, IPersonAttributes> call() throws Exception {
+                return queryDaoByUid(currentlyConsidering, uids);
+            }
+        });
+    }
+    
+    /**
+     * Starts the query of every child DAO with the same seed and merges the results in the order of
+     * {@link #getPersonAttributeDaos()} once all of the queries have completed. If queryConcurrently is false or
+     * stopOnSuccess is true the child DAOs are queried one after another instead.
+     * 
+     * @see org.jasig.services.persondir.support.AbstractAggregatingDefaultQueryPersonAttributeDao#getPeopleWithMultivaluedAttributesAsync(java.util.Map)
+     */
+    @Override
+    public IListenableFuture<Set<IPersonAttributes>> getPeopleWithMultivaluedAttributesAsync(final Map<String, List<Object>> query) {
+        if (!this.queryConcurrently || this.stopOnSuccess) {
+            return super.getPeopleWithMultivaluedAttributesAsync(query);
+        }
+        
+        Validate.notNull(query, "query may not be null.");
+        
+        if (this.personAttributeDaos == null) {
+            throw new IllegalStateException("personAttributeDaos must be set");
+        }
+        
+        final List<IPersonAttributeDao> daos = this.personAttributeDaos;
+        final List<IListenableFuture<Set<IPersonAttributes>>> futures = new ArrayList<IListenableFuture<Set<IPersonAttributes>>>(daos.size());
+        final SettableFutureTask<Set<IPersonAttributes>> result = new SettableFutureTask<Set<IPersonAttributes>>();
+        
+        //One extra count so the results aren't merged before every query has been started
+        final AtomicInteger remaining = new AtomicInteger(daos.size() + 1);
+        final Runnable completion = new Runnable() {
+            public void run() {
+                if (remaining.decrementAndGet() == 0) {
+                    mergeAsyncResults(query, daos, futures, result);
+                }
+            }
+        };
+        
+        for (final IPersonAttributeDao currentlyConsidering : daos) {
+            if (!this.isDaoAvailable(currentlyConsidering)) {
+                //Keep a placeholder so the futures line up with the child DAOs
+                futures.add(null);
+                completion.run();
+                continue;
+            }
+            
+            IListenableFuture<Set<IPersonAttributes>> future;
+            try {
+                future = this.getPeopleFromDaoAsync(currentlyConsidering, query);
+            }
+            catch (final RuntimeException rte) {
+                future = SettableFutureTask.immediateFailure(rte);
+            }
+            futures.add(future);
+            future.addListener(completion, SettableFutureTask.DIRECT_EXECUTOR);
+        }
+        completion.run();
+        
+        result.addListener(new Runnable() {
+            public void run() {
+                //Stop the running child queries if the caller cancelled the query
+                if (result.isCancelled()) {
+                    for (final IListenableFuture<Set<IPersonAttributes>> future : futures) {
+                        if (future != null) {
+                            future.cancel(true);
+                        }
+                    }
+                }
+            }
+        }, SettableFutureTask.DIRECT_EXECUTOR);
+        
+        return result;
+    }
+    
+    /**
+     * Merges the results of the completed child DAO queries in child DAO order and completes the result.
+     */
+    private void mergeAsyncResults(Map<String, List<Object>> query, List<IPersonAttributeDao> daos, List<IListenableFuture<Set<IPersonAttributes>>> futures, SettableFutureTask<Set<IPersonAttributes>> result) {
+        Set<IPersonAttributes> resultPeople = null;
+        
+        try {
+            for (int daoIndex = 0; daoIndex < futures.size(); daoIndex++) {
+                final IListenableFuture<Set<IPersonAttributes>> future = futures.get(daoIndex);
+                if (future == null) {
+                    continue;
+                }
+                
+                final IPersonAttributeDao currentlyConsidering = daos.get(daoIndex);
+                
+                boolean handledException = false;
+                Set<IPersonAttributes> currentPeople = null;
+                try {
+                    currentPeople = SettableFutureTask.getDoneResult(future);
+                    
+                    if (this.logger.isDebugEnabled()) {
+                        this.logger.debug("Retrieved attributes='" + currentPeople + "' for query='" + query + "', currentlyConsidering='" + currentlyConsidering + "', resultAttributes='" + resultPeople + "'");
+                    }
+                }
+                catch (final RuntimeException rte) {
+                    if (this.recoverExceptions) {
+                        handledException = true;
+                        this.logger.warn("Recovering From Exception thrown by '" + currentlyConsidering + "'", rte);
+                    }
+                    else {
+                        this.logger.error("Failing From Exception thrown by '" + currentlyConsidering + "'", rte);
+                        result.setException(rte);
+                        return;
+                    }
+                }
+                
+                resultPeople = this.mergePeople(resultPeople, currentPeople);
+                
+                if (this.stopOnSuccess && !handledException) {
+                    if (this.logger.isDebugEnabled()) {
+                        this.logger.debug("Successfully retrieved attributes from a child DAO and stopOnSuccess is true, ignoring results of remaining child DAOs");
+                    }
+                    
+                    break;
+                }
+            }
+        }
+        catch (final Throwable t) {
+            result.setException(t);
+            return;
+        }
+        
+        if (this.logger.isDebugEnabled()) {
+            this.logger.debug("Aggregated search results '" + resultPeople + "' for query='" + query + "'");
+        }
+        
+        result.set(resultPeople == null ? null : Collections.unmodifiableSet(resultPeople));
+    }
+    
+    /**
+     * Queries the current IPersonAttributeDao with the seed, natively if it is asynchronous.
+     * 
+     * @see org.jasig.services.persondir.support.AbstractAggregatingDefaultQueryPersonAttributeDao#getAttributesFromDaoAsync(java.util.Map, boolean, org.jasig.services.persondir.IPersonAttributeDao, java.util.Set)
+     */
+    @Override
+    protected IListenableFuture<Set<IPersonAttributes>> getAttributesFromDaoAsync(Map<String, List<Object>> seed, boolean isFirstQuery, IPersonAttributeDao currentlyConsidering, Set<IPersonAttributes> resultPeople) {
+        return this.getPeopleFromDaoAsync(currentlyConsidering, seed);
+    }
     
     /**
      * Calls the current IPersonAttributeDao from using the seed.
@@ -51,6 +498,32 @@ public class MergingPersonAttributeDaoImpl extends AbstractAggregatingDefaultQue
      */
     @Override
     protected Set<IPersonAttributes> getAttributesFromDao(Map<String, List<Object>> seed, boolean isFirstQuery, IPersonAttributeDao currentlyConsidering, Set<IPersonAttributes> resultPeople) {
-        return currentlyConsidering.getPeopleWithMultivaluedAttributes(seed);
+        return this.getAttributesFromDao(seed, isFirstQuery, currentlyConsidering, resultPeople, null);
+    }
+    
+    /**
+     * Calls the current IPersonAttributeDao from using the seed, only asking for the requested attributes.
+     * 
+     * @see org.jasig.services.persondir.support.AbstractAggregatingDefaultQueryPersonAttributeDao#getAttributesFromDao(java.util.Map, boolean, org.jasig.services.persondir.IPersonAttributeDao, java.util.Set, java.util.Set)
+     */
+    @Override
+    protected Set<IPersonAttributes> getAttributesFromDao(Map<String, List<Object>> seed, boolean isFirstQuery, IPersonAttributeDao currentlyConsidering, Set<IPersonAttributes> resultPeople, Set<String> requestedAttributes) {
+        return this.getPeopleFromDao(currentlyConsidering, seed, requestedAttributes);
+    }
+    
+    /**
+     * @return If the child DAOs are queried concurrently when an executorService is set
+     */
+    public boolean isQueryConcurrently() {
+        return this.queryConcurrently;
+    }
+    /**
+     * If false the child DAOs are queried one after another even if an executorService is set, the executorService is
+     * then only used to enforce the timeouts. Defaults to true.
+     * 
+     * @param queryConcurrently If the child DAOs are queried concurrently when an executorService is set
+     */
+    public void setQueryConcurrently(boolean queryConcurrently) {
+        this.queryConcurrently = queryConcurrently;
     }
-}
\ No newline at end of file
+}
@@ -36,6 +36,12 @@ public class NamedPersonImpl extends BasePersonImpl {
         
         this.userName = userName;
     }
+    
+    NamedPersonImpl(String userName, PersonBuilder builder) {
+        super(builder);
+        
+        this.userName = userName;
+    }
 
     /* (non-Javadoc)
      * @see java.security.Principal#getName()
@@ -0,0 +1,177 @@
+/**
+ * Licensed to Jasig under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Jasig licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a
+ * copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.jasig.services.persondir.support;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.collections.map.CaseInsensitiveMap;
+import org.apache.commons.collections.map.ListOrderedMap;
+import org.apache.commons.lang3.Validate;
+
+/**
+ * Builds a {@link BasePersonImpl} that takes ownership of the attribute {@link Map} and value {@link List}s instead of
+ * copying them. Query results are usually built into new collections that nothing else references, handing those to
+ * the person directly avoids the copy every {@link BasePersonImpl} constructor makes.
+ * <br>
+ * <br>
+ * Lists passed to {@link #put(String, List)} and a Map passed to {@link #takeOwnership(Map, boolean)} must not be
+ * used by the caller afterwards. Lists that are already read-only, such as the values of another person, can be
+ * added with {@link #putReadOnly(String, List)} and are not wrapped again. A builder builds a single person, it can't
+ * be used after one of the build methods is called.
+ * 
+ * @author Eric Dalquist
+ * @version $Revision$
+ */
+public final class PersonBuilder {
+    private final boolean caseInsensitive;
+    private Map<String, List<Object>> attributes;
+    
+    /**
+     * Takes ownership of the attributes Map and its value Lists, which must not be used by the caller afterwards.
+     * 
+     * @param caseInsensitive If the built person looks attribute names up ignoring case. The Map must then already be
+     * case insensitive, as the Maps created by the LDAP and JDBC result mappers are.
+     */
+    public static PersonBuilder takeOwnership(Map<String, List<Object>> attributes, boolean caseInsensitive) {
+        Validate.notNull(attributes, "attributes can not be null");
+        
+        for (final Map.Entry<String, List<Object>> attrEntry : attributes.entrySet()) {
+            final List<Object> values = attrEntry.getValue();
+            if (values != null) {
+                attrEntry.setValue(Collections.unmodifiableList(values));
+            }
+        }
+        
+        return new PersonBuilder(attributes, caseInsensitive);
+    }
+    
+    /**
+     * Creates a builder for a case sensitive person.
+     */
+    public PersonBuilder(int expectedSize) {
+        this(expectedSize, false);
+    }
+    
+    /**
+     * @param caseInsensitive If the built person looks attribute names up ignoring case
+     */
+    @SuppressWarnings("unchecked")
+    public PersonBuilder(int expectedSize, boolean caseInsensitive) {
+        this(caseInsensitive 
+                ? ListOrderedMap.decorate(new CaseInsensitiveMap(expectedSize > 0 ? expectedSize : 1)) 
+                : new LinkedHashMap<String, List<Object>>(expectedSize > 0 ? expectedSize * 4 / 3 + 1 : 1), 
+             caseInsensitive);
+    }
+    
+    private PersonBuilder(Map<String, List<Object>> attributes, boolean caseInsensitive) {
+        this.attributes = attributes;
+        this.caseInsensitive = caseInsensitive;
+    }
+    
+    /**
+     * Adds the attribute, taking ownership of the values List which must not be used by the caller afterwards.
+     */
+    public PersonBuilder put(String name, List<Object> values) {
+        this.getAttributes().put(name, values != null ? Collections.unmodifiableList(values) : null);
+        return this;
+    }
+    
+    /**
+     * Adds the attribute with a values List that is already read-only and is shared as-is.
+     */
+    public PersonBuilder putReadOnly(String name, List<Object> values) {
+        this.getAttributes().put(name, values);
+        return this;
+    }
+    
+    /**
+     * @return The values of the attribute, null if it has not been added
+     */
+    public List<Object> get(String name) {
+        return this.getAttributes().get(name);
+    }
+    
+    /**
+     * @return true if the attribute has been added
+     */
+    public boolean containsKey(String name) {
+        return this.getAttributes().containsKey(name);
+    }
+    
+    /**
+     * @return The number of attributes added
+     */
+    public int size() {
+        return this.getAttributes().size();
+    }
+    
+    /**
+     * @return true if the built person looks attribute names up ignoring case
+     */
+    public boolean isCaseInsensitive() {
+        return this.caseInsensitive;
+    }
+    
+    /**
+     * Builds a person with the specified name.
+     */
+    public NamedPersonImpl build(String userName) {
+        if (this.caseInsensitive) {
+            return new CaseInsensitiveNamedPersonImpl(userName, this);
+        }
+        return new NamedPersonImpl(userName, this);
+    }
+    
+    /**
+     * Builds a person named by the value of an attribute.
+     */
+    public AttributeNamedPersonImpl buildAttributeNamed(String userNameAttribute) {
+        if (this.caseInsensitive) {
+            return new CaseInsensitiveAttributeNamedPersonImpl(userNameAttribute, this);
+        }
+        return new AttributeNamedPersonImpl(userNameAttribute, this);
+    }
+    
+    /**
+     * Builds a {@link CompactPersonImpl} with the specified name, which copies the attributes into its compact form.
+     */
+    public CompactPersonImpl buildCompact(String userName) {
+        return new CompactPersonImpl(userName, this.release(), this.caseInsensitive);
+    }
+    
+    /**
+     * Hands the read-only attributes to the person being built, the builder can't be used afterwards.
+     */
+    Map<String, List<Object>> release() {
+        final Map<String, List<Object>> attributes = this.getAttributes();
+        this.attributes = null;
+        return Collections.unmodifiableMap(attributes);
+    }
+    
+    private Map<String, List<Object>> getAttributes() {
+        if (this.attributes == null) {
+            throw new IllegalStateException("The person has already been built");
+        }
+        return this.attributes;
+    }
+}
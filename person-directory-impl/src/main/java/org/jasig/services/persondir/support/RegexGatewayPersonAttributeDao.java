@@ -24,10 +24,13 @@ import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Executor;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 import org.apache.commons.lang3.Validate;
+import org.jasig.services.persondir.IAsyncPersonAttributeDao;
+import org.jasig.services.persondir.IListenableFuture;
 import org.jasig.services.persondir.IPersonAttributeDao;
 import org.jasig.services.persondir.IPersonAttributes;
 
@@ -85,13 +88,25 @@ import org.jasig.services.persondir.IPersonAttributes;
  *         <td valign="top">No</td>
  *         <td valign="top">false</td>
  *     </tr>
+ *     <tr>
+ *         <td align="right" valign="top">executor</td>
+ *         <td>
+ *             The {@link Executor} the <code>targetPersonAttributeDao</code> is called on for asynchronous
+ *             queries, unless it implements {@link IAsyncPersonAttributeDao} itself. If not set a blocking
+ *             <code>targetPersonAttributeDao</code> is called on the calling thread and the asynchronous
+ *             methods block until it returns.
+ *         </td>
+ *         <td valign="top">No</td>
+ *         <td valign="top">null</td>
+ *     </tr>
  * </table>
  */
-public final class RegexGatewayPersonAttributeDao extends AbstractDefaultAttributePersonAttributeDao {
+public final class RegexGatewayPersonAttributeDao extends AbstractDefaultAttributePersonAttributeDao implements IAsyncPersonAttributeDao {
     private boolean matchAllPatterns = false;
     private boolean matchAllValues = false;
     private Map<String, Pattern> patterns = null;
     private IPersonAttributeDao targetPersonAttributeDao = null;
+    private Executor executor = null;
     
     /**
      * Default constructor, {@link #setPatterns(Map)} and {@link #setTargetPersonAttributeDao(IPersonAttributeDao)}
@@ -178,6 +193,20 @@ public final class RegexGatewayPersonAttributeDao extends AbstractDefaultAttribu
         this.targetPersonAttributeDao = targetPersonAttributeDao;
     }
     
+    /**
+     * @return the executor
+     */
+    public Executor getExecutor() {
+        return this.executor;
+    }
+    /**
+     * @param executor The Executor to call a blocking targetPersonAttributeDao on for asynchronous queries, null to
+     * call it on the calling thread
+     */
+    public void setExecutor(Executor executor) {
+        this.executor = executor;
+    }
+    
     /**
      * @return the matchAllPatterns
      */
@@ -208,6 +237,43 @@ public final class RegexGatewayPersonAttributeDao extends AbstractDefaultAttribu
      * @see org.jasig.services.persondir.IPersonAttributeDao#getPeopleWithMultivaluedAttributes(java.util.Map)
      */
     public Set<IPersonAttributes> getPeopleWithMultivaluedAttributes(Map<String, List<Object>> seed) {
+        //Execute the wrapped DAO if the match criteria was met
+        if (this.isMatch(seed)) {
+            return this.targetPersonAttributeDao.getPeopleWithMultivaluedAttributes(seed);
+        }
+        
+        return null;
+    }
+    
+    /* (non-Javadoc)
+     * @see org.jasig.services.persondir.IAsyncPersonAttributeDao#getPersonAsync(java.lang.String)
+     */
+    public IListenableFuture<IPersonAttributes> getPersonAsync(String uid) {
+        Validate.notNull(uid, "uid may not be null.");
+        
+        return toPersonFuture(uid, this.getPeopleWithMultivaluedAttributesAsync(this.toSeedMap(uid)));
+    }
+    
+    /**
+     * Delegates to the targetPersonAttributeDao if the match criteria is met, natively if it implements
+     * {@link IAsyncPersonAttributeDao} and on the executor if not, or on the calling thread if no executor is set. Returns a completed future with a null
+     * result if the criteria is not met.
+     * 
+     * @see org.jasig.services.persondir.IAsyncPersonAttributeDao#getPeopleWithMultivaluedAttributesAsync(java.util.Map)
+     */
+    public IListenableFuture<Set<IPersonAttributes>> getPeopleWithMultivaluedAttributesAsync(Map<String, List<Object>> seed) {
+        //Execute the wrapped DAO if the match criteria was met
+        if (this.isMatch(seed)) {
+            return AsyncPersonAttributeDaoAdapter.toAsync(this.targetPersonAttributeDao, this.executor).getPeopleWithMultivaluedAttributesAsync(seed);
+        }
+        
+        return SettableFutureTask.immediate(null);
+    }
+    
+    /**
+     * @return true if the seed meets the match criteria and the query should be delegated to the targetPersonAttributeDao
+     */
+    private boolean isMatch(Map<String, List<Object>> seed) {
         Validate.notNull(seed, "Argument 'seed' cannot be null.");
 
         if (patterns == null || patterns.size() < 1) {
@@ -233,7 +299,7 @@ public final class RegexGatewayPersonAttributeDao extends AbstractDefaultAttribu
                         this.logger.info("All patterns must match and attribute='" + attributeName + "' does not exist in the seed, returning null.");
                     }
 
-                    return null;
+                    return false;
                 }
 
                 //Don't need to match all, just go to the next attribute and see if it exists
@@ -321,20 +387,19 @@ public final class RegexGatewayPersonAttributeDao extends AbstractDefaultAttribu
             }
         }
         
-        //Execute the wrapped DAO if the match criteria was met
         if (matchedPatterns) {
             if (this.logger.isInfoEnabled()) {
                 this.logger.info("Matching criteria '" + this.patterns + "' was met for query '" + seed + "', delegating call to the targetPersonAttributeDao='" + this.targetPersonAttributeDao + "'");
             }
             
-            return this.targetPersonAttributeDao.getPeopleWithMultivaluedAttributes(seed);
+            return true;
         }
 
         if (this.logger.isInfoEnabled()) {
             this.logger.info("Matching criteria '" + this.patterns + "' was not met for query '" + seed + "', return null");
         }
         
-        return null;
+        return false;
     }
 
     /*
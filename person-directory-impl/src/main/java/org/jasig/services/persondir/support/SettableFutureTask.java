@@ -0,0 +1,213 @@
+/**
+ * Licensed to Jasig under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Jasig licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a
+ * copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.jasig.services.persondir.support;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+
+import org.apache.commons.lang3.Validate;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.jasig.services.persondir.IListenableFuture;
+
+/**
+ * {@link IListenableFuture} implementation based on {@link FutureTask}. It can either be run like any other
+ * {@link FutureTask} or be completed directly via {@link #set(Object)} and {@link #setException(Throwable)} when the
+ * result is produced by a callback.
+ * 
+ * @author Eric Dalquist
+ * @version $Revision$
+ */
+public class SettableFutureTask<V> extends FutureTask<V> implements IListenableFuture<V> {
+    /**
+     * Runs listeners in the thread that completes the future, for listeners that only do a small amount of work.
+     */
+    public static final Executor DIRECT_EXECUTOR = new Executor() {
+        public void execute(Runnable command) {
+            command.run();
+        }
+    };
+    
+    private static final Log LOGGER = LogFactory.getLog(SettableFutureTask.class);
+    
+    private static final Callable<Object> UNRUNNABLE = new Callable<Object>() {
+        public Object call() throws Exception {
+            throw new IllegalStateException("SettableFutureTask must be completed with set or setException");
+        }
+    };
+    
+    private List<Runnable> listeners = new ArrayList<Runnable>(2);
+    
+    
+    /**
+     * Creates a future that is completed by calling {@link #set(Object)} or {@link #setException(Throwable)}.
+     */
+    @SuppressWarnings("unchecked")
+    public SettableFutureTask() {
+        super((Callable<V>)UNRUNNABLE);
+    }
+    
+    /**
+     * Creates a future that is completed by running the {@link Callable}.
+     */
+    public SettableFutureTask(Callable<V> callable) {
+        super(callable);
+    }
+    
+    /**
+     * @return A future that has already completed with the value.
+     */
+    public static <V> SettableFutureTask<V> immediate(V value) {
+        final SettableFutureTask<V> future = new SettableFutureTask<V>();
+        future.set(value);
+        return future;
+    }
+    
+    /**
+     * @return A future that has already failed with the exception.
+     */
+    public static <V> SettableFutureTask<V> immediateFailure(Throwable t) {
+        final SettableFutureTask<V> future = new SettableFutureTask<V>();
+        future.setException(t);
+        return future;
+    }
+    
+    /**
+     * Returns the result of a completed future, unwrapping the cause of an {@link ExecutionException}.
+     * 
+     * @throws IllegalStateException If the future has not completed
+     * @throws CancellationException If the future was cancelled
+     */
+    public static <V> V getDoneResult(Future<V> future) {
+        if (!future.isDone()) {
+            throw new IllegalStateException("Future has not completed");
+        }
+        
+        try {
+            return future.get();
+        }
+        catch (InterruptedException e) {
+            //Can't happen, the future is done
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while retrieving the result of a completed future", e);
+        }
+        catch (ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException)cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error)cause;
+            }
+            throw new IllegalStateException("Asynchronous IPersonAttributeDao query failed", cause);
+        }
+    }
+    
+    /* (non-Javadoc)
+     * @see java.util.concurrent.FutureTask#set(java.lang.Object)
+     */
+    @Override
+    public void set(V v) {
+        super.set(v);
+    }
+
+    /* (non-Javadoc)
+     * @see java.util.concurrent.FutureTask#setException(java.lang.Throwable)
+     */
+    @Override
+    public void setException(Throwable t) {
+        super.setException(t);
+    }
+    
+    /**
+     * Completes this future with the outcome of another completed future.
+     */
+    public void setFrom(Future<? extends V> future) {
+        if (future.isCancelled()) {
+            this.cancel(false);
+            return;
+        }
+        
+        try {
+            this.set(getDoneResult(future));
+        }
+        catch (Throwable t) {
+            this.setException(t);
+        }
+    }
+
+    /* (non-Javadoc)
+     * @see org.jasig.services.persondir.IListenableFuture#addListener(java.lang.Runnable, java.util.concurrent.Executor)
+     */
+    public void addListener(final Runnable listener, final Executor executor) {
+        Validate.notNull(listener, "listener may not be null.");
+        Validate.notNull(executor, "executor may not be null.");
+        
+        final Runnable executingListener = new Runnable() {
+            public void run() {
+                try {
+                    executor.execute(listener);
+                }
+                catch (RejectedExecutionException e) {
+                    LOGGER.error("Executor '" + executor + "' rejected listener '" + listener + "'", e);
+                }
+            }
+        };
+        
+        synchronized (this) {
+            if (this.listeners != null) {
+                this.listeners.add(executingListener);
+                return;
+            }
+        }
+        
+        //Already completed, run the listener now
+        executingListener.run();
+    }
+
+    /* (non-Javadoc)
+     * @see java.util.concurrent.FutureTask#done()
+     */
+    @Override
+    protected void done() {
+        final List<Runnable> completedListeners;
+        synchronized (this) {
+            completedListeners = this.listeners;
+            this.listeners = null;
+        }
+        
+        for (final Runnable listener : completedListeners) {
+            try {
+                listener.run();
+            }
+            catch (RuntimeException e) {
+                LOGGER.error("Listener '" + listener + "' threw an exception", e);
+            }
+        }
+    }
+}
@@ -0,0 +1,102 @@
+/**
+ * Licensed to Jasig under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Jasig licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a
+ * copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.jasig.services.persondir.support;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A counter that spreads updates from concurrent threads over several padded cells so threads updating it at the same
+ * time rarely contend on the same cache line. Reads sum the cells and are not atomic with respect to concurrent
+ * updates, every update is counted exactly once.
+ * 
+ * @author Eric Dalquist
+ * @version $Revision$
+ */
+final class StripedCounter {
+    /*
+     * Cells are spaced this many longs apart so each cell is on its own 64 byte cache line
+     */
+    private static final int PADDING = 8;
+    private static final int MAX_STRIPES = 16;
+    private static final int STRIPES;
+    static {
+        final int processors = Runtime.getRuntime().availableProcessors();
+        int stripes = 1;
+        while (stripes < processors && stripes < MAX_STRIPES) {
+            stripes <<= 1;
+        }
+        STRIPES = stripes;
+    }
+    
+    private final AtomicLongArray cells = new AtomicLongArray(STRIPES * PADDING);
+    
+    /**
+     * Adds one to the counter.
+     */
+    public void increment() {
+        this.add(1);
+    }
+    
+    /**
+     * Adds the value to the counter.
+     */
+    public void add(long value) {
+        this.cells.getAndAdd(cellIndex(), value);
+    }
+    
+    /**
+     * @return The current total of the counter.
+     */
+    public long sum() {
+        long sum = 0;
+        for (int index = 0; index < this.cells.length(); index += PADDING) {
+            sum += this.cells.get(index);
+        }
+        return sum;
+    }
+    
+    /**
+     * Sets the counter back to zero. Updates made concurrently with a reset may or may not be counted.
+     */
+    public void reset() {
+        for (int index = 0; index < this.cells.length(); index += PADDING) {
+            this.cells.set(index, 0);
+        }
+    }
+    
+    /**
+     * Picks the cell for the current thread by mixing the bits of its id.
+     */
+    private static int cellIndex() {
+        long id = Thread.currentThread().getId();
+        id ^= (id >>> 33);
+        id *= 0xff51afd7ed558ccdL;
+        id ^= (id >>> 33);
+        return ((int) id & (STRIPES - 1)) * PADDING;
+    }
+    
+    /* (non-Javadoc)
+     * @see java.lang.Object#toString()
+     */
+    @Override
+    public String toString() {
+        return String.valueOf(this.sum());
+    }
+}
@@ -0,0 +1,599 @@
+/**
+ * Licensed to Jasig under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Jasig licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a
+ * copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.jasig.services.persondir.support.cache;
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.commons.lang3.Validate;
+
+/**
+ * A bounded, thread safe {@link Map} suitable for the <b>userInfoCache</b> of a
+ * {@link org.jasig.services.persondir.support.CachingPersonAttributeDaoImpl}.
+ * <br>
+ * <br>
+ * Entries are spread over independently locked segments, each an access ordered LinkedHashMap holding its share of
+ * the capacity, so there is no global lock. The cache is bounded either by entry count or, when an {@link IWeigher}
+ * is provided, by the total estimated weight of the entries.
+ * <br>
+ * <br>
+ * Admission follows the TinyLFU policy: a shared {@link FrequencySketch} records how often each key is read or
+ * written and when a segment is full a new key is not stored if any least recently used entry it would replace has
+ * been seen more often than it. Ties go to the new key, so entries that were only used once are replaced like in a
+ * plain LRU cache, while a scan over many keys that are each used once can not flush frequently used entries from
+ * the cache. Keys that are already cached are always updated.
+ * <br>
+ * <br>
+ * Entries may have a time to live, either the default passed to the constructor or one given per entry with
+ * {@link #put(Object, Object, long, TimeUnit)}. Expired entries are removed lazily when they are read, when they
+ * are the least recently used entry of a full segment, or by {@link #cleanUp()}. {@link #size()} may include expired
+ * entries that have not been removed yet. Views returned by {@link #entrySet()}, {@link #keySet()} and
+ * {@link #values()} are unmodifiable snapshots of the unexpired entries. An {@link IRemovalListener} may be set to
+ * be told of every eviction, expiration and rejection.
+ * <br>
+ * <br>
+ * Null keys and values are not supported, get and remove return null for a null key.
+ * 
+ * @author Eric Dalquist
+ * @version $Revision$
+ */
+public class BoundedConcurrentCache<K, V> extends AbstractMap<K, V> {
+    private static final int DEFAULT_CONCURRENCY_LEVEL = 16;
+    private static final long NO_EXPIRATION = Long.MAX_VALUE;
+    
+    private final IWeigher<? super K, ? super V> weigher;
+    private final long maximumWeight;
+    private final long timeToLiveNanos;
+    private final List<Segment> segments;
+    private final int segmentMask;
+    private final FrequencySketch sketch;
+    
+    private final AtomicLong evictions = new AtomicLong();
+    private final AtomicLong expirations = new AtomicLong();
+    private final AtomicLong rejections = new AtomicLong();
+    
+    private volatile IRemovalListener<? super K, ? super V> removalListener;
+    
+    /**
+     * Creates a cache bounded by entry count whose entries do not expire.
+     * 
+     * @param maximumSize The maximum number of entries, must be greater than 0
+     */
+    public BoundedConcurrentCache(long maximumSize) {
+        this(maximumSize, 0);
+    }
+    
+    /**
+     * Creates a cache bounded by entry count.
+     * 
+     * @param maximumSize The maximum number of entries, must be greater than 0
+     * @param timeToLive The default time to live of entries in milliseconds, 0 for no expiration
+     */
+    public BoundedConcurrentCache(long maximumSize, long timeToLive) {
+        this(maximumSize, null, timeToLive, DEFAULT_CONCURRENCY_LEVEL);
+    }
+    
+    /**
+     * Creates a cache bounded by the total weight of its entries.
+     * 
+     * @param maximumWeight The maximum total weight of the entries, must be greater than 0
+     * @param weigher Computes the weight of each entry
+     * @param timeToLive The default time to live of entries in milliseconds, 0 for no expiration
+     */
+    public BoundedConcurrentCache(long maximumWeight, IWeigher<? super K, ? super V> weigher, long timeToLive) {
+        this(maximumWeight, weigher, timeToLive, DEFAULT_CONCURRENCY_LEVEL);
+    }
+    
+    /**
+     * @param maximumWeight The maximum number of entries if weigher is null, the maximum total weight if not
+     * @param weigher Computes the weight of each entry, if null every entry weighs 1
+     * @param timeToLive The default time to live of entries in milliseconds, 0 for no expiration
+     * @param concurrencyLevel The number of segments the entries are spread over, rounded down to a power of two
+     */
+    public BoundedConcurrentCache(long maximumWeight, IWeigher<? super K, ? super V> weigher, long timeToLive, int concurrencyLevel) {
+        Validate.isTrue(maximumWeight > 0, "maximumWeight must be greater than 0");
+        Validate.isTrue(timeToLive >= 0, "timeToLive must be 0 or greater");
+        Validate.isTrue(concurrencyLevel > 0, "concurrencyLevel must be greater than 0");
+        
+        this.weigher = weigher;
+        this.maximumWeight = maximumWeight;
+        this.timeToLiveNanos = timeToLive > 0 ? TimeUnit.MILLISECONDS.toNanos(timeToLive) : 0;
+        
+        //Use fewer segments than requested if each would not have room for at least one entry
+        int segmentCount = Integer.highestOneBit(concurrencyLevel);
+        while (segmentCount > 1 && segmentCount > maximumWeight) {
+            segmentCount >>= 1;
+        }
+        
+        final List<Segment> segments = new ArrayList<Segment>(segmentCount);
+        final long segmentWeight = maximumWeight / segmentCount;
+        final long remainder = maximumWeight % segmentCount;
+        for (int index = 0; index < segmentCount; index++) {
+            segments.add(new Segment(segmentWeight + (index < remainder ? 1 : 0)));
+        }
+        this.segments = segments;
+        this.segmentMask = segmentCount - 1;
+        
+        this.sketch = new FrequencySketch(weigher == null ? maximumWeight : Math.max(maximumWeight / 16, 1));
+    }
+    
+    /**
+     * @return The maximum number of entries, or the maximum total weight if a weigher is used.
+     */
+    public long getMaximumWeight() {
+        return this.maximumWeight;
+    }
+    
+    /**
+     * @return The default time to live of entries in milliseconds, 0 if entries do not expire by default.
+     */
+    public long getTimeToLive() {
+        return TimeUnit.NANOSECONDS.toMillis(this.timeToLiveNanos);
+    }
+    
+    /**
+     * @return The listener notified of evictions, expirations and rejections, null if none is set.
+     */
+    public IRemovalListener<? super K, ? super V> getRemovalListener() {
+        return this.removalListener;
+    }
+    
+    /**
+     * @param removalListener Notified of every eviction, expiration and rejection, null for no listener
+     */
+    public void setRemovalListener(IRemovalListener<? super K, ? super V> removalListener) {
+        this.removalListener = removalListener;
+    }
+    
+    /**
+     * @return The number of entries removed to make room for new entries.
+     */
+    public long getEvictionCount() {
+        return this.evictions.get();
+    }
+    
+    /**
+     * @return The number of entries removed because they expired.
+     */
+    public long getExpirationCount() {
+        return this.expirations.get();
+    }
+    
+    /**
+     * @return The number of puts of new keys that were not stored because the admission policy rejected them or
+     * they weigh more than a segment can hold.
+     */
+    public long getRejectionCount() {
+        return this.rejections.get();
+    }
+    
+    /**
+     * @return The current total weight of the entries, the entry count if no weigher is used.
+     */
+    public long getWeight() {
+        long weight = 0;
+        for (final Segment segment : this.segments) {
+            segment.lock.lock();
+            try {
+                weight += segment.weight;
+            }
+            finally {
+                segment.lock.unlock();
+            }
+        }
+        return weight;
+    }
+    
+    /* (non-Javadoc)
+     * @see java.util.AbstractMap#get(java.lang.Object)
+     */
+    @Override
+    public V get(Object key) {
+        if (key == null) {
+            return null;
+        }
+        
+        final int hash = hash(key);
+        this.sketch.increment(hash);
+        
+        final Segment segment = this.segmentFor(hash);
+        segment.lock.lock();
+        try {
+            final Node<V> node = segment.entries.get(key);
+            if (node == null) {
+                return null;
+            }
+            if (node.isExpired(this.currentTimeNanos())) {
+                segment.removeEntry(key, node);
+                this.expired(key, node);
+                return null;
+            }
+            return node.value;
+        }
+        finally {
+            segment.lock.unlock();
+        }
+    }
+    
+    /* (non-Javadoc)
+     * @see java.util.AbstractMap#containsKey(java.lang.Object)
+     */
+    @Override
+    public boolean containsKey(Object key) {
+        if (key == null) {
+            return false;
+        }
+        
+        final Segment segment = this.segmentFor(hash(key));
+        segment.lock.lock();
+        try {
+            final Node<V> node = segment.entries.get(key);
+            return node != null && !node.isExpired(this.currentTimeNanos());
+        }
+        finally {
+            segment.lock.unlock();
+        }
+    }
+
+    /**
+     * Returns how much longer the entry will be cached before it expires. Does not count as an access of the entry.
+     *
+     * @return The remaining time to live, at least 1 for an entry that expires, 0 if the entry does not expire and -1
+     * if the key is not cached.
+     */
+    public long getRemainingTimeToLive(Object key, TimeUnit unit) {
+        if (key == null) {
+            return -1;
+        }
+
+        final Segment segment = this.segmentFor(hash(key));
+        segment.lock.lock();
+        try {
+            final Node<V> node = segment.entries.get(key);
+            final long now = this.currentTimeNanos();
+            if (node == null || node.isExpired(now)) {
+                return -1;
+            }
+            if (node.expiresAt == NO_EXPIRATION) {
+                return 0;
+            }
+            return Math.max(1, unit.convert(node.expiresAt - now, TimeUnit.NANOSECONDS));
+        }
+        finally {
+            segment.lock.unlock();
+        }
+    }
+
+    /**
+     * Stores the entry with the default time to live, subject to the admission policy if the key is not already
+     * cached.
+     * 
+     * @see java.util.AbstractMap#put(java.lang.Object, java.lang.Object)
+     */
+    @Override
+    public V put(K key, V value) {
+        return this.putInternal(key, value, this.timeToLiveNanos);
+    }
+    
+    /**
+     * Stores the entry with its own time to live, subject to the admission policy if the key is not already cached.
+     * 
+     * @param timeToLive The time to live of the entry, 0 for no expiration
+     * @return The previous unexpired value for the key, null if there was none
+     */
+    public V put(K key, V value, long timeToLive, TimeUnit unit) {
+        Validate.isTrue(timeToLive >= 0, "timeToLive must be 0 or greater");
+        Validate.notNull(unit, "unit may not be null");
+        return this.putInternal(key, value, unit.toNanos(timeToLive));
+    }
+    
+    /* (non-Javadoc)
+     * @see java.util.AbstractMap#remove(java.lang.Object)
+     */
+    @Override
+    public V remove(Object key) {
+        if (key == null) {
+            return null;
+        }
+        
+        final Segment segment = this.segmentFor(hash(key));
+        segment.lock.lock();
+        try {
+            final Node<V> node = segment.entries.get(key);
+            if (node == null) {
+                return null;
+            }
+            segment.removeEntry(key, node);
+            if (node.isExpired(this.currentTimeNanos())) {
+                this.expired(key, node);
+                return null;
+            }
+            return node.value;
+        }
+        finally {
+            segment.lock.unlock();
+        }
+    }
+    
+    /**
+     * @return The number of entries, including expired entries that have not been removed yet.
+     * @see java.util.AbstractMap#size()
+     */
+    @Override
+    public int size() {
+        long size = 0;
+        for (final Segment segment : this.segments) {
+            segment.lock.lock();
+            try {
+                size += segment.entries.size();
+            }
+            finally {
+                segment.lock.unlock();
+            }
+        }
+        return (int) Math.min(size, Integer.MAX_VALUE);
+    }
+    
+    /* (non-Javadoc)
+     * @see java.util.AbstractMap#clear()
+     */
+    @Override
+    public void clear() {
+        for (final Segment segment : this.segments) {
+            segment.lock.lock();
+            try {
+                segment.entries.clear();
+                segment.weight = 0;
+            }
+            finally {
+                segment.lock.unlock();
+            }
+        }
+    }
+    
+    /**
+     * Removes all expired entries, locking one segment at a time. Not required for correctness, may be called
+     * periodically to release the memory of entries that are no longer read.
+     */
+    public void cleanUp() {
+        final long now = this.currentTimeNanos();
+        for (final Segment segment : this.segments) {
+            segment.lock.lock();
+            try {
+                for (final Iterator<Map.Entry<K, Node<V>>> entryItr = segment.entries.entrySet().iterator(); entryItr.hasNext(); ) {
+                    final Map.Entry<K, Node<V>> entry = entryItr.next();
+                    final Node<V> node = entry.getValue();
+                    if (node.isExpired(now)) {
+                        entryItr.remove();
+                        segment.weight -= node.weight;
+                        this.expired(entry.getKey(), node);
+                    }
+                }
+            }
+            finally {
+                segment.lock.unlock();
+            }
+        }
+    }
+    
+    /**
+     * @return An unmodifiable snapshot of the unexpired entries, in least recently used order within each segment.
+     * @see java.util.AbstractMap#entrySet()
+     */
+    @Override
+    public Set<Map.Entry<K, V>> entrySet() {
+        final long now = this.currentTimeNanos();
+        final Set<Map.Entry<K, V>> entries = new LinkedHashSet<Map.Entry<K, V>>();
+        for (final Segment segment : this.segments) {
+            segment.lock.lock();
+            try {
+                for (final Map.Entry<K, Node<V>> entry : segment.entries.entrySet()) {
+                    final Node<V> node = entry.getValue();
+                    if (!node.isExpired(now)) {
+                        entries.add(new AbstractMap.SimpleImmutableEntry<K, V>(entry.getKey(), node.value));
+                    }
+                }
+            }
+            finally {
+                segment.lock.unlock();
+            }
+        }
+        return Collections.unmodifiableSet(entries);
+    }
+    
+    /**
+     * The current time in nanoseconds used for expiration, exists so tests can control time.
+     */
+    protected long currentTimeNanos() {
+        return System.nanoTime();
+    }
+    
+    private V putInternal(K key, V value, long timeToLiveNanos) {
+        Validate.notNull(key, "key may not be null");
+        Validate.notNull(value, "value may not be null");
+        
+        final int weight = this.weigher != null ? this.weigher.weigh(key, value) : 1;
+        Validate.isTrue(weight >= 0, "weigher returned a negative weight");
+        
+        final int hash = hash(key);
+        this.sketch.increment(hash);
+        
+        final long now = this.currentTimeNanos();
+        final long expiresAt = timeToLiveNanos > 0 ? now + timeToLiveNanos : NO_EXPIRATION;
+        final Node<V> newNode = new Node<V>(value, weight, expiresAt);
+        
+        final Segment segment = this.segmentFor(hash);
+        segment.lock.lock();
+        try {
+            final Node<V> oldNode = segment.entries.get(key);
+            final boolean admitted = oldNode != null || segment.weight + weight <= segment.maximumWeight;
+            if (oldNode != null) {
+                segment.removeEntry(key, oldNode);
+                if (oldNode.isExpired(now)) {
+                    this.expired(key, oldNode);
+                }
+            }
+            
+            if (weight <= segment.maximumWeight && (admitted || this.admit(segment, hash, weight, now))) {
+                segment.makeRoom(weight, now);
+                segment.entries.put(key, newNode);
+                segment.weight += weight;
+            }
+            else {
+                this.rejected(key, newNode);
+            }
+            
+            return oldNode == null || oldNode.isExpired(now) ? null : oldNode.value;
+        }
+        finally {
+            segment.lock.unlock();
+        }
+    }
+    
+    /**
+     * TinyLFU admission, the new key is admitted unless an unexpired least recently used entry that would have to be
+     * evicted to make room for it has been seen more often. Must be called while holding the segment lock.
+     */
+    private boolean admit(Segment segment, int hash, int weight, long now) {
+        final int candidateFrequency = this.sketch.frequency(hash);
+        
+        long needed = segment.weight + weight - segment.maximumWeight;
+        for (final Map.Entry<K, Node<V>> entry : segment.entries.entrySet()) {
+            if (needed <= 0) {
+                break;
+            }
+            
+            final Node<V> victim = entry.getValue();
+            if (!victim.isExpired(now) && this.sketch.frequency(hash(entry.getKey())) > candidateFrequency) {
+                return false;
+            }
+            needed -= victim.weight;
+        }
+        
+        return true;
+    }
+    
+    /**
+     * Counts and reports the removal of an expired entry.
+     */
+    @SuppressWarnings("unchecked")
+    private void expired(Object key, Node<V> node) {
+        this.expirations.incrementAndGet();
+        final IRemovalListener<? super K, ? super V> listener = this.removalListener;
+        if (listener != null) {
+            listener.onExpiration((K) key, node.value);
+        }
+    }
+    
+    /**
+     * Counts and reports a new entry that was not stored.
+     */
+    private void rejected(K key, Node<V> node) {
+        this.rejections.incrementAndGet();
+        final IRemovalListener<? super K, ? super V> listener = this.removalListener;
+        if (listener != null) {
+            listener.onRejection(key, node.value);
+        }
+    }
+    
+    /**
+     * Counts and reports the removal of an entry to make room for a new entry.
+     */
+    private void evicted(K key, Node<V> node) {
+        this.evictions.incrementAndGet();
+        final IRemovalListener<? super K, ? super V> listener = this.removalListener;
+        if (listener != null) {
+            listener.onEviction(key, node.value);
+        }
+    }
+    
+    private Segment segmentFor(int hash) {
+        return this.segments.get((hash >>> 16) & this.segmentMask);
+    }
+    
+    private static int hash(Object key) {
+        int h = key.hashCode();
+        h ^= (h >>> 16);
+        h *= 0x85ebca6b;
+        h ^= (h >>> 13);
+        return h;
+    }
+    
+    private static final class Node<V> {
+        final V value;
+        final int weight;
+        final long expiresAt;
+        
+        Node(V value, int weight, long expiresAt) {
+            this.value = value;
+            this.weight = weight;
+            this.expiresAt = expiresAt;
+        }
+        
+        boolean isExpired(long now) {
+            return this.expiresAt != NO_EXPIRATION && now - this.expiresAt >= 0;
+        }
+    }
+    
+    private final class Segment {
+        final ReentrantLock lock = new ReentrantLock();
+        final LinkedHashMap<K, Node<V>> entries = new LinkedHashMap<K, Node<V>>(16, .75f, true);
+        final long maximumWeight;
+        long weight = 0;
+        
+        Segment(long maximumWeight) {
+            this.maximumWeight = maximumWeight;
+        }
+        
+        void removeEntry(Object key, Node<V> node) {
+            this.entries.remove(key);
+            this.weight -= node.weight;
+        }
+        
+        /**
+         * Removes least recently used entries until the weight fits, counting expired entries as expirations.
+         */
+        void makeRoom(int weight, long now) {
+            for (final Iterator<Map.Entry<K, Node<V>>> entryItr = this.entries.entrySet().iterator(); entryItr.hasNext() && this.weight + weight > this.maximumWeight; ) {
+                final Map.Entry<K, Node<V>> entry = entryItr.next();
+                final Node<V> node = entry.getValue();
+                entryItr.remove();
+                this.weight -= node.weight;
+                
+                if (node.isExpired(now)) {
+                    expired(entry.getKey(), node);
+                }
+                else {
+                    evicted(entry.getKey(), node);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,212 @@
+/**
+ * Licensed to Jasig under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Jasig licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a
+ * copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.jasig.services.persondir.support.cache;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.apache.commons.lang3.Validate;
+
+/**
+ * Reads and writes cache entries to a local file so a cache can be reloaded after a restart.
+ * <br>
+ * <br>
+ * The file is a GZIP compressed Java serialization stream starting with a magic number and a format version,
+ * followed by the time the snapshot was written and the number of entries. Each entry is written as its key, its
+ * expiration time and its value. Class descriptors are only written once per stream which keeps entries of the same
+ * types small. Files with an unknown magic number or version are rejected with an {@link IOException}.
+ * <br>
+ * <br>
+ * Snapshots are written to a temporary file next to the target which is then renamed, so a reader never sees a
+ * partially written snapshot.
+ * 
+ * @author Eric Dalquist
+ * @version $Revision$
+ */
+public class CacheSnapshotFile {
+    /**
+     * The format version written by this class
+     */
+    public static final int VERSION = 1;
+    
+    private static final int MAGIC = 0x50444353;
+    
+    private final File file;
+    
+    /**
+     * @param file The file to write the snapshot to and read it from
+     */
+    public CacheSnapshotFile(File file) {
+        Validate.notNull(file, "file may not be null");
+        this.file = file;
+    }
+    
+    /**
+     * @return The file to write the snapshot to and read it from
+     */
+    public File getFile() {
+        return this.file;
+    }
+    
+    /**
+     * Writes the entries, replacing any existing snapshot.
+     */
+    public synchronized void write(Collection<Entry> entries) throws IOException {
+        Validate.notNull(entries, "entries may not be null");
+        
+        final File tempFile = new File(this.file.getPath() + ".tmp");
+        final ObjectOutputStream out = new ObjectOutputStream(new GZIPOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile))));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(System.currentTimeMillis());
+            out.writeInt(entries.size());
+            for (final Entry entry : entries) {
+                out.writeObject(entry.getKey());
+                out.writeLong(entry.getExpiresAt());
+                out.writeObject(entry.getValue());
+            }
+        }
+        catch (IOException e) {
+            out.close();
+            tempFile.delete();
+            throw e;
+        }
+        out.close();
+        
+        //renameTo does not replace an existing file on every platform
+        if (!tempFile.renameTo(this.file)) {
+            this.file.delete();
+            if (!tempFile.renameTo(this.file)) {
+                tempFile.delete();
+                throw new IOException("Failed to rename '" + tempFile + "' to '" + this.file + "'");
+            }
+        }
+    }
+    
+    /**
+     * Reads the entries of the snapshot, including entries that have expired since it was written.
+     * 
+     * @return The entries, empty if the snapshot file does not exist
+     * @throws IOException If the file can't be read, is not a snapshot or has an unsupported version
+     * @throws ClassNotFoundException If a key or value class no longer exists
+     */
+    public synchronized List<Entry> read() throws IOException, ClassNotFoundException {
+        if (!this.file.exists()) {
+            return new ArrayList<Entry>(0);
+        }
+        
+        final ObjectInputStream in = new ObjectInputStream(new GZIPInputStream(new BufferedInputStream(new FileInputStream(this.file))));
+        try {
+            if (in.readInt() != MAGIC) {
+                throw new IOException("'" + this.file + "' is not a cache snapshot");
+            }
+            final int version = in.readInt();
+            if (version != VERSION) {
+                throw new IOException("'" + this.file + "' has unsupported snapshot version " + version);
+            }
+            in.readLong();
+            
+            final int size = in.readInt();
+            if (size < 0) {
+                throw new IOException("'" + this.file + "' has an invalid entry count " + size);
+            }
+            final List<Entry> entries = new ArrayList<Entry>(size);
+            for (int index = 0; index < size; index++) {
+                final Serializable key = (Serializable) in.readObject();
+                final long expiresAt = in.readLong();
+                final Serializable value = (Serializable) in.readObject();
+                entries.add(new Entry(key, value, expiresAt));
+            }
+            return entries;
+        }
+        catch (EOFException e) {
+            final IOException ioe = new IOException("'" + this.file + "' is truncated");
+            ioe.initCause(e);
+            throw ioe;
+        }
+        finally {
+            in.close();
+        }
+    }
+    
+    /* (non-Javadoc)
+     * @see java.lang.Object#toString()
+     */
+    @Override
+    public String toString() {
+        return "CacheSnapshotFile[" + this.file + "]";
+    }
+    
+    /**
+     * A cache entry in a snapshot
+     */
+    public static final class Entry {
+        private final Serializable key;
+        private final Serializable value;
+        private final long expiresAt;
+        
+        /**
+         * @param expiresAt The time in milliseconds since the epoch the entry expires at, 0 if it does not expire
+         */
+        public Entry(Serializable key, Serializable value, long expiresAt) {
+            Validate.notNull(key, "key may not be null");
+            Validate.notNull(value, "value may not be null");
+            this.key = key;
+            this.value = value;
+            this.expiresAt = expiresAt;
+        }
+        
+        public Serializable getKey() {
+            return this.key;
+        }
+        
+        public Serializable getValue() {
+            return this.value;
+        }
+        
+        /**
+         * @return The time in milliseconds since the epoch the entry expires at, 0 if it does not expire
+         */
+        public long getExpiresAt() {
+            return this.expiresAt;
+        }
+        
+        /**
+         * @return true if the entry has an expiration time before now
+         */
+        public boolean isExpired(long now) {
+            return this.expiresAt > 0 && this.expiresAt <= now;
+        }
+    }
+}
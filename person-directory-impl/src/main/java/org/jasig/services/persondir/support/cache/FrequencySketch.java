@@ -0,0 +1,138 @@
+/**
+ * Licensed to Jasig under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Jasig licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a
+ * copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.jasig.services.persondir.support.cache;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A count-min sketch of 4-bit counters estimating how often each key hash has been seen recently. Counters are
+ * updated with CAS so the sketch can be shared by all segments of a {@link BoundedConcurrentCache} without locking.
+ * Once the number of increments reaches the sample size every counter is halved so old popularity fades.
+ * 
+ * @author Eric Dalquist
+ * @version $Revision$
+ */
+final class FrequencySketch {
+    private static final long[] SEEDS = { 0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L };
+    private static final long RESET_MASK = 0x7777777777777777L;
+    private static final int MAX_COUNT = 15;
+    
+    private final AtomicLongArray table;
+    private final int tableMask;
+    private final int sampleSize;
+    private final AtomicInteger size = new AtomicInteger();
+    private final ReentrantLock resetLock = new ReentrantLock();
+    
+    /**
+     * @param expectedEntries The number of entries the cache is expected to hold.
+     */
+    public FrequencySketch(long expectedEntries) {
+        final int tableSize = ceilingPowerOfTwo((int) Math.min(Math.max(expectedEntries, 64), 1 << 24));
+        this.table = new AtomicLongArray(tableSize);
+        this.tableMask = tableSize - 1;
+        this.sampleSize = 10 * tableSize;
+    }
+    
+    /**
+     * @return The estimated number of times the hash has been seen, between 0 and 15.
+     */
+    public int frequency(int hash) {
+        int frequency = MAX_COUNT;
+        for (int depth = 0; depth < SEEDS.length; depth++) {
+            final long slot = this.slot(hash, depth);
+            final int index = (int) (slot >>> 32);
+            final int shift = (int) slot;
+            frequency = Math.min(frequency, (int) ((this.table.get(index) >>> shift) & 0xfL));
+        }
+        return frequency;
+    }
+    
+    /**
+     * Records an occurrence of the hash.
+     */
+    public void increment(int hash) {
+        boolean added = false;
+        for (int depth = 0; depth < SEEDS.length; depth++) {
+            final long slot = this.slot(hash, depth);
+            added |= this.incrementAt((int) (slot >>> 32), (int) slot);
+        }
+        
+        if (added && this.size.incrementAndGet() >= this.sampleSize) {
+            this.reset();
+        }
+    }
+    
+    /**
+     * @return The index of the long in the high 32 bits and the shift of the counter in the long in the low 32 bits
+     */
+    private long slot(int hash, int depth) {
+        long h = (hash + SEEDS[depth]) * SEEDS[depth];
+        h ^= h >>> 32;
+        final int index = (int) h & this.tableMask;
+        final int shift = (int) ((h >>> 28) & 0xfL) << 2;
+        return ((long) index << 32) | shift;
+    }
+    
+    private boolean incrementAt(int index, int shift) {
+        final long mask = 0xfL << shift;
+        while (true) {
+            final long current = this.table.get(index);
+            if ((current & mask) == mask) {
+                return false;
+            }
+            if (this.table.compareAndSet(index, current, current + (1L << shift))) {
+                return true;
+            }
+        }
+    }
+    
+    /**
+     * Halves every counter, if another thread is already resetting the sketch this returns immediately.
+     */
+    private void reset() {
+        if (!this.resetLock.tryLock()) {
+            return;
+        }
+        try {
+            if (this.size.get() < this.sampleSize) {
+                return;
+            }
+            
+            for (int index = 0; index < this.table.length(); index++) {
+                while (true) {
+                    final long current = this.table.get(index);
+                    if (this.table.compareAndSet(index, current, (current >>> 1) & RESET_MASK)) {
+                        break;
+                    }
+                }
+            }
+            this.size.set(this.size.get() / 2);
+        }
+        finally {
+            this.resetLock.unlock();
+        }
+    }
+    
+    private static int ceilingPowerOfTwo(int value) {
+        return 1 << (32 - Integer.numberOfLeadingZeros(value - 1));
+    }
+}
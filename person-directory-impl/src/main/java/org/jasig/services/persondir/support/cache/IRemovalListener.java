@@ -0,0 +1,47 @@
+/**
+ * Licensed to Jasig under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Jasig licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a
+ * copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.jasig.services.persondir.support.cache;
+
+/**
+ * Notified when a {@link BoundedConcurrentCache} or {@link OffHeapCache} removes an entry on its own, either to make
+ * room for new entries or because the entry expired, and when it does not store a new entry. Explicit removals
+ * through the Map interface are not reported. Called while a segment of the cache is locked so implementations must
+ * be fast and must not access the cache. An {@link OffHeapCache} passes null as the value of evicted and expired
+ * entries.
+ * 
+ * @author Eric Dalquist
+ * @version $Revision$
+ */
+public interface IRemovalListener<K, V> {
+    /**
+     * The least recently used entry was removed to make room for a new entry.
+     */
+    void onEviction(K key, V value);
+    
+    /**
+     * The entry was removed because its time to live had passed.
+     */
+    void onExpiration(K key, V value);
+    
+    /**
+     * The new entry was not stored, either because entries it would replace have been used more often or because
+     * it is heavier than the cache can hold.
+     */
+    void onRejection(K key, V value);
+}
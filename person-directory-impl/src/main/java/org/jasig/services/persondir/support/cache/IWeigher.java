@@ -0,0 +1,33 @@
+/**
+ * Licensed to Jasig under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Jasig licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a
+ * copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.jasig.services.persondir.support.cache;
+
+/**
+ * Estimates the relative size of a cache entry for a weight bounded {@link BoundedConcurrentCache}.
+ * 
+ * @author Eric Dalquist
+ * @version $Revision$
+ */
+public interface IWeigher<K, V> {
+    /**
+     * @return The weight of the entry, must be 0 or greater and should be cheap to compute.
+     */
+    int weigh(K key, V value);
+}
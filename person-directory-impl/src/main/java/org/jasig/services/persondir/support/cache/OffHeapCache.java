@@ -0,0 +1,593 @@
+/**
+ * Licensed to Jasig under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Jasig licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a
+ * copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.jasig.services.persondir.support.cache;
+
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.commons.lang3.SerializationUtils;
+import org.apache.commons.lang3.Validate;
+
+/**
+ * A bounded {@link Map} that stores serialized values in direct {@link ByteBuffer}s outside of the Java heap, so a
+ * large number of cached values adds little to garbage collection work. Only the keys and a small index record per
+ * entry are kept on the heap.
+ * <br>
+ * <br>
+ * The capacity is split over independently locked segments, each a direct buffer written as a circular log. New
+ * values are appended and when a segment is full its oldest values are evicted, first in first out. Values that are
+ * replaced or removed are only reclaimed once the log wraps around to them. Values larger than a segment are not
+ * stored.
+ * <br>
+ * <br>
+ * Entries may have a time to live, either the default passed to the constructor or one given per entry with
+ * {@link #set(Object, Object, long, TimeUnit)}. The expiration time is kept in the on-heap index record and expired
+ * entries are removed when they are read. {@link #size()} may include expired entries that have not been read yet.
+ * An {@link IRemovalListener} may be set to be told of every eviction, expiration and rejection, evicted and expired
+ * values are passed as null since they are only kept serialized.
+ * <br>
+ * <br>
+ * Values must be {@link Serializable}, they are serialized on every put and deserialized on every get, so each get
+ * returns a new copy of the value. {@link #entrySet()} deserializes every value and is intended for diagnostics only. Null keys
+ * and values are not supported.
+ * 
+ * @author Eric Dalquist
+ * @version $Revision$
+ */
+public class OffHeapCache<K, V> extends AbstractMap<K, V> {
+    private static final int MAX_SEGMENT_SIZE = 1 << 28;
+    private static final int DEFAULT_CONCURRENCY_LEVEL = 16;
+    private static final long NO_EXPIRATION = Long.MAX_VALUE;
+    
+    private final List<Segment> segments;
+    private final int segmentMask;
+    private final long capacity;
+    private final long timeToLiveNanos;
+    
+    private final AtomicLong evictions = new AtomicLong();
+    private final AtomicLong expirations = new AtomicLong();
+    private final AtomicLong rejections = new AtomicLong();
+    
+    private volatile IRemovalListener<? super K, ? super V> removalListener;
+    
+    /**
+     * @param capacity The number of bytes of direct memory to allocate for values
+     */
+    public OffHeapCache(long capacity) {
+        this(capacity, 0, DEFAULT_CONCURRENCY_LEVEL);
+    }
+    
+    /**
+     * @param capacity The number of bytes of direct memory to allocate for values
+     * @param concurrencyLevel The minimum number of segments, rounded down to a power of two. More segments are used
+     * if needed to keep each segment under 256MB.
+     */
+    public OffHeapCache(long capacity, int concurrencyLevel) {
+        this(capacity, 0, concurrencyLevel);
+    }
+    
+    /**
+     * @param capacity The number of bytes of direct memory to allocate for values
+     * @param timeToLive The default time to live of entries in milliseconds, 0 for no expiration
+     * @param concurrencyLevel The minimum number of segments, rounded down to a power of two. More segments are used
+     * if needed to keep each segment under 256MB.
+     */
+    public OffHeapCache(long capacity, long timeToLive, int concurrencyLevel) {
+        Validate.isTrue(capacity > 0, "capacity must be greater than 0");
+        Validate.isTrue(timeToLive >= 0, "timeToLive must be 0 or greater");
+        Validate.isTrue(concurrencyLevel > 0, "concurrencyLevel must be greater than 0");
+        
+        this.timeToLiveNanos = timeToLive > 0 ? TimeUnit.MILLISECONDS.toNanos(timeToLive) : 0;
+        
+        int segmentCount = Integer.highestOneBit(concurrencyLevel);
+        while (capacity / segmentCount > MAX_SEGMENT_SIZE) {
+            segmentCount <<= 1;
+        }
+        while (segmentCount > 1 && capacity / segmentCount < 1024) {
+            segmentCount >>= 1;
+        }
+        
+        final int segmentSize = (int) (capacity / segmentCount);
+        final List<Segment> segments = new ArrayList<Segment>(segmentCount);
+        for (int index = 0; index < segmentCount; index++) {
+            segments.add(new Segment(segmentSize));
+        }
+        this.segments = segments;
+        this.segmentMask = segmentCount - 1;
+        this.capacity = (long) segmentSize * segmentCount;
+    }
+    
+    /**
+     * @return The number of bytes of direct memory allocated for values.
+     */
+    public long getCapacity() {
+        return this.capacity;
+    }
+    
+    /**
+     * @return The number of bytes used by stored values, including replaced and removed values not yet reclaimed.
+     */
+    public long getUsedBytes() {
+        long used = 0;
+        for (final Segment segment : this.segments) {
+            segment.lock.lock();
+            try {
+                used += segment.used;
+            }
+            finally {
+                segment.lock.unlock();
+            }
+        }
+        return used;
+    }
+    
+    /**
+     * @return The default time to live of entries in milliseconds, 0 if entries do not expire by default.
+     */
+    public long getTimeToLive() {
+        return TimeUnit.NANOSECONDS.toMillis(this.timeToLiveNanos);
+    }
+    
+    /**
+     * @return The listener notified of evictions, expirations and rejections, null if none is set.
+     */
+    public IRemovalListener<? super K, ? super V> getRemovalListener() {
+        return this.removalListener;
+    }
+    
+    /**
+     * @param removalListener Notified of every eviction, expiration and rejection, null for no listener
+     */
+    public void setRemovalListener(IRemovalListener<? super K, ? super V> removalListener) {
+        this.removalListener = removalListener;
+    }
+    
+    /**
+     * @return The number of values evicted to make room for new values.
+     */
+    public long getEvictionCount() {
+        return this.evictions.get();
+    }
+    
+    /**
+     * @return The number of entries removed because they expired.
+     */
+    public long getExpirationCount() {
+        return this.expirations.get();
+    }
+    
+    /**
+     * @return The number of values not stored because they were larger than a segment.
+     */
+    public long getRejectionCount() {
+        return this.rejections.get();
+    }
+    
+    /* (non-Javadoc)
+     * @see java.util.AbstractMap#get(java.lang.Object)
+     */
+    @Override
+    public V get(Object key) {
+        if (key == null) {
+            return null;
+        }
+        
+        final byte[] bytes = this.segmentFor(key).read(key);
+        if (bytes == null) {
+            return null;
+        }
+        
+        @SuppressWarnings("unchecked")
+        final V value = (V) SerializationUtils.deserialize(bytes);
+        return value;
+    }
+    
+    /* (non-Javadoc)
+     * @see java.util.AbstractMap#containsKey(java.lang.Object)
+     */
+    @Override
+    public boolean containsKey(Object key) {
+        if (key == null) {
+            return false;
+        }
+        
+        final Segment segment = this.segmentFor(key);
+        segment.lock.lock();
+        try {
+            final Record record = segment.index.get(key);
+            return record != null && !record.isExpired(this.currentTimeNanos());
+        }
+        finally {
+            segment.lock.unlock();
+        }
+    }
+    
+    /**
+     * Returns how much longer the entry will be cached before it expires.
+     *
+     * @return The remaining time to live, at least 1 for an entry that expires, 0 if the entry does not expire and -1
+     * if the key is not cached.
+     */
+    public long getRemainingTimeToLive(Object key, TimeUnit unit) {
+        if (key == null) {
+            return -1;
+        }
+        
+        final Segment segment = this.segmentFor(key);
+        segment.lock.lock();
+        try {
+            final Record record = segment.index.get(key);
+            final long now = this.currentTimeNanos();
+            if (record == null || record.isExpired(now)) {
+                return -1;
+            }
+            if (record.expiresAt == NO_EXPIRATION) {
+                return 0;
+            }
+            return Math.max(1, unit.convert(record.expiresAt - now, TimeUnit.NANOSECONDS));
+        }
+        finally {
+            segment.lock.unlock();
+        }
+    }
+    
+    /**
+     * Stores the value and returns the previous value, which has to be deserialized. Use {@link #set(Object, Object)}
+     * when the previous value is not needed.
+     * 
+     * @see java.util.AbstractMap#put(java.lang.Object, java.lang.Object)
+     */
+    @Override
+    public V put(K key, V value) {
+        final V previous = this.get(key);
+        this.set(key, value);
+        return previous;
+    }
+    
+    /**
+     * Stores the value with the default time to live without reading the previous value.
+     * 
+     * @return true if the value was stored, false if it is larger than a segment.
+     */
+    public boolean set(K key, V value) {
+        return this.setInternal(key, value, this.timeToLiveNanos);
+    }
+    
+    /**
+     * Stores the value with its own time to live without reading the previous value.
+     * 
+     * @param timeToLive The time to live of the entry, 0 for no expiration
+     * @return true if the value was stored, false if it is larger than a segment.
+     */
+    public boolean set(K key, V value, long timeToLive, TimeUnit unit) {
+        Validate.isTrue(timeToLive >= 0, "timeToLive must be 0 or greater");
+        Validate.notNull(unit, "unit may not be null");
+        return this.setInternal(key, value, unit.toNanos(timeToLive));
+    }
+    
+    private boolean setInternal(K key, V value, long timeToLiveNanos) {
+        Validate.notNull(key, "key may not be null");
+        Validate.notNull(value, "value may not be null");
+        
+        Validate.isTrue(value instanceof Serializable, "value must be Serializable");
+        
+        final byte[] bytes = SerializationUtils.serialize((Serializable) value);
+        final long expiresAt = timeToLiveNanos > 0 ? this.currentTimeNanos() + timeToLiveNanos : NO_EXPIRATION;
+        final boolean stored = this.segmentFor(key).write(key, bytes, expiresAt);
+        if (!stored) {
+            this.rejections.incrementAndGet();
+            final IRemovalListener<? super K, ? super V> listener = this.removalListener;
+            if (listener != null) {
+                listener.onRejection(key, value);
+            }
+        }
+        return stored;
+    }
+    
+    /**
+     * Removes the key, returning the previous value which has to be deserialized. Use {@link #delete(Object)} when
+     * the previous value is not needed.
+     * 
+     * @see java.util.AbstractMap#remove(java.lang.Object)
+     */
+    @Override
+    public V remove(Object key) {
+        final V previous = this.get(key);
+        this.delete(key);
+        return previous;
+    }
+    
+    /**
+     * Removes the key without reading the previous value.
+     * 
+     * @return true if the key was present.
+     */
+    public boolean delete(Object key) {
+        if (key == null) {
+            return false;
+        }
+        
+        final Segment segment = this.segmentFor(key);
+        segment.lock.lock();
+        try {
+            return segment.index.remove(key) != null;
+        }
+        finally {
+            segment.lock.unlock();
+        }
+    }
+    
+    /* (non-Javadoc)
+     * @see java.util.AbstractMap#size()
+     */
+    @Override
+    public int size() {
+        int size = 0;
+        for (final Segment segment : this.segments) {
+            segment.lock.lock();
+            try {
+                size += segment.index.size();
+            }
+            finally {
+                segment.lock.unlock();
+            }
+        }
+        return size;
+    }
+    
+    /* (non-Javadoc)
+     * @see java.util.AbstractMap#clear()
+     */
+    @Override
+    public void clear() {
+        for (final Segment segment : this.segments) {
+            segment.lock.lock();
+            try {
+                segment.index.clear();
+                segment.records.clear();
+                segment.head = 0;
+                segment.used = 0;
+            }
+            finally {
+                segment.lock.unlock();
+            }
+        }
+    }
+    
+    /**
+     * @return An unmodifiable snapshot of the entries, every value is deserialized.
+     * @see java.util.AbstractMap#entrySet()
+     */
+    @Override
+    public Set<Map.Entry<K, V>> entrySet() {
+        final Set<Map.Entry<K, V>> entries = new LinkedHashSet<Map.Entry<K, V>>();
+        for (final Segment segment : this.segments) {
+            final List<Object> keys;
+            segment.lock.lock();
+            try {
+                keys = new ArrayList<Object>(segment.index.keySet());
+            }
+            finally {
+                segment.lock.unlock();
+            }
+            
+            for (final Object key : keys) {
+                final V value = this.get(key);
+                if (value != null) {
+                    @SuppressWarnings("unchecked")
+                    final K typedKey = (K)key;
+                    entries.add(new AbstractMap.SimpleImmutableEntry<K, V>(typedKey, value));
+                }
+            }
+        }
+        return Collections.unmodifiableSet(entries);
+    }
+    
+    /**
+     * The current time in nanoseconds used for expiration, exists so tests can control time.
+     */
+    protected long currentTimeNanos() {
+        return System.nanoTime();
+    }
+    
+    /**
+     * Counts and reports the removal of an expired entry.
+     */
+    @SuppressWarnings("unchecked")
+    private void expired(Object key) {
+        this.expirations.incrementAndGet();
+        final IRemovalListener<? super K, ? super V> listener = this.removalListener;
+        if (listener != null) {
+            listener.onExpiration((K) key, null);
+        }
+    }
+    
+    /**
+     * Counts and reports the removal of an entry to make room for a new entry.
+     */
+    @SuppressWarnings("unchecked")
+    private void evicted(Object key) {
+        this.evictions.incrementAndGet();
+        final IRemovalListener<? super K, ? super V> listener = this.removalListener;
+        if (listener != null) {
+            listener.onEviction((K) key, null);
+        }
+    }
+    
+    private Segment segmentFor(Object key) {
+        int h = key.hashCode();
+        h ^= (h >>> 16);
+        h *= 0x85ebca6b;
+        h ^= (h >>> 13);
+        return this.segments.get(h & this.segmentMask);
+    }
+    
+    /**
+     * Location of a value in a segment buffer
+     */
+    private static final class Record {
+        final Object key;
+        final int offset;
+        final int length;
+        final long expiresAt;
+        
+        Record(Object key, int offset, int length, long expiresAt) {
+            this.key = key;
+            this.offset = offset;
+            this.length = length;
+            this.expiresAt = expiresAt;
+        }
+        
+        boolean isExpired(long now) {
+            return this.expiresAt != NO_EXPIRATION && now - this.expiresAt >= 0;
+        }
+    }
+    
+    private final class Segment {
+        final ReentrantLock lock = new ReentrantLock();
+        final ByteBuffer buffer;
+        final Map<Object, Record> index = new HashMap<Object, Record>();
+        
+        /*
+         * Every record in the buffer in the order written, including replaced and removed ones
+         */
+        final LinkedList<Record> records = new LinkedList<Record>();
+        
+        int head = 0;
+        int used = 0;
+        
+        Segment(int size) {
+            this.buffer = ByteBuffer.allocateDirect(size);
+        }
+        
+        byte[] read(Object key) {
+            this.lock.lock();
+            try {
+                final Record record = this.index.get(key);
+                if (record == null) {
+                    return null;
+                }
+                if (record.isExpired(currentTimeNanos())) {
+                    this.index.remove(key);
+                    expired(key);
+                    return null;
+                }
+                
+                final byte[] bytes = new byte[record.length];
+                final ByteBuffer view = this.buffer.duplicate();
+                view.position(record.offset);
+                view.get(bytes);
+                return bytes;
+            }
+            finally {
+                this.lock.unlock();
+            }
+        }
+        
+        boolean write(Object key, byte[] bytes, long expiresAt) {
+            final int length = bytes.length;
+            final int capacity = this.buffer.capacity();
+            
+            this.lock.lock();
+            try {
+                if (length > capacity) {
+                    //Still remove any older value so a stale value is not returned
+                    this.index.remove(key);
+                    return false;
+                }
+                
+                final int offset = this.allocate(length, capacity);
+                final ByteBuffer view = this.buffer.duplicate();
+                view.position(offset);
+                view.put(bytes);
+                
+                final Record record = new Record(key, offset, length, expiresAt);
+                this.records.addLast(record);
+                this.index.put(key, record);
+                this.head = offset + length;
+                this.used += length;
+                return true;
+            }
+            finally {
+                this.lock.unlock();
+            }
+        }
+        
+        /**
+         * Finds the offset to write length bytes at, evicting the oldest records until there is room.
+         */
+        private int allocate(int length, int capacity) {
+            while (true) {
+                final Record oldest = this.records.peekFirst();
+                if (oldest == null) {
+                    this.head = 0;
+                    return 0;
+                }
+                
+                final int tail = oldest.offset;
+                if (this.head > tail) {
+                    //Data between tail and head, free space after head and before tail
+                    if (length <= capacity - this.head) {
+                        return this.head;
+                    }
+                    if (length <= tail) {
+                        return 0;
+                    }
+                }
+                else if (this.head < tail) {
+                    //Data wraps around the end, free space between head and tail
+                    if (length <= tail - this.head) {
+                        return this.head;
+                    }
+                }
+                
+                this.evictOldest();
+            }
+        }
+        
+        private void evictOldest() {
+            final Record oldest = this.records.removeFirst();
+            this.used -= oldest.length;
+            
+            //Only count live values, replaced and removed values were already dropped from the index
+            if (this.index.get(oldest.key) == oldest) {
+                this.index.remove(oldest.key);
+                if (oldest.isExpired(currentTimeNanos())) {
+                    expired(oldest.key);
+                }
+                else {
+                    evicted(oldest.key);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,56 @@
+/**
+ * Licensed to Jasig under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Jasig licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a
+ * copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.jasig.services.persondir.support.cache;
+
+import java.io.Serializable;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.jasig.services.persondir.IPersonAttributes;
+
+/**
+ * Weighs cached query results by the number of people, attributes and attribute values they contain, a rough proxy
+ * for their memory use that lets a {@link BoundedConcurrentCache} used as the <b>userInfoCache</b> of a
+ * {@link org.jasig.services.persondir.support.CachingPersonAttributeDaoImpl} hold many small results or a few
+ * large ones.
+ * 
+ * @author Eric Dalquist
+ * @version $Revision$
+ */
+public class PersonAttributesWeigher implements IWeigher<Serializable, Set<IPersonAttributes>> {
+    /* (non-Javadoc)
+     * @see org.jasig.services.persondir.support.cache.IWeigher#weigh(java.lang.Object, java.lang.Object)
+     */
+    public int weigh(Serializable key, Set<IPersonAttributes> value) {
+        int weight = 1;
+        for (final IPersonAttributes person : value) {
+            weight++;
+            
+            final Map<String, List<Object>> attributes = person.getAttributes();
+            if (attributes != null) {
+                for (final List<Object> values : attributes.values()) {
+                    weight += 1 + (values != null ? values.size() : 0);
+                }
+            }
+        }
+        return weight;
+    }
+}
@@ -0,0 +1,214 @@
+/**
+ * Licensed to Jasig under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Jasig licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a
+ * copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.jasig.services.persondir.support.cache;
+
+import java.util.AbstractMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.lang3.Validate;
+
+/**
+ * A two tier {@link Map} for the <b>userInfoCache</b> of a
+ * {@link org.jasig.services.persondir.support.CachingPersonAttributeDaoImpl} holding more people than fit comfortably
+ * on the heap. The first tier is a small on-heap Map, typically a {@link BoundedConcurrentCache}, holding the hot
+ * set. The second tier is an {@link OffHeapCache} holding serialized copies of every entry.
+ * <br>
+ * <br>
+ * Puts write through to both tiers so entries evicted from the first tier are still found in the second. A get that
+ * misses the first tier and hits the second deserializes the value and promotes it into the first tier. Removes and
+ * clears apply to both tiers. {@link #size()} and {@link #entrySet()} report the second tier, which holds every
+ * entry not yet evicted from it.
+ * <br>
+ * <br>
+ * The second tier copy is written with the same time to live as the first tier entry, the default time to live of
+ * a {@link BoundedConcurrentCache} first tier or the one given to {@link #put(Object, Object, long, TimeUnit)}, so an
+ * entry that expired from the first tier is not found in the second. Promoted entries keep their remaining time to
+ * live.
+ * <br>
+ * <br>
+ * Since every entry is kept in the second tier only its evictions and expirations remove an entry from the cache, an
+ * {@link IRemovalListener} for the cache as a whole should be set on {@link #getSecondTier()}.
+ * 
+ * @author Eric Dalquist
+ * @version $Revision$
+ */
+public class TieredCache<K, V> extends AbstractMap<K, V> {
+    private final Map<K, V> firstTier;
+    private final OffHeapCache<K, V> secondTier;
+    
+    /**
+     * @param firstTier The small on-heap Map for frequently used entries
+     * @param secondTier The off-heap cache for all entries
+     */
+    public TieredCache(Map<K, V> firstTier, OffHeapCache<K, V> secondTier) {
+        Validate.notNull(firstTier, "firstTier may not be null");
+        Validate.notNull(secondTier, "secondTier may not be null");
+        
+        this.firstTier = firstTier;
+        this.secondTier = secondTier;
+    }
+    
+    /**
+     * @return The on-heap first tier.
+     */
+    public Map<K, V> getFirstTier() {
+        return this.firstTier;
+    }
+    
+    /**
+     * @return The off-heap second tier.
+     */
+    public OffHeapCache<K, V> getSecondTier() {
+        return this.secondTier;
+    }
+    
+    /* (non-Javadoc)
+     * @see java.util.AbstractMap#get(java.lang.Object)
+     */
+    @Override
+    public V get(Object key) {
+        V value = this.firstTier.get(key);
+        if (value != null) {
+            return value;
+        }
+        
+        value = this.secondTier.get(key);
+        if (value == null) {
+            return null;
+        }
+        
+        //Only promote entries that are still live, keeping their remaining time to live
+        final long remainingNanos = this.secondTier.getRemainingTimeToLive(key, TimeUnit.NANOSECONDS);
+        if (remainingNanos < 0) {
+            return null;
+        }
+        
+        @SuppressWarnings("unchecked")
+        final K typedKey = (K) key;
+        final BoundedConcurrentCache<K, V> boundedFirstTier = this.getBoundedFirstTier();
+        if (boundedFirstTier != null) {
+            boundedFirstTier.put(typedKey, value, remainingNanos, TimeUnit.NANOSECONDS);
+        }
+        else {
+            this.firstTier.put(typedKey, value);
+        }
+        return value;
+    }
+    
+    /* (non-Javadoc)
+     * @see java.util.AbstractMap#containsKey(java.lang.Object)
+     */
+    @Override
+    public boolean containsKey(Object key) {
+        return this.firstTier.containsKey(key) || this.secondTier.containsKey(key);
+    }
+    
+    /**
+     * Writes the value to both tiers. The previous value is only returned if it was in the first tier, to avoid
+     * deserializing the second tier copy.
+     * 
+     * @see java.util.AbstractMap#put(java.lang.Object, java.lang.Object)
+     */
+    @Override
+    public V put(K key, V value) {
+        final BoundedConcurrentCache<K, V> boundedFirstTier = this.getBoundedFirstTier();
+        if (boundedFirstTier != null) {
+            this.secondTier.set(key, value, boundedFirstTier.getTimeToLive(), TimeUnit.MILLISECONDS);
+        }
+        else {
+            this.secondTier.set(key, value);
+        }
+        return this.firstTier.put(key, value);
+    }
+    
+    /**
+     * Writes the value to both tiers with its own time to live. A first tier that is not a
+     * {@link BoundedConcurrentCache} stores the value without the time to live.
+     * 
+     * @param timeToLive The time to live of the entry, 0 for no expiration
+     * @return The previous value if it was in the first tier
+     */
+    public V put(K key, V value, long timeToLive, TimeUnit unit) {
+        this.secondTier.set(key, value, timeToLive, unit);
+        
+        final BoundedConcurrentCache<K, V> boundedFirstTier = this.getBoundedFirstTier();
+        if (boundedFirstTier != null) {
+            return boundedFirstTier.put(key, value, timeToLive, unit);
+        }
+        return this.firstTier.put(key, value);
+    }
+    
+    /**
+     * Returns how much longer the entry will be cached before it expires, as tracked by the second tier.
+     *
+     * @return The remaining time to live, at least 1 for an entry that expires, 0 if the entry does not expire and -1
+     * if the key is not cached.
+     */
+    public long getRemainingTimeToLive(Object key, TimeUnit unit) {
+        return this.secondTier.getRemainingTimeToLive(key, unit);
+    }
+    
+    /**
+     * Removes the key from both tiers. The previous value is only returned if it was in the first tier, to avoid
+     * deserializing the second tier copy.
+     * 
+     * @see java.util.AbstractMap#remove(java.lang.Object)
+     */
+    @Override
+    public V remove(Object key) {
+        this.secondTier.delete(key);
+        return this.firstTier.remove(key);
+    }
+    
+    /* (non-Javadoc)
+     * @see java.util.AbstractMap#size()
+     */
+    @Override
+    public int size() {
+        return this.secondTier.size();
+    }
+    
+    /* (non-Javadoc)
+     * @see java.util.AbstractMap#clear()
+     */
+    @Override
+    public void clear() {
+        this.firstTier.clear();
+        this.secondTier.clear();
+    }
+    
+    /* (non-Javadoc)
+     * @see java.util.AbstractMap#entrySet()
+     */
+    @Override
+    public Set<Map.Entry<K, V>> entrySet() {
+        return this.secondTier.entrySet();
+    }
+    
+    @SuppressWarnings("unchecked")
+    private BoundedConcurrentCache<K, V> getBoundedFirstTier() {
+        if (this.firstTier instanceof BoundedConcurrentCache) {
+            return (BoundedConcurrentCache<K, V>) this.firstTier;
+        }
+        return null;
+    }
+}
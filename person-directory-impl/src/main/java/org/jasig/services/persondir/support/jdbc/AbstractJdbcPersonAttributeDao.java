@@ -26,8 +26,10 @@ import java.util.HashMap;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 import javax.sql.DataSource;
 
@@ -37,9 +39,11 @@ import org.jasig.services.persondir.IPersonAttributeDao;
 import org.jasig.services.persondir.IPersonAttributes;
 import org.jasig.services.persondir.support.AbstractQueryPersonAttributeDao;
 import org.jasig.services.persondir.support.QueryType;
+import org.jasig.services.persondir.support.cache.BoundedConcurrentCache;
 import org.jasig.services.persondir.util.CaseCanonicalizationMode;
 import org.springframework.jdbc.core.simple.ParameterizedRowMapper;
 import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.RowCallbackHandler;
 
 /**
  * Provides common logic for executing a JDBC based query including building the WHERE clause SQL string.
@@ -67,7 +71,8 @@ import org.springframework.jdbc.core.JdbcTemplate;
  * @version $Revision$
  */
 public abstract class AbstractJdbcPersonAttributeDao<R> extends AbstractQueryPersonAttributeDao<PartialWhereClause> {
-    private static final Pattern WHERE_PLACEHOLDER = Pattern.compile("\\{0\\}");
+    private static final String WHERE_PLACEHOLDER = "{0}";
+    private static final int QUERY_SHAPE_CACHE_SIZE = 512;
     private static final Map<CaseCanonicalizationMode,MessageFormat> DEFAULT_DATA_ATTRIBUTE_CASE_CANONICALIZATION_FUNCTIONS =
             Collections.unmodifiableMap(new LinkedHashMap<CaseCanonicalizationMode, MessageFormat>() {{
                 put(CaseCanonicalizationMode.LOWER, new MessageFormat("lower({0})"));
@@ -78,7 +83,18 @@ public abstract class AbstractJdbcPersonAttributeDao<R> extends AbstractQueryPer
     private final JdbcTemplate simpleJdbcTemplate;
     private final String queryTemplate;
     private QueryType queryType = QueryType.AND;
+    private String queryTypeSql = " AND ";
     private Map<String,CaseCanonicalizationMode> caseInsensitiveDataAttributes;
+    
+    /**
+     * The "column = ?" and "column LIKE ?" WHERE clause fragments for each data attribute
+     */
+    private final ConcurrentMap<String, String[]> columnFragments = new ConcurrentHashMap<String, String[]>();
+    
+    /**
+     * Final SQL statement for each generated WHERE clause, the WHERE clause only depends on the shape of the query
+     */
+    private final Map<String, String> statementCache = new BoundedConcurrentCache<String, String>(QUERY_SHAPE_CACHE_SIZE);
 
     private Map<CaseCanonicalizationMode,MessageFormat> dataAttributeCaseCanonicalizationFunctions = DEFAULT_DATA_ATTRIBUTE_CASE_CANONICALIZATION_FUNCTIONS;
     
@@ -114,6 +130,7 @@ public abstract class AbstractJdbcPersonAttributeDao<R> extends AbstractQueryPer
      */
     public void setQueryType(QueryType queryType) {
         this.queryType = queryType;
+        this.queryTypeSql = " " + queryType.toString() + " ";
     }
 
 
@@ -131,6 +148,30 @@ public abstract class AbstractJdbcPersonAttributeDao<R> extends AbstractQueryPer
      */
     protected abstract ParameterizedRowMapper<R> getRowMapper();
     
+    /**
+     * The default implementation calls {@link #getRowMapper()}, subclasses can override this to avoid mapping
+     * columns that are not needed.
+     * 
+     * @param dataAttributes The data attributes needed from the results.
+     * @return The ParameterizedRowMapper to handle the results of the SQL query.
+     */
+    protected ParameterizedRowMapper<R> getRowMapper(Set<String> dataAttributes) {
+        return this.getRowMapper();
+    }
+    
+    /**
+     * The default implementation calls {@link #parseAttributeMapFromResults(List, String)}, subclasses can override
+     * this to avoid parsing attributes that are not needed.
+     * 
+     * @param queryResults Results from the query.
+     * @param queryUserName The username passed in the query map, if no username attribute existed in the query Map null is provided.
+     * @param dataAttributes The data attributes needed from the results.
+     * @return The results of the query 
+     */
+    protected List<IPersonAttributes> parseAttributeMapFromResults(final List<R> queryResults, String queryUserName, Set<String> dataAttributes) {
+        return this.parseAttributeMapFromResults(queryResults, queryUserName);
+    }
+    
     /* (non-Javadoc)
      * @see org.jasig.services.persondir.support.AbstractQueryPersonAttributeDao#appendAttributeToQuery(java.lang.Object, java.lang.String, java.util.List)
      */
@@ -143,7 +184,7 @@ public abstract class AbstractJdbcPersonAttributeDao<R> extends AbstractQueryPer
                     queryBuilder = new PartialWhereClause();
                 }
                 else if (queryBuilder.sql.length() > 0) {
-                    queryBuilder.sql.append(" ").append(this.queryType.toString()).append(" ");
+                    queryBuilder.sql.append(this.queryTypeSql);
                 }
 
                 //Convert to SQL wildcard
@@ -152,21 +193,35 @@ public abstract class AbstractJdbcPersonAttributeDao<R> extends AbstractQueryPer
                 
                 queryBuilder.arguments.add(formattedQueryValue);
                 if (dataAttribute != null) {
-                    dataAttribute = canonicalizeDataAttributeForSql(dataAttribute);
-                    queryBuilder.sql.append(dataAttribute);
+                    final String[] fragments = this.getColumnFragments(dataAttribute);
                     if (formattedQueryValue.equals(queryString)) {
-                        queryBuilder.sql.append(" = ");
+                        queryBuilder.sql.append(fragments[0]);
                     }
                     else {
-                        queryBuilder.sql.append(" LIKE ");
+                        queryBuilder.sql.append(fragments[1]);
                     }
                 }
-                queryBuilder.sql.append("?");
+                else {
+                    queryBuilder.sql.append("?");
+                }
             }
         }
         
         return queryBuilder;
     }
+    
+    /**
+     * @return The equals and LIKE comparisons for the canonicalized column of the data attribute
+     */
+    private String[] getColumnFragments(String dataAttribute) {
+        String[] fragments = this.columnFragments.get(dataAttribute);
+        if (fragments == null) {
+            final String column = canonicalizeDataAttributeForSql(dataAttribute);
+            fragments = new String[] { column + " = ?", column + " LIKE ?" };
+            this.columnFragments.put(dataAttribute, fragments);
+        }
+        return fragments;
+    }
 
     /**
      * Canonicalize the data-layer attribute column with the given name via
@@ -205,16 +260,23 @@ public abstract class AbstractJdbcPersonAttributeDao<R> extends AbstractQueryPer
      */
     @Override
     protected List<IPersonAttributes> getPeopleForQuery(PartialWhereClause queryBuilder, String queryUserName) {
-        //Execute the query
-        final ParameterizedRowMapper<R> rowMapper = this.getRowMapper();
-        
+        final List<R> results = this.executeQuery(queryBuilder, this.getRowMapper());
+        return this.parseAttributeMapFromResults(results, queryUserName);
+    }
+    
+    /* (non-Javadoc)
+     * @see org.jasig.services.persondir.support.AbstractQueryPersonAttributeDao#getPeopleForQuery(java.lang.Object, java.lang.String, java.util.Set)
+     */
+    @Override
+    protected List<IPersonAttributes> getPeopleForQuery(PartialWhereClause queryBuilder, String queryUserName, Set<String> dataAttributes) {
+        final List<R> results = this.executeQuery(queryBuilder, this.getRowMapper(dataAttributes));
+        return this.parseAttributeMapFromResults(results, queryUserName, dataAttributes);
+    }
+    
+    private List<R> executeQuery(PartialWhereClause queryBuilder, ParameterizedRowMapper<R> rowMapper) {
         final List<R> results;
         if (queryBuilder != null) {
-            //Merge the generated SQL with the base query template
-            final StringBuilder partialSqlWhere = queryBuilder.sql;
-            final Matcher queryMatcher = WHERE_PLACEHOLDER.matcher(this.queryTemplate);
-            final String querySQL = queryMatcher.replaceAll(partialSqlWhere.toString());
-            
+            final String querySQL = this.getQuerySql(queryBuilder);
             results = this.simpleJdbcTemplate.query(querySQL, rowMapper, queryBuilder.arguments.toArray());
             
             if (this.logger.isDebugEnabled()) {
@@ -229,7 +291,45 @@ public abstract class AbstractJdbcPersonAttributeDao<R> extends AbstractQueryPer
             }
         }
 
-        return this.parseAttributeMapFromResults(results, queryUserName);
+        return results;
+    }
+    
+    /**
+     * Executes the query passing each row of the results to the {@link RowCallbackHandler}, for subclasses that
+     * process rows as they are read instead of mapping them to a {@link List} first.
+     * 
+     * @param queryBuilder The generated WHERE clause, null to execute the queryTemplate as-is
+     * @param rowCallbackHandler Handler to process each row of the results
+     */
+    protected void executeQuery(PartialWhereClause queryBuilder, RowCallbackHandler rowCallbackHandler) {
+        if (queryBuilder != null) {
+            final String querySQL = this.getQuerySql(queryBuilder);
+            this.simpleJdbcTemplate.query(querySQL, rowCallbackHandler, queryBuilder.arguments.toArray());
+            
+            if (this.logger.isDebugEnabled()) {
+                this.logger.debug("Executed '" + this.queryTemplate + "' with arguments " + queryBuilder.arguments);
+            }
+        }
+        else {
+            this.simpleJdbcTemplate.query(this.queryTemplate, rowCallbackHandler);
+            
+            if (this.logger.isDebugEnabled()) {
+                this.logger.debug("Executed '" + this.queryTemplate + "'");
+            }
+        }
+    }
+    
+    /**
+     * Merges the generated WHERE clause with the base query template, once per query shape
+     */
+    private String getQuerySql(PartialWhereClause queryBuilder) {
+        final String partialSqlWhere = queryBuilder.sql.toString();
+        String querySQL = this.statementCache.get(partialSqlWhere);
+        if (querySQL == null) {
+            querySQL = StringUtils.replace(this.queryTemplate, WHERE_PLACEHOLDER, partialSqlWhere);
+            this.statementCache.put(partialSqlWhere, querySQL);
+        }
+        return querySQL;
     }
 
     public Map<String, CaseCanonicalizationMode> getCaseInsensitiveDataAttributes() {
@@ -238,6 +338,7 @@ public abstract class AbstractJdbcPersonAttributeDao<R> extends AbstractQueryPer
 
     public void setCaseInsensitiveDataAttributes(Map<String, CaseCanonicalizationMode> caseInsensitiveDataAttributes) {
         this.caseInsensitiveDataAttributes = caseInsensitiveDataAttributes;
+        this.columnFragments.clear();
     }
 
     public void setCaseInsensitiveDataAttributesAsCollection(Collection<String> caseInsensitiveDataAttributes) {
@@ -267,6 +368,16 @@ public abstract class AbstractJdbcPersonAttributeDao<R> extends AbstractQueryPer
      */
     public void setDataAttributeCaseCanonicalizationFunctions(Map<CaseCanonicalizationMode, MessageFormat> dataAttributeCaseCanonicalizationFunctions) {
         this.dataAttributeCaseCanonicalizationFunctions = dataAttributeCaseCanonicalizationFunctions;
+        this.columnFragments.clear();
+    }
+    
+    /* (non-Javadoc)
+     * @see org.jasig.services.persondir.support.AbstractQueryPersonAttributeDao#setDefaultCaseCanonicalizationMode(org.jasig.services.persondir.util.CaseCanonicalizationMode)
+     */
+    @Override
+    public void setDefaultCaseCanonicalizationMode(CaseCanonicalizationMode defaultCaseCanonicalizationMode) {
+        super.setDefaultCaseCanonicalizationMode(defaultCaseCanonicalizationMode);
+        this.columnFragments.clear();
     }
 
     public Map<CaseCanonicalizationMode, MessageFormat> getDataAttributeCaseCanonicalizationFunctions() {
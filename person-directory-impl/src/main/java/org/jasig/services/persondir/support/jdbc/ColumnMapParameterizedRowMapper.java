@@ -23,6 +23,8 @@ import java.sql.ResultSet;
 import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
 import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
 
 import org.apache.commons.collections.map.CaseInsensitiveMap;
 import org.apache.commons.collections.map.ListOrderedMap;
@@ -37,13 +39,30 @@ import org.springframework.jdbc.support.JdbcUtils;
  */
 public class ColumnMapParameterizedRowMapper implements ParameterizedRowMapper<Map<String, Object>> {
     private final boolean ignoreNull;
+    private final Set<String> includedColumns;
     
     public ColumnMapParameterizedRowMapper() {
         this(false);
     }
     
     public ColumnMapParameterizedRowMapper(boolean ignoreNull) {
+        this(ignoreNull, null);
+    }
+    
+    /**
+     * @param ignoreNull If columns with null values should be left out of the column Map
+     * @param includedColumns Case-insensitive names of the columns to include in the column Map, null to include all columns
+     */
+    public ColumnMapParameterizedRowMapper(boolean ignoreNull, Set<String> includedColumns) {
         this.ignoreNull = ignoreNull;
+        
+        if (includedColumns == null) {
+            this.includedColumns = null;
+        }
+        else {
+            this.includedColumns = new TreeSet<String>(String.CASE_INSENSITIVE_ORDER);
+            this.includedColumns.addAll(includedColumns);
+        }
     }
     
     
@@ -57,6 +76,10 @@ public class ColumnMapParameterizedRowMapper implements ParameterizedRowMapper<M
         
         for (int i = 1; i <= columnCount; i++) {
             final String columnName = JdbcUtils.lookupColumnName(rsmd, i);
+            if (this.includedColumns != null && !this.includedColumns.contains(columnName)) {
+                continue;
+            }
+            
             final Object obj = this.getColumnValue(rs, i);
             if (!this.ignoreNull || obj != null) {
                 final String key = this.getColumnKey(columnName);
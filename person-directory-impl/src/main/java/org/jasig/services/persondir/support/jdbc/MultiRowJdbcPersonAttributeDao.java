@@ -19,11 +19,15 @@
 
 package org.jasig.services.persondir.support.jdbc;
 
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.TreeMap;
 
 import javax.sql.DataSource;
 
@@ -31,9 +35,11 @@ import org.apache.commons.collections.Factory;
 import org.apache.commons.collections.map.LazyMap;
 import org.jasig.services.persondir.IPersonAttributes;
 import org.jasig.services.persondir.support.MultivaluedPersonAttributeUtils;
-import org.jasig.services.persondir.support.NamedPersonImpl;
+import org.jasig.services.persondir.support.PersonBuilder;
 import org.springframework.jdbc.BadSqlGrammarException;
+import org.springframework.jdbc.core.RowCallbackHandler;
 import org.springframework.jdbc.core.simple.ParameterizedRowMapper;
+import org.springframework.jdbc.support.JdbcUtils;
 
 /**
  * An {@link org.jasig.services.persondir.IPersonAttributeDao}
@@ -94,6 +100,16 @@ import org.springframework.jdbc.core.simple.ParameterizedRowMapper;
  *         <td valign="top">Yes</td>
  *         <td valign="top">null</td>
  *     </tr>
+ *     <tr>
+ *         <td align="right" valign="top">streamingRows</td>
+ *         <td>
+ *             If rows should be added to the attributes of each person as they are read from the result set instead
+ *             of first mapping every row to a column {@link Map}. The column indexes are resolved once per query.
+ *             When true {@link #parseAttributeMapFromResults(List, String, Set)} is not called.
+ *         </td>
+ *         <td valign="top">No</td>
+ *         <td valign="top">false</td>
+ *     </tr>
  * </table>
  * 
  * @author andrew.petro@yale.edu
@@ -110,6 +126,8 @@ public class MultiRowJdbcPersonAttributeDao extends AbstractJdbcPersonAttributeD
      */
     private Map<String, Set<String>> nameValueColumnMappings = null;
     
+    private boolean streamingRows = false;
+    
     /**
      * Creates a new MultiRowJdbcPersonAttributeDao specifying the DataSource and SQL to use.
      * 
@@ -148,6 +166,22 @@ public class MultiRowJdbcPersonAttributeDao extends AbstractJdbcPersonAttributeD
             this.nameValueColumnMappings = mappings;
         }
     }
+    
+    /**
+     * @return the streamingRows
+     */
+    public boolean isStreamingRows() {
+        return this.streamingRows;
+    }
+    /**
+     * If rows should be added to the attributes of each person as they are read from the result set instead of first
+     * mapping every row to a column {@link Map}.
+     * 
+     * @param streamingRows the streamingRows to set
+     */
+    public void setStreamingRows(boolean streamingRows) {
+        this.streamingRows = streamingRows;
+    }
 
 
     /* (non-Javadoc)
@@ -157,6 +191,34 @@ public class MultiRowJdbcPersonAttributeDao extends AbstractJdbcPersonAttributeD
     protected ParameterizedRowMapper<Map<String, Object>> getRowMapper() {
         return MAPPER;
     }
+    
+    /* (non-Javadoc)
+     * @see org.jasig.services.persondir.support.jdbc.AbstractJdbcPersonAttributeDao#getPeopleForQuery(org.jasig.services.persondir.support.jdbc.PartialWhereClause, java.lang.String)
+     */
+    @Override
+    protected List<IPersonAttributes> getPeopleForQuery(PartialWhereClause queryBuilder, String queryUserName) {
+        if (!this.streamingRows) {
+            return super.getPeopleForQuery(queryBuilder, queryUserName);
+        }
+        
+        final PivotingRowCallbackHandler rowCallbackHandler = new PivotingRowCallbackHandler(queryUserName, null);
+        this.executeQuery(queryBuilder, rowCallbackHandler);
+        return this.buildPeople(rowCallbackHandler.peopleAttributes);
+    }
+    
+    /* (non-Javadoc)
+     * @see org.jasig.services.persondir.support.jdbc.AbstractJdbcPersonAttributeDao#getPeopleForQuery(org.jasig.services.persondir.support.jdbc.PartialWhereClause, java.lang.String, java.util.Set)
+     */
+    @Override
+    protected List<IPersonAttributes> getPeopleForQuery(PartialWhereClause queryBuilder, String queryUserName, Set<String> dataAttributes) {
+        if (!this.streamingRows) {
+            return super.getPeopleForQuery(queryBuilder, queryUserName, dataAttributes);
+        }
+        
+        final PivotingRowCallbackHandler rowCallbackHandler = new PivotingRowCallbackHandler(queryUserName, dataAttributes);
+        this.executeQuery(queryBuilder, rowCallbackHandler);
+        return this.buildPeople(rowCallbackHandler.peopleAttributes);
+    }
 
     
     
@@ -164,34 +226,24 @@ public class MultiRowJdbcPersonAttributeDao extends AbstractJdbcPersonAttributeD
      * @see org.jasig.services.persondir.support.jdbc.AbstractJdbcPersonAttributeDao#parseAttributeMapFromResults(java.util.List, java.lang.String)
      */
     @Override
-    @SuppressWarnings("unchecked")
     protected List<IPersonAttributes> parseAttributeMapFromResults(List<Map<String, Object>> queryResults, String queryUserName) {
+        return this.parseAttributeMapFromResults(queryResults, queryUserName, null);
+    }
+    
+    /**
+     * Rows for attributes that are not in dataAttributes are skipped.
+     * 
+     * @see org.jasig.services.persondir.support.jdbc.AbstractJdbcPersonAttributeDao#parseAttributeMapFromResults(java.util.List, java.lang.String, java.util.Set)
+     */
+    @Override
+    @SuppressWarnings("unchecked")
+    protected List<IPersonAttributes> parseAttributeMapFromResults(List<Map<String, Object>> queryResults, String queryUserName, Set<String> dataAttributes) {
         final Map<String, Map<String, List<Object>>> peopleAttributesBuilder = LazyMap.decorate(new LinkedHashMap<String, Map<String, List<Object>>>(), new LinkedHashMapFactory<String, List<Object>>());
 
         final String userNameAttribute = this.getConfiguredUserNameAttribute();
         
         for (final Map<String, Object> queryResult : queryResults) {
-            final String userName;  // Choose a username from the best available option
-            if (this.isUserNameAttributeConfigured() && queryResult.containsKey(userNameAttribute)) {
-                // Option #1:  An attribute is named explicitly in the config, 
-                // and that attribute is present in the results from LDAP;  use it
-                final Object userNameValue = queryResult.get(userNameAttribute);
-                userName = userNameValue.toString();
-            } else if (queryUserName != null) {
-                // Option #2:  Use the userName attribute provided in the query 
-                // parameters.  (NB:  I'm not entirely sure this choice is 
-                // preferable to Option #3.  Keeping it because it most closely 
-                // matches the legacy behavior there the new option -- Option #1 
-                // -- doesn't apply.  ~drewwills)
-                userName = queryUserName;
-            } else if (queryResult.containsKey(userNameAttribute)) {
-                // Option #3:  Create the IPersonAttributes useing the default 
-                // userName attribute, which we know to be present
-                final Object userNameValue = queryResult.get(userNameAttribute);
-                userName = userNameValue.toString();
-            } else {
-                throw new BadSqlGrammarException("No userName column named '" + userNameAttribute + "' exists in result set and no userName provided in query Map", this.getQueryTemplate(), null);
-            }
+            final String userName = this.getUserName(queryResult.containsKey(userNameAttribute), queryResult.get(userNameAttribute), queryUserName);
             
             final Map<String, List<Object>> attributes = peopleAttributesBuilder.get(userName);
             
@@ -205,6 +257,9 @@ public class MultiRowJdbcPersonAttributeDao extends AbstractJdbcPersonAttributeD
                     throw new BadSqlGrammarException("No attribute key column named '" + keyColumn + "' exists in result set", this.getQueryTemplate(), null);
                 }
                 final String attrName = String.valueOf(attrNameObj);
+                if (dataAttributes != null && !dataAttributes.contains(attrName)) {
+                    continue;
+                }
                 
                 //Get the columns containing the values and add all values to a List
                 final Set<String> valueColumns = columnMapping.getValue();
@@ -224,19 +279,147 @@ public class MultiRowJdbcPersonAttributeDao extends AbstractJdbcPersonAttributeD
         }
         
         
-        //Convert the builder structure into a List of IPersons
+        return this.buildPeople(peopleAttributesBuilder);
+    }
+    
+    /**
+     * Choose a username from the best available option
+     * 
+     * @param hasUserNameColumn If the result set has a column for the configured userName attribute
+     * @param userNameValue The value of the userName column in the row
+     * @param queryUserName The username passed in the query map
+     */
+    private String getUserName(boolean hasUserNameColumn, Object userNameValue, String queryUserName) {
+        if (this.isUserNameAttributeConfigured() && hasUserNameColumn) {
+            // Option #1:  An attribute is named explicitly in the config, 
+            // and that attribute is present in the results from LDAP;  use it
+            return userNameValue.toString();
+        } else if (queryUserName != null) {
+            // Option #2:  Use the userName attribute provided in the query 
+            // parameters.  (NB:  I'm not entirely sure this choice is 
+            // preferable to Option #3.  Keeping it because it most closely 
+            // matches the legacy behavior there the new option -- Option #1 
+            // -- doesn't apply.  ~drewwills)
+            return queryUserName;
+        } else if (hasUserNameColumn) {
+            // Option #3:  Create the IPersonAttributes useing the default 
+            // userName attribute, which we know to be present
+            return userNameValue.toString();
+        } else {
+            throw new BadSqlGrammarException("No userName column named '" + this.getConfiguredUserNameAttribute() + "' exists in result set and no userName provided in query Map", this.getQueryTemplate(), null);
+        }
+    }
+    
+    /**
+     * Convert the builder structure into a List of IPersons
+     */
+    private List<IPersonAttributes> buildPeople(Map<String, Map<String, List<Object>>> peopleAttributesBuilder) {
         final List<IPersonAttributes> people = new ArrayList<IPersonAttributes>(peopleAttributesBuilder.size());
         
         for (final Map.Entry<String, Map<String, List<Object>>> mappedAttributesEntry : peopleAttributesBuilder.entrySet()) {
             final String userName = mappedAttributesEntry.getKey();
             final Map<String, List<Object>> attributes = mappedAttributesEntry.getValue();
-            final IPersonAttributes person = new NamedPersonImpl(userName, attributes);
+            //The attribute Maps and value Lists were created above, use them without copying
+            final IPersonAttributes person = PersonBuilder.takeOwnership(attributes, false).build(userName);
             people.add(person);
         }
 
         return people;
     }
     
+    /**
+     * Pivots each row straight into the attributes of its person. The indexes of the userName, attribute name and
+     * attribute value columns are resolved from the {@link ResultSetMetaData} of the first row.
+     */
+    private /* not static*/ final class PivotingRowCallbackHandler implements RowCallbackHandler {
+        private final String queryUserName;
+        private final Set<String> dataAttributes;
+        private final Map<String, Map<String, List<Object>>> peopleAttributes = new LinkedHashMap<String, Map<String, List<Object>>>();
+        
+        private int userNameIndex;
+        private int[] keyIndexes;
+        private int[][] valueIndexes;
+        
+        public PivotingRowCallbackHandler(String queryUserName, Set<String> dataAttributes) {
+            this.queryUserName = queryUserName;
+            this.dataAttributes = dataAttributes;
+        }
+
+        /* (non-Javadoc)
+         * @see org.springframework.jdbc.core.RowCallbackHandler#processRow(java.sql.ResultSet)
+         */
+        public void processRow(ResultSet rs) throws SQLException {
+            if (this.keyIndexes == null) {
+                this.resolveColumns(rs.getMetaData());
+            }
+            
+            final boolean hasUserNameColumn = this.userNameIndex > 0;
+            final Object userNameValue = hasUserNameColumn ? JdbcUtils.getResultSetValue(rs, this.userNameIndex) : null;
+            final String userName = getUserName(hasUserNameColumn, userNameValue, this.queryUserName);
+            
+            Map<String, List<Object>> attributes = this.peopleAttributes.get(userName);
+            if (attributes == null) {
+                attributes = new LinkedHashMap<String, List<Object>>();
+                this.peopleAttributes.put(userName, attributes);
+            }
+            
+            for (int mapping = 0; mapping < this.keyIndexes.length; mapping++) {
+                final String attrName = String.valueOf(JdbcUtils.getResultSetValue(rs, this.keyIndexes[mapping]));
+                if (this.dataAttributes != null && !this.dataAttributes.contains(attrName)) {
+                    continue;
+                }
+                
+                final int[] valueColumns = this.valueIndexes[mapping];
+                final List<Object> attrValues = new ArrayList<Object>(valueColumns.length);
+                for (final int valueColumn : valueColumns) {
+                    attrValues.add(JdbcUtils.getResultSetValue(rs, valueColumn));
+                }
+                
+                MultivaluedPersonAttributeUtils.addResult(attributes, attrName, attrValues);
+            }
+        }
+        
+        private void resolveColumns(ResultSetMetaData rsmd) throws SQLException {
+            //Column names are case-insensitive and a later column with the same name wins, same as the column Map
+            final Map<String, Integer> columnIndexes = new TreeMap<String, Integer>(String.CASE_INSENSITIVE_ORDER);
+            final int columnCount = rsmd.getColumnCount();
+            for (int index = 1; index <= columnCount; index++) {
+                columnIndexes.put(JdbcUtils.lookupColumnName(rsmd, index), index);
+            }
+            
+            final Integer userNameColumn = columnIndexes.get(getConfiguredUserNameAttribute());
+            this.userNameIndex = userNameColumn != null ? userNameColumn : 0;
+            
+            final int[] keyIndexes = new int[nameValueColumnMappings.size()];
+            final int[][] valueIndexes = new int[keyIndexes.length][];
+            int mapping = 0;
+            for (final Map.Entry<String, Set<String>> columnMapping : nameValueColumnMappings.entrySet()) {
+                final String keyColumn = columnMapping.getKey();
+                final Integer keyIndex = columnIndexes.get(keyColumn);
+                if (keyIndex == null) {
+                    throw new BadSqlGrammarException("No attribute key column named '" + keyColumn + "' exists in result set", getQueryTemplate(), null);
+                }
+                keyIndexes[mapping] = keyIndex;
+                
+                final Set<String> valueColumns = columnMapping.getValue();
+                valueIndexes[mapping] = new int[valueColumns.size()];
+                int value = 0;
+                for (final String valueColumn : valueColumns) {
+                    final Integer valueIndex = columnIndexes.get(valueColumn);
+                    if (valueIndex == null) {
+                        throw new BadSqlGrammarException("No attribute value column named '" + valueColumn + "' exists in result set", getQueryTemplate(), null);
+                    }
+                    valueIndexes[mapping][value++] = valueIndex;
+                }
+                
+                mapping++;
+            }
+            
+            this.valueIndexes = valueIndexes;
+            this.keyIndexes = keyIndexes;
+        }
+    }
+    
     private static final class LinkedHashMapFactory<K, V> implements Factory {
         public Map<K, V> create() {
             return new LinkedHashMap<K, V>();
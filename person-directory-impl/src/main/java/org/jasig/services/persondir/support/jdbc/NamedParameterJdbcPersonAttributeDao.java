@@ -33,8 +33,8 @@ import javax.sql.DataSource;
 
 import org.jasig.services.persondir.IPersonAttributes;
 import org.jasig.services.persondir.support.AbstractDefaultAttributePersonAttributeDao;
-import org.jasig.services.persondir.support.CaseInsensitiveNamedPersonImpl;
 import org.jasig.services.persondir.support.IUsernameAttributeProvider;
+import org.jasig.services.persondir.support.PersonBuilder;
 import org.springframework.beans.factory.InitializingBean;
 import org.springframework.beans.factory.annotation.Required;
 import org.springframework.jdbc.core.RowCallbackHandler;
@@ -194,11 +194,11 @@ public class NamedParameterJdbcPersonAttributeDao extends AbstractDefaultAttribu
         }
         
         public Set<IPersonAttributes> getResults() {
-            Map<String,List<Object>> mapOfLists = new HashMap<String,List<Object>>();
+            PersonBuilder personBuilder = new PersonBuilder(attributes.size(), true);
             for (Map.Entry<String,Set<Object>> y : attributes.entrySet()) {
-                mapOfLists.put(y.getKey(), new ArrayList<Object>(y.getValue()));
+                personBuilder.put(y.getKey(), new ArrayList<Object>(y.getValue()));
             }
-            IPersonAttributes person = new CaseInsensitiveNamedPersonImpl(username, mapOfLists);
+            IPersonAttributes person = personBuilder.build(username);
             return Collections.singleton(person);
         }
         
@@ -20,15 +20,15 @@
 package org.jasig.services.persondir.support.jdbc;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import javax.sql.DataSource;
 
 import org.jasig.services.persondir.IPersonAttributes;
-import org.jasig.services.persondir.support.CaseInsensitiveAttributeNamedPersonImpl;
-import org.jasig.services.persondir.support.CaseInsensitiveNamedPersonImpl;
-import org.jasig.services.persondir.support.MultivaluedPersonAttributeUtils;
+import org.jasig.services.persondir.support.PersonBuilder;
 import org.springframework.jdbc.core.simple.ParameterizedRowMapper;
 
 /**
@@ -86,6 +86,16 @@ public class SingleRowJdbcPersonAttributeDao extends AbstractJdbcPersonAttribute
     protected ParameterizedRowMapper<Map<String, Object>> getRowMapper() {
         return MAPPER;
     }
+    
+    /**
+     * Only maps the columns for the needed data attributes.
+     * 
+     * @see org.jasig.services.persondir.support.jdbc.AbstractJdbcPersonAttributeDao#getRowMapper(java.util.Set)
+     */
+    @Override
+    protected ParameterizedRowMapper<Map<String, Object>> getRowMapper(Set<String> dataAttributes) {
+        return new ColumnMapParameterizedRowMapper(true, dataAttributes);
+    }
 
     
     /* (non-Javadoc)
@@ -96,25 +106,29 @@ public class SingleRowJdbcPersonAttributeDao extends AbstractJdbcPersonAttribute
         final List<IPersonAttributes> peopleAttributes = new ArrayList<IPersonAttributes>(queryResults.size());
         
         for (final Map<String, Object> queryResult : queryResults) {
-            final Map<String, List<Object>> multivaluedQueryResult = MultivaluedPersonAttributeUtils.toMultivaluedMap(queryResult);
+            //Build the person directly from the row, singleton Lists are already read-only
+            final PersonBuilder personBuilder = new PersonBuilder(queryResult.size(), true);
+            for (final Map.Entry<String, Object> column : queryResult.entrySet()) {
+                personBuilder.putReadOnly(column.getKey(), Collections.singletonList(column.getValue()));
+            }
             
             final IPersonAttributes person;
             final String userNameAttribute = this.getConfiguredUserNameAttribute();
             if (this.isUserNameAttributeConfigured() && queryResult.containsKey(userNameAttribute)) {
                 // Option #1:  An attribute is named explicitly in the config, 
                 // and that attribute is present in the results from LDAP;  use it
-                person = new CaseInsensitiveAttributeNamedPersonImpl(userNameAttribute, multivaluedQueryResult);
+                person = personBuilder.buildAttributeNamed(userNameAttribute);
             } else if (queryUserName != null) {
                 // Option #2:  Use the userName attribute provided in the query 
                 // parameters.  (NB:  I'm not entirely sure this choice is 
                 // preferable to Option #3.  Keeping it because it most closely 
                 // matches the legacy behavior there the new option -- Option #1 
                 // -- doesn't apply.  ~drewwills)
-                person = new CaseInsensitiveNamedPersonImpl(queryUserName, multivaluedQueryResult);
+                person = personBuilder.build(queryUserName);
             } else {
                 // Option #3:  Create the IPersonAttributes doing a best-guess 
                 // at a userName attribute
-                person = new CaseInsensitiveAttributeNamedPersonImpl(userNameAttribute, multivaluedQueryResult);
+                person = personBuilder.buildAttributeNamed(userNameAttribute);
             }
             
             peopleAttributes.add(person);
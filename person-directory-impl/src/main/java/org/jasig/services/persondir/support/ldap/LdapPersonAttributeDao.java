@@ -23,7 +23,6 @@ import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 import javax.naming.directory.SearchControls;
@@ -31,17 +30,15 @@ import javax.naming.directory.SearchControls;
 import org.apache.commons.lang3.StringUtils;
 import org.jasig.services.persondir.IPersonAttributes;
 import org.jasig.services.persondir.support.AbstractQueryPersonAttributeDao;
-import org.jasig.services.persondir.support.CaseInsensitiveAttributeNamedPersonImpl;
-import org.jasig.services.persondir.support.CaseInsensitiveNamedPersonImpl;
+import org.jasig.services.persondir.support.PersonBuilder;
 import org.jasig.services.persondir.support.QueryType;
+import org.jasig.services.persondir.support.cache.BoundedConcurrentCache;
 import org.springframework.beans.factory.BeanCreationException;
 import org.springframework.beans.factory.InitializingBean;
 import org.springframework.ldap.core.AttributesMapper;
 import org.springframework.ldap.core.ContextSource;
 import org.springframework.ldap.core.LdapTemplate;
-import org.springframework.ldap.filter.EqualsFilter;
-import org.springframework.ldap.filter.Filter;
-import org.springframework.ldap.filter.LikeFilter;
+import org.springframework.ldap.support.LdapEncoder;
 import org.springframework.util.Assert;
 
 /**
@@ -118,7 +115,11 @@ import org.springframework.util.Assert;
  * @since uPortal 2.5
  */
 public class LdapPersonAttributeDao extends AbstractQueryPersonAttributeDao<LogicalFilterWrapper> implements InitializingBean {
-    private static final Pattern QUERY_PLACEHOLDER = Pattern.compile("\\{0\\}");
+    private static final String QUERY_PLACEHOLDER = "{0}";
+    private static final Pattern WILDCARD = Pattern.compile("\\*");
+    private static final int QUERY_SHAPE_CACHE_SIZE = 512;
+    private static final char VALUE_MARKER_START = '\uE000';
+    private static final char VALUE_MARKER_END = '\uE001';
     private final static AttributesMapper MAPPER = new AttributeMapAttributesMapper();
 
     /**
@@ -133,6 +134,11 @@ public class LdapPersonAttributeDao extends AbstractQueryPersonAttributeDao<Logi
     private boolean setReturningAttributes = true;
     private QueryType queryType = QueryType.AND;
     
+    /**
+     * Encoded query, with the queryTemplate applied, for each query shape. See {@link LogicalFilterWrapper#getShape()}
+     */
+    private final Map<String, QueryShape> queryShapeCache = new BoundedConcurrentCache<String, QueryShape>(QUERY_SHAPE_CACHE_SIZE);
+    
     
     public LdapPersonAttributeDao() {
         this.searchControls.setSearchScope(SearchControls.SUBTREE_SCOPE);
@@ -167,15 +173,7 @@ public class LdapPersonAttributeDao extends AbstractQueryPersonAttributeDao<Logi
             final String queryValueString = queryValue == null ? null : queryValue.toString();
             
             if (StringUtils.isNotBlank(queryValueString)) {
-                final Filter filter;
-                if (!queryValueString.contains("*")) {
-                    filter = new EqualsFilter(dataAttribute, queryValueString);
-                }
-                else {
-                    filter = new LikeFilter(dataAttribute, queryValueString);
-                }
-                
-                queryBuilder.append(filter);
+                queryBuilder.append(dataAttribute, queryValueString, queryValueString.contains("*"));
             }
         }
         
@@ -187,51 +185,85 @@ public class LdapPersonAttributeDao extends AbstractQueryPersonAttributeDao<Logi
      */
     @Override
     protected List<IPersonAttributes> getPeopleForQuery(LogicalFilterWrapper queryBuilder, String queryUserName) {
-        final String generatedLdapQuery = queryBuilder.encode();
-
-        //If no query is generated return null since the query cannot be run
-        if (StringUtils.isBlank(generatedLdapQuery)) {
-            return null;
-        }
+        return this.searchForPeople(queryBuilder, queryUserName, this.searchControls);
+    }
+    
+    /**
+     * Narrows the returning attributes of the {@link SearchControls} to the needed data attributes for this query.
+     * 
+     * @see org.jasig.services.persondir.support.AbstractQueryPersonAttributeDao#getPeopleForQuery(java.lang.Object, java.lang.String, java.util.Set)
+     */
+    @Override
+    protected List<IPersonAttributes> getPeopleForQuery(LogicalFilterWrapper queryBuilder, String queryUserName, Set<String> dataAttributes) {
+        final String[] configuredAttributes = this.searchControls.getReturningAttributes();
         
-        //Insert the generated query into the template if it is configured
-        final String ldapQuery;
-        if (this.queryTemplate == null) {
-            ldapQuery = generatedLdapQuery;
+        final List<String> returningAttributes = new ArrayList<String>(dataAttributes.size());
+        if (configuredAttributes == null) {
+            returningAttributes.addAll(dataAttributes);
         }
         else {
-            final Matcher queryMatcher = QUERY_PLACEHOLDER.matcher(this.queryTemplate);
-            ldapQuery = queryMatcher.replaceAll(generatedLdapQuery);
-            if (logger.isDebugEnabled()) {
-                logger.debug("Final ldapQuery after applying queryTemplate: '" + ldapQuery + "'");
+            //LDAP attribute names are case-insensitive, never return more than the configured attributes
+            for (final String configuredAttribute : configuredAttributes) {
+                for (final String dataAttribute : dataAttributes) {
+                    if (configuredAttribute.equalsIgnoreCase(dataAttribute)) {
+                        returningAttributes.add(configuredAttribute);
+                        break;
+                    }
+                }
             }
         }
+        
+        final SearchControls querySearchControls = new SearchControls(
+                this.searchControls.getSearchScope(), 
+                this.searchControls.getCountLimit(), 
+                this.searchControls.getTimeLimit(), 
+                returningAttributes.toArray(new String[returningAttributes.size()]), 
+                this.searchControls.getReturningObjFlag(), 
+                this.searchControls.getDerefLinkFlag());
+        
+        return this.searchForPeople(queryBuilder, queryUserName, querySearchControls);
+    }
+    
+    private List<IPersonAttributes> searchForPeople(LogicalFilterWrapper queryBuilder, String queryUserName, SearchControls querySearchControls) {
+        //If no query is generated return null since the query cannot be run
+        if (queryBuilder.size() == 0) {
+            return null;
+        }
+        
+        //Encode only the values into the cached query for the shape of the filter
+        final String ldapQuery = this.getQueryShape(queryBuilder).bind(queryBuilder);
+        if (this.queryTemplate != null && logger.isDebugEnabled()) {
+            logger.debug("Final ldapQuery after applying queryTemplate: '" + ldapQuery + "'");
+        }
 
         //Execute the query
         @SuppressWarnings("unchecked")
-        final List<Map<String, List<Object>>> queryResults = this.ldapTemplate.search(this.baseDN, ldapQuery, this.searchControls, MAPPER);
+        final List<Map<String, List<Object>>> queryResults = this.ldapTemplate.search(this.baseDN, ldapQuery, querySearchControls, MAPPER);
         
         final List<IPersonAttributes> peopleAttributes = new ArrayList<IPersonAttributes>(queryResults.size());
         for (final Map<String, List<Object>> queryResult : queryResults) {
             final IPersonAttributes person;
+            
+            //The mapper creates a new case insensitive Map and value Lists for each result, use them without copying
+            final PersonBuilder personBuilder = PersonBuilder.takeOwnership(queryResult, true);
 
             // Choose a username from the best available option
             final String userNameAttribute = this.getConfiguredUserNameAttribute();
             if (this.isUserNameAttributeConfigured() && queryResult.containsKey(userNameAttribute)) {
                 // Option #1:  An attribute is named explicitly in the config, 
                 // and that attribute is present in the results from LDAP;  use it
-                person = new CaseInsensitiveAttributeNamedPersonImpl(userNameAttribute, queryResult);
+                person = personBuilder.buildAttributeNamed(userNameAttribute);
             } else if (queryUserName != null) {
                 // Option #2:  Use the userName attribute provided in the query 
                 // parameters.  (NB:  I'm not entirely sure this choice is 
                 // preferable to Option #3.  Keeping it because it most closely 
                 // matches the legacy behavior there the new option -- Option #1 
                 // -- doesn't apply.  ~drewwills)
-                person = new CaseInsensitiveNamedPersonImpl(queryUserName, queryResult);
+                person = personBuilder.build(queryUserName);
             } else {
                 // Option #3:  Create the IPersonAttributes doing a best-guess 
                 // at a userName attribute
-                person = new CaseInsensitiveAttributeNamedPersonImpl(userNameAttribute, queryResult);
+                person = personBuilder.buildAttributeNamed(userNameAttribute);
             }
             
             peopleAttributes.add(person);
@@ -340,5 +372,97 @@ public class LdapPersonAttributeDao extends AbstractQueryPersonAttributeDao<Logi
      */
     public void setQueryTemplate(String queryTemplate) {
         this.queryTemplate = queryTemplate;
+        this.queryShapeCache.clear();
+    }
+    
+    private QueryShape getQueryShape(LogicalFilterWrapper queryBuilder) {
+        final String shapeKey = queryBuilder.getShape();
+        QueryShape queryShape = this.queryShapeCache.get(shapeKey);
+        if (queryShape == null) {
+            queryShape = this.compileQueryShape(queryBuilder);
+            this.queryShapeCache.put(shapeKey, queryShape);
+        }
+        return queryShape;
+    }
+    
+    /**
+     * Encodes a copy of the filter with a marker in place of each value, applies the queryTemplate and splits the
+     * result around the markers.
+     */
+    private QueryShape compileQueryShape(LogicalFilterWrapper queryBuilder) {
+        final LogicalFilterWrapper markedFilter = new LogicalFilterWrapper(queryBuilder.getQueryType());
+        for (int index = 0; index < queryBuilder.size(); index++) {
+            final String marker = VALUE_MARKER_START + Integer.toString(index) + VALUE_MARKER_END;
+            markedFilter.append(queryBuilder.getAttribute(index), marker, queryBuilder.isLike(index));
+        }
+        
+        String markedQuery = markedFilter.encode();
+        if (this.queryTemplate != null) {
+            markedQuery = StringUtils.replace(this.queryTemplate, QUERY_PLACEHOLDER, markedQuery);
+        }
+        
+        final List<String> segments = new ArrayList<String>(queryBuilder.size() + 1);
+        final List<Integer> valueIndexes = new ArrayList<Integer>(queryBuilder.size());
+        int segmentStart = 0;
+        int markerStart;
+        while ((markerStart = markedQuery.indexOf(VALUE_MARKER_START, segmentStart)) >= 0) {
+            final int markerEnd = markedQuery.indexOf(VALUE_MARKER_END, markerStart);
+            segments.add(markedQuery.substring(segmentStart, markerStart));
+            valueIndexes.add(Integer.valueOf(markedQuery.substring(markerStart + 1, markerEnd)));
+            segmentStart = markerEnd + 1;
+        }
+        segments.add(markedQuery.substring(segmentStart));
+        
+        final int[] valueIndexArray = new int[valueIndexes.size()];
+        for (int index = 0; index < valueIndexArray.length; index++) {
+            valueIndexArray[index] = valueIndexes.get(index);
+        }
+        return new QueryShape(segments.toArray(new String[segments.size()]), valueIndexArray);
+    }
+    
+    /**
+     * Encodes a value the same way {@link org.springframework.ldap.filter.LikeFilter} does, escaping everything but
+     * the wildcards.
+     */
+    private static void appendLikeValue(StringBuilder query, String value) {
+        final String[] parts = WILDCARD.split(value, -2);
+        for (int index = 0; index < parts.length; index++) {
+            if (index > 0) {
+                query.append('*');
+            }
+            query.append(LdapEncoder.filterEncode(parts[index]));
+        }
+    }
+    
+    /**
+     * The encoded query for a filter shape, split around the values. segments has one more element than
+     * valueIndexes, valueIndexes gives the filter term whose value goes after each segment.
+     */
+    private static final class QueryShape {
+        private final String[] segments;
+        private final int[] valueIndexes;
+        
+        QueryShape(String[] segments, int[] valueIndexes) {
+            this.segments = segments;
+            this.valueIndexes = valueIndexes;
+        }
+        
+        String bind(LogicalFilterWrapper queryBuilder) {
+            final StringBuilder query = new StringBuilder();
+            for (int index = 0; index < this.valueIndexes.length; index++) {
+                query.append(this.segments[index]);
+                
+                final int valueIndex = this.valueIndexes[index];
+                final String value = queryBuilder.getValue(valueIndex);
+                if (queryBuilder.isLike(valueIndex)) {
+                    appendLikeValue(query, value);
+                }
+                else {
+                    query.append(LdapEncoder.filterEncode(value));
+                }
+            }
+            query.append(this.segments[this.segments.length - 1]);
+            return query.toString();
+        }
     }
 }
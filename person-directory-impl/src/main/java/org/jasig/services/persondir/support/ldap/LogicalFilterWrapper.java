@@ -19,72 +19,129 @@
 
 package org.jasig.services.persondir.support.ldap;
 
+import java.util.ArrayList;
+import java.util.List;
+
 import org.jasig.services.persondir.support.QueryType;
 import org.springframework.ldap.filter.AndFilter;
+import org.springframework.ldap.filter.BinaryLogicalFilter;
+import org.springframework.ldap.filter.EqualsFilter;
 import org.springframework.ldap.filter.Filter;
+import org.springframework.ldap.filter.LikeFilter;
 import org.springframework.ldap.filter.OrFilter;
 
 /**
  * Wrapper class to allow the And and Or fitlers to be treated the same way.
+ * <br>
+ * <br>
+ * The attribute comparisons are recorded as terms and the Spring LDAP filters are only built if the wrapper is
+ * encoded directly. {@link #getShape()} describes the terms without their values so the encoded form can be cached
+ * per shape and only the values need to be encoded for each query.
  * 
  * @author Eric Dalquist
  * @version $Revision: 1.1 $
  */
 class LogicalFilterWrapper implements Filter {
     private final QueryType queryType;
-    private final AndFilter andFilter;
-    private final OrFilter orFilter;
-    private final Filter delegateFilter;
+    private final List<String> attributes = new ArrayList<String>();
+    private final List<String> values = new ArrayList<String>();
+    private final List<Boolean> likes = new ArrayList<Boolean>();
+    private final StringBuilder shape;
+    private BinaryLogicalFilter delegateFilter;
     
     public LogicalFilterWrapper(QueryType queryType) {
         this.queryType = queryType;
-
-        switch (this.queryType) {
-            case OR: {
-                this.andFilter = null;
-                this.orFilter = new OrFilter();
-                
-                this.delegateFilter = this.orFilter;
-            } break;
-            
-            default:
-            case AND: {
-                this.andFilter = new AndFilter();
-                this.orFilter = null;
-                
-                this.delegateFilter = this.andFilter;
-            } break;
-        }
+        this.shape = new StringBuilder(queryType.name());
+    }
+    
+    /**
+     * Append an attribute comparison to the underlying logical Filter
+     * 
+     * @param attribute The data attribute to compare
+     * @param value The value to compare to, not yet encoded
+     * @param like If the value contains wildcards and should be compared with a {@link LikeFilter}
+     */
+    public void append(String attribute, String value, boolean like) {
+        this.attributes.add(attribute);
+        this.values.add(value);
+        this.likes.add(like);
+        this.shape.append('\u0000').append(like ? '~' : '=').append(attribute);
+        this.delegateFilter = null;
+    }
+    
+    /**
+     * @return The number of attribute comparisons in the filter
+     */
+    public int size() {
+        return this.attributes.size();
+    }
+    
+    public QueryType getQueryType() {
+        return this.queryType;
+    }
+    
+    public String getAttribute(int index) {
+        return this.attributes.get(index);
+    }
+    
+    public String getValue(int index) {
+        return this.values.get(index);
+    }
+    
+    public boolean isLike(int index) {
+        return this.likes.get(index);
     }
     
     /**
-     * Append the query Filter to the underlying logical Filter
+     * @return A key that is equal for filters with the same logical operator and the same attribute comparisons in
+     * the same order, regardless of the compared values.
      */
-    public void append(Filter query) {
-        switch (this.queryType) {
-            case OR: {
-                this.orFilter.or(query);
-            } break;
+    public String getShape() {
+        return this.shape.toString();
+    }
+    
+    private Filter getDelegateFilter() {
+        BinaryLogicalFilter delegateFilter = this.delegateFilter;
+        if (delegateFilter == null) {
+            switch (this.queryType) {
+                case OR: {
+                    delegateFilter = new OrFilter();
+                } break;
+                
+                default:
+                case AND: {
+                    delegateFilter = new AndFilter();
+                } break;
+            }
+            
+            for (int index = 0; index < this.attributes.size(); index++) {
+                final String attribute = this.attributes.get(index);
+                final String value = this.values.get(index);
+                if (this.likes.get(index)) {
+                    delegateFilter.append(new LikeFilter(attribute, value));
+                }
+                else {
+                    delegateFilter.append(new EqualsFilter(attribute, value));
+                }
+            }
             
-            default:
-            case AND: {
-                this.andFilter.and(query);
-            } break;
+            this.delegateFilter = delegateFilter;
         }
+        return delegateFilter;
     }
 
     /* (non-Javadoc)
      * @see org.springframework.ldap.filter.Filter#encode()
      */
     public String encode() {
-        return this.delegateFilter.encode();
+        return this.getDelegateFilter().encode();
     }
 
     /* (non-Javadoc)
      * @see org.springframework.ldap.filter.Filter#encode(java.lang.StringBuffer)
      */
     public StringBuffer encode(StringBuffer buf) {
-        return this.delegateFilter.encode(buf);
+        return this.getDelegateFilter().encode(buf);
     }
 
     /* (non-Javadoc)
@@ -92,7 +149,7 @@ class LogicalFilterWrapper implements Filter {
      */
     @Override
     public boolean equals(Object o) {
-        return this.delegateFilter.equals(o);
+        return this.getDelegateFilter().equals(o);
     }
 
     /* (non-Javadoc)
@@ -100,7 +157,7 @@ class LogicalFilterWrapper implements Filter {
      */
     @Override
     public int hashCode() {
-        return this.delegateFilter.hashCode();
+        return this.getDelegateFilter().hashCode();
     }
 
     /* (non-Javadoc)
@@ -108,6 +165,6 @@ class LogicalFilterWrapper implements Filter {
      */
     @Override
     public String toString() {
-        return this.delegateFilter.toString();
+        return this.getDelegateFilter().toString();
     }
-}
\ No newline at end of file
+}
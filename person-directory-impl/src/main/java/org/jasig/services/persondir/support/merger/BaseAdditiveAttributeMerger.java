@@ -20,6 +20,7 @@
 package org.jasig.services.persondir.support.merger;
 
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
@@ -54,43 +55,82 @@ public abstract class BaseAdditiveAttributeMerger implements IAttributeMerger {
         return toModify;
     }
     
-    /* (non-Javadoc)
+    /**
+     * Keys the toModify people by name once and builds each merged person directly from the attributes of the two
+     * people being merged. People that were merged or only exist in toConsider are moved to the end of toModify in
+     * toConsider order, which is the same order adding them one at a time produces.
+     * 
      * @see org.jasig.services.persondir.support.merger.IAttributeMerger#mergeResults(java.util.Set, java.util.Set)
      */
     public final Set<IPersonAttributes> mergeResults(Set<IPersonAttributes> toModify, Set<IPersonAttributes> toConsider) {
         Validate.notNull(toModify, "toModify cannot be null");
         Validate.notNull(toConsider, "toConsider cannot be null");
         
+        if (toConsider.isEmpty()) {
+            return toModify;
+        }
+        if (toModify.isEmpty()) {
+            toModify.addAll(toConsider);
+            return toModify;
+        }
+        
         //Convert the toModify Set into a Map to allow for easier lookups
-        final Map<String, IPersonAttributes> toModfyPeople = new LinkedHashMap<String, IPersonAttributes>();
+        final Map<String, IPersonAttributes> toModifyPeople = new HashMap<String, IPersonAttributes>(toModify.size() * 4 / 3 + 1);
         for (final IPersonAttributes toModifyPerson : toModify) {
-            toModfyPeople.put(toModifyPerson.getName(), toModifyPerson);
+            toModifyPeople.put(toModifyPerson.getName(), toModifyPerson);
         }
         
-        //Merge in the toConsider people
+        //Merge in the toConsider people, collecting them in the order they are added to the end of toModify
+        final Map<String, IPersonAttributes> addedPeople = new LinkedHashMap<String, IPersonAttributes>(toConsider.size() * 4 / 3 + 1);
+        boolean mergedPeople = false;
         for (final IPersonAttributes toConsiderPerson : toConsider) {
             final String toConsiderName = toConsiderPerson.getName();
-            final IPersonAttributes toModifyPerson = toModfyPeople.get(toConsiderName);
+            final IPersonAttributes toModifyPerson = toModifyPeople.get(toConsiderName);
             
             //No matching toModify person, just add the new person
             if (toModifyPerson == null) {
-                toModify.add(toConsiderPerson);
+                if (!addedPeople.containsKey(toConsiderName)) {
+                    addedPeople.put(toConsiderName, toConsiderPerson);
+                }
             }
-            //Matching toModify person, merge their attributes
+            //Matching toModify person, merge their attributes and move the merged person to the end
             else {
-                final Map<String, List<Object>> toModifyAttributes = this.buildMutableAttributeMap(toModifyPerson.getAttributes());
-                final Map<String, List<Object>> mergedAttributes = this.mergePersonAttributes(toModifyAttributes, toConsiderPerson.getAttributes());
-                final NamedPersonImpl mergedPerson = new NamedPersonImpl(toConsiderName, mergedAttributes);
+                final Map<String, List<Object>> toModifyAttributes;
+                if (this.isMutableValuesRequired()) {
+                    toModifyAttributes = this.buildMutableAttributeMap(toModifyPerson.getAttributes());
+                }
+                else {
+                    toModifyAttributes = this.createMutableAttributeMap(toModifyPerson.getAttributes().size() + toConsiderPerson.getAttributes().size());
+                    toModifyAttributes.putAll(toModifyPerson.getAttributes());
+                }
                 
-                //Remove then re-add the mergedPerson entry
-                toModify.remove(mergedPerson);
-                toModify.add(mergedPerson);
+                final Map<String, List<Object>> mergedAttributes = this.mergePersonAttributes(toModifyAttributes, toConsiderPerson.getAttributes());
+                addedPeople.remove(toConsiderName);
+                addedPeople.put(toConsiderName, new NamedPersonImpl(toConsiderName, mergedAttributes));
+                mergedPeople = true;
             }
         }
         
+        //Remove the people that were merged then add the merged and new people
+        if (mergedPeople) {
+            for (final IPersonAttributes addedPerson : addedPeople.values()) {
+                toModify.remove(addedPerson);
+            }
+        }
+        toModify.addAll(addedPeople.values());
+        
         return toModify;
     }
     
+    /**
+     * If the attribute value Lists passed to {@link #mergePersonAttributes(Map, Map)} by
+     * {@link #mergeResults(Set, Set)} must be mutable copies. Defaults to true, implementations that never modify the
+     * value Lists should return false to avoid copying every value List of every merged person.
+     */
+    protected boolean isMutableValuesRequired() {
+        return true;
+    }
+    
     /**
      * Do a deep clone of an attribute Map to ensure it is completley mutable.
      */
@@ -19,7 +19,7 @@
 
 package org.jasig.services.persondir.support.merger;
 
-import java.util.LinkedList;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 
@@ -50,16 +50,32 @@ public class MultivaluedAttributeMerger extends BaseAdditiveAttributeMerger {
         for (final Map.Entry<String, List<Object>> sourceEntry : toConsider.entrySet()) {
             final String sourceKey = sourceEntry.getKey();
             
-            List<Object> destList = toModify.get(sourceKey);
+            final List<Object> sourceValue = sourceEntry.getValue();
+            final List<Object> destList = toModify.get(sourceKey);
+            
+            //Build a new List instead of adding to the existing one so value Lists are never modified
+            final List<Object> mergedList;
             if (destList == null) {
-                destList = new LinkedList<Object>();
-                toModify.put(sourceKey, destList);
+                mergedList = new ArrayList<Object>(sourceValue);
             }
-            
-            final List<Object> sourceValue = sourceEntry.getValue();
-            destList.addAll(sourceValue);
+            else {
+                mergedList = new ArrayList<Object>(destList.size() + sourceValue.size());
+                mergedList.addAll(destList);
+                mergedList.addAll(sourceValue);
+            }
+            toModify.put(sourceKey, mergedList);
         }
         
         return toModify;
     }
+    
+    /**
+     * Merged values are stored in new Lists, the value Lists are never modified.
+     * 
+     * @see org.jasig.services.persondir.support.merger.BaseAdditiveAttributeMerger#isMutableValuesRequired()
+     */
+    @Override
+    protected boolean isMutableValuesRequired() {
+        return false;
+    }
 }
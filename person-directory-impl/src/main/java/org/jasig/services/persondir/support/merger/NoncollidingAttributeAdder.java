@@ -52,4 +52,14 @@ public class NoncollidingAttributeAdder extends BaseAdditiveAttributeMerger {
 
         return toModify;
     }
-}
\ No newline at end of file
+    
+    /**
+     * Value Lists are only copied between the Maps, never modified.
+     * 
+     * @see org.jasig.services.persondir.support.merger.BaseAdditiveAttributeMerger#isMutableValuesRequired()
+     */
+    @Override
+    protected boolean isMutableValuesRequired() {
+        return false;
+    }
+}
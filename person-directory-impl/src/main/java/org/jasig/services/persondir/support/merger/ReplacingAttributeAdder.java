@@ -45,4 +45,14 @@ public class ReplacingAttributeAdder extends BaseAdditiveAttributeMerger {
         
         return toModify;
     }
+    
+    /**
+     * Value Lists are only copied between the Maps, never modified.
+     * 
+     * @see org.jasig.services.persondir.support.merger.BaseAdditiveAttributeMerger#isMutableValuesRequired()
+     */
+    @Override
+    protected boolean isMutableValuesRequired() {
+        return false;
+    }
 }
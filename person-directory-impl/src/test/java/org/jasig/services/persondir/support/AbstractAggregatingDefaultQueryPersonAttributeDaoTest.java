@@ -26,6 +26,8 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import org.jasig.services.persondir.IPersonAttributeDao;
 import org.jasig.services.persondir.IPersonAttributes;
@@ -140,6 +142,80 @@ public abstract class AbstractAggregatingDefaultQueryPersonAttributeDaoTest exte
         
     }
     
+    public void testChildQueryTimeout() {
+        final AbstractAggregatingDefaultQueryPersonAttributeDao dao = this.getEmptyAbstractAggregatingDefaultQueryPersonAttributeDao();
+        
+        final Map<String, List<Object>> attrMap1 = new HashMap<String, List<Object>>();
+        attrMap1.put("username", Util.list("test"));
+        attrMap1.put("key1.1", Util.list("val1.1"));
+        
+        final Map<String, List<Object>> attrMap2 = new HashMap<String, List<Object>>();
+        attrMap2.put("username", Util.list("test"));
+        attrMap2.put("key2.1", Util.list("val2.1"));
+        
+        final Map<String, List<Object>> slowAttrMap = new HashMap<String, List<Object>>();
+        slowAttrMap.put("username", Util.list("test"));
+        slowAttrMap.put("slow.1", Util.list("slowVal"));
+        
+        final List<IPersonAttributeDao> childDaos = new ArrayList<IPersonAttributeDao>(3);
+        childDaos.add(new StubPersonAttributeDao(attrMap1));
+        childDaos.add(new SlowPersonAttributeDao(slowAttrMap, 5000));
+        childDaos.add(new StubPersonAttributeDao(attrMap2));
+        dao.setPersonAttributeDaos(childDaos);
+        
+        final ExecutorService executorService = Executors.newCachedThreadPool();
+        try {
+            dao.setExecutorService(executorService);
+            dao.setChildQueryTimeout(100);
+            dao.setRecoverExceptions(false);
+            
+            final long start = System.currentTimeMillis();
+            final IPersonAttributes person = dao.getPerson("test");
+            assertTrue(System.currentTimeMillis() - start < 5000);
+            
+            assertNotNull(person);
+            assertNotNull(person.getAttributeValue("key1.1"));
+            assertNotNull(person.getAttributeValue("key2.1"));
+            assertNull(person.getAttributeValue("slow.1"));
+            assertEquals(1, dao.getDroppedQueries());
+            
+            dao.setChildQueryTimeout(0);
+            dao.setQueryTimeout(100);
+            final IPersonAttributes deadlinePerson = dao.getPerson("test");
+            assertNotNull(deadlinePerson.getAttributeValue("key1.1"));
+            assertNull(deadlinePerson.getAttributeValue("slow.1"));
+            assertTrue(dao.getDroppedQueries() >= 2);
+        }
+        finally {
+            executorService.shutdownNow();
+        }
+    }
+    
+    public void testTimeoutWithoutExecutor() {
+        final AbstractAggregatingDefaultQueryPersonAttributeDao dao = this.getEmptyAbstractAggregatingDefaultQueryPersonAttributeDao();
+        dao.setPersonAttributeDaos(Collections.<IPersonAttributeDao>singletonList(new StubPersonAttributeDao()));
+        dao.setQueryTimeout(100);
+        
+        try {
+            dao.afterPropertiesSet();
+            fail("Expected IllegalStateException with a queryTimeout and no executorService");
+        }
+        catch (IllegalStateException ise) {
+            //expected
+        }
+        catch (Exception e) {
+            fail("Expected IllegalStateException with a queryTimeout and no executorService");
+        }
+        
+        try {
+            dao.getPerson("test");
+            fail("Expected IllegalStateException with a queryTimeout and no executorService");
+        }
+        catch (IllegalStateException ise) {
+            //expected
+        }
+    }
+    
     public void testSetNullMerger() {
         final AbstractAggregatingDefaultQueryPersonAttributeDao dao = this.getEmptyAbstractAggregatingDefaultQueryPersonAttributeDao();
         
@@ -178,4 +254,27 @@ public abstract class AbstractAggregatingDefaultQueryPersonAttributeDaoTest exte
         dao.setRecoverExceptions(true);
         assertTrue(dao.isRecoverExceptions());
     }
+    
+    /**
+     * Stub DAO that waits before returning its backing map
+     */
+    protected static class SlowPersonAttributeDao extends StubPersonAttributeDao {
+        private final long delay;
+        
+        public SlowPersonAttributeDao(Map<String, List<Object>> backingMap, long delay) {
+            super(backingMap);
+            this.delay = delay;
+        }
+
+        @Override
+        public Set<IPersonAttributes> getPeopleWithMultivaluedAttributes(Map<String, List<Object>> query) {
+            try {
+                Thread.sleep(this.delay);
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return super.getPeopleWithMultivaluedAttributes(query);
+        }
+    }
 }
@@ -26,6 +26,7 @@ import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
@@ -277,6 +278,46 @@ public class AbstractQueryPersonAttributeDaoTest extends TestCase {
         assertEquals(Util.genList("dalquist"), result.getAttributeValues("name.last"));
     }
 
+    public void testMapPersonAttributes_MultipleResultKeys() {
+        final Map<String, List<Object>> storedAttrs = new HashMap<String, List<Object>>();
+        storedAttrs.put("username", Util.list("edalquist"));
+        storedAttrs.put("name.first", Util.list("Eric"));
+        storedAttrs.put("name.last", Util.list("Dalquist"));
+
+        final InMemoryAbstractQueryPersonAttributeDao dao = new InMemoryAbstractQueryPersonAttributeDao(storedAttrs);
+
+        final Map<String, Object> resultAttributeMappings = new LinkedHashMap<String, Object>();
+        resultAttributeMappings.put("username", null);
+        resultAttributeMappings.put("name.first", new LinkedHashSet<String>(Arrays.asList("fname", "givenName")));
+        resultAttributeMappings.put("name.middle", "mname");
+        dao.setResultAttributeMapping(resultAttributeMappings);
+
+        IPersonAttributes result = dao.getPerson("edalquist");
+        assertEquals(Util.genList("edalquist"), result.getAttributeValues("username"));
+        assertEquals(Util.genList("Eric"), result.getAttributeValues("fname"));
+        assertEquals(Util.genList("Eric"), result.getAttributeValues("givenName"));
+        assertNull(result.getAttributeValues("mname"));
+        assertNull(result.getAttributeValues("name.last"));
+        assertEquals(3, result.getAttributes().size());
+
+        //Changing the configuration after the first mapping must be reflected in the next one
+        dao.setCaseInsensitiveResultAttributesAsCollection(Collections.singleton("givenName"));
+        result = dao.getPerson("edalquist");
+        assertEquals(Util.genList("Eric"), result.getAttributeValues("fname"));
+        assertEquals(Util.genList("eric"), result.getAttributeValues("givenName"));
+
+        dao.setDefaultCaseCanonicalizationMode(CaseCanonicalizationMode.UPPER);
+        result = dao.getPerson("edalquist");
+        assertEquals(Util.genList("ERIC"), result.getAttributeValues("givenName"));
+
+        final Map<String, Object> lastNameMapping = new LinkedHashMap<String, Object>();
+        lastNameMapping.put("name.last", "givenName");
+        dao.setResultAttributeMapping(lastNameMapping);
+        result = dao.getPerson("edalquist");
+        assertEquals(Util.genList("DALQUIST"), result.getAttributeValues("givenName"));
+        assertEquals(1, result.getAttributes().size());
+    }
+
     private static class InMemoryAbstractQueryPersonAttributeDao extends AbstractQueryPersonAttributeDao<List<List<Object>>> {
 
         private StubPersonAttributeDao storage;
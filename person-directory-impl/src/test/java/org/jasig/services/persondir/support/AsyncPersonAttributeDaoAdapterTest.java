@@ -0,0 +1,110 @@
+/**
+ * Licensed to Jasig under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Jasig licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a
+ * copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.jasig.services.persondir.support;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+import org.jasig.services.persondir.IListenableFuture;
+import org.jasig.services.persondir.IPersonAttributes;
+import org.jasig.services.persondir.util.Util;
+
+/**
+ * @author Eric Dalquist
+ * @version $Revision$
+ */
+public class AsyncPersonAttributeDaoAdapterTest extends TestCase {
+    
+    public void testGetPersonAsync() throws Exception {
+        final Map<String, List<Object>> attributes = new HashMap<String, List<Object>>();
+        attributes.put("phone", Util.list("777-7777"));
+        final StubPersonAttributeDao stubDao = new StubPersonAttributeDao(attributes);
+        
+        final AsyncPersonAttributeDaoAdapter adapter = new AsyncPersonAttributeDaoAdapter(stubDao, 1, 1);
+        try {
+            final IListenableFuture<IPersonAttributes> future = adapter.getPersonAsync("edalquist");
+            
+            final CountDownLatch listenerLatch = new CountDownLatch(1);
+            future.addListener(new Runnable() {
+                public void run() {
+                    listenerLatch.countDown();
+                }
+            }, SettableFutureTask.DIRECT_EXECUTOR);
+            
+            assertEquals(attributes, future.get(10, TimeUnit.SECONDS).getAttributes());
+            assertTrue(listenerLatch.await(10, TimeUnit.SECONDS));
+        }
+        finally {
+            adapter.destroy();
+        }
+    }
+    
+    public void testRejectedQuery() throws Exception {
+        final CountDownLatch blockingLatch = new CountDownLatch(1);
+        final StubPersonAttributeDao blockingDao = new StubPersonAttributeDao() {
+            @Override
+            public Set<IPersonAttributes> getPeopleWithMultivaluedAttributes(Map<String, List<Object>> query) {
+                try {
+                    blockingLatch.await();
+                }
+                catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return null;
+            }
+        };
+        
+        final AsyncPersonAttributeDaoAdapter adapter = new AsyncPersonAttributeDaoAdapter(blockingDao, 1, 1);
+        try {
+            final Map<String, List<Object>> query = new HashMap<String, List<Object>>();
+            query.put("username", Util.list("edalquist"));
+            
+            //One running, one queued, the third is rejected
+            final IListenableFuture<Set<IPersonAttributes>> running = adapter.getPeopleWithMultivaluedAttributesAsync(query);
+            final IListenableFuture<Set<IPersonAttributes>> queued = adapter.getPeopleWithMultivaluedAttributesAsync(query);
+            final IListenableFuture<Set<IPersonAttributes>> rejected = adapter.getPeopleWithMultivaluedAttributesAsync(query);
+            
+            assertTrue(rejected.isDone());
+            try {
+                rejected.get();
+                fail("Query should have been rejected");
+            }
+            catch (ExecutionException ee) {
+                assertTrue(ee.getCause() instanceof RejectedExecutionException);
+            }
+            
+            blockingLatch.countDown();
+            assertNull(running.get(10, TimeUnit.SECONDS));
+            assertNull(queued.get(10, TimeUnit.SECONDS));
+        }
+        finally {
+            adapter.destroy();
+        }
+    }
+}
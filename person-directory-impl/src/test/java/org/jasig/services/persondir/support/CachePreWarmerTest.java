@@ -0,0 +1,130 @@
+/**
+ * Licensed to Jasig under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Jasig licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a
+ * copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.jasig.services.persondir.support;
+
+import java.io.Serializable;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import junit.framework.TestCase;
+
+import org.jasig.services.persondir.IPersonAttributeDao;
+import org.jasig.services.persondir.IPersonAttributes;
+import org.jasig.services.persondir.mock.ThrowingPersonAttributeDao;
+import org.jasig.services.persondir.util.Util;
+import org.springframework.core.io.ByteArrayResource;
+
+/**
+ * @author Eric Dalquist
+ * @version $Revision$
+ */
+public class CachePreWarmerTest extends TestCase {
+    private ComplexStubPersonAttributeDao stubDao;
+    private CachingPersonAttributeDaoImpl cachingDao;
+    private Map<Serializable, Set<IPersonAttributes>> userInfoCache;
+    
+    @Override
+    protected void setUp() throws Exception {
+        final Map<String, Map<String, List<Object>>> backingMap = new HashMap<String, Map<String, List<Object>>>();
+        for (int i = 0; i < 20; i++) {
+            final Map<String, List<Object>> attributes = new HashMap<String, List<Object>>();
+            attributes.put("uid", Util.list("user" + i));
+            attributes.put("phone", Util.list("555-" + i));
+            backingMap.put("user" + i, attributes);
+        }
+        
+        this.stubDao = new ComplexStubPersonAttributeDao(backingMap);
+        this.stubDao.setUsernameAttributeProvider(new SimpleUsernameAttributeProvider("uid"));
+        
+        this.userInfoCache = new ConcurrentHashMap<Serializable, Set<IPersonAttributes>>();
+        
+        this.cachingDao = new CachingPersonAttributeDaoImpl();
+        this.cachingDao.setCachedPersonAttributesDao(this.stubDao);
+        this.cachingDao.setUsernameAttributeProvider(new SimpleUsernameAttributeProvider("uid"));
+        this.cachingDao.setUserInfoCache(this.userInfoCache);
+        this.cachingDao.afterPropertiesSet();
+    }
+    
+    public void testWarmFromFile() throws Exception {
+        final CachePreWarmer preWarmer = new CachePreWarmer();
+        preWarmer.setPersonAttributeDao(this.cachingDao);
+        preWarmer.setUsernameFile(new ByteArrayResource("# Users to warm\nuser1\n\n  user2  \nuser1\nnobody\n".getBytes("UTF-8")));
+        preWarmer.setProgressInterval(1);
+        preWarmer.afterPropertiesSet();
+        
+        final CachePreWarmer.Progress progress = preWarmer.warm();
+        assertSame(progress, preWarmer.getProgress());
+        assertEquals(3, progress.getTotal());
+        assertEquals(3, progress.getCompleted());
+        assertEquals(0, progress.getFailed());
+        
+        assertEquals(2, this.userInfoCache.size());
+        assertEquals(3, this.cachingDao.getMisses());
+        
+        assertEquals(Util.list("555-1"), this.cachingDao.getPerson("user1").getAttributeValues("phone"));
+        assertEquals(3, this.cachingDao.getMisses());
+    }
+    
+    public void testWarmFromDao() throws Exception {
+        final CachePreWarmer preWarmer = new CachePreWarmer();
+        preWarmer.setPersonAttributeDao(this.cachingDao);
+        preWarmer.setUsernameSourceDao(this.stubDao);
+        preWarmer.setUsernameQuery(Collections.<String, Object>singletonMap("uid", IPersonAttributeDao.WILDCARD));
+        preWarmer.setThreads(3);
+        preWarmer.setMaxRate(200);
+        preWarmer.afterPropertiesSet();
+        
+        final CachePreWarmer.Progress progress = preWarmer.warm();
+        assertEquals(20, progress.getTotal());
+        assertEquals(20, progress.getCompleted());
+        assertEquals(20, this.userInfoCache.size());
+        
+        //20 lookups at 200/second can't finish in less than 19 intervals of 5ms
+        assertTrue(progress.getElapsedMillis() >= 90);
+        assertTrue(progress.getThroughput() <= 250);
+    }
+    
+    public void testFailedLookups() throws Exception {
+        final CachePreWarmer preWarmer = new CachePreWarmer();
+        preWarmer.setPersonAttributeDao(new ThrowingPersonAttributeDao());
+        preWarmer.setUsernameFile(new ByteArrayResource("user1\nuser2\n".getBytes("UTF-8")));
+        preWarmer.afterPropertiesSet();
+        
+        final CachePreWarmer.Progress progress = preWarmer.warm();
+        assertEquals(0, progress.getCompleted());
+        assertEquals(2, progress.getFailed());
+    }
+    
+    public void testRequiresUsernames() {
+        final CachePreWarmer preWarmer = new CachePreWarmer();
+        preWarmer.setPersonAttributeDao(this.cachingDao);
+        try {
+            preWarmer.afterPropertiesSet();
+            fail("afterPropertiesSet should have thrown IllegalArgumentException");
+        }
+        catch (Exception e) {
+            assertTrue(e instanceof IllegalArgumentException);
+        }
+    }
+}
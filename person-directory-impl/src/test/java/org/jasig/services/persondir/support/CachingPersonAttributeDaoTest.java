@@ -19,15 +19,34 @@
 
 package org.jasig.services.persondir.support;
 
+import java.io.File;
 import java.io.Serializable;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.jasig.services.persondir.IListenableFuture;
+import org.jasig.services.persondir.IPersonAttributeDao;
 import org.jasig.services.persondir.IPersonAttributes;
+import org.jasig.services.persondir.support.cache.BoundedConcurrentCache;
+import org.jasig.services.persondir.support.cache.OffHeapCache;
+import org.jasig.services.persondir.support.cache.TieredCache;
 import org.jasig.services.persondir.util.Util;
 
 
@@ -96,6 +115,98 @@ public class CachingPersonAttributeDaoTest extends AbstractDefaultQueryPersonAtt
     }
     
     
+    public void testBatchLookup() throws Exception {
+        final List<Set<String>> batches = new ArrayList<Set<String>>();
+        final ComplexStubPersonAttributeDao batchDao = new ComplexStubPersonAttributeDao() {
+            @Override
+            public Map<String, IPersonAttributes> getPeopleByUid(Set<String> uids) {
+                batches.add(new LinkedHashSet<String>(uids));
+                return super.getPeopleByUid(uids);
+            }
+        };
+        batchDao.setBackingMap(this.stubDao.getBackingMap());
+        batchDao.setUsernameAttributeProvider(new SimpleUsernameAttributeProvider(defaultAttr));
+        
+        CachingPersonAttributeDaoImpl dao = new CachingPersonAttributeDaoImpl();
+        dao.setCachedPersonAttributesDao(batchDao);
+        dao.setUsernameAttributeProvider(new SimpleUsernameAttributeProvider(defaultAttr));
+        dao.setUserInfoCache(new HashMap<Serializable, Set<IPersonAttributes>>());
+        dao.setCacheNullResults(true);
+        dao.afterPropertiesSet();
+        
+        this.validateUser1(dao.getMultivaluedUserAttributes("edalquist"));
+        
+        final Set<String> uids = new LinkedHashSet<String>(Arrays.asList("awp9", "nobody", "edalquist"));
+        Map<String, IPersonAttributes> people = dao.getPeopleByUid(uids);
+        assertEquals(Arrays.asList("awp9", "edalquist"), new ArrayList<String>(people.keySet()));
+        this.validateUser2(people.get("awp9").getAttributes());
+        this.validateUser1(people.get("edalquist").getAttributes());
+        
+        //Only the misses are forwarded, as a single batch
+        assertEquals(1, batches.size());
+        assertEquals(new LinkedHashSet<String>(Arrays.asList("awp9", "nobody")), batches.get(0));
+        
+        //Everything is cached now, including the null result
+        people = dao.getPeopleByUid(uids);
+        assertEquals(2, people.size());
+        assertEquals(1, batches.size());
+        assertEquals("Query count incorrect", 7, dao.getQueries());
+        assertEquals("Miss count incorrect", 3, dao.getMisses());
+    }
+    
+    public void testAsyncCache() throws Exception {
+        CachingPersonAttributeDaoImpl dao = new CachingPersonAttributeDaoImpl();
+        dao.setCachedPersonAttributesDao(this.stubDao);
+        dao.setUsernameAttributeProvider(new SimpleUsernameAttributeProvider(defaultAttr));
+        dao.setUserInfoCache(new HashMap<Serializable, Set<IPersonAttributes>>());
+        dao.setCacheNullResults(true);
+        dao.afterPropertiesSet();
+        
+        IPersonAttributes person = dao.getPersonAsync("edalquist").get();
+        this.validateUser1(person.getAttributes());
+        assertEquals("Query count incorrect", 1, dao.getQueries());
+        assertEquals("Miss count incorrect", 1, dao.getMisses());
+        
+        IListenableFuture<IPersonAttributes> future = dao.getPersonAsync("edalquist");
+        assertTrue("Cache hit should complete immediately", future.isDone());
+        this.validateUser1(future.get().getAttributes());
+        assertEquals("Query count incorrect", 2, dao.getQueries());
+        assertEquals("Miss count incorrect", 1, dao.getMisses());
+        
+        assertNull(dao.getPersonAsync("nobody").get());
+        assertNull(dao.getPersonAsync("nobody").get());
+        assertEquals("Query count incorrect", 4, dao.getQueries());
+        assertEquals("Miss count incorrect", 2, dao.getMisses());
+    }
+    
+    public void testAsyncExecutor() throws Exception {
+        final List<Runnable> queued = new ArrayList<Runnable>();
+        
+        CachingPersonAttributeDaoImpl dao = new CachingPersonAttributeDaoImpl();
+        dao.setCachedPersonAttributesDao(this.stubDao);
+        dao.setUsernameAttributeProvider(new SimpleUsernameAttributeProvider(defaultAttr));
+        dao.setUserInfoCache(new HashMap<Serializable, Set<IPersonAttributes>>());
+        dao.setExecutor(new Executor() {
+            public void execute(Runnable command) {
+                queued.add(command);
+            }
+        });
+        dao.afterPropertiesSet();
+        
+        //The blocking DAO is not called on the calling thread
+        final IListenableFuture<IPersonAttributes> future = dao.getPersonAsync("edalquist");
+        assertFalse(future.isDone());
+        assertEquals(1, queued.size());
+        
+        queued.get(0).run();
+        assertTrue(future.isDone());
+        this.validateUser1(future.get().getAttributes());
+        assertEquals("Miss count incorrect", 1, dao.getMisses());
+        
+        assertTrue("Cache hit should complete immediately", dao.getPersonAsync("edalquist").isDone());
+        assertEquals(1, queued.size());
+    }
+    
     public void testCacheStats() throws Exception {
         CachingPersonAttributeDaoImpl dao = new CachingPersonAttributeDaoImpl();
         dao.setCachedPersonAttributesDao(this.stubDao);
@@ -142,6 +253,715 @@ public class CachingPersonAttributeDaoTest extends AbstractDefaultQueryPersonAtt
         assertEquals("Miss count incorrect", 4, dao.getMisses());
     }
     
+    public void testDetailedStatistics() throws Exception {
+        final List<String> events = new ArrayList<String>();
+        final MBeanServer mbeanServer = ManagementFactory.getPlatformMBeanServer();
+        
+        CachingPersonAttributeDaoImpl dao = new CachingPersonAttributeDaoImpl();
+        dao.setCachedPersonAttributesDao(this.stubDao);
+        dao.setUsernameAttributeProvider(new SimpleUsernameAttributeProvider(defaultAttr));
+        dao.setUserInfoCache(new HashMap<Serializable, Set<IPersonAttributes>>());
+        dao.setCacheNullResults(true);
+        dao.setBeanName("testDetailedStatistics");
+        dao.setMbeanServer(mbeanServer);
+        dao.setMetricsRecorder(new ICacheMetricsRecorder() {
+            public void recordQuery(String cacheName) {
+                events.add(cacheName + ":query");
+            }
+            public void recordHit(String cacheName, boolean nullResult) {
+                events.add(cacheName + ":hit" + (nullResult ? ":null" : ""));
+            }
+            public void recordMiss(String cacheName) {
+                events.add(cacheName + ":miss");
+            }
+            public void recordLoad(String cacheName, long loadNanos, boolean failed) {
+                events.add(cacheName + ":load");
+            }
+            public void recordEviction(String cacheName) {
+                events.add(cacheName + ":eviction");
+            }
+            public void recordExpiration(String cacheName) {
+                events.add(cacheName + ":expiration");
+            }
+            public void recordRejection(String cacheName) {
+                events.add(cacheName + ":rejection");
+            }
+            public void recordInvalidation(String cacheName) {
+                events.add(cacheName + ":invalidation");
+            }
+        });
+        dao.afterPropertiesSet();
+        
+        final ObjectName objectName = new ObjectName("org.jasig.services.persondir:type=CachingPersonAttributeDao,name=" + ObjectName.quote("testDetailedStatistics"));
+        try {
+            dao.getMultivaluedUserAttributes("edalquist");
+            dao.getMultivaluedUserAttributes("edalquist");
+            dao.getMultivaluedUserAttributes("nobody");
+            dao.getMultivaluedUserAttributes("nobody");
+            
+            //No cache key can be generated without the username attribute, the query is counted but not cached
+            dao.getMultivaluedUserAttributes(Collections.singletonMap("name.first", Util.list("Eric")));
+            dao.removeUserAttributes("edalquist");
+            dao.removeUserAttributes("edalquist");
+            
+            final CacheStatisticsMBean statistics = dao.getStatistics();
+            assertEquals(5, statistics.getQueries());
+            assertEquals(2, statistics.getHits());
+            assertEquals(1, statistics.getNullHits());
+            assertEquals(2, statistics.getMisses());
+            assertEquals(.5, statistics.getHitRatio(), 0);
+            assertEquals(0, statistics.getEvictions());
+            assertEquals(0, statistics.getExpirations());
+            assertEquals(1, statistics.getInvalidations());
+            assertEquals(3, statistics.getLoads());
+            assertEquals(0, statistics.getLoadFailures());
+            
+            long histogramTotal = 0;
+            for (final long bucketCount : statistics.getLoadTimeHistogram()) {
+                histogramTotal += bucketCount;
+            }
+            assertEquals(3, histogramTotal);
+            
+            assertEquals(Arrays.asList(
+                    "testDetailedStatistics:query", "testDetailedStatistics:load", "testDetailedStatistics:miss", 
+                    "testDetailedStatistics:query", "testDetailedStatistics:hit", 
+                    "testDetailedStatistics:query", "testDetailedStatistics:load", "testDetailedStatistics:miss", 
+                    "testDetailedStatistics:query", "testDetailedStatistics:hit:null", 
+                    "testDetailedStatistics:query", "testDetailedStatistics:load", 
+                    "testDetailedStatistics:invalidation"), events);
+            
+            assertEquals(5L, mbeanServer.getAttribute(objectName, "Queries"));
+            assertEquals(.5, mbeanServer.getAttribute(objectName, "HitRatio"));
+            
+            statistics.reset();
+            assertEquals(0, dao.getQueries());
+        }
+        finally {
+            dao.destroy();
+        }
+        
+        assertFalse(mbeanServer.isRegistered(objectName));
+    }
+    
+    public void testEvictionAndExpirationStatistics() throws Exception {
+        final AtomicLong clock = new AtomicLong();
+        final BoundedConcurrentCache<Serializable, Set<IPersonAttributes>> userInfoCache = new BoundedConcurrentCache<Serializable, Set<IPersonAttributes>>(1, null, 100, 1) {
+            @Override
+            protected long currentTimeNanos() {
+                return clock.get();
+            }
+        };
+        final List<String> events = new ArrayList<String>();
+        
+        CachingPersonAttributeDaoImpl dao = new CachingPersonAttributeDaoImpl();
+        dao.setCachedPersonAttributesDao(this.stubDao);
+        dao.setUsernameAttributeProvider(new SimpleUsernameAttributeProvider(defaultAttr));
+        dao.setUserInfoCache(userInfoCache);
+        dao.setBeanName("testEvictionAndExpirationStatistics");
+        dao.setMetricsRecorder(new ICacheMetricsRecorder() {
+            public void recordQuery(String cacheName) {
+            }
+            public void recordHit(String cacheName, boolean nullResult) {
+            }
+            public void recordMiss(String cacheName) {
+            }
+            public void recordLoad(String cacheName, long loadNanos, boolean failed) {
+            }
+            public void recordEviction(String cacheName) {
+                events.add(cacheName + ":eviction");
+            }
+            public void recordExpiration(String cacheName) {
+                events.add(cacheName + ":expiration");
+            }
+            public void recordRejection(String cacheName) {
+                events.add(cacheName + ":rejection");
+            }
+            public void recordInvalidation(String cacheName) {
+                events.add(cacheName + ":invalidation");
+            }
+        });
+        dao.afterPropertiesSet();
+        
+        try {
+            this.validateUser1(dao.getMultivaluedUserAttributes("edalquist"));
+            this.validateUser1(dao.getMultivaluedUserAttributes("edalquist"));
+            this.validateUser1(dao.getMultivaluedUserAttributes("edalquist"));
+            
+            //awp9 is not stored over the more frequently requested edalquist
+            this.validateUser2(dao.getMultivaluedUserAttributes("awp9"));
+            assertEquals(1, userInfoCache.getRejectionCount());
+            assertEquals(0, userInfoCache.getEvictionCount());
+            
+            //Once awp9 has been requested as often as edalquist it replaces it in the single entry cache
+            dao.getMultivaluedUserAttributes("awp9");
+            assertEquals(1, userInfoCache.size());
+            
+            clock.addAndGet(TimeUnit.MILLISECONDS.toNanos(200));
+            this.validateUser2(dao.getMultivaluedUserAttributes("awp9"));
+            
+            dao.removeUserAttributes("awp9");
+            
+            final CacheStatisticsMBean statistics = dao.getStatistics();
+            assertEquals(1, statistics.getEvictions());
+            assertEquals(1, statistics.getExpirations());
+            assertEquals(1, statistics.getRejections());
+            assertEquals(1, statistics.getInvalidations());
+            assertEquals(Arrays.asList(
+                    "testEvictionAndExpirationStatistics:rejection",
+                    "testEvictionAndExpirationStatistics:eviction",
+                    "testEvictionAndExpirationStatistics:expiration",
+                    "testEvictionAndExpirationStatistics:invalidation"), events);
+        }
+        finally {
+            dao.destroy();
+        }
+    }
+    
+    public void testTieredCacheExpirationStatistics() throws Exception {
+        final AtomicLong clock = new AtomicLong();
+        final BoundedConcurrentCache<Serializable, Set<IPersonAttributes>> firstTier = new BoundedConcurrentCache<Serializable, Set<IPersonAttributes>>(10, null, 100, 1) {
+            @Override
+            protected long currentTimeNanos() {
+                return clock.get();
+            }
+        };
+        final OffHeapCache<Serializable, Set<IPersonAttributes>> secondTier = new OffHeapCache<Serializable, Set<IPersonAttributes>>(64 * 1024, 0, 1) {
+            @Override
+            protected long currentTimeNanos() {
+                return clock.get();
+            }
+        };
+        
+        CachingPersonAttributeDaoImpl dao = new CachingPersonAttributeDaoImpl();
+        dao.setCachedPersonAttributesDao(this.stubDao);
+        dao.setUsernameAttributeProvider(new SimpleUsernameAttributeProvider(defaultAttr));
+        dao.setUserInfoCache(new TieredCache<Serializable, Set<IPersonAttributes>>(firstTier, secondTier));
+        dao.afterPropertiesSet();
+        
+        try {
+            this.validateUser1(dao.getMultivaluedUserAttributes("edalquist"));
+            
+            //The entry expires from both tiers and is counted once, by the second tier
+            clock.addAndGet(TimeUnit.MILLISECONDS.toNanos(200));
+            this.validateUser1(dao.getMultivaluedUserAttributes("edalquist"));
+            
+            final CacheStatisticsMBean statistics = dao.getStatistics();
+            assertEquals(2, statistics.getQueries());
+            assertEquals(2, statistics.getMisses());
+            assertEquals(1, statistics.getExpirations());
+            assertEquals(1, secondTier.getExpirationCount());
+        }
+        finally {
+            dao.destroy();
+        }
+    }
+    
+    public void testConcurrentStatistics() throws Exception {
+        final CacheStatistics statistics = new CacheStatistics("testConcurrentStatistics");
+        
+        final int threadCount = 8;
+        final int iterations = 10000;
+        final List<Thread> threads = new ArrayList<Thread>(threadCount);
+        for (int t = 0; t < threadCount; t++) {
+            final Thread thread = new Thread() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < iterations; i++) {
+                        statistics.recordQuery(null);
+                        statistics.recordHit(null, i % 2 == 0);
+                        statistics.recordQuery(null);
+                        statistics.recordMiss(null);
+                        statistics.recordLoad(null, 1000, false);
+                    }
+                }
+            };
+            threads.add(thread);
+            thread.start();
+        }
+        for (final Thread thread : threads) {
+            thread.join();
+        }
+        
+        assertEquals(threadCount * iterations * 2, statistics.getQueries());
+        assertEquals(threadCount * iterations, statistics.getHits());
+        assertEquals(threadCount * iterations / 2, statistics.getNullHits());
+        assertEquals(threadCount * iterations, statistics.getLoads());
+        assertEquals(.001, statistics.getMeanLoadTime(), 0);
+        assertEquals(.001, statistics.getLoadTime99thPercentile(), 0);
+    }
+    
+    public void testCoalescedMisses() throws Exception {
+        final BlockingStubPersonAttributeDao blockingDao = new BlockingStubPersonAttributeDao(this.stubDao, false);
+        final CachingPersonAttributeDaoImpl dao = this.createCoalescingDao(blockingDao);
+        
+        final int threadCount = 5;
+        final List<Object> results = Collections.synchronizedList(new ArrayList<Object>());
+        final List<Thread> threads = this.startLookups(dao, threadCount, blockingDao, results);
+        
+        blockingDao.release.countDown();
+        for (final Thread thread : threads) {
+            thread.join();
+        }
+        
+        assertEquals(1, blockingDao.calls.get());
+        assertEquals(threadCount, results.size());
+        for (final Object result : results) {
+            assertTrue("Unexpected result: " + result, result instanceof IPersonAttributes);
+            this.validateUser1(((IPersonAttributes) result).getAttributes());
+        }
+        assertEquals(threadCount, dao.getMisses());
+        assertEquals(1, dao.getStatistics().getLoads());
+        
+        //The shared load is finished, the next lookup is a hit
+        this.validateUser1(dao.getPerson("edalquist").getAttributes());
+        assertEquals(1, blockingDao.calls.get());
+    }
+    
+    public void testCoalescedMissesShareException() throws Exception {
+        final BlockingStubPersonAttributeDao blockingDao = new BlockingStubPersonAttributeDao(this.stubDao, true);
+        final CachingPersonAttributeDaoImpl dao = this.createCoalescingDao(blockingDao);
+        
+        final int threadCount = 3;
+        final List<Object> results = Collections.synchronizedList(new ArrayList<Object>());
+        final List<Thread> threads = this.startLookups(dao, threadCount, blockingDao, results);
+        
+        blockingDao.release.countDown();
+        for (final Thread thread : threads) {
+            thread.join();
+        }
+        
+        assertEquals(1, blockingDao.calls.get());
+        assertEquals(threadCount, results.size());
+        for (final Object result : results) {
+            assertTrue("Unexpected result: " + result, result instanceof IllegalStateException);
+            assertEquals("Load failed", ((IllegalStateException) result).getMessage());
+        }
+    }
+    
+    public void testCoalescingTimeout() throws Exception {
+        final BlockingStubPersonAttributeDao blockingDao = new BlockingStubPersonAttributeDao(this.stubDao, false);
+        final CachingPersonAttributeDaoImpl dao = this.createCoalescingDao(blockingDao);
+        dao.setCoalescingTimeout(50);
+        
+        final List<Object> results = Collections.synchronizedList(new ArrayList<Object>());
+        final List<Thread> threads = this.startLookups(dao, 1, blockingDao, results);
+        
+        //The in-flight load is blocked so this lookup times out and queries the DAO itself
+        this.validateUser1(dao.getPerson("edalquist").getAttributes());
+        assertEquals(2, blockingDao.calls.get());
+        
+        blockingDao.release.countDown();
+        threads.get(0).join();
+        assertEquals(1, results.size());
+    }
+    
+    public void testCoalescedBatchLookup() throws Exception {
+        final BlockingStubPersonAttributeDao blockingDao = new BlockingStubPersonAttributeDao(this.stubDao, false);
+        final CachingPersonAttributeDaoImpl dao = this.createCoalescingDao(blockingDao);
+        
+        final List<Object> results = Collections.synchronizedList(new ArrayList<Object>());
+        final List<Thread> threads = this.startLookups(dao, 1, blockingDao, results);
+        
+        //The batch only queries awp9 and joins the in-flight load of edalquist
+        final List<Map<String, IPersonAttributes>> batchResults = Collections.synchronizedList(new ArrayList<Map<String, IPersonAttributes>>());
+        final Thread batchThread = new Thread() {
+            @Override
+            public void run() {
+                batchResults.add(dao.getPeopleByUid(new LinkedHashSet<String>(Arrays.asList("edalquist", "awp9"))));
+            }
+        };
+        batchThread.start();
+        while (batchThread.getState() != Thread.State.WAITING) {
+            Thread.sleep(1);
+        }
+        assertEquals(2, blockingDao.calls.get());
+        
+        blockingDao.release.countDown();
+        batchThread.join();
+        threads.get(0).join();
+        
+        assertEquals(2, blockingDao.calls.get());
+        assertEquals(1, batchResults.size());
+        final Map<String, IPersonAttributes> people = batchResults.get(0);
+        assertEquals(Arrays.asList("edalquist", "awp9"), new ArrayList<String>(people.keySet()));
+        this.validateUser1(people.get("edalquist").getAttributes());
+        this.validateUser2(people.get("awp9").getAttributes());
+        assertEquals(2, dao.getStatistics().getLoads());
+    }
+    
+    public void testRefreshAhead() throws Exception {
+        final AtomicInteger calls = new AtomicInteger();
+        final ComplexStubPersonAttributeDao countingDao = this.createCountingDao(calls, "111-1111");
+        final AtomicLong clock = new AtomicLong();
+        
+        CachingPersonAttributeDaoImpl dao = this.createClockedDao(clock);
+        dao.setCachedPersonAttributesDao(countingDao);
+        dao.setUsernameAttributeProvider(new SimpleUsernameAttributeProvider(defaultAttr));
+        dao.setUserInfoCache(new HashMap<Serializable, Set<IPersonAttributes>>());
+        dao.setRefreshAfter(20);
+        dao.setRefreshExecutor(SettableFutureTask.DIRECT_EXECUTOR);
+        dao.afterPropertiesSet();
+        
+        assertEquals(Util.list("111-1111"), dao.getPerson("edalquist").getAttributeValues("phone"));
+        assertEquals(Util.list("111-1111"), dao.getPerson("edalquist").getAttributeValues("phone"));
+        assertEquals(1, calls.get());
+        
+        countingDao.setBackingMap(Collections.singletonMap("edalquist", Collections.singletonMap("phone", Util.list("222-2222"))));
+        clock.addAndGet(20);
+        
+        //The stale result is returned while it is refreshed
+        assertEquals(Util.list("111-1111"), dao.getPerson("edalquist").getAttributeValues("phone"));
+        assertEquals(2, calls.get());
+        
+        assertEquals(Util.list("222-2222"), dao.getPerson("edalquist").getAttributeValues("phone"));
+        assertEquals(2, calls.get());
+        assertEquals(4, dao.getQueries());
+        assertEquals(1, dao.getMisses());
+        assertEquals(2, dao.getStatistics().getLoads());
+    }
+    
+    public void testHardExpiry() throws Exception {
+        final AtomicInteger calls = new AtomicInteger();
+        final ComplexStubPersonAttributeDao countingDao = this.createCountingDao(calls, "111-1111");
+        final AtomicLong clock = new AtomicLong();
+        
+        CachingPersonAttributeDaoImpl dao = this.createClockedDao(clock);
+        dao.setCachedPersonAttributesDao(countingDao);
+        dao.setUsernameAttributeProvider(new SimpleUsernameAttributeProvider(defaultAttr));
+        dao.setUserInfoCache(new HashMap<Serializable, Set<IPersonAttributes>>());
+        dao.setRefreshAfter(10);
+        dao.setExpireAfter(20);
+        dao.afterPropertiesSet();
+        
+        try {
+            assertEquals(Util.list("111-1111"), dao.getPerson("edalquist").getAttributeValues("phone"));
+            
+            countingDao.setBackingMap(Collections.singletonMap("edalquist", Collections.singletonMap("phone", Util.list("222-2222"))));
+            clock.addAndGet(20);
+            
+            //The expired result is reloaded before returning
+            assertEquals(Util.list("222-2222"), dao.getPerson("edalquist").getAttributeValues("phone"));
+            assertEquals(2, calls.get());
+            assertEquals(2, dao.getMisses());
+            assertEquals(1, dao.getStatistics().getExpirations());
+        }
+        finally {
+            dao.destroy();
+        }
+    }
+    
+    public void testRefreshAfterExpireAfter() throws Exception {
+        CachingPersonAttributeDaoImpl dao = new CachingPersonAttributeDaoImpl();
+        dao.setCachedPersonAttributesDao(this.stubDao);
+        dao.setUserInfoCache(new HashMap<Serializable, Set<IPersonAttributes>>());
+        dao.setRefreshAfter(100);
+        dao.setExpireAfter(100);
+        
+        try {
+            dao.afterPropertiesSet();
+            fail("afterPropertiesSet should have thrown IllegalStateException");
+        }
+        catch (IllegalStateException ise) {
+            //expected
+        }
+    }
+    
+    public void testNegativeResultCache() throws Exception {
+        final AtomicInteger calls = new AtomicInteger();
+        final ComplexStubPersonAttributeDao countingDao = this.createCountingDao(calls, "111-1111");
+        final Map<Serializable, Set<IPersonAttributes>> userInfoCache = new HashMap<Serializable, Set<IPersonAttributes>>();
+        final AtomicLong clock = new AtomicLong();
+        final BoundedConcurrentCache<Serializable, Boolean> negativeResultCache = new BoundedConcurrentCache<Serializable, Boolean>(10, 20) {
+            @Override
+            protected long currentTimeNanos() {
+                return TimeUnit.MILLISECONDS.toNanos(clock.get());
+            }
+        };
+        
+        CachingPersonAttributeDaoImpl dao = new CachingPersonAttributeDaoImpl();
+        dao.setCachedPersonAttributesDao(countingDao);
+        dao.setUsernameAttributeProvider(new SimpleUsernameAttributeProvider(defaultAttr));
+        dao.setUserInfoCache(userInfoCache);
+        dao.setNegativeResultCache(negativeResultCache);
+        dao.afterPropertiesSet();
+        
+        assertNull(dao.getPerson("nobody"));
+        assertNull(dao.getPerson("nobody"));
+        assertEquals(1, calls.get());
+        assertEquals(1, dao.getStatistics().getNullHits());
+        assertTrue("Null results should not be stored in the userInfoCache", userInfoCache.isEmpty());
+        assertEquals(1, dao.getNegativeResultCache().size());
+        
+        //Once the negative result expires a newly provisioned user is found
+        final Map<String, Map<String, List<Object>>> backingMap = new HashMap<String, Map<String, List<Object>>>(countingDao.getBackingMap());
+        backingMap.put("nobody", Collections.singletonMap("phone", Util.list("333-3333")));
+        countingDao.setBackingMap(backingMap);
+        clock.addAndGet(20);
+        
+        assertEquals(Util.list("333-3333"), dao.getPerson("nobody").getAttributeValues("phone"));
+        assertEquals(2, calls.get());
+        assertEquals(1, userInfoCache.size());
+        
+        dao.removeUserAttributes("nobody");
+        assertTrue(userInfoCache.isEmpty());
+    }
+    
+    public void testConfiguredNegativeResultCache() throws Exception {
+        final Map<Serializable, Boolean> negativeResultCache = new HashMap<Serializable, Boolean>();
+        
+        CachingPersonAttributeDaoImpl dao = new CachingPersonAttributeDaoImpl();
+        dao.setCachedPersonAttributesDao(this.stubDao);
+        dao.setUsernameAttributeProvider(new SimpleUsernameAttributeProvider(defaultAttr));
+        dao.setUserInfoCache(new HashMap<Serializable, Set<IPersonAttributes>>());
+        dao.setNegativeResultCache(negativeResultCache);
+        dao.afterPropertiesSet();
+        
+        assertNull(dao.getPerson("nobody"));
+        assertEquals(1, negativeResultCache.size());
+        assertNull(dao.getPerson("nobody"));
+        assertEquals(2, dao.getQueries());
+        assertEquals(1, dao.getMisses());
+        
+        dao.removeUserAttributes("nobody");
+        assertTrue(negativeResultCache.isEmpty());
+    }
+    
+    public void testSnapshot() throws Exception {
+        final File snapshot = File.createTempFile("persondir-cache", ".snapshot");
+        snapshot.delete();
+        try {
+            final AtomicInteger calls = new AtomicInteger();
+            final BoundedConcurrentCache<Serializable, Set<IPersonAttributes>> userInfoCache = new BoundedConcurrentCache<Serializable, Set<IPersonAttributes>>(100, 60000);
+            
+            CachingPersonAttributeDaoImpl dao = new CachingPersonAttributeDaoImpl();
+            dao.setCachedPersonAttributesDao(this.createCountingDao(calls, "111-1111"));
+            dao.setUsernameAttributeProvider(new SimpleUsernameAttributeProvider(defaultAttr));
+            dao.setUserInfoCache(userInfoCache);
+            dao.setCacheNullResults(true);
+            dao.setSnapshotFile(snapshot);
+            dao.afterPropertiesSet();
+            
+            assertEquals(Util.list("111-1111"), dao.getPerson("edalquist").getAttributeValues("phone"));
+            assertNull(dao.getPerson("nobody"));
+            assertEquals(2, calls.get());
+            
+            //Written when the bean is destroyed
+            dao.destroy();
+            assertTrue(snapshot.exists());
+            
+            final BoundedConcurrentCache<Serializable, Set<IPersonAttributes>> restoredCache = new BoundedConcurrentCache<Serializable, Set<IPersonAttributes>>(100, 60000);
+            
+            dao = new CachingPersonAttributeDaoImpl();
+            dao.setCachedPersonAttributesDao(this.createCountingDao(calls, "222-2222"));
+            dao.setUsernameAttributeProvider(new SimpleUsernameAttributeProvider(defaultAttr));
+            dao.setUserInfoCache(restoredCache);
+            dao.setCacheNullResults(true);
+            dao.setSnapshotFile(snapshot);
+            dao.afterPropertiesSet();
+            try {
+                for (int i = 0; i < 100 && restoredCache.size() < 2; i++) {
+                    Thread.sleep(10);
+                }
+                assertEquals(2, restoredCache.size());
+                
+                //Entries keep their original expiration time
+                for (final Serializable key : restoredCache.keySet()) {
+                    final long timeToLive = restoredCache.getRemainingTimeToLive(key, TimeUnit.MILLISECONDS);
+                    assertTrue(timeToLive > 0);
+                    assertTrue(timeToLive <= userInfoCache.getRemainingTimeToLive(key, TimeUnit.MILLISECONDS));
+                }
+                
+                assertEquals(Util.list("111-1111"), dao.getPerson("edalquist").getAttributeValues("phone"));
+                assertNull(dao.getPerson("nobody"));
+                assertEquals(2, calls.get());
+                assertEquals(0, dao.getMisses());
+                assertEquals(1, dao.getStatistics().getNullHits());
+            }
+            finally {
+                dao.destroy();
+            }
+        }
+        finally {
+            snapshot.delete();
+        }
+    }
+    
+    public void testSnapshotSkipsExpiredEntries() throws Exception {
+        final File snapshot = File.createTempFile("persondir-cache", ".snapshot");
+        try {
+            final AtomicInteger calls = new AtomicInteger();
+            final AtomicLong clock = new AtomicLong(System.currentTimeMillis());
+            
+            CachingPersonAttributeDaoImpl dao = this.createClockedDao(clock);
+            dao.setCachedPersonAttributesDao(this.createCountingDao(calls, "111-1111"));
+            dao.setUsernameAttributeProvider(new SimpleUsernameAttributeProvider(defaultAttr));
+            dao.setUserInfoCache(new HashMap<Serializable, Set<IPersonAttributes>>());
+            dao.setExpireAfter(20);
+            dao.afterPropertiesSet();
+            dao.setSnapshotFile(snapshot);
+            
+            dao.getPerson("edalquist");
+            assertEquals(1, dao.writeSnapshot());
+            clock.addAndGet(20);
+            
+            final Map<Serializable, Set<IPersonAttributes>> restoredCache = new HashMap<Serializable, Set<IPersonAttributes>>();
+            dao = this.createClockedDao(clock);
+            dao.setCachedPersonAttributesDao(this.createCountingDao(calls, "111-1111"));
+            dao.setUserInfoCache(restoredCache);
+            dao.setExpireAfter(20);
+            dao.setSnapshotFile(snapshot);
+            
+            assertEquals(0, dao.loadSnapshot());
+            assertTrue(restoredCache.isEmpty());
+        }
+        finally {
+            snapshot.delete();
+        }
+    }
+    
+    public void testSnapshotTieredCache() throws Exception {
+        final File snapshot = File.createTempFile("persondir-cache", ".snapshot");
+        try {
+            final AtomicInteger calls = new AtomicInteger();
+            
+            CachingPersonAttributeDaoImpl dao = new CachingPersonAttributeDaoImpl();
+            dao.setCachedPersonAttributesDao(this.createCountingDao(calls, "111-1111"));
+            dao.setUsernameAttributeProvider(new SimpleUsernameAttributeProvider(defaultAttr));
+            dao.setUserInfoCache(new BoundedConcurrentCache<Serializable, Set<IPersonAttributes>>(100, 60000));
+            dao.afterPropertiesSet();
+            dao.setSnapshotFile(snapshot);
+            
+            dao.getPerson("edalquist");
+            assertEquals(1, dao.writeSnapshot());
+            
+            //The tiered cache keeps the expiration time of the entry
+            final TieredCache<Serializable, Set<IPersonAttributes>> restoredCache = new TieredCache<Serializable, Set<IPersonAttributes>>(
+                    new BoundedConcurrentCache<Serializable, Set<IPersonAttributes>>(100), new OffHeapCache<Serializable, Set<IPersonAttributes>>(64 * 1024));
+            dao = new CachingPersonAttributeDaoImpl();
+            dao.setCachedPersonAttributesDao(this.createCountingDao(calls, "111-1111"));
+            dao.setUserInfoCache(restoredCache);
+            dao.setSnapshotFile(snapshot);
+            
+            assertEquals(1, dao.loadSnapshot());
+            final long timeToLive = restoredCache.getRemainingTimeToLive(restoredCache.keySet().iterator().next(), TimeUnit.MILLISECONDS);
+            assertTrue(timeToLive > 0 && timeToLive <= 60000);
+            
+            //A Map can't expire the entry, it is only loaded if expireAfter expires it first
+            final Map<Serializable, Set<IPersonAttributes>> mapCache = new HashMap<Serializable, Set<IPersonAttributes>>();
+            dao = new CachingPersonAttributeDaoImpl();
+            dao.setCachedPersonAttributesDao(this.createCountingDao(calls, "111-1111"));
+            dao.setUserInfoCache(mapCache);
+            dao.setSnapshotFile(snapshot);
+            
+            assertEquals(0, dao.loadSnapshot());
+            assertTrue(mapCache.isEmpty());
+            
+            dao.setExpireAfter(30000);
+            assertEquals(1, dao.loadSnapshot());
+            assertEquals(1, mapCache.size());
+        }
+        finally {
+            snapshot.delete();
+        }
+    }
+    
+    private CachingPersonAttributeDaoImpl createClockedDao(final AtomicLong clock) {
+        return new CachingPersonAttributeDaoImpl() {
+            @Override
+            protected long currentTimeMillis() {
+                return clock.get();
+            }
+        };
+    }
+    
+    private ComplexStubPersonAttributeDao createCountingDao(final AtomicInteger calls, String phone) {
+        final ComplexStubPersonAttributeDao countingDao = new ComplexStubPersonAttributeDao() {
+            @Override
+            protected List<IPersonAttributes> getPeopleForQuery(String seedValue, String queryUserName) {
+                calls.incrementAndGet();
+                return super.getPeopleForQuery(seedValue, queryUserName);
+            }
+        };
+        countingDao.setUsernameAttributeProvider(new SimpleUsernameAttributeProvider(defaultAttr));
+        countingDao.setBackingMap(Collections.singletonMap("edalquist", Collections.singletonMap("phone", Util.list(phone))));
+        return countingDao;
+    }
+    
+    private CachingPersonAttributeDaoImpl createCoalescingDao(IPersonAttributeDao cachedDao) throws Exception {
+        final CachingPersonAttributeDaoImpl dao = new CachingPersonAttributeDaoImpl();
+        dao.setCachedPersonAttributesDao(cachedDao);
+        dao.setUsernameAttributeProvider(new SimpleUsernameAttributeProvider(defaultAttr));
+        dao.setUserInfoCache(new ConcurrentHashMap<Serializable, Set<IPersonAttributes>>());
+        dao.setCoalesceMisses(true);
+        dao.afterPropertiesSet();
+        return dao;
+    }
+    
+    /**
+     * Starts threads looking up edalquist, returns once the first is blocked in the DAO and the rest are waiting on it
+     */
+    private List<Thread> startLookups(final CachingPersonAttributeDaoImpl dao, int threadCount, BlockingStubPersonAttributeDao blockingDao, final List<Object> results) throws Exception {
+        final List<Thread> threads = new ArrayList<Thread>(threadCount);
+        for (int t = 0; t < threadCount; t++) {
+            final Thread thread = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        results.add(dao.getPerson("edalquist"));
+                    }
+                    catch (RuntimeException e) {
+                        results.add(e);
+                    }
+                }
+            };
+            threads.add(thread);
+            thread.start();
+            
+            if (t == 0) {
+                blockingDao.entered.await();
+            }
+        }
+        
+        //Wait for the other threads to block on the in-flight load
+        for (final Thread thread : threads) {
+            while (thread.getState() != Thread.State.WAITING && thread.getState() != Thread.State.TIMED_WAITING) {
+                Thread.sleep(1);
+            }
+        }
+        
+        return threads;
+    }
+    
+    private static class BlockingStubPersonAttributeDao extends ComplexStubPersonAttributeDao {
+        final CountDownLatch entered = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final AtomicInteger calls = new AtomicInteger();
+        private final boolean fail;
+        
+        public BlockingStubPersonAttributeDao(ComplexStubPersonAttributeDao stubDao, boolean fail) {
+            super(stubDao.getBackingMap());
+            this.setUsernameAttributeProvider(new SimpleUsernameAttributeProvider(defaultAttr));
+            this.fail = fail;
+        }
+        
+        @Override
+        protected List<IPersonAttributes> getPeopleForQuery(String seedValue, String queryUserName) {
+            if (this.calls.incrementAndGet() == 1) {
+                this.entered.countDown();
+                try {
+                    this.release.await();
+                }
+                catch (InterruptedException e) {
+                    throw new IllegalStateException(e);
+                }
+                if (this.fail) {
+                    throw new IllegalStateException("Load failed");
+                }
+            }
+            return super.getPeopleForQuery(seedValue, queryUserName);
+        }
+    }
+    
     public void testCaching() throws Exception {
         Map<Serializable, Set<IPersonAttributes>> cacheMap = new HashMap<Serializable, Set<IPersonAttributes>>();
         
@@ -250,6 +1070,63 @@ public class CachingPersonAttributeDaoTest extends AbstractDefaultQueryPersonAtt
         assertEquals("Incorrect number of items in cache", 1, cacheMap.size());
     }
     
+    public void testRemoveUserAttributesWithMultipleAttributeKeys() throws Exception {
+        Map<Serializable, Set<IPersonAttributes>> cacheMap = new HashMap<Serializable, Set<IPersonAttributes>>();
+        
+        Set<String> keyAttrs = new HashSet<String>();
+        keyAttrs.add(defaultAttr);
+        keyAttrs.add("name.first");
+        keyAttrs.add("name.last");
+        
+        CachingPersonAttributeDaoImpl dao = new CachingPersonAttributeDaoImpl();
+        dao.setCachedPersonAttributesDao(this.stubDao);
+        dao.setUsernameAttributeProvider(new SimpleUsernameAttributeProvider(defaultAttr));
+        dao.setCacheKeyAttributes(keyAttrs);
+        dao.setUserInfoCache(cacheMap);
+        dao.setCacheNullResults(true);
+        dao.afterPropertiesSet();
+        
+        Map<String, List<Object>> queryMap1 = new HashMap<String, List<Object>>();
+        queryMap1.put(defaultAttr, Util.list("edalquist"));
+        queryMap1.put("name.first", Util.list("Eric"));
+        queryMap1.put("name.last", Util.list("Dalquist"));
+        this.validateUser1(dao.getMultivaluedUserAttributes(queryMap1));
+        
+        //Same user cached under a second key
+        Map<String, List<Object>> queryMap2 = new HashMap<String, List<Object>>();
+        queryMap2.put(defaultAttr, Util.list("edalquist"));
+        queryMap2.put("name.first", Util.list("E"));
+        queryMap2.put("name.last", Util.list("Dalquist"));
+        this.validateUser1(dao.getMultivaluedUserAttributes(queryMap2));
+        
+        //Not found, cached as a null result
+        Map<String, List<Object>> queryMap3 = new HashMap<String, List<Object>>();
+        queryMap3.put(defaultAttr, Util.list("nobody"));
+        queryMap3.put("name.first", Util.list("No"));
+        queryMap3.put("name.last", Util.list("Body"));
+        assertNull(dao.getMultivaluedUserAttributes(queryMap3));
+        
+        Map<String, List<Object>> queryMap4 = new HashMap<String, List<Object>>();
+        queryMap4.put(defaultAttr, Util.list("awp9"));
+        queryMap4.put("name.first", Util.list("Andrew"));
+        queryMap4.put("name.last", Util.list("Petro"));
+        dao.getMultivaluedUserAttributes(queryMap4);
+        assertEquals(4, cacheMap.size());
+        
+        //Every key cached for the user is removed, a key generated from the uid alone would match none of them
+        dao.removeUserAttributes("edalquist");
+        assertEquals(2, cacheMap.size());
+        assertEquals(2, dao.getStatistics().getInvalidations());
+        
+        dao.removeUserAttributes("nobody");
+        assertEquals(1, cacheMap.size());
+        assertEquals(3, dao.getStatistics().getInvalidations());
+        assertEquals(0, dao.getStatistics().getEvictions());
+        
+        dao.getMultivaluedUserAttributes(queryMap1);
+        assertEquals(5, dao.getMisses());
+    }
+    
     public void testPropertyConstraints() {
         CachingPersonAttributeDaoImpl dao = new CachingPersonAttributeDaoImpl();
         
@@ -19,15 +19,26 @@
 
 package org.jasig.services.persondir.support;
 
+import java.sql.Connection;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
+import javax.sql.DataSource;
+
+import org.hsqldb.jdbcDriver;
 import org.jasig.services.persondir.IPersonAttributeDao;
+import org.jasig.services.persondir.IPersonAttributes;
 import org.jasig.services.persondir.mock.ThrowingPersonAttributeDao;
+import org.jasig.services.persondir.support.jdbc.SingleRowJdbcPersonAttributeDao;
 import org.jasig.services.persondir.support.merger.MultivaluedAttributeMerger;
 import org.jasig.services.persondir.util.Util;
+import org.springframework.jdbc.datasource.SimpleDriverDataSource;
 
 /**
  * CascadingPersonAttributeDao testcase.
@@ -200,6 +211,119 @@ public class CascadingPersonAttributeDaoTest
         assertNull(results);
     }
     
+    public void testBatchedCascadingQuery() {
+        final MultivaluedStubPersonAttributeDao usernameSource = new MultivaluedStubPersonAttributeDao("username");
+        usernameSource.addPerson("edalquist", "edalquist", "studentId", "123456789");
+        usernameSource.addPerson("awp9", "awp9", "studentId", "987654321");
+        
+        final MultivaluedStubPersonAttributeDao studentIdSource = new MultivaluedStubPersonAttributeDao("studentId");
+        studentIdSource.addPerson("123456789", "edalquist", "major", "CS");
+        studentIdSource.addPerson("987654321", "awp9", "major", "ME");
+        studentIdSource.addPerson("000000000", "erider", "major", "EE");
+        
+        final List<IPersonAttributeDao> targets = new ArrayList<IPersonAttributeDao>();
+        targets.add(usernameSource);
+        targets.add(studentIdSource);
+        
+        final CascadingPersonAttributeDao targetDao = new CascadingPersonAttributeDao();
+        targetDao.setPersonAttributeDaos(targets);
+        targetDao.setBatchQueries(true);
+        
+        final Map<String, List<Object>> query = new HashMap<String, List<Object>>();
+        query.put("username", Util.list("edalquist", "awp9"));
+        
+        //Without a batchKeyAttribute each person still results in a query
+        targetDao.getPeopleWithMultivaluedAttributes(query);
+        assertEquals(2, studentIdSource.getQueryCount());
+        
+        targetDao.setBatchKeyAttribute("studentId");
+        final Set<IPersonAttributes> results = targetDao.getPeopleWithMultivaluedAttributes(query);
+        
+        assertEquals(3, studentIdSource.getQueryCount());
+        assertEquals(2, results.size());
+        for (final IPersonAttributes person : results) {
+            if ("edalquist".equals(person.getName())) {
+                assertEquals("CS", person.getAttributeValue("major"));
+                assertEquals("123456789", person.getAttributeValue("studentId"));
+            }
+            else {
+                assertEquals("awp9", person.getName());
+                assertEquals("ME", person.getAttributeValue("major"));
+                assertEquals("987654321", person.getAttributeValue("studentId"));
+            }
+        }
+        
+        //Without batching each person results in a query
+        targetDao.setBatchQueries(false);
+        final Set<IPersonAttributes> unbatchedResults = targetDao.getPeopleWithMultivaluedAttributes(query);
+        assertEquals(5, studentIdSource.getQueryCount());
+        assertEquals(results, unbatchedResults);
+    }
+    
+    public void testBatchedCascadingJdbcQuery() throws Exception {
+        final DataSource dataSource = new SimpleDriverDataSource(new jdbcDriver(), "jdbc:hsqldb:mem:cascadingbatch", "sa", "");
+        final Connection con = dataSource.getConnection();
+        try {
+            con.prepareStatement("CREATE TABLE student_table (student_id VARCHAR, major VARCHAR)").execute();
+            con.prepareStatement("INSERT INTO student_table (student_id, major) VALUES ('123456789', 'CS')").execute();
+            con.prepareStatement("INSERT INTO student_table (student_id, major) VALUES ('987654321', 'ME')").execute();
+            con.prepareStatement("INSERT INTO student_table (student_id, major) VALUES ('555555555', 'EE')").execute();
+            
+            final MultivaluedStubPersonAttributeDao usernameSource = new MultivaluedStubPersonAttributeDao("username");
+            usernameSource.addPerson("edalquist", "edalquist", "studentId", "123456789");
+            usernameSource.addPerson("awp9", "awp9", "studentId", "987654321");
+            usernameSource.addPerson("atest", "atest", "studentId", "555555555");
+            usernameSource.addPerson("susan", "susan", "studentId", "555555555");
+            
+            //The rows don't return a username so the DAO names them all after the same seed value
+            final SingleRowJdbcPersonAttributeDao studentIdSource = new SingleRowJdbcPersonAttributeDao(dataSource, "SELECT student_id, major FROM student_table WHERE {0}");
+            studentIdSource.setQueryAttributeMapping(Collections.singletonMap("studentId", "student_id"));
+            final Map<String, Object> columnsToAttributes = new HashMap<String, Object>();
+            columnsToAttributes.put("student_id", "studentId");
+            columnsToAttributes.put("major", "major");
+            studentIdSource.setResultAttributeMapping(columnsToAttributes);
+            studentIdSource.setQueryType(QueryType.OR);
+            
+            final List<IPersonAttributeDao> targets = new ArrayList<IPersonAttributeDao>();
+            targets.add(usernameSource);
+            targets.add(studentIdSource);
+            
+            final CascadingPersonAttributeDao targetDao = new CascadingPersonAttributeDao();
+            targetDao.setPersonAttributeDaos(targets);
+            targetDao.setBatchQueries(true);
+            targetDao.setBatchKeyAttribute("studentId");
+            
+            final Map<String, List<Object>> query = new HashMap<String, List<Object>>();
+            query.put("username", Util.list("edalquist", "awp9", "atest", "susan"));
+            final Set<IPersonAttributes> results = targetDao.getPeopleWithMultivaluedAttributes(query);
+            
+            final Map<String, Object> majors = new HashMap<String, Object>();
+            for (final IPersonAttributes person : results) {
+                majors.put(person.getName(), person.getAttributeValue("major"));
+            }
+            
+            //atest and susan share a studentId so they are queried one at a time, which matches for both
+            final Map<String, Object> expectedMajors = new HashMap<String, Object>();
+            expectedMajors.put("edalquist", "CS");
+            expectedMajors.put("awp9", "ME");
+            expectedMajors.put("atest", "EE");
+            expectedMajors.put("susan", "EE");
+            assertEquals(expectedMajors, majors);
+            
+            //Same results as querying one person at a time
+            targetDao.setBatchQueries(false);
+            final Map<String, Object> unbatchedMajors = new HashMap<String, Object>();
+            for (final IPersonAttributes person : targetDao.getPeopleWithMultivaluedAttributes(query)) {
+                unbatchedMajors.put(person.getName(), person.getAttributeValue("major"));
+            }
+            assertEquals(expectedMajors, unbatchedMajors);
+        }
+        finally {
+            con.prepareStatement("SHUTDOWN").execute();
+            con.close();
+        }
+    }
+    
     /**
      * @see org.jasig.services.persondir.support.AbstractAggregatingDefaultQueryPersonAttributeDaoTest#getConfiguredAbstractAggregatingDefaultQueryPersonAttributeDao()
      */
@@ -223,4 +347,54 @@ public class CascadingPersonAttributeDaoTest
     protected AbstractAggregatingDefaultQueryPersonAttributeDao getEmptyAbstractAggregatingDefaultQueryPersonAttributeDao() {
         return new CascadingPersonAttributeDao();
     }
+    
+    /**
+     * Stub DAO that treats multiple values for the query attribute as an OR and counts the queries it receives
+     */
+    private static class MultivaluedStubPersonAttributeDao extends AbstractDefaultAttributePersonAttributeDao {
+        private final Map<String, IPersonAttributes> people = new LinkedHashMap<String, IPersonAttributes>();
+        private final String queryAttribute;
+        private int queryCount = 0;
+        
+        public MultivaluedStubPersonAttributeDao(String queryAttribute) {
+            this.queryAttribute = queryAttribute;
+        }
+        
+        public void addPerson(String key, String userName, String attribute, String value) {
+            final Map<String, List<Object>> attributes = new LinkedHashMap<String, List<Object>>();
+            attributes.put(attribute, Util.list(value));
+            attributes.put(this.queryAttribute, Util.list(key));
+            this.people.put(key, new NamedPersonImpl(userName, attributes));
+        }
+        
+        public int getQueryCount() {
+            return this.queryCount;
+        }
+
+        public Set<IPersonAttributes> getPeopleWithMultivaluedAttributes(Map<String, List<Object>> query) {
+            this.queryCount++;
+            
+            final List<Object> values = query.get(this.queryAttribute);
+            if (values == null) {
+                return null;
+            }
+            
+            final Set<IPersonAttributes> results = new LinkedHashSet<IPersonAttributes>();
+            for (final Object value : values) {
+                final IPersonAttributes person = this.people.get(String.valueOf(value));
+                if (person != null) {
+                    results.add(person);
+                }
+            }
+            return results;
+        }
+
+        public Set<String> getPossibleUserAttributeNames() {
+            return null;
+        }
+
+        public Set<String> getAvailableQueryAttributes() {
+            return Collections.singleton(this.queryAttribute);
+        }
+    }
 }
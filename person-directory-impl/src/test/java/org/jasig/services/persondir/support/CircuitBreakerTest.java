@@ -0,0 +1,121 @@
+/**
+ * Licensed to Jasig under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Jasig licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a
+ * copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.jasig.services.persondir.support;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import junit.framework.TestCase;
+
+import org.jasig.services.persondir.IPersonAttributeDao;
+
+/**
+ * CircuitBreaker testcase.
+ *
+ * @author Eric Dalquist
+ * @version $Revision$
+ */
+public class CircuitBreakerTest extends TestCase {
+    private final IPersonAttributeDao dao = new StubPersonAttributeDao();
+    
+    public void testOpenAndClose() throws Exception {
+        final AtomicLong clock = new AtomicLong();
+        final CircuitBreaker circuitBreaker = new CircuitBreaker() {
+            @Override
+            protected long currentTimeNanos() {
+                return clock.get();
+            }
+        };
+        circuitBreaker.setWindowSize(4);
+        circuitBreaker.setMinimumCalls(4);
+        circuitBreaker.setProbeInterval(50);
+        
+        //Not enough calls to open yet
+        circuitBreaker.recordFailure(this.dao, 0);
+        circuitBreaker.recordFailure(this.dao, 0);
+        circuitBreaker.recordSuccess(this.dao, 0);
+        assertEquals(CircuitBreaker.State.CLOSED, circuitBreaker.getState(this.dao));
+        assertTrue(circuitBreaker.allowRequest(this.dao));
+        
+        //Two of the last four calls failed
+        circuitBreaker.recordSuccess(this.dao, 0);
+        assertEquals(CircuitBreaker.State.OPEN, circuitBreaker.getState(this.dao));
+        assertFalse(circuitBreaker.allowRequest(this.dao));
+        assertEquals(1, circuitBreaker.getRejectedCount());
+        assertEquals(1, circuitBreaker.getOpenCircuits());
+        
+        //No probe is allowed before the probe interval, a single probe is allowed after it
+        clock.addAndGet(TimeUnit.MILLISECONDS.toNanos(49));
+        assertFalse(circuitBreaker.allowRequest(this.dao));
+        clock.addAndGet(TimeUnit.MILLISECONDS.toNanos(1));
+        assertTrue(circuitBreaker.allowRequest(this.dao));
+        assertEquals(CircuitBreaker.State.HALF_OPEN, circuitBreaker.getState(this.dao));
+        assertFalse(circuitBreaker.allowRequest(this.dao));
+        
+        circuitBreaker.recordSuccess(this.dao, 0);
+        assertEquals(CircuitBreaker.State.CLOSED, circuitBreaker.getState(this.dao));
+        assertEquals(1, circuitBreaker.getOpenedCount());
+        assertEquals(1, circuitBreaker.getClosedCount());
+        assertEquals(0, circuitBreaker.getOpenCircuits());
+        
+        //The window starts over once closed
+        circuitBreaker.recordFailure(this.dao, 0);
+        circuitBreaker.recordFailure(this.dao, 0);
+        circuitBreaker.recordFailure(this.dao, 0);
+        assertEquals(CircuitBreaker.State.CLOSED, circuitBreaker.getState(this.dao));
+    }
+    
+    public void testSlowCalls() {
+        final CircuitBreaker circuitBreaker = new CircuitBreaker();
+        circuitBreaker.setWindowSize(2);
+        circuitBreaker.setMinimumCalls(2);
+        circuitBreaker.setSlowCallDuration(10);
+        
+        circuitBreaker.recordSuccess(this.dao, TimeUnit.MILLISECONDS.toNanos(20));
+        circuitBreaker.recordSuccess(this.dao, TimeUnit.MILLISECONDS.toNanos(1));
+        assertEquals(CircuitBreaker.State.CLOSED, circuitBreaker.getState(this.dao));
+        
+        circuitBreaker.recordSuccess(this.dao, TimeUnit.MILLISECONDS.toNanos(20));
+        assertEquals(CircuitBreaker.State.CLOSED, circuitBreaker.getState(this.dao));
+        circuitBreaker.recordSuccess(this.dao, TimeUnit.MILLISECONDS.toNanos(20));
+        assertEquals(CircuitBreaker.State.OPEN, circuitBreaker.getState(this.dao));
+        
+        circuitBreaker.reset();
+        assertEquals(CircuitBreaker.State.CLOSED, circuitBreaker.getState(this.dao));
+    }
+    
+    public void testMinimumCallsLargerThanWindow() throws Exception {
+        final CircuitBreaker circuitBreaker = new CircuitBreaker();
+        
+        //Setters can be called in any order, the combination is checked once all are set
+        circuitBreaker.setMinimumCalls(30);
+        circuitBreaker.setWindowSize(40);
+        circuitBreaker.afterPropertiesSet();
+        
+        circuitBreaker.setWindowSize(20);
+        try {
+            circuitBreaker.afterPropertiesSet();
+            fail("afterPropertiesSet should have thrown IllegalStateException");
+        }
+        catch (IllegalStateException ise) {
+            //expected
+        }
+    }
+}
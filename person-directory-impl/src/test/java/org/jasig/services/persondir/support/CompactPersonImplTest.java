@@ -0,0 +1,168 @@
+/**
+ * Licensed to Jasig under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Jasig licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a
+ * copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.jasig.services.persondir.support;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import junit.framework.TestCase;
+
+import org.apache.commons.lang3.SerializationUtils;
+import org.jasig.services.persondir.IPersonAttributes;
+import org.jasig.services.persondir.util.Util;
+
+/**
+ * @author Eric Dalquist
+ * @version $Revision$
+ */
+public class CompactPersonImplTest extends TestCase {
+    private Map<String, List<Object>> attributes;
+    
+    @Override
+    protected void setUp() throws Exception {
+        this.attributes = new LinkedHashMap<String, List<Object>>();
+        this.attributes.put("uid", Util.list("edalquist"));
+        this.attributes.put("mail", Util.list("eric@example.edu", "edalquist@example.edu"));
+        this.attributes.put("empty", new ArrayList<Object>());
+        this.attributes.put("nullList", null);
+        this.attributes.put("nullValue", Util.list((Object) null));
+        this.attributes.put("array", Util.list((Object) new Object[] { "a", "b" }));
+    }
+    
+    public void testSameAsNamedPersonImpl() {
+        final IPersonAttributes expected = new NamedPersonImpl("edalquist", this.attributes);
+        final IPersonAttributes person = new CompactPersonImpl("edalquist", this.attributes);
+        
+        assertEquals(expected, person);
+        assertEquals(expected.hashCode(), person.hashCode());
+        assertEquals(expected.getName(), person.getName());
+        assertEquals(expected.getAttributes(), person.getAttributes());
+        assertEquals(expected.getAttributes().hashCode(), person.getAttributes().hashCode());
+        assertEquals(new ArrayList<String>(expected.getAttributes().keySet()), new ArrayList<String>(person.getAttributes().keySet()));
+        assertEquals(expected.toString().replace("NamedPersonImpl", "CompactPersonImpl"), person.toString());
+        
+        for (final String name : Arrays.asList("uid", "mail", "empty", "nullList", "nullValue", "array", "missing", "UID")) {
+            assertEquals(name, expected.getAttributeValue(name), person.getAttributeValue(name));
+            assertEquals(name, expected.getAttributeValues(name), person.getAttributeValues(name));
+            assertEquals(name, expected.getAttributes().containsKey(name), person.getAttributes().containsKey(name));
+        }
+        assertTrue(person.getAttributeValue("array") instanceof Object[]);
+    }
+    
+    public void testCaseInsensitive() {
+        final IPersonAttributes expected = new CaseInsensitiveNamedPersonImpl("edalquist", this.attributes);
+        final IPersonAttributes person = CompactPersonImpl.compact(expected);
+        
+        assertEquals(expected.getAttributes(), person.getAttributes());
+        assertEquals(Util.list("edalquist"), person.getAttributeValues("UID"));
+        assertEquals("eric@example.edu", person.getAttributeValue("Mail"));
+        assertTrue(person.getAttributes().containsKey("NULLLIST"));
+        
+        final Map<String, List<Object>> mixedCase = new LinkedHashMap<String, List<Object>>();
+        mixedCase.put("Mail", Util.list("a"));
+        mixedCase.put("mail", Util.list("b"));
+        final IPersonAttributes mergedPerson = new CompactPersonImpl("edalquist", mixedCase, true);
+        assertEquals(new CaseInsensitiveNamedPersonImpl("edalquist", mixedCase).getAttributes(), mergedPerson.getAttributes());
+    }
+    
+    public void testReadOnly() {
+        final IPersonAttributes person = new CompactPersonImpl("edalquist", this.attributes);
+        try {
+            person.getAttributes().put("foo", Util.list("bar"));
+            fail("attributes should be read-only");
+        }
+        catch (UnsupportedOperationException e) {
+            //expected
+        }
+        try {
+            person.getAttributeValues("mail").set(0, "bar");
+            fail("values should be read-only");
+        }
+        catch (UnsupportedOperationException e) {
+            //expected
+        }
+        
+        //Changes to the source Map don't affect the person
+        this.attributes.put("uid", Util.list("other"));
+        assertEquals("edalquist", person.getAttributeValue("uid"));
+    }
+    
+    public void testSharedSchema() {
+        final Map<String, List<Object>> otherAttributes = new HashMap<String, List<Object>>();
+        for (final String name : this.attributes.keySet()) {
+            otherAttributes.put(name, Util.list("value"));
+        }
+        final Map<String, List<Object>> orderedOtherAttributes = new LinkedHashMap<String, List<Object>>();
+        for (final String name : this.attributes.keySet()) {
+            orderedOtherAttributes.put(name, otherAttributes.get(name));
+        }
+        
+        final CompactPersonImpl person = new CompactPersonImpl("edalquist", this.attributes);
+        final CompactPersonImpl otherPerson = new CompactPersonImpl("awp9", orderedOtherAttributes);
+        assertSame(person.getSchema(), otherPerson.getSchema());
+        assertNotSame(person.getSchema(), new CompactPersonImpl("edalquist", this.attributes, true).getSchema());
+        
+        //Deserialized people use the shared schema
+        final CompactPersonImpl deserialized = (CompactPersonImpl) SerializationUtils.deserialize(SerializationUtils.serialize(person));
+        assertSame(person.getSchema(), deserialized.getSchema());
+        assertEquals(person.getAttributes().keySet(), deserialized.getAttributes().keySet());
+        assertEquals(person.getAttributeValues("mail"), deserialized.getAttributeValues("mail"));
+        assertEquals(person.getAttributeValues("nullValue"), deserialized.getAttributeValues("nullValue"));
+    }
+    
+    public void testCompactPersonAttributesDao() {
+        final Map<String, Map<String, List<Object>>> backingMap = Collections.singletonMap("edalquist", this.attributes);
+        final ComplexStubPersonAttributeDao dao = new ComplexStubPersonAttributeDao(backingMap);
+        dao.setUsernameAttributeProvider(new SimpleUsernameAttributeProvider("uid"));
+        dao.setCompactPersonAttributes(true);
+        
+        final IPersonAttributes person = dao.getPerson("edalquist");
+        assertTrue(person instanceof CompactPersonImpl);
+        assertEquals("edalquist", person.getName());
+        assertEquals(Util.list("eric@example.edu", "edalquist@example.edu"), person.getAttributeValues("mail"));
+    }
+    
+    public void testCompactCachedResults() throws Exception {
+        final Map<String, Map<String, List<Object>>> backingMap = Collections.singletonMap("edalquist", this.attributes);
+        final ComplexStubPersonAttributeDao stubDao = new ComplexStubPersonAttributeDao(backingMap);
+        stubDao.setUsernameAttributeProvider(new SimpleUsernameAttributeProvider("uid"));
+        
+        final Map<Serializable, Set<IPersonAttributes>> userInfoCache = new HashMap<Serializable, Set<IPersonAttributes>>();
+        final CachingPersonAttributeDaoImpl dao = new CachingPersonAttributeDaoImpl();
+        dao.setCachedPersonAttributesDao(stubDao);
+        dao.setUsernameAttributeProvider(new SimpleUsernameAttributeProvider("uid"));
+        dao.setUserInfoCache(userInfoCache);
+        dao.setCompactCachedResults(true);
+        dao.afterPropertiesSet();
+        
+        final IPersonAttributes loaded = dao.getPerson("edalquist");
+        final IPersonAttributes cached = dao.getPerson("edalquist");
+        assertTrue(cached instanceof CompactPersonImpl);
+        assertEquals(loaded.getAttributes(), cached.getAttributes());
+        assertEquals(1, dao.getMisses());
+    }
+}
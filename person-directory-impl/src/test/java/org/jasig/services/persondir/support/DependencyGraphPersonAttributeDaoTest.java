@@ -0,0 +1,209 @@
+/**
+ * Licensed to Jasig under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Jasig licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a
+ * copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.jasig.services.persondir.support;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.jasig.services.persondir.IPersonAttributeDao;
+import org.jasig.services.persondir.IPersonAttributes;
+import org.jasig.services.persondir.util.Util;
+
+/**
+ * DependencyGraphPersonAttributeDao testcase.
+ *
+ * @author Eric Dalquist
+ * @version $Revision$
+ */
+public class DependencyGraphPersonAttributeDaoTest extends AbstractAggregatingDefaultQueryPersonAttributeDaoTest {
+    private ComplexStubPersonAttributeDao usernameSource;
+    private ComplexStubPersonAttributeDao studentIdSource;
+    private ComplexStubPersonAttributeDao emailSource;
+
+    @Override
+    protected void setUp() {
+        final IUsernameAttributeProvider usernameAttributeProvider = new SimpleUsernameAttributeProvider("username");
+
+        final Map<String, Map<String, List<Object>>> usernameBackingMap = new HashMap<String, Map<String, List<Object>>>();
+        final Map<String, List<Object>> user1 = new HashMap<String, List<Object>>();
+        user1.put("phone", Util.list("777-7777"));
+        user1.put("studentId", Util.list("123456789"));
+        usernameBackingMap.put("edalquist", user1);
+
+        this.usernameSource = new ComplexStubPersonAttributeDao(usernameBackingMap);
+        this.usernameSource.setUsernameAttributeProvider(usernameAttributeProvider);
+
+        final Map<String, Map<String, List<Object>>> studentIdBackingMap = new HashMap<String, Map<String, List<Object>>>();
+        final Map<String, List<Object>> user1a = new HashMap<String, List<Object>>();
+        user1a.put("major", Util.list("CS"));
+        user1a.put("username", Util.list("edalquist"));
+        studentIdBackingMap.put("123456789", user1a);
+
+        this.studentIdSource = new ComplexStubPersonAttributeDao("studentId", studentIdBackingMap) {
+            @Override
+            public Set<String> getAvailableQueryAttributes() {
+                return Collections.singleton("studentId");
+            }
+        };
+        this.studentIdSource.setUsernameAttributeProvider(usernameAttributeProvider);
+
+        final Map<String, Map<String, List<Object>>> emailBackingMap = new HashMap<String, Map<String, List<Object>>>();
+        final Map<String, List<Object>> user1b = new HashMap<String, List<Object>>();
+        user1b.put("email", Util.list("edalquist@example.edu"));
+        emailBackingMap.put("edalquist", user1b);
+
+        this.emailSource = new ComplexStubPersonAttributeDao(emailBackingMap);
+        this.emailSource.setUsernameAttributeProvider(usernameAttributeProvider);
+    }
+
+    public void testExecutionPlan() throws Exception {
+        final DependencyGraphPersonAttributeDao dao = new DependencyGraphPersonAttributeDao();
+        dao.setPersonAttributeDaos(Arrays.<IPersonAttributeDao>asList(this.usernameSource, this.studentIdSource, this.emailSource));
+        dao.afterPropertiesSet();
+
+        final DependencyGraphPersonAttributeDao.ExecutionPlan plan = dao.getExecutionPlan();
+        assertEquals(2, plan.getCriticalPathLength());
+        assertEquals(Arrays.<IPersonAttributeDao>asList(this.usernameSource, this.emailSource), plan.getStages().get(0));
+        assertEquals(Arrays.<IPersonAttributeDao>asList(this.studentIdSource), plan.getStages().get(1));
+        assertEquals(Arrays.<IPersonAttributeDao>asList(this.usernameSource), plan.getDependencies(this.studentIdSource));
+        assertEquals(Collections.emptyList(), plan.getDependencies(this.emailSource));
+
+        //A new list of child DAOs results in a new plan
+        dao.setPersonAttributeDaos(Arrays.<IPersonAttributeDao>asList(this.studentIdSource, this.usernameSource));
+        assertEquals(1, dao.getExecutionPlan().getCriticalPathLength());
+    }
+
+    public void testSequentialQuery() {
+        final DependencyGraphPersonAttributeDao dao = new DependencyGraphPersonAttributeDao();
+        dao.setPersonAttributeDaos(Arrays.<IPersonAttributeDao>asList(this.usernameSource, this.studentIdSource, this.emailSource));
+
+        this.assertMergedResults(dao);
+    }
+
+    public void testConcurrentQuery() {
+        final ExecutorService executorService = Executors.newFixedThreadPool(3);
+        try {
+            final DependencyGraphPersonAttributeDao dao = new DependencyGraphPersonAttributeDao();
+            dao.setPersonAttributeDaos(Arrays.<IPersonAttributeDao>asList(this.usernameSource, this.studentIdSource, this.emailSource));
+            dao.setExecutorService(executorService);
+
+            this.assertMergedResults(dao);
+        }
+        finally {
+            executorService.shutdownNow();
+        }
+    }
+
+    public void testAsyncQuery() throws Exception {
+        final ExecutorService executorService = Executors.newFixedThreadPool(3);
+        try {
+            final DependencyGraphPersonAttributeDao dao = new DependencyGraphPersonAttributeDao();
+            dao.setPersonAttributeDaos(Arrays.<IPersonAttributeDao>asList(this.usernameSource, this.studentIdSource, this.emailSource));
+
+            final IPersonAttributes sequentialPerson = dao.getPersonAsync("edalquist").get(10, TimeUnit.SECONDS);
+            assertEquals(dao.getPerson("edalquist").getAttributes(), sequentialPerson.getAttributes());
+
+            dao.setExecutorService(executorService);
+            final IPersonAttributes concurrentPerson = dao.getPersonAsync("edalquist").get(10, TimeUnit.SECONDS);
+            assertEquals(dao.getPerson("edalquist").getAttributes(), concurrentPerson.getAttributes());
+        }
+        finally {
+            executorService.shutdownNow();
+        }
+    }
+
+    public void testDroppedProducerWithDependent() {
+        final Map<String, Map<String, List<Object>>> usernameBackingMap = new HashMap<String, Map<String, List<Object>>>();
+        usernameBackingMap.put("edalquist", Collections.singletonMap("studentId", Util.list("123456789")));
+        final ComplexStubPersonAttributeDao slowUsernameSource = new ComplexStubPersonAttributeDao(usernameBackingMap) {
+            @Override
+            protected List<IPersonAttributes> getPeopleForQuery(String seedValue, String queryUserName) {
+                try {
+                    Thread.sleep(300);
+                }
+                catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return super.getPeopleForQuery(seedValue, queryUserName);
+            }
+        };
+        slowUsernameSource.setUsernameAttributeProvider(new SimpleUsernameAttributeProvider("username"));
+
+        final ExecutorService executorService = Executors.newFixedThreadPool(3);
+        try {
+            final DependencyGraphPersonAttributeDao dao = new DependencyGraphPersonAttributeDao();
+            dao.setPersonAttributeDaos(Arrays.<IPersonAttributeDao>asList(slowUsernameSource, this.studentIdSource, this.emailSource));
+            dao.setExecutorService(executorService);
+            dao.setChildQueryTimeout(200);
+
+            //The slow child is dropped, its dependent still runs without the dropped results
+            final Map<String, List<Object>> results = dao.getMultivaluedUserAttributes("edalquist");
+            assertEquals(Collections.singletonMap("email", Util.list("edalquist@example.edu")), results);
+            assertEquals(1, dao.getDroppedQueries());
+        }
+        finally {
+            executorService.shutdownNow();
+        }
+    }
+
+    private void assertMergedResults(DependencyGraphPersonAttributeDao dao) {
+        final Map<String, List<Object>> results = dao.getMultivaluedUserAttributes("edalquist");
+
+        final Map<String, List<Object>> expected = new HashMap<String, List<Object>>();
+        expected.put("phone", Util.list("777-7777"));
+        expected.put("studentId", Util.list("123456789"));
+        expected.put("major", Util.list("CS"));
+        expected.put("username", Util.list("edalquist"));
+        expected.put("email", Util.list("edalquist@example.edu"));
+
+        assertEquals(expected, results);
+    }
+
+    /**
+     * @see org.jasig.services.persondir.support.AbstractAggregatingDefaultQueryPersonAttributeDaoTest#getConfiguredAbstractAggregatingDefaultQueryPersonAttributeDao()
+     */
+    @Override
+    protected AbstractAggregatingDefaultQueryPersonAttributeDao getConfiguredAbstractAggregatingDefaultQueryPersonAttributeDao() {
+        final List<IPersonAttributeDao> attributeSources = new ArrayList<IPersonAttributeDao>();
+        attributeSources.add(this.usernameSource);
+        attributeSources.add(this.studentIdSource);
+
+        final DependencyGraphPersonAttributeDao impl = new DependencyGraphPersonAttributeDao();
+        impl.setPersonAttributeDaos(attributeSources);
+
+        return impl;
+    }
+
+    /**
+     * @see org.jasig.services.persondir.support.AbstractAggregatingDefaultQueryPersonAttributeDaoTest#getEmptyAbstractAggregatingDefaultQueryPersonAttributeDao()
+     */
+    @Override
+    protected AbstractAggregatingDefaultQueryPersonAttributeDao getEmptyAbstractAggregatingDefaultQueryPersonAttributeDao() {
+        return new DependencyGraphPersonAttributeDao();
+    }
+}
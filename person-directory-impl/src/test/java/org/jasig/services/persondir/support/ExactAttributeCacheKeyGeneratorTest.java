@@ -0,0 +1,162 @@
+/**
+ * Licensed to Jasig under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Jasig licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a
+ * copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.jasig.services.persondir.support;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.lang.reflect.AccessibleObject;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+import org.aopalliance.intercept.MethodInvocation;
+import org.jasig.services.persondir.IPersonAttributeDao;
+import org.jasig.services.persondir.util.Util;
+
+/**
+ * @author Eric Dalquist
+ * @version $Revision$
+ */
+public class ExactAttributeCacheKeyGeneratorTest extends TestCase {
+    private ExactAttributeCacheKeyGenerator keyGenerator;
+    
+    @Override
+    protected void setUp() throws Exception {
+        this.keyGenerator = new ExactAttributeCacheKeyGenerator();
+        this.keyGenerator.setDefaultAttributeName("uid");
+    }
+    
+    public void testDefaultAttribute() throws Exception {
+        final Serializable key1 = this.generateKey(Collections.singletonMap("uid", Util.list("edalquist")));
+        final Serializable key2 = this.generateKey(Collections.singletonMap("uid", Util.list("edalquist")));
+        final Serializable key3 = this.generateKey(Collections.singletonMap("uid", Util.list("awp9")));
+        
+        assertNotSame(key1, key2);
+        assertEquals(key1, key2);
+        assertEquals(key1.hashCode(), key2.hashCode());
+        assertFalse(key1.equals(key3));
+        
+        assertNull(this.generateKey(Collections.singletonMap("mail", Util.list("edalquist@example.edu"))));
+        
+        //The multivalued and single valued methods are keyed separately
+        final Serializable personKey = this.keyGenerator.generateKey(new TestMethodInvocation(IPersonAttributeDao.class.getMethod("getPerson", String.class), "edalquist"));
+        assertFalse(key1.equals(personKey));
+    }
+    
+    public void testMultipleAttributes() throws Exception {
+        this.keyGenerator.setCacheKeyAttributes(new LinkedHashSet<String>(Util.genList("uid", "mail")));
+        
+        final Map<String, List<Object>> seed1 = new HashMap<String, List<Object>>();
+        seed1.put("uid", Util.list("edalquist"));
+        seed1.put("mail", Util.list("edalquist@example.edu"));
+        seed1.put("phone", Util.list("555-5555"));
+        
+        final Map<String, List<Object>> seed2 = new HashMap<String, List<Object>>();
+        seed2.put("mail", Util.list("edalquist@example.edu"));
+        seed2.put("uid", Util.list("edalquist"));
+        
+        assertEquals(this.generateKey(seed1), this.generateKey(seed2));
+        
+        seed2.remove("mail");
+        assertFalse(this.generateKey(seed1).equals(this.generateKey(seed2)));
+        
+        //Swapping values between attributes produces a different key
+        final Map<String, List<Object>> seed3 = new HashMap<String, List<Object>>();
+        seed3.put("uid", Util.list("edalquist@example.edu"));
+        seed3.put("mail", Util.list("edalquist"));
+        assertFalse(this.generateKey(seed1).equals(this.generateKey(seed3)));
+    }
+    
+    public void testIgnoreEmptyAttributes() throws Exception {
+        this.keyGenerator.setCacheKeyAttributes(new LinkedHashSet<String>(Util.genList("uid", "mail")));
+        this.keyGenerator.setIgnoreEmptyAttributes(true);
+        
+        final Map<String, List<Object>> seed1 = new HashMap<String, List<Object>>();
+        seed1.put("uid", Util.list("edalquist"));
+        seed1.put("mail", new ArrayList<Object>());
+        
+        final Map<String, List<Object>> seed2 = Collections.singletonMap("uid", Util.list("edalquist"));
+        assertEquals(this.generateKey(seed1), this.generateKey(seed2));
+        
+        assertNull(this.generateKey(Collections.singletonMap("uid", (List<Object>)new ArrayList<Object>())));
+    }
+    
+    public void testKeyIsImmutableAndSerializable() throws Exception {
+        final List<Object> values = Util.list("edalquist");
+        final Serializable key = this.generateKey(Collections.singletonMap("uid", values));
+        final int hashCode = key.hashCode();
+        
+        values.add("awp9");
+        assertEquals(hashCode, key.hashCode());
+        assertEquals(key, this.generateKey(Collections.singletonMap("uid", Util.list("edalquist"))));
+        
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final ObjectOutputStream out = new ObjectOutputStream(bytes);
+        out.writeObject(key);
+        out.close();
+        final Object copy = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray())).readObject();
+        assertEquals(key, copy);
+        assertEquals(hashCode, copy.hashCode());
+    }
+    
+    private Serializable generateKey(Map<String, List<Object>> seed) throws Exception {
+        final Method method = IPersonAttributeDao.class.getMethod("getPeopleWithMultivaluedAttributes", Map.class);
+        return this.keyGenerator.generateKey(new TestMethodInvocation(method, seed));
+    }
+    
+    private static class TestMethodInvocation implements MethodInvocation {
+        private final Method method;
+        private final Object[] arguments;
+        
+        public TestMethodInvocation(Method method, Object... arguments) {
+            this.method = method;
+            this.arguments = arguments;
+        }
+        
+        public Method getMethod() {
+            return this.method;
+        }
+        
+        public Object[] getArguments() {
+            return this.arguments;
+        }
+        
+        public AccessibleObject getStaticPart() {
+            return this.method;
+        }
+        
+        public Object getThis() {
+            return null;
+        }
+        
+        public Object proceed() throws Throwable {
+            throw new UnsupportedOperationException();
+        }
+    }
+}
@@ -24,9 +24,20 @@ import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.jasig.services.persondir.IPersonAttributeDao;
 import org.jasig.services.persondir.IPersonAttributes;
@@ -222,6 +233,415 @@ public class MergingPersonAttributeDaoImplTest
         fail("MergingPersonAttributeDao should have propogated RTE");
     }
     
+    /**
+     * Test merging attributes from sources queried concurrently.
+     */
+    public void testParallelBasics() {
+        List<IPersonAttributeDao> attributeSources = new ArrayList<IPersonAttributeDao>();
+        
+        attributeSources.add(this.sourceNull);
+        attributeSources.add(this.sourceOne);
+        attributeSources.add(this.sourceNull);
+        attributeSources.add(this.sourceTwo);
+        attributeSources.add(new ThrowingPersonAttributeDao());
+        attributeSources.add(this.collidesWithOne);
+        
+        final ExecutorService executorService = Executors.newFixedThreadPool(4);
+        try {
+            MergingPersonAttributeDaoImpl impl = new MergingPersonAttributeDaoImpl();
+            impl.setPersonAttributeDaos(attributeSources);
+            impl.setExecutorService(executorService);
+            
+            Map<String, List<Object>> queryMap = new HashMap<String, List<Object>>();
+            queryMap.put(queryAttr, Util.list("awp9"));
+            
+            Map<String, List<Object>> result = impl.getMultivaluedUserAttributes(queryMap);
+            assertEquals(this.oneAndTwoAndThree, result);
+            
+            impl.setRecoverExceptions(false);
+            try {
+                impl.getMultivaluedUserAttributes(queryMap);
+                fail("MergingPersonAttributeDao should have propogated RTE");
+            }
+            catch (RuntimeException rte) {
+                // good, was propogated
+            }
+            
+            impl.setRecoverExceptions(true);
+            impl.setStopOnSuccess(true);
+            impl.setPersonAttributeDaos(Arrays.<IPersonAttributeDao>asList(new ThrowingPersonAttributeDao(), this.sourceOne, this.sourceTwo));
+            
+            result = impl.getMultivaluedUserAttributes(queryMap);
+            assertEquals(this.sourceOne.getBackingMap(), result);
+        }
+        finally {
+            executorService.shutdownNow();
+        }
+    }
+    
+    /**
+     * Test that with an executor the child DAOs are actually queried at the same time, each child waits for the other
+     * to start before it returns.
+     */
+    public void testParallelQueriesOverlap() {
+        final CountDownLatch started = new CountDownLatch(2);
+        
+        final ExecutorService executorService = Executors.newFixedThreadPool(2);
+        try {
+            final MergingPersonAttributeDaoImpl impl = new MergingPersonAttributeDaoImpl();
+            impl.setPersonAttributeDaos(Arrays.<IPersonAttributeDao>asList(new LatchedPersonAttributeDao(this.sourceOne, started), new LatchedPersonAttributeDao(this.sourceTwo, started)));
+            impl.setExecutorService(executorService);
+            impl.setRecoverExceptions(false);
+            
+            final Map<String, List<Object>> queryMap = new HashMap<String, List<Object>>();
+            queryMap.put(queryAttr, Util.list("awp9"));
+            
+            assertEquals(this.oneAndTwo, impl.getMultivaluedUserAttributes(queryMap));
+            assertEquals(0, started.getCount());
+        }
+        finally {
+            executorService.shutdownNow();
+        }
+    }
+    
+    /**
+     * Test that with stopOnSuccess the child DAOs after the first successful one are not queried even if an executor
+     * is configured.
+     */
+    public void testStopOnSuccessQueriesSequentially() throws Exception {
+        final int[] calls = new int[1];
+        final StubPersonAttributeDao countingDao = new StubPersonAttributeDao(this.sourceTwo.getBackingMap()) {
+            @Override
+            public Set<IPersonAttributes> getPeopleWithMultivaluedAttributes(Map<String, List<Object>> query) {
+                calls[0]++;
+                return super.getPeopleWithMultivaluedAttributes(query);
+            }
+        };
+        
+        final ExecutorService executorService = Executors.newFixedThreadPool(2);
+        try {
+            final MergingPersonAttributeDaoImpl impl = new MergingPersonAttributeDaoImpl();
+            impl.setPersonAttributeDaos(Arrays.<IPersonAttributeDao>asList(new ThrowingPersonAttributeDao(), this.sourceOne, countingDao));
+            impl.setExecutorService(executorService);
+            impl.setStopOnSuccess(true);
+            
+            final Map<String, List<Object>> queryMap = new HashMap<String, List<Object>>();
+            queryMap.put(queryAttr, Util.list("awp9"));
+            
+            assertEquals(this.sourceOne.getBackingMap(), impl.getMultivaluedUserAttributes(queryMap));
+            assertEquals(this.sourceOne.getBackingMap(), impl.getPeopleWithMultivaluedAttributesAsync(queryMap).get(10, TimeUnit.SECONDS).iterator().next().getAttributes());
+            assertEquals(this.sourceOne.getBackingMap(), impl.getPeopleByUid(Collections.singleton("awp9")).get("awp9").getAttributes());
+            assertEquals(0, calls[0]);
+        }
+        finally {
+            executorService.shutdownNow();
+        }
+    }
+    
+    /**
+     * Test that the child queries already started are cancelled if the executor rejects a later one.
+     */
+    public void testRejectedQueryCancelsStartedQueries() throws Exception {
+        final AtomicBoolean completed = new AtomicBoolean();
+        final IPersonAttributeDao blockingDao = new StubPersonAttributeDao(this.sourceOne.getBackingMap()) {
+            @Override
+            public Set<IPersonAttributes> getPeopleWithMultivaluedAttributes(Map<String, List<Object>> query) {
+                try {
+                    new CountDownLatch(1).await(10, TimeUnit.SECONDS);
+                    completed.set(true);
+                }
+                catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return super.getPeopleWithMultivaluedAttributes(query);
+            }
+        };
+        
+        //A single thread and no queue, the second child query is rejected while the first is running
+        final ExecutorService executorService = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS, new SynchronousQueue<Runnable>());
+        try {
+            final MergingPersonAttributeDaoImpl impl = new MergingPersonAttributeDaoImpl();
+            impl.setPersonAttributeDaos(Arrays.<IPersonAttributeDao>asList(blockingDao, this.sourceTwo));
+            impl.setExecutorService(executorService);
+            
+            final Map<String, List<Object>> queryMap = new HashMap<String, List<Object>>();
+            queryMap.put(queryAttr, Util.list("awp9"));
+            
+            try {
+                impl.getMultivaluedUserAttributes(queryMap);
+                fail("RejectedExecutionException should have been thrown");
+            }
+            catch (RejectedExecutionException ree) {
+                // good, was propogated
+            }
+            
+            //The first query was either cancelled before it started or interrupted while running
+            executorService.shutdown();
+            assertTrue(executorService.awaitTermination(5, TimeUnit.SECONDS));
+            assertFalse(completed.get());
+        }
+        finally {
+            executorService.shutdownNow();
+        }
+    }
+    
+    /**
+     * Test that the child query timeout is enforced when the child DAOs are queried one after another on the executor.
+     */
+    public void testSequentialQueriesWithTimeout() {
+        final Map<String, List<Object>> slowAttrMap = new HashMap<String, List<Object>>();
+        slowAttrMap.put("slow.1", Util.list("slowVal"));
+        
+        final ExecutorService executorService = Executors.newCachedThreadPool();
+        try {
+            final MergingPersonAttributeDaoImpl impl = new MergingPersonAttributeDaoImpl();
+            impl.setPersonAttributeDaos(Arrays.<IPersonAttributeDao>asList(this.sourceOne, new SlowPersonAttributeDao(slowAttrMap, 5000), this.sourceTwo));
+            impl.setExecutorService(executorService);
+            impl.setQueryConcurrently(false);
+            impl.setChildQueryTimeout(100);
+            
+            final Map<String, List<Object>> queryMap = new HashMap<String, List<Object>>();
+            queryMap.put(queryAttr, Util.list("awp9"));
+            
+            final long start = System.currentTimeMillis();
+            assertEquals(this.oneAndTwo, impl.getMultivaluedUserAttributes(queryMap));
+            assertTrue(System.currentTimeMillis() - start < 5000);
+            assertEquals(1, impl.getDroppedQueries());
+        }
+        finally {
+            executorService.shutdownNow();
+        }
+    }
+    
+    /**
+     * Test that a batch lookup merges the same results as looking up each uid.
+     */
+    public void testBatchLookup() {
+        final Map<String, Map<String, List<Object>>> backingMapOne = new HashMap<String, Map<String, List<Object>>>();
+        backingMapOne.put("awp9", this.sourceOne.getBackingMap());
+        backingMapOne.put("edalquist", this.sourceTwo.getBackingMap());
+        final ComplexStubPersonAttributeDao complexSourceOne = new ComplexStubPersonAttributeDao(backingMapOne);
+        
+        final Map<String, Map<String, List<Object>>> backingMapTwo = new HashMap<String, Map<String, List<Object>>>();
+        backingMapTwo.put("awp9", this.collidesWithOne.getBackingMap());
+        final ComplexStubPersonAttributeDao complexSourceTwo = new ComplexStubPersonAttributeDao(backingMapTwo);
+        
+        final ExecutorService executorService = Executors.newFixedThreadPool(2);
+        try {
+            final MergingPersonAttributeDaoImpl impl = new MergingPersonAttributeDaoImpl();
+            impl.setPersonAttributeDaos(Arrays.<IPersonAttributeDao>asList(complexSourceOne, new ThrowingPersonAttributeDao(), complexSourceTwo));
+            
+            final Set<String> uids = new LinkedHashSet<String>(Arrays.asList("nobody", "edalquist", "awp9"));
+            for (int i = 0; i < 2; i++) {
+                final Map<String, IPersonAttributes> people = impl.getPeopleByUid(uids);
+                assertEquals(Arrays.asList("edalquist", "awp9"), new ArrayList<String>(people.keySet()));
+                for (final Map.Entry<String, IPersonAttributes> personEntry : people.entrySet()) {
+                    assertEquals(impl.getPerson(personEntry.getKey()), personEntry.getValue());
+                }
+                
+                impl.setExecutorService(executorService);
+            }
+        }
+        finally {
+            executorService.shutdownNow();
+        }
+    }
+    
+    /**
+     * Test that the asynchronous query merges the same results as the blocking query, with both blocking and
+     * asynchronous child DAOs.
+     */
+    public void testAsyncBasics() throws Exception {
+        List<IPersonAttributeDao> attributeSources = new ArrayList<IPersonAttributeDao>();
+        
+        attributeSources.add(this.sourceNull);
+        attributeSources.add(this.sourceOne);
+        attributeSources.add(new RegexGatewayPersonAttributeDao(queryAttr, ".*", this.sourceTwo));
+        attributeSources.add(new ThrowingPersonAttributeDao());
+        attributeSources.add(this.collidesWithOne);
+        
+        final ExecutorService executorService = Executors.newFixedThreadPool(4);
+        try {
+            MergingPersonAttributeDaoImpl impl = new MergingPersonAttributeDaoImpl();
+            impl.setPersonAttributeDaos(attributeSources);
+            
+            Map<String, List<Object>> queryMap = new HashMap<String, List<Object>>();
+            queryMap.put(queryAttr, Util.list("awp9"));
+            
+            Set<IPersonAttributes> result = impl.getPeopleWithMultivaluedAttributesAsync(queryMap).get(10, TimeUnit.SECONDS);
+            assertEquals(1, result.size());
+            assertEquals(this.oneAndTwoAndThree, result.iterator().next().getAttributes());
+            
+            impl.setExecutorService(executorService);
+            result = impl.getPeopleWithMultivaluedAttributesAsync(queryMap).get(10, TimeUnit.SECONDS);
+            assertEquals(1, result.size());
+            assertEquals(this.oneAndTwoAndThree, result.iterator().next().getAttributes());
+            
+            impl.setRecoverExceptions(false);
+            try {
+                impl.getPeopleWithMultivaluedAttributesAsync(queryMap).get(10, TimeUnit.SECONDS);
+                fail("MergingPersonAttributeDao should have propogated RTE");
+            }
+            catch (ExecutionException ee) {
+                // good, was propogated
+            }
+            
+            impl.setRecoverExceptions(true);
+            impl.setStopOnSuccess(true);
+            impl.setPersonAttributeDaos(Arrays.<IPersonAttributeDao>asList(new ThrowingPersonAttributeDao(), this.sourceOne, this.sourceTwo));
+            
+            result = impl.getPeopleWithMultivaluedAttributesAsync(queryMap).get(10, TimeUnit.SECONDS);
+            assertEquals(this.sourceOne.getBackingMap(), result.iterator().next().getAttributes());
+        }
+        finally {
+            executorService.shutdownNow();
+        }
+    }
+    
+    /**
+     * Test that a failing child DAO is skipped once its circuit opens and probed again after the probe interval.
+     */
+    public void testCircuitBreaker() throws Exception {
+        final AtomicLong clock = new AtomicLong();
+        final CircuitBreaker circuitBreaker = new CircuitBreaker() {
+            @Override
+            protected long currentTimeNanos() {
+                return clock.get();
+            }
+        };
+        circuitBreaker.setWindowSize(4);
+        circuitBreaker.setMinimumCalls(2);
+        circuitBreaker.setProbeInterval(50);
+        
+        final int[] calls = new int[1];
+        final ThrowingPersonAttributeDao throwingDao = new ThrowingPersonAttributeDao() {
+            @Override
+            public Set<IPersonAttributes> getPeopleWithMultivaluedAttributes(Map<String, List<Object>> query) {
+                calls[0]++;
+                return super.getPeopleWithMultivaluedAttributes(query);
+            }
+        };
+        
+        final MergingPersonAttributeDaoImpl impl = new MergingPersonAttributeDaoImpl();
+        impl.setPersonAttributeDaos(Arrays.<IPersonAttributeDao>asList(this.sourceOne, throwingDao, this.sourceTwo));
+        impl.setCircuitBreaker(circuitBreaker);
+        
+        final Map<String, List<Object>> queryMap = new HashMap<String, List<Object>>();
+        queryMap.put(queryAttr, Util.list("awp9"));
+        
+        for (int i = 0; i < 5; i++) {
+            assertEquals(this.oneAndTwo, impl.getMultivaluedUserAttributes(queryMap));
+        }
+        
+        assertEquals(2, calls[0]);
+        assertEquals(CircuitBreaker.State.OPEN, circuitBreaker.getState(throwingDao));
+        assertEquals(CircuitBreaker.State.CLOSED, circuitBreaker.getState(this.sourceOne));
+        assertEquals(1, circuitBreaker.getOpenedCount());
+        assertEquals(3, circuitBreaker.getRejectedCount());
+        
+        //After the probe interval one probe query is let through, it fails and the circuit opens again
+        clock.addAndGet(TimeUnit.MILLISECONDS.toNanos(50));
+        assertEquals(this.oneAndTwo, impl.getMultivaluedUserAttributes(queryMap));
+        assertEquals(3, calls[0]);
+        assertEquals(CircuitBreaker.State.OPEN, circuitBreaker.getState(throwingDao));
+        assertEquals(2, circuitBreaker.getOpenedCount());
+    }
+    
+    /**
+     * Test that a child DAO skipped by pruning is not reported to the circuit breaker, so a half-open circuit is only
+     * closed by a query that reached the child.
+     */
+    public void testCircuitBreakerIgnoresPrunedDaos() {
+        final Map<String, Map<String, List<Object>>> backingMap = new HashMap<String, Map<String, List<Object>>>();
+        backingMap.put("123456789", Collections.singletonMap("major", Util.list("CS")));
+        
+        final ComplexStubPersonAttributeDao studentIdSource = new ComplexStubPersonAttributeDao("studentId", backingMap);
+        studentIdSource.setQueryAttributeMapping(Collections.singletonMap("studentId", "studentId"));
+        studentIdSource.setRequireAllQueryAttributes(true);
+        
+        final CircuitBreaker circuitBreaker = new CircuitBreaker();
+        circuitBreaker.setWindowSize(2);
+        circuitBreaker.setMinimumCalls(2);
+        circuitBreaker.setProbeInterval(0);
+        circuitBreaker.recordFailure(studentIdSource, 0);
+        circuitBreaker.recordFailure(studentIdSource, 0);
+        assertEquals(CircuitBreaker.State.OPEN, circuitBreaker.getState(studentIdSource));
+        
+        final MergingPersonAttributeDaoImpl impl = new MergingPersonAttributeDaoImpl();
+        impl.setPersonAttributeDaos(Arrays.<IPersonAttributeDao>asList(this.sourceOne, studentIdSource, this.sourceTwo));
+        impl.setPruneUnqueryableDaos(true);
+        impl.setCircuitBreaker(circuitBreaker);
+        
+        final Map<String, List<Object>> queryMap = new HashMap<String, List<Object>>();
+        queryMap.put(queryAttr, Util.list("awp9"));
+        
+        //The probe slot is released by each skipped query without closing the circuit
+        assertEquals(this.oneAndTwo, impl.getMultivaluedUserAttributes(queryMap));
+        assertEquals(this.oneAndTwo, impl.getMultivaluedUserAttributes(queryMap));
+        assertEquals(2, impl.getPrunedQueries());
+        assertEquals(CircuitBreaker.State.HALF_OPEN, circuitBreaker.getState(studentIdSource));
+        assertEquals(0, circuitBreaker.getClosedCount());
+        
+        queryMap.put("studentId", Util.list("123456789"));
+        final Map<String, List<Object>> expected = new HashMap<String, List<Object>>(this.oneAndTwo);
+        expected.put("major", Util.list("CS"));
+        assertEquals(expected, impl.getMultivaluedUserAttributes(queryMap));
+        assertEquals(CircuitBreaker.State.CLOSED, circuitBreaker.getState(studentIdSource));
+        assertEquals(1, circuitBreaker.getClosedCount());
+    }
+    
+    /**
+     * Test that child DAOs which cannot build a query from the seed are skipped.
+     */
+    public void testPruneUnqueryableDaos() {
+        final Map<String, Map<String, List<Object>>> backingMap = new HashMap<String, Map<String, List<Object>>>();
+        final Map<String, List<Object>> student = new HashMap<String, List<Object>>();
+        student.put("major", Util.list("CS"));
+        backingMap.put("123456789", student);
+        
+        final ComplexStubPersonAttributeDao studentIdSource = new ComplexStubPersonAttributeDao("studentId", backingMap);
+        studentIdSource.setQueryAttributeMapping(Collections.singletonMap("studentId", "studentId"));
+        studentIdSource.setRequireAllQueryAttributes(true);
+        
+        final MergingPersonAttributeDaoImpl impl = new MergingPersonAttributeDaoImpl();
+        impl.setPersonAttributeDaos(Arrays.<IPersonAttributeDao>asList(this.sourceOne, studentIdSource, this.sourceTwo));
+        impl.setPruneUnqueryableDaos(true);
+        
+        final Map<String, List<Object>> queryMap = new HashMap<String, List<Object>>();
+        queryMap.put(queryAttr, Util.list("awp9"));
+        
+        assertEquals(this.oneAndTwo, impl.getMultivaluedUserAttributes(queryMap));
+        assertEquals(this.oneAndTwo, impl.getMultivaluedUserAttributes(queryMap));
+        assertEquals(2, impl.getPrunedQueries());
+        
+        //The stub DAOs don't declare query attributes so they are always queried
+        queryMap.put("studentId", Util.list("123456789"));
+        final Map<String, List<Object>> expected = new HashMap<String, List<Object>>(this.oneAndTwo);
+        expected.put("major", Util.list("CS"));
+        assertEquals(expected, impl.getMultivaluedUserAttributes(queryMap));
+        assertEquals(2, impl.getPrunedQueries());
+    }
+    
+    /**
+     * Test that only requested attributes are returned and child DAOs that can't provide them are not queried.
+     */
+    public void testRequestedAttributes() {
+        final MergingPersonAttributeDaoImpl impl = new MergingPersonAttributeDaoImpl();
+        impl.setPersonAttributeDaos(Arrays.<IPersonAttributeDao>asList(this.sourceOne, this.sourceTwo));
+        
+        final Map<String, List<Object>> queryMap = new HashMap<String, List<Object>>();
+        queryMap.put(queryAttr, Util.list("awp9"));
+        
+        final Set<IPersonAttributes> people = impl.getPeopleWithMultivaluedAttributes(queryMap, Collections.singleton("shirtColor"));
+        assertEquals(1, people.size());
+        assertEquals(Collections.singletonMap("shirtColor", Util.list("blue")), people.iterator().next().getAttributes());
+        assertEquals(1, impl.getPrunedQueries());
+        
+        //null requests all attributes
+        final Set<IPersonAttributes> allPeople = impl.getPeopleWithMultivaluedAttributes(queryMap, null);
+        assertEquals(this.oneAndTwo, allPeople.iterator().next().getAttributes());
+    }
+    
     /**
      * Test ability to override the default merging strategy.
      *
@@ -325,6 +745,35 @@ public class MergingPersonAttributeDaoImplTest
         assertEquals(excepectedHomeUsers, homeUsers);
     }
     
+    /**
+     * Returns the results of the wrapped DAO once the latch has been counted down by every expected caller, failing
+     * if the callers do not overlap.
+     */
+    private static class LatchedPersonAttributeDao extends StubPersonAttributeDao {
+        private final StubPersonAttributeDao delegate;
+        private final CountDownLatch started;
+        
+        public LatchedPersonAttributeDao(StubPersonAttributeDao delegate, CountDownLatch started) {
+            this.delegate = delegate;
+            this.started = started;
+        }
+        
+        @Override
+        public Set<IPersonAttributes> getPeopleWithMultivaluedAttributes(Map<String, List<Object>> query) {
+            this.started.countDown();
+            try {
+                if (!this.started.await(10, TimeUnit.SECONDS)) {
+                    throw new IllegalStateException("Child DAO queries did not overlap");
+                }
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException(e);
+            }
+            return this.delegate.getPeopleWithMultivaluedAttributes(query);
+        }
+    }
+    
     /**
      * A mock, test implementation of IPersonAttributeDao which throws a 
      * RuntimeExcedption for the attribute getting methods and returns null
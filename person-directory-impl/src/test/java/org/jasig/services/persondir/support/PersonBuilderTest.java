@@ -0,0 +1,113 @@
+/**
+ * Licensed to Jasig under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Jasig licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a
+ * copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.jasig.services.persondir.support;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+import org.apache.commons.collections.map.CaseInsensitiveMap;
+import org.apache.commons.collections.map.ListOrderedMap;
+import org.jasig.services.persondir.IPersonAttributes;
+import org.jasig.services.persondir.util.Util;
+
+/**
+ * @author Eric Dalquist
+ * @version $Revision$
+ */
+public class PersonBuilderTest extends TestCase {
+    
+    public void testBuild() {
+        final PersonBuilder builder = new PersonBuilder(2);
+        builder.put("mail", Util.list("eric@example.edu"));
+        builder.put("phone", null);
+        assertEquals(2, builder.size());
+        assertTrue(builder.containsKey("mail"));
+        assertFalse(builder.containsKey("MAIL"));
+        
+        final IPersonAttributes person = builder.build("edalquist");
+        assertTrue(person instanceof NamedPersonImpl);
+        assertEquals("edalquist", person.getName());
+        assertEquals(Util.list("eric@example.edu"), person.getAttributeValues("mail"));
+        assertNull(person.getAttributeValues("phone"));
+        assertTrue(person.getAttributes().containsKey("phone"));
+        assertNull(person.getAttributeValues("MAIL"));
+        
+        try {
+            person.getAttributes().put("foo", Util.list("bar"));
+            fail("attributes should be read-only");
+        }
+        catch (UnsupportedOperationException e) {
+            //expected
+        }
+        try {
+            person.getAttributeValues("mail").add("bar");
+            fail("values should be read-only");
+        }
+        catch (UnsupportedOperationException e) {
+            //expected
+        }
+        
+        try {
+            builder.put("foo", Util.list("bar"));
+            fail("builder should not be usable after build");
+        }
+        catch (IllegalStateException e) {
+            //expected
+        }
+    }
+    
+    public void testPutReadOnly() {
+        final List<Object> values = Collections.unmodifiableList(Util.list("eric@example.edu"));
+        
+        final IPersonAttributes person = new PersonBuilder(1).putReadOnly("mail", values).build("edalquist");
+        assertSame(values, person.getAttributeValues("mail"));
+    }
+    
+    @SuppressWarnings("unchecked")
+    public void testTakeOwnershipCaseInsensitive() {
+        final Map<String, List<Object>> attributes = ListOrderedMap.decorate(new CaseInsensitiveMap());
+        attributes.put("uid", Util.list("edalquist"));
+        attributes.put("mail", Util.list("eric@example.edu"));
+        
+        final PersonBuilder builder = PersonBuilder.takeOwnership(attributes, true);
+        assertTrue(builder.isCaseInsensitive());
+        final IPersonAttributes person = builder.buildAttributeNamed("UID");
+        assertTrue(person instanceof CaseInsensitiveAttributeNamedPersonImpl);
+        assertEquals("edalquist", person.getName());
+        assertEquals(Util.list("eric@example.edu"), person.getAttributeValues("Mail"));
+        
+        //Same contents as the copying constructor
+        assertEquals(new CaseInsensitiveAttributeNamedPersonImpl("UID", attributes).getAttributes(), person.getAttributes());
+    }
+    
+    public void testBuildCompact() {
+        final Map<String, List<Object>> attributes = new LinkedHashMap<String, List<Object>>();
+        attributes.put("mail", new ArrayList<Object>(Util.list("eric@example.edu")));
+        
+        final CompactPersonImpl person = PersonBuilder.takeOwnership(attributes, false).buildCompact("edalquist");
+        assertEquals("edalquist", person.getName());
+        assertEquals(Util.list("eric@example.edu"), person.getAttributeValues("mail"));
+    }
+}
@@ -26,7 +26,9 @@ import java.util.Map;
 
 import junit.framework.TestCase;
 
+import org.jasig.services.persondir.IListenableFuture;
 import org.jasig.services.persondir.IPersonAttributeDao;
+import org.jasig.services.persondir.IPersonAttributes;
 
 @SuppressWarnings("deprecation")
 public class RegexGatewayPersonAttributeDaoTest extends TestCase {
@@ -85,6 +87,17 @@ public class RegexGatewayPersonAttributeDaoTest extends TestCase {
 		assertFalse(attributes.equals(results));
 	}
 	
+	public void testAsyncMatches() throws Exception {
+		IPersonAttributes person = ((RegexGatewayPersonAttributeDao)target).getPersonAsync("monkey@yahoo.com").get();
+		assertEquals(attributes, person.getAttributes());
+	}
+	
+	public void testAsyncDoesNotMatch() throws Exception {
+		IListenableFuture<IPersonAttributes> future = ((RegexGatewayPersonAttributeDao)target).getPersonAsync("monkey");
+		assertTrue(future.isDone());
+		assertNull(future.get());
+	}
+	
 	public void testGetPossibleNames() {
 		assertEquals(enclosed.getPossibleUserAttributeNames(), target.getPossibleUserAttributeNames());
 	}
@@ -0,0 +1,278 @@
+/**
+ * Licensed to Jasig under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Jasig licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a
+ * copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.jasig.services.persondir.support.cache;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import junit.framework.TestCase;
+
+/**
+ * @author Eric Dalquist
+ * @version $Revision$
+ */
+public class BoundedConcurrentCacheTest extends TestCase {
+    
+    public void testBasicOperations() {
+        final BoundedConcurrentCache<String, String> cache = new BoundedConcurrentCache<String, String>(100);
+        
+        assertNull(cache.put("a", "1"));
+        assertEquals("1", cache.put("a", "2"));
+        assertNull(cache.put("b", "3"));
+        
+        assertEquals("2", cache.get("a"));
+        assertTrue(cache.containsKey("b"));
+        assertFalse(cache.containsKey("c"));
+        assertNull(cache.get(null));
+        assertEquals(2, cache.size());
+        assertEquals(2, cache.entrySet().size());
+        
+        assertEquals("3", cache.remove("b"));
+        assertNull(cache.remove("b"));
+        assertEquals(1, cache.size());
+        
+        cache.clear();
+        assertTrue(cache.isEmpty());
+        assertEquals(0, cache.getWeight());
+    }
+    
+    public void testMaximumSize() {
+        final BoundedConcurrentCache<Integer, String> cache = new BoundedConcurrentCache<Integer, String>(10, null, 0, 1);
+        
+        for (int i = 0; i < 100; i++) {
+            cache.put(i, String.valueOf(i));
+            assertTrue(cache.size() <= 10);
+        }
+        
+        assertEquals(10, cache.size());
+        assertEquals(90, cache.getEvictionCount() + cache.getRejectionCount());
+    }
+    
+    public void testScanDoesNotFlushFrequentEntries() {
+        final BoundedConcurrentCache<Integer, String> cache = new BoundedConcurrentCache<Integer, String>(10, null, 0, 1);
+        
+        for (int i = 0; i < 10; i++) {
+            cache.put(i, String.valueOf(i));
+            for (int read = 0; read < 5; read++) {
+                assertEquals(String.valueOf(i), cache.get(i));
+            }
+        }
+        
+        //Keys seen once are not admitted over the frequently read keys which are still being read
+        for (int i = 1000; i < 1500; i++) {
+            cache.put(i, String.valueOf(i));
+            
+            if (i % 50 == 0) {
+                for (int hot = 0; hot < 10; hot++) {
+                    assertEquals(String.valueOf(hot), cache.get(hot));
+                }
+            }
+        }
+        
+        for (int i = 0; i < 10; i++) {
+            assertEquals(String.valueOf(i), cache.get(i));
+        }
+        assertEquals(500, cache.getRejectionCount());
+        assertEquals(0, cache.getEvictionCount());
+    }
+    
+    public void testMaximumWeight() {
+        final IWeigher<String, String> weigher = new IWeigher<String, String>() {
+            public int weigh(String key, String value) {
+                return value.length();
+            }
+        };
+        final BoundedConcurrentCache<String, String> cache = new BoundedConcurrentCache<String, String>(10, weigher, 0, 1);
+        
+        cache.put("a", "aaaa");
+        cache.put("b", "bbbb");
+        cache.put("c", "cc");
+        assertEquals(10, cache.getWeight());
+        
+        cache.get("a");
+        cache.get("b");
+        cache.get("c");
+        
+        //d has been seen less often than the entries it would replace
+        cache.put("d", "ddd");
+        assertNull(cache.get("d"));
+        assertEquals(1, cache.getRejectionCount());
+        
+        //Once d has been seen more often it replaces the least recently used entry
+        cache.put("d", "ddd");
+        assertEquals("ddd", cache.get("d"));
+        assertFalse(cache.containsKey("a"));
+        assertEquals(9, cache.getWeight());
+        assertEquals(1, cache.getEvictionCount());
+        
+        //Heavier than the whole cache
+        cache.put("e", "eeeeeeeeeee");
+        assertNull(cache.get("e"));
+        assertEquals(2, cache.getRejectionCount());
+    }
+    
+    public void testAdmitOnFrequencyTie() {
+        final BoundedConcurrentCache<Integer, String> cache = new BoundedConcurrentCache<Integer, String>(2, null, 0, 1);
+        
+        //Entries used once are replaced by new entries used once, like a plain LRU cache
+        cache.put(1, "1");
+        cache.put(2, "2");
+        cache.put(3, "3");
+        assertEquals("3", cache.get(3));
+        assertFalse(cache.containsKey(1));
+        assertEquals(1, cache.getEvictionCount());
+        assertEquals(0, cache.getRejectionCount());
+    }
+    
+    public void testTimeToLive() {
+        final AtomicLong clock = new AtomicLong();
+        final BoundedConcurrentCache<String, String> cache = new BoundedConcurrentCache<String, String>(10, null, 100, 1) {
+            @Override
+            protected long currentTimeNanos() {
+                return clock.get();
+            }
+        };
+        
+        cache.put("a", "1");
+        cache.put("b", "2", 1, TimeUnit.SECONDS);
+        cache.put("c", "3", 0, TimeUnit.SECONDS);
+        
+        clock.addAndGet(TimeUnit.MILLISECONDS.toNanos(50));
+        assertEquals("1", cache.get("a"));
+        
+        clock.addAndGet(TimeUnit.MILLISECONDS.toNanos(60));
+        assertNull(cache.get("a"));
+        assertEquals("2", cache.get("b"));
+        assertEquals(1, cache.getExpirationCount());
+        
+        clock.addAndGet(TimeUnit.SECONDS.toNanos(1));
+        assertEquals(2, cache.size());
+        assertEquals(1, cache.entrySet().size());
+        cache.cleanUp();
+        assertEquals(1, cache.size());
+        assertEquals("3", cache.get("c"));
+        assertEquals(2, cache.getExpirationCount());
+    }
+    
+    public void testExpiredEntriesMakeRoom() {
+        final AtomicLong clock = new AtomicLong();
+        final BoundedConcurrentCache<Integer, String> cache = new BoundedConcurrentCache<Integer, String>(5, null, 100, 1) {
+            @Override
+            protected long currentTimeNanos() {
+                return clock.get();
+            }
+        };
+        
+        for (int i = 0; i < 5; i++) {
+            cache.put(i, String.valueOf(i));
+            cache.get(i);
+            cache.get(i);
+        }
+        
+        //Expired entries are replaced regardless of how often they were used
+        clock.addAndGet(TimeUnit.MILLISECONDS.toNanos(200));
+        cache.put(10, "10");
+        assertEquals("10", cache.get(10));
+        assertEquals(0, cache.getRejectionCount());
+        assertEquals(1, cache.getExpirationCount());
+    }
+    
+    public void testRemovalListener() {
+        final AtomicLong clock = new AtomicLong();
+        final BoundedConcurrentCache<String, String> cache = new BoundedConcurrentCache<String, String>(2, null, 100, 1) {
+            @Override
+            protected long currentTimeNanos() {
+                return clock.get();
+            }
+        };
+        final List<String> removals = new ArrayList<String>();
+        cache.setRemovalListener(new IRemovalListener<String, String>() {
+            public void onEviction(String key, String value) {
+                removals.add("eviction:" + key + "=" + value);
+            }
+            public void onExpiration(String key, String value) {
+                removals.add("expiration:" + key + "=" + value);
+            }
+            public void onRejection(String key, String value) {
+                removals.add("rejection:" + key + "=" + value);
+            }
+        });
+        
+        cache.put("a", "1");
+        cache.put("b", "2");
+        cache.get("b");
+        cache.get("b");
+        cache.put("c", "3");
+        cache.get("c");
+        cache.put("c", "3");
+        assertEquals("3", cache.get("c"));
+        
+        //b is now the least recently used entry and has been seen more often than e
+        cache.put("e", "5");
+        
+        clock.addAndGet(TimeUnit.MILLISECONDS.toNanos(200));
+        assertNull(cache.get("b"));
+        assertNull(cache.remove("c"));
+        
+        cache.put("d", "4");
+        assertEquals("4", cache.remove("d"));
+        
+        assertEquals(Arrays.asList("eviction:a=1", "rejection:e=5", "expiration:b=2", "expiration:c=3"), removals);
+        assertEquals(1, cache.getEvictionCount());
+        assertEquals(2, cache.getExpirationCount());
+        assertEquals(1, cache.getRejectionCount());
+    }
+    
+    public void testConcurrentAccess() throws Exception {
+        final BoundedConcurrentCache<Integer, Integer> cache = new BoundedConcurrentCache<Integer, Integer>(100);
+        
+        final List<Thread> threads = new ArrayList<Thread>();
+        for (int t = 0; t < 8; t++) {
+            final Random random = new Random(t);
+            final Thread thread = new Thread() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < 20000; i++) {
+                        final Integer key = random.nextInt(1000);
+                        final Integer value = cache.get(key);
+                        if (value == null) {
+                            cache.put(key, key);
+                        }
+                        else {
+                            assertEquals(key, value);
+                        }
+                    }
+                }
+            };
+            threads.add(thread);
+            thread.start();
+        }
+        for (final Thread thread : threads) {
+            thread.join();
+        }
+        
+        assertTrue(cache.size() <= 100);
+        assertEquals(cache.size(), cache.getWeight());
+    }
+}
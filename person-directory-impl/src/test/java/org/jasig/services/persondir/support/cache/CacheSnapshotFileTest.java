@@ -0,0 +1,88 @@
+/**
+ * Licensed to Jasig under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Jasig licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a
+ * copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.jasig.services.persondir.support.cache;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+/**
+ * @author Eric Dalquist
+ * @version $Revision$
+ */
+public class CacheSnapshotFileTest extends TestCase {
+    private File file;
+    
+    @Override
+    protected void setUp() throws Exception {
+        this.file = File.createTempFile("persondir-cache", ".snapshot");
+        this.file.delete();
+    }
+    
+    @Override
+    protected void tearDown() throws Exception {
+        this.file.delete();
+    }
+    
+    public void testWriteRead() throws Exception {
+        final CacheSnapshotFile snapshotFile = new CacheSnapshotFile(this.file);
+        assertTrue(snapshotFile.read().isEmpty());
+        
+        final List<CacheSnapshotFile.Entry> entries = new ArrayList<CacheSnapshotFile.Entry>();
+        entries.add(new CacheSnapshotFile.Entry("a", new ArrayList<String>(Arrays.asList("1", "2")), 0));
+        entries.add(new CacheSnapshotFile.Entry("b", "2", 1000));
+        snapshotFile.write(entries);
+        assertFalse(new File(this.file.getPath() + ".tmp").exists());
+        
+        final List<CacheSnapshotFile.Entry> read = snapshotFile.read();
+        assertEquals(2, read.size());
+        assertEquals("a", read.get(0).getKey());
+        assertEquals(Arrays.asList("1", "2"), read.get(0).getValue());
+        assertEquals(0, read.get(0).getExpiresAt());
+        assertFalse(read.get(0).isExpired(System.currentTimeMillis()));
+        assertEquals("b", read.get(1).getKey());
+        assertEquals(1000, read.get(1).getExpiresAt());
+        assertTrue(read.get(1).isExpired(System.currentTimeMillis()));
+        
+        //Replaces the existing snapshot
+        snapshotFile.write(entries.subList(0, 1));
+        assertEquals(1, snapshotFile.read().size());
+    }
+    
+    public void testInvalidFile() throws Exception {
+        final DataOutputStream out = new DataOutputStream(new FileOutputStream(this.file));
+        out.writeUTF("not a snapshot");
+        out.close();
+        
+        try {
+            new CacheSnapshotFile(this.file).read();
+            fail("read should have thrown IOException");
+        }
+        catch (IOException ioe) {
+            //expected
+        }
+    }
+}
@@ -0,0 +1,207 @@
+/**
+ * Licensed to Jasig under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Jasig licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a
+ * copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.jasig.services.persondir.support.cache;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import junit.framework.TestCase;
+
+import org.apache.commons.lang3.StringUtils;
+
+/**
+ * @author Eric Dalquist
+ * @version $Revision$
+ */
+public class OffHeapCacheTest extends TestCase {
+    
+    public void testBasicOperations() {
+        final OffHeapCache<String, ArrayList<String>> cache = new OffHeapCache<String, ArrayList<String>>(64 * 1024);
+        
+        final ArrayList<String> value = new ArrayList<String>();
+        value.add("777-7777");
+        
+        assertNull(cache.put("edalquist", value));
+        
+        final ArrayList<String> cached = cache.get("edalquist");
+        assertEquals(value, cached);
+        assertNotSame("Values are deserialized copies", value, cached);
+        
+        final ArrayList<String> replacement = new ArrayList<String>();
+        replacement.add("888-8888");
+        assertEquals(value, cache.put("edalquist", replacement));
+        assertEquals(replacement, cache.get("edalquist"));
+        
+        assertTrue(cache.containsKey("edalquist"));
+        assertEquals(1, cache.size());
+        assertEquals(1, cache.entrySet().size());
+        
+        assertEquals(replacement, cache.remove("edalquist"));
+        assertNull(cache.get("edalquist"));
+        assertFalse(cache.delete("edalquist"));
+        assertEquals(0, cache.size());
+    }
+    
+    public void testEviction() {
+        final OffHeapCache<Integer, String> cache = new OffHeapCache<Integer, String>(4096, 1);
+        final String value = new String(new char[200]);
+        
+        for (int i = 0; i < 100; i++) {
+            assertTrue(cache.set(i, value));
+            assertTrue(cache.getUsedBytes() <= cache.getCapacity());
+        }
+        
+        //Oldest entries are evicted first
+        assertTrue(cache.getEvictionCount() > 0);
+        assertNull(cache.get(0));
+        assertEquals(value, cache.get(99));
+        assertEquals(100 - cache.getEvictionCount(), cache.size());
+        
+        //Entries too large for a segment are not stored
+        assertFalse(cache.set(1000, new String(new char[5000])));
+        assertEquals(1, cache.getRejectionCount());
+        assertNull(cache.get(1000));
+        
+        cache.clear();
+        assertEquals(0, cache.size());
+        assertEquals(0, cache.getUsedBytes());
+    }
+    
+    public void testTimeToLive() {
+        final AtomicLong clock = new AtomicLong();
+        final OffHeapCache<String, String> cache = new OffHeapCache<String, String>(4096, 100, 1) {
+            @Override
+            protected long currentTimeNanos() {
+                return clock.get();
+            }
+        };
+        
+        cache.set("a", "1");
+        cache.set("b", "2", 1, TimeUnit.SECONDS);
+        cache.set("c", "3", 0, TimeUnit.SECONDS);
+        assertEquals(100, cache.getRemainingTimeToLive("a", TimeUnit.MILLISECONDS));
+        assertEquals(0, cache.getRemainingTimeToLive("c", TimeUnit.MILLISECONDS));
+        
+        clock.addAndGet(TimeUnit.MILLISECONDS.toNanos(150));
+        assertFalse(cache.containsKey("a"));
+        assertEquals(-1, cache.getRemainingTimeToLive("a", TimeUnit.MILLISECONDS));
+        assertNull(cache.get("a"));
+        assertEquals("2", cache.get("b"));
+        assertEquals(1, cache.getExpirationCount());
+        
+        clock.addAndGet(TimeUnit.SECONDS.toNanos(1));
+        assertNull(cache.get("b"));
+        assertEquals("3", cache.get("c"));
+        assertEquals(2, cache.getExpirationCount());
+        assertEquals(1, cache.size());
+    }
+    
+    public void testRemovalListener() {
+        final AtomicLong clock = new AtomicLong();
+        final OffHeapCache<String, String> cache = new OffHeapCache<String, String>(1024, 100, 1) {
+            @Override
+            protected long currentTimeNanos() {
+                return clock.get();
+            }
+        };
+        final List<String> removals = new ArrayList<String>();
+        cache.setRemovalListener(new IRemovalListener<String, String>() {
+            public void onEviction(String key, String value) {
+                removals.add("eviction:" + key + "=" + value);
+            }
+            public void onExpiration(String key, String value) {
+                removals.add("expiration:" + key + "=" + value);
+            }
+            public void onRejection(String key, String value) {
+                removals.add("rejection:" + key + "=" + value.length());
+            }
+        });
+        
+        //Only two values fit in the segment
+        final String value = StringUtils.repeat('x', 400);
+        cache.set("a", value);
+        cache.set("b", value);
+        cache.set("c", value);
+        
+        clock.addAndGet(TimeUnit.MILLISECONDS.toNanos(200));
+        assertNull(cache.get("b"));
+        
+        assertFalse(cache.set("d", StringUtils.repeat('x', 2000)));
+        assertTrue(cache.delete("c"));
+        
+        assertEquals(Arrays.asList("eviction:a=null", "expiration:b=null", "rejection:d=2000"), removals);
+        assertEquals(1, cache.getEvictionCount());
+        assertEquals(1, cache.getExpirationCount());
+        assertEquals(1, cache.getRejectionCount());
+    }
+    
+    public void testVariableSizes() {
+        final OffHeapCache<Integer, String> cache = new OffHeapCache<Integer, String>(8192, 1);
+        final Random random = new Random(0);
+        
+        for (int i = 0; i < 1000; i++) {
+            final String value = (i % 50) + ":" + new String(new char[random.nextInt(500)]);
+            cache.set(i % 50, value);
+            assertEquals(value, cache.get(i % 50));
+        }
+        
+        for (int i = 0; i < 50; i++) {
+            final String value = cache.get(i);
+            if (value != null) {
+                assertTrue(value.startsWith(i + ":"));
+            }
+        }
+    }
+    
+    public void testConcurrentAccess() throws Exception {
+        final OffHeapCache<Integer, Integer> cache = new OffHeapCache<Integer, Integer>(16 * 1024);
+        
+        final List<Thread> threads = new ArrayList<Thread>();
+        for (int t = 0; t < 8; t++) {
+            final Random random = new Random(t);
+            final Thread thread = new Thread() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < 5000; i++) {
+                        final Integer key = random.nextInt(500);
+                        final Integer value = cache.get(key);
+                        if (value == null) {
+                            cache.set(key, key);
+                        }
+                        else {
+                            assertEquals(key, value);
+                        }
+                    }
+                }
+            };
+            threads.add(thread);
+            thread.start();
+        }
+        for (final Thread thread : threads) {
+            thread.join();
+        }
+        
+        assertTrue(cache.getUsedBytes() <= cache.getCapacity());
+    }
+}
@@ -0,0 +1,141 @@
+/**
+ * Licensed to Jasig under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Jasig licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a
+ * copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.jasig.services.persondir.support.cache;
+
+import java.io.Serializable;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import junit.framework.TestCase;
+
+import org.jasig.services.persondir.IPersonAttributes;
+import org.jasig.services.persondir.support.CachingPersonAttributeDaoImpl;
+import org.jasig.services.persondir.support.ComplexStubPersonAttributeDao;
+import org.jasig.services.persondir.support.SimpleUsernameAttributeProvider;
+import org.jasig.services.persondir.util.Util;
+
+/**
+ * @author Eric Dalquist
+ * @version $Revision$
+ */
+public class TieredCacheTest extends TestCase {
+    
+    public void testPromotion() {
+        final Map<String, String> firstTier = new HashMap<String, String>();
+        final OffHeapCache<String, String> secondTier = new OffHeapCache<String, String>(64 * 1024);
+        final TieredCache<String, String> cache = new TieredCache<String, String>(firstTier, secondTier);
+        
+        cache.put("a", "1");
+        assertEquals("1", firstTier.get("a"));
+        assertEquals("1", secondTier.get("a"));
+        
+        //Entries evicted from the first tier are still in the second and are promoted on access
+        firstTier.clear();
+        assertEquals("1", cache.get("a"));
+        assertEquals("1", firstTier.get("a"));
+        assertTrue(cache.containsKey("a"));
+        assertEquals(1, cache.size());
+        
+        cache.remove("a");
+        assertNull(cache.get("a"));
+        assertFalse(secondTier.containsKey("a"));
+    }
+    
+    public void testExpiration() {
+        final AtomicLong clock = new AtomicLong();
+        final BoundedConcurrentCache<String, String> firstTier = new BoundedConcurrentCache<String, String>(10, null, 100, 1) {
+            @Override
+            protected long currentTimeNanos() {
+                return clock.get();
+            }
+        };
+        final OffHeapCache<String, String> secondTier = new OffHeapCache<String, String>(64 * 1024) {
+            @Override
+            protected long currentTimeNanos() {
+                return clock.get();
+            }
+        };
+        final TieredCache<String, String> cache = new TieredCache<String, String>(firstTier, secondTier);
+        
+        cache.put("a", "1");
+        cache.put("b", "2");
+        
+        //An entry that expired from the first tier is not served from the second
+        clock.addAndGet(TimeUnit.MILLISECONDS.toNanos(150));
+        assertNull(cache.get("a"));
+        assertFalse(cache.containsKey("a"));
+        assertNull(firstTier.get("a"));
+        
+        //A promoted entry keeps the remaining time to live of the second tier copy
+        cache.put("c", "3");
+        firstTier.clear();
+        clock.addAndGet(TimeUnit.MILLISECONDS.toNanos(60));
+        assertEquals("3", cache.get("c"));
+        assertEquals(40, firstTier.getRemainingTimeToLive("c", TimeUnit.MILLISECONDS));
+        
+        clock.addAndGet(TimeUnit.MILLISECONDS.toNanos(50));
+        assertNull(cache.get("c"));
+        assertNull(secondTier.get("c"));
+        
+        cache.put("d", "4", 1, TimeUnit.SECONDS);
+        clock.addAndGet(TimeUnit.MILLISECONDS.toNanos(500));
+        assertEquals("4", cache.get("d"));
+        assertEquals(500, cache.getRemainingTimeToLive("d", TimeUnit.MILLISECONDS));
+    }
+    
+    public void testAsUserInfoCache() throws Exception {
+        final Map<String, Map<String, List<Object>>> backingMap = new HashMap<String, Map<String, List<Object>>>();
+        for (int i = 0; i < 100; i++) {
+            backingMap.put("user" + i, Collections.singletonMap("phone", Util.list("555-" + i)));
+        }
+        final ComplexStubPersonAttributeDao stubDao = new ComplexStubPersonAttributeDao(backingMap);
+        stubDao.setUsernameAttributeProvider(new SimpleUsernameAttributeProvider("uid"));
+        
+        final TieredCache<Serializable, Set<IPersonAttributes>> userInfoCache = new TieredCache<Serializable, Set<IPersonAttributes>>(
+                new BoundedConcurrentCache<Serializable, Set<IPersonAttributes>>(10), 
+                new OffHeapCache<Serializable, Set<IPersonAttributes>>(1024 * 1024));
+        
+        final CachingPersonAttributeDaoImpl dao = new CachingPersonAttributeDaoImpl();
+        dao.setCachedPersonAttributesDao(stubDao);
+        dao.setUsernameAttributeProvider(new SimpleUsernameAttributeProvider("uid"));
+        dao.setUserInfoCache(userInfoCache);
+        dao.setCacheNullResults(true);
+        dao.afterPropertiesSet();
+        
+        for (int i = 0; i < 100; i++) {
+            assertEquals(Util.list("555-" + i), dao.getPerson("user" + i).getAttributeValues("phone"));
+        }
+        assertNull(dao.getPerson("nobody"));
+        assertEquals(101, dao.getMisses());
+        
+        //Every lookup is answered by one of the tiers
+        for (int i = 0; i < 100; i++) {
+            assertEquals(Util.list("555-" + i), dao.getPerson("user" + i).getAttributeValues("phone"));
+        }
+        assertNull(dao.getPerson("nobody"));
+        assertEquals(101, dao.getMisses());
+        assertEquals(1, dao.getStatistics().getNullHits());
+    }
+}
@@ -195,6 +195,38 @@ public abstract class AbstractCaseSensitivityJdbcPersonAttributeDaoTest extends
         assertEquals("Andrew", currentResult.getAttributeValue("firstName"));
     }
 
+    public void testCaseInsensitiveDataAttributesAfterQuery() {
+        if ( !(supportsPerDataAttributeCaseSensitivity()) ) {
+            // The multi-row DAO config has to be translated by
+            // beforeNonUsernameQuery() which this test configures after
+            return;
+        }
+        final AbstractJdbcPersonAttributeDao<Map<String, Object>> impl = newDao(testDataSource);
+        impl.setUseAllQueryAttributes(false);
+        final Map<String, Object> columnsToAttributes = new LinkedHashMap<String, Object>();
+        columnsToAttributes.put("netid", "username");
+        columnsToAttributes.put("name", "firstName");
+        impl.setResultAttributeMapping(columnsToAttributes);
+        final Map<String, Object> attributesToColumns = new LinkedHashMap<String, Object>();
+        attributesToColumns.put("username", "netid");
+        attributesToColumns.put("firstName", "name");
+        impl.setQueryAttributeMapping(attributesToColumns);
+        beforeNonUsernameQuery(impl);
+
+        Map<String,Object> wrongCase = new LinkedHashMap<String, Object>();
+        wrongCase.put("firstName", "ANDREW");
+        assertEquals(0, impl.getPeople(wrongCase).size());
+
+        // the SQL generated for the first query must not be reused once the
+        // column is canonicalized
+        impl.setCaseInsensitiveQueryAttributesAsCollection(Util.genList("firstName"));
+        impl.setCaseInsensitiveDataAttributesAsCollection(Util.genList("name"));
+        assertEquals(2, impl.getPeople(wrongCase).size());
+
+        wrongCase.put("firstName", "ANDR*");
+        assertEquals(2, impl.getPeople(wrongCase).size());
+    }
+
     public void testCaseSensitiveNonUsernameAttributeQuery_CanonicalizedResult() {
         final AbstractJdbcPersonAttributeDao<Map<String, Object>> impl = newDao(testDataSource);
         impl.setUseAllQueryAttributes(false);
@@ -22,6 +22,8 @@ package org.jasig.services.persondir.support.jdbc;
 import java.sql.Connection;
 import java.sql.SQLException;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
 import java.util.List;
@@ -31,6 +33,7 @@ import java.util.Set;
 import javax.sql.DataSource;
 
 import org.hsqldb.jdbcDriver;
+import org.jasig.services.persondir.IPersonAttributes;
 import org.jasig.services.persondir.support.AbstractDefaultAttributePersonAttributeDao;
 import org.jasig.services.persondir.support.AbstractDefaultQueryPersonAttributeDaoTest;
 import org.jasig.services.persondir.support.SimpleUsernameAttributeProvider;
@@ -265,6 +268,92 @@ public class MultiRowJdbcPersonAttributeDaoTest
        assertEquals(Util.list("Andrew"), attribs.get("firstName"));
    }
 
+   /**
+    * Test for a query that only requests some of the mapped attributes
+    */
+   public void testRequestedAttributesQuery() {
+       MultiRowJdbcPersonAttributeDao impl = new MultiRowJdbcPersonAttributeDao(testDataSource, "SELECT netid, attr_name, attr_val FROM user_table WHERE {0}");
+       impl.setQueryAttributeMapping(Collections.singletonMap("uid", "netid"));
+
+       impl.setUsernameAttributeProvider(new SimpleUsernameAttributeProvider("uid"));
+       impl.setUnmappedUsernameAttribute("netid");
+       
+       Map<String, Object> columnsToAttributes = new LinkedHashMap<String, Object>();
+       columnsToAttributes.put("name", "firstName");
+       columnsToAttributes.put("email", "emailAddress");
+       columnsToAttributes.put("shirt_color", "dressShirtColor");
+       impl.setResultAttributeMapping(columnsToAttributes);
+       
+       impl.setNameValueColumnMappings(Collections.singletonMap("attr_name", "attr_val"));
+       
+       final Set<String> requestedAttributes = new HashSet<String>();
+       requestedAttributes.add("firstName");
+       requestedAttributes.add("dressShirtColor");
+       
+       final IPersonAttributes person = impl.getPerson("awp9", requestedAttributes);
+       assertEquals("awp9", person.getName());
+       
+       final Map<String, List<Object>> expected = new HashMap<String, List<Object>>();
+       expected.put("firstName", Util.list("Andrew"));
+       expected.put("dressShirtColor", Util.list("blue"));
+       assertEquals(expected, person.getAttributes());
+   }
+
+   /**
+    * Test that streaming rows finds the same people as mapping rows to a List first
+    */
+   public void testStreamingRows() {
+       final MultiRowJdbcPersonAttributeDao listImpl = newStreamingTestDao(false);
+       final MultiRowJdbcPersonAttributeDao streamingImpl = newStreamingTestDao(true);
+       assertTrue(streamingImpl.isStreamingRows());
+       
+       assertEquals(listImpl.getPerson("awp9"), streamingImpl.getPerson("awp9"));
+       assertEquals(listImpl.getPerson("awp9").getAttributes(), streamingImpl.getPerson("awp9").getAttributes());
+       assertNull(streamingImpl.getPerson("nobody"));
+       
+       final Map<String, List<Object>> wildcardQuery = Collections.singletonMap("uid", Util.list("*"));
+       final Set<IPersonAttributes> listPeople = listImpl.getPeopleWithMultivaluedAttributes(wildcardQuery);
+       final Set<IPersonAttributes> streamedPeople = streamingImpl.getPeopleWithMultivaluedAttributes(wildcardQuery);
+       assertEquals(4, streamedPeople.size());
+       assertEquals(listPeople, streamedPeople);
+       
+       final Map<String, List<Object>> susan = new HashMap<String, List<Object>>();
+       susan.put("firstName", Util.list("Susan"));
+       susan.put("emailAddress", Util.list("susan.test@test.net"));
+       susan.put("dressShirtColor", Collections.singletonList(null));
+       assertEquals(susan, streamingImpl.getPerson("susan").getAttributes());
+       
+       final Set<String> requestedAttributes = Collections.singleton("firstName");
+       assertEquals(Collections.singletonMap("firstName", Util.list("Andrew")), streamingImpl.getPerson("awp9", requestedAttributes).getAttributes());
+       
+       streamingImpl.setNameValueColumnMappings(Collections.singletonMap("ATTR_NAME", "attr_va"));
+       try {
+           streamingImpl.getMultivaluedUserAttributes("awp9");
+           fail("BadSqlGrammarException expected with invalid attribute mapping value");
+       }
+       catch (BadSqlGrammarException bsge) {
+           //expected
+       }
+   }
+   
+   private MultiRowJdbcPersonAttributeDao newStreamingTestDao(boolean streamingRows) {
+       final MultiRowJdbcPersonAttributeDao impl = new MultiRowJdbcPersonAttributeDao(testDataSource, "SELECT netid, attr_name, attr_val FROM user_table WHERE {0}");
+       impl.setQueryAttributeMapping(Collections.singletonMap("uid", "netid"));
+
+       impl.setUsernameAttributeProvider(new SimpleUsernameAttributeProvider("uid"));
+       impl.setUnmappedUsernameAttribute("netid");
+       
+       final Map<String, Object> columnsToAttributes = new LinkedHashMap<String, Object>();
+       columnsToAttributes.put("name", "firstName");
+       columnsToAttributes.put("email", "emailAddress");
+       columnsToAttributes.put("shirt_color", "dressShirtColor");
+       impl.setResultAttributeMapping(columnsToAttributes);
+       
+       impl.setNameValueColumnMappings(Collections.singletonMap("attr_name", "attr_val"));
+       impl.setStreamingRows(streamingRows);
+       return impl;
+   }
+
    /**
     * Test for a query with a single attribute
     */
@@ -33,6 +33,7 @@ import java.util.Set;
 import javax.sql.DataSource;
 
 import org.hsqldb.jdbcDriver;
+import org.jasig.services.persondir.IPersonAttributes;
 import org.jasig.services.persondir.support.AbstractDefaultAttributePersonAttributeDao;
 import org.jasig.services.persondir.support.AbstractDefaultQueryPersonAttributeDaoTest;
 import org.jasig.services.persondir.support.SimpleUsernameAttributeProvider;
@@ -184,6 +185,30 @@ public class SingleRowJdbcPersonAttributeDaoTest
         assertEquals(Util.list("Andrew"), attribs.get("firstName"));
     }
 
+    /**
+     * Test for a query that only requests some of the mapped attributes
+     */
+    public void testRequestedAttributesQuery() {
+        SingleRowJdbcPersonAttributeDao impl = new SingleRowJdbcPersonAttributeDao(testDataSource, "SELECT name, email, shirt_color FROM user_table WHERE {0}");
+        impl.setQueryAttributeMapping(Collections.singletonMap("uid", "netid"));
+
+        impl.setUsernameAttributeProvider(new SimpleUsernameAttributeProvider("uid"));
+
+        Map<String, Object> columnsToAttributes = new HashMap<String, Object>();
+        columnsToAttributes.put("name", "firstName");
+
+        Set<String> emailAttributeNames = new HashSet<String>();
+        emailAttributeNames.add("email");
+        emailAttributeNames.add("emailAddress");
+        columnsToAttributes.put("email", emailAttributeNames);
+        columnsToAttributes.put("shirt_color", "dressShirtColor");
+        impl.setResultAttributeMapping(columnsToAttributes);
+
+        final IPersonAttributes person = impl.getPerson("awp9", Collections.singleton("emailAddress"));
+        assertEquals("awp9", person.getName());
+        assertEquals(Collections.singletonMap("emailAddress", Util.list("andrew.petro@yale.edu")), person.getAttributes());
+    }
+
     /**
      * Test for a query with a single attribute
      */
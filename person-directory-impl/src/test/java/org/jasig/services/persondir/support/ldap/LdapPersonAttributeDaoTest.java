@@ -247,6 +247,54 @@ public class LdapPersonAttributeDaoTest extends AbstractDirContextTest {
         }
     }
     
+    /**
+     * Queries of the same shape with different values, wildcards and values
+     * that have to be escaped.
+     */
+    public void testQueryShapes() throws Exception {
+        LdapPersonAttributeDao impl = new LdapPersonAttributeDao();
+        
+        Map<String, Object> ldapAttribsToPortalAttribs = new HashMap<String, Object>();
+        ldapAttribsToPortalAttribs.put("mail", "email");
+        
+        impl.setResultAttributeMapping(ldapAttribsToPortalAttribs);
+        
+        impl.setContextSource(this.getContextSource());
+        
+        impl.setQueryAttributeMapping(Collections.singletonMap("uid", "uid"));
+        impl.setQueryTemplate("(&(mail=*){0})");
+
+        impl.afterPropertiesSet();
+        
+        try {
+            Map<String, List<Object>> queryMap = new HashMap<String, List<Object>>();
+            queryMap.put("uid", Util.list("edalquist"));
+            Map<String, List<Object>> attribs = impl.getMultivaluedUserAttributes(queryMap);
+            assertEquals(Util.list("eric.dalquist@example.com"), attribs.get("email"));
+            
+            queryMap.put("uid", Util.list("jjohnson"));
+            attribs = impl.getMultivaluedUserAttributes(queryMap);
+            assertEquals(Util.list("jim.johnson@example.com"), attribs.get("email"));
+            
+            queryMap.put("uid", Util.list("jj*"));
+            attribs = impl.getMultivaluedUserAttributes(queryMap);
+            assertEquals(Util.list("jim.johnson@example.com"), attribs.get("email"));
+            
+            queryMap.put("uid", Util.list("edal(quist)\\"));
+            attribs = impl.getMultivaluedUserAttributes(queryMap);
+            assertNull(attribs);
+            
+            //A new template applies to shapes that were already used
+            impl.setQueryTemplate("(&(mail=nobody@example.com){0})");
+            queryMap.put("uid", Util.list("edalquist"));
+            attribs = impl.getMultivaluedUserAttributes(queryMap);
+            assertNull(attribs);
+        }
+        catch (DataAccessResourceFailureException darfe) {
+            //OK, No net connection
+        }
+    }
+    
     /**
      * A query that needs mulitple attributes to complete but the needed
      * attributes aren't passed to it.
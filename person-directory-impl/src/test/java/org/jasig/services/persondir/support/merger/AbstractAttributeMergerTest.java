@@ -19,11 +19,20 @@
 
 package org.jasig.services.persondir.support.merger;
 
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 import junit.framework.TestCase;
 
+import org.jasig.services.persondir.IPersonAttributes;
+import org.jasig.services.persondir.support.NamedPersonImpl;
+import org.jasig.services.persondir.util.Util;
+
 /**
  * Abstract test for the IAttributeMerger interface.
  * @author andrew.petro@yale.edu
@@ -59,6 +68,65 @@ public abstract class AbstractAttributeMergerTest extends TestCase {
         fail("Should have thrown IAE on null argument.");
     }
     
+    /**
+     * Test that merging result Sets moves merged and new people to the end of toModify in toConsider order, merges
+     * matching people with mergeAttributes and leaves the attributes of the source people unmodified.
+     */
+    public void testMergeResults() {
+        final IAttributeMerger merger = getAttributeMerger();
+        
+        final Map<String, List<Object>> user1Attributes = new HashMap<String, List<Object>>();
+        user1Attributes.put("shared", Util.list("a"));
+        user1Attributes.put("one", Util.list("1"));
+        final Map<String, List<Object>> user2Attributes = new HashMap<String, List<Object>>();
+        user2Attributes.put("shared", Util.list("b"));
+        final Map<String, List<Object>> user2OtherAttributes = new HashMap<String, List<Object>>();
+        user2OtherAttributes.put("shared", Util.list("c"));
+        user2OtherAttributes.put("two", Util.list("2"));
+        final Map<String, List<Object>> user3Attributes = new HashMap<String, List<Object>>();
+        user3Attributes.put("three", Util.list("3"));
+        
+        final Set<IPersonAttributes> toModify = new LinkedHashSet<IPersonAttributes>();
+        toModify.add(new NamedPersonImpl("user2", copy(user2Attributes)));
+        toModify.add(new NamedPersonImpl("user1", copy(user1Attributes)));
+        
+        final Set<IPersonAttributes> toConsider = new LinkedHashSet<IPersonAttributes>();
+        toConsider.add(new NamedPersonImpl("user3", copy(user3Attributes)));
+        toConsider.add(new NamedPersonImpl("user2", copy(user2OtherAttributes)));
+        
+        final Set<IPersonAttributes> result = merger.mergeResults(toModify, toConsider);
+        assertSame(toModify, result);
+        assertEquals(3, result.size());
+        
+        final Iterator<IPersonAttributes> resultItr = result.iterator();
+        
+        final IPersonAttributes user1 = resultItr.next();
+        assertEquals("user1", user1.getName());
+        assertEquals(user1Attributes, user1.getAttributes());
+        
+        final IPersonAttributes user3 = resultItr.next();
+        assertEquals("user3", user3.getName());
+        assertEquals(user3Attributes, user3.getAttributes());
+        
+        final IPersonAttributes user2 = resultItr.next();
+        assertEquals("user2", user2.getName());
+        final Map<String, List<Object>> expected = merger.mergeAttributes(copy(user2Attributes), copy(user2OtherAttributes));
+        assertEquals(expected, user2.getAttributes());
+        
+        //The people that were merged must not have been modified
+        final Iterator<IPersonAttributes> toConsiderItr = toConsider.iterator();
+        assertEquals(user3Attributes, toConsiderItr.next().getAttributes());
+        assertEquals(user2OtherAttributes, toConsiderItr.next().getAttributes());
+    }
+    
+    private static Map<String, List<Object>> copy(Map<String, List<Object>> attributes) {
+        final Map<String, List<Object>> copy = new HashMap<String, List<Object>>();
+        for (final Map.Entry<String, List<Object>> attributeEntry : attributes.entrySet()) {
+            copy.put(attributeEntry.getKey(), new ArrayList<Object>(attributeEntry.getValue()));
+        }
+        return copy;
+    }
+    
     protected abstract IAttributeMerger getAttributeMerger();
     
 }